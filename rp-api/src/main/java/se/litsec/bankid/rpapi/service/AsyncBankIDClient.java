@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service;
+
+import java.util.concurrent.CompletableFuture;
+
+import se.litsec.bankid.rpapi.types.BankIDException;
+import se.litsec.bankid.rpapi.types.CollectResponse;
+import se.litsec.bankid.rpapi.types.OrderResponse;
+import se.litsec.bankid.rpapi.types.Requirement;
+
+/**
+ * An asynchronous version of the {@link BankIDClient} interface. None of the methods block the calling thread while
+ * waiting for the BankID server. Instead, a {@link CompletableFuture} is returned.
+ * <p>
+ * Errors are reported by completing the future exceptionally with a {@link BankIDException}, using the same error
+ * mapping as {@link BankIDClient}. The only exception is a collect call for an order that has failed, where the
+ * exception holds the error code from the collect response (and not {@code UNKNOWN_ERROR}).
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public interface AsyncBankIDClient {
+
+  /**
+   * Request an authentication order. The {@link #collect(String)} method is used to query the status of the order.
+   *
+   * @param personalIdentityNumber
+   *          the ID number of the user trying to be authenticated (optional). If the ID number is omitted the user must
+   *          use the same device and the client must be started with the autoStartToken returned in orderResponse
+   * @param endUserIp
+   *          the user IP address as seen by the relying party
+   * @param requirement
+   *          used by the relying party to set requirements how the authentication or sign operation must be performed.
+   *          Default rules are applied if omitted
+   * @return a future holding the order response
+   * @see BankIDClient#authenticate(String, String, Requirement)
+   */
+  CompletableFuture<OrderResponse> authenticate(final String personalIdentityNumber, final String endUserIp,
+      final Requirement requirement);
+
+  /**
+   * Request a signing order. The {@link #collect(String)} method is used to query the status of the order.
+   *
+   * @param personalIdentityNumber
+   *          the ID number of the user trying to be authenticated (optional). If the ID number is omitted the user must
+   *          use the same device and the client must be started with the autoStartToken returned in orderResponse
+   * @param endUserIp
+   *          the user IP address as seen by the relying party
+   * @param dataToSign
+   *          the data to sign
+   * @param requirement
+   *          used by the relying party to set requirements how the authentication or sign operation must be performed.
+   *          Default rules are applied if omitted
+   * @return a future holding the order response
+   * @see BankIDClient#sign(String, String, DataToSign, Requirement)
+   */
+  CompletableFuture<OrderResponse> sign(final String personalIdentityNumber, final String endUserIp,
+      final DataToSign dataToSign, final Requirement requirement);
+
+  /**
+   * Cancels an ongoing order.
+   *
+   * @param orderReference
+   *          the order reference
+   * @return a future that is completed when the order has been cancelled
+   * @see BankIDClient#cancel(String)
+   */
+  CompletableFuture<Void> cancel(final String orderReference);
+
+  /**
+   * Collects the result from {@link #authenticate(String, String, Requirement)} or
+   * {@link #sign(String, String, DataToSign, Requirement)}.
+   *
+   * @param orderReference
+   *          the unique order reference
+   * @return a future holding the collect response
+   * @see BankIDClient#collect(String)
+   */
+  CompletableFuture<CollectResponse> collect(final String orderReference);
+
+  /**
+   * Returns the QR generator that should be used to generate QR codes.
+   *
+   * @return a QRGenerator or null if no QR code generator has been configured
+   */
+  QRGenerator getQRGenerator();
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service;
+
+import se.litsec.bankid.rpapi.types.BankIDException;
+import se.litsec.bankid.rpapi.types.CollectResponse;
+import se.litsec.bankid.rpapi.types.ProgressStatus;
+
+/**
+ * A service that polls the status of open BankID orders on behalf of the application. Instead of letting each web
+ * request invoke {@link BankIDClient#collect(String)}, the order is registered with the poller, and the poller invokes
+ * collect for all registered orders at a controlled rate and reports status changes to the registered listener.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public interface CollectPoller {
+
+  /**
+   * Registers an order for polling. If the order already is registered, the previous registration is replaced.
+   *
+   * @param orderReference
+   *          the order reference
+   * @param listener
+   *          the listener that is informed about status changes for the order
+   */
+  void register(final String orderReference, final CollectListener listener);
+
+  /**
+   * Unregisters an order, i.e., stops polling it. Orders are automatically unregistered when they reach a final state
+   * (complete or failed).
+   *
+   * @param orderReference
+   *          the order reference
+   */
+  void unregister(final String orderReference);
+
+  /**
+   * Returns the number of orders that currently are being polled.
+   *
+   * @return the number of registered orders
+   */
+  int getRegisteredOrders();
+
+  /**
+   * Listener interface for receiving collect results from a {@link CollectPoller}.
+   */
+  interface CollectListener {
+
+    /**
+     * Invoked when the {@link ProgressStatus} of an order has changed (including the first collect response). If the
+     * status is {@link ProgressStatus#COMPLETE}, the order has been unregistered from the poller.
+     *
+     * @param response
+     *          the collect response
+     */
+    void onStatusChange(final CollectResponse response);
+
+    /**
+     * Invoked when the order failed, or the collect call failed. If the order failed, it has been unregistered from the
+     * poller. A collect call that failed for a reason that may be temporary (for example, a network error or BankID
+     * maintenance) may be retried by the poller, and in that case the order is still registered.
+     *
+     * @param error
+     *          the error
+     */
+    void onError(final BankIDException error);
+  }
+
+}
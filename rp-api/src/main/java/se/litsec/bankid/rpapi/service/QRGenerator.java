@@ -16,6 +16,7 @@
 package se.litsec.bankid.rpapi.service;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.time.Instant;
 
 import se.litsec.bankid.rpapi.types.OrderResponse;
@@ -108,6 +109,100 @@ public interface QRGenerator {
    */
   byte[] generateAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final Instant orderTime) throws IOException;
 
+  /**
+   * Generates a (static) QR code image using one pixel per QR code module (plus the quiet zone).
+   * <p>
+   * Compared to a QR code image with a fixed size in pixels, the image is much smaller and cheaper to generate. It is
+   * intended to be scaled by the browser (see {@link QRImage}).
+   * </p>
+   * <p>
+   * The default implementation throws {@link UnsupportedOperationException}.
+   * </p>
+   * 
+   * @param autoStartToken
+   *          the BankID autostart token
+   * @param format
+   *          the format for the generated QR code (PNG or SVG is recommended)
+   * @return the QR code image along with its size in modules
+   * @throws IOException
+   *           for errors during generation
+   */
+  default QRImage generateModuleScaleQRCodeImage(final String autoStartToken, final ImageFormat format) throws IOException {
+    throw new UnsupportedOperationException("Module scale images are not supported by " + this.getClass().getName());
+  }
+
+  /**
+   * Generates an "animated" QR code image using one pixel per QR code module (plus the quiet zone).
+   * <p>
+   * Compared to a QR code image with a fixed size in pixels, the image is much smaller and cheaper to generate. It is
+   * intended to be scaled by the browser (see {@link QRImage}).
+   * </p>
+   * <p>
+   * The default implementation throws {@link UnsupportedOperationException}.
+   * </p>
+   * 
+   * @param qrStartToken
+   *          the QR start token (see {@link OrderResponse#getQrStartToken()})
+   * @param qrStartSecret
+   *          the QR start secret (see {@link OrderResponse#getQrStartSecret()})
+   * @param orderTime
+   *          the instant when the result from an {@link BankIDClient#authenticate(String, String, se.litsec.bankid.rpapi.types.Requirement)}
+   *          or a {@link BankIDClient#sign(String, String, DataToSign, se.litsec.bankid.rpapi.types.Requirement)} call was received
+   * @param format
+   *          the format for the generated QR code (PNG or SVG is recommended)
+   * @return the QR code image along with its size in modules
+   * @throws IOException
+   *           for errors during generation
+   */
+  default QRImage generateModuleScaleAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret,
+      final Instant orderTime, final ImageFormat format) throws IOException {
+    throw new UnsupportedOperationException("Module scale images are not supported by " + this.getClass().getName());
+  }
+
+  /**
+   * Encodes a (static) QR code without rendering any image.
+   * <p>
+   * The returned module matrix is very compact, and may be used to render the QR code in the browser.
+   * </p>
+   * <p>
+   * The default implementation throws {@link UnsupportedOperationException}.
+   * </p>
+   * 
+   * @param autoStartToken
+   *          the BankID autostart token
+   * @return the QR code module matrix
+   * @throws IOException
+   *           for errors during encoding
+   */
+  default QRModuleMatrix generateQRCodeModules(final String autoStartToken) throws IOException {
+    throw new UnsupportedOperationException("Module matrices are not supported by " + this.getClass().getName());
+  }
+
+  /**
+   * Encodes an "animated" QR code without rendering any image.
+   * <p>
+   * The returned module matrix is very compact, and may be used to render the QR code in the browser.
+   * </p>
+   * <p>
+   * The default implementation throws {@link UnsupportedOperationException}.
+   * </p>
+   * 
+   * @param qrStartToken
+   *          the QR start token (see {@link OrderResponse#getQrStartToken()})
+   * @param qrStartSecret
+   *          the QR start secret (see {@link OrderResponse#getQrStartSecret()})
+   * @param orderTime
+   *          the instant when the result from an {@link BankIDClient#authenticate(String, String, se.litsec.bankid.rpapi.types.Requirement)}
+   *          or a {@link BankIDClient#sign(String, String, DataToSign, se.litsec.bankid.rpapi.types.Requirement)} call was received
+   * @return the QR code module matrix
+   * @throws IOException
+   *           for errors during encoding
+   */
+  default QRModuleMatrix generateAnimatedQRCodeModules(final String qrStartToken, final String qrStartSecret,
+      final Instant orderTime) throws IOException {
+    throw new UnsupportedOperationException("Module matrices are not supported by " + this.getClass().getName());
+  }
+
   /**
    * Generates a (static) QR code image as a Base64 encoded image.
    * <p>
@@ -223,11 +318,136 @@ public interface QRGenerator {
    */
   String generateAnimatedQRCodeBase64Image(final String qrStartToken, final String qrStartSecret, final Instant orderTime) throws IOException;
 
+  /**
+   * Generates a (static) QR code image and writes it to the supplied stream.
+   * <p>
+   * To write to a {@link java.nio.ByteBuffer}, use
+   * {@link se.litsec.bankid.rpapi.support.ByteBufferOutputStream}.
+   * </p>
+   * <p>
+   * The default implementation writes the result of {@link #generateQRCodeImage(String, int, int, ImageFormat)}.
+   * Implementations that are able to write the image directly to the stream should override this method.
+   * </p>
+   * 
+   * @param autoStartToken
+   *          the BankID autostart token
+   * @param width
+   *          the width of the generated QR code (in pixels)
+   * @param height
+   *          the height of the generated QR code (in pixels)
+   * @param format
+   *          the format for the generated QR code
+   * @param out
+   *          the stream to write to (will not be closed)
+   * @throws IOException
+   *           for errors during generation or writing
+   * @see #generateQRCodeImage(String, int, int, ImageFormat)
+   */
+  default void writeQRCodeImage(final String autoStartToken, final int width, final int height, final ImageFormat format,
+      final OutputStream out) throws IOException {
+    out.write(this.generateQRCodeImage(autoStartToken, width, height, format));
+  }
+
+  /**
+   * Generates an "animated" QR code image and writes it to the supplied stream.
+   * <p>
+   * To write to a {@link java.nio.ByteBuffer}, use
+   * {@link se.litsec.bankid.rpapi.support.ByteBufferOutputStream}.
+   * </p>
+   * <p>
+   * The default implementation writes the result of
+   * {@link #generateAnimatedQRCodeImage(String, String, Instant, int, int, ImageFormat)}. Implementations that are able
+   * to write the image directly to the stream should override this method.
+   * </p>
+   * 
+   * @param qrStartToken
+   *          the QR start token (see {@link OrderResponse#getQrStartToken()})
+   * @param qrStartSecret
+   *          the QR start secret (see {@link OrderResponse#getQrStartSecret()})
+   * @param orderTime
+   *          the instant when the result from an {@link BankIDClient#authenticate(String, String, se.litsec.bankid.rpapi.types.Requirement)}
+   *          or a {@link BankIDClient#sign(String, String, DataToSign, se.litsec.bankid.rpapi.types.Requirement)} call was received
+   * @param width
+   *          the width of the generated QR code (in pixels)
+   * @param height
+   *          the height of the generated QR code (in pixels)
+   * @param format
+   *          the format for the generated QR code
+   * @param out
+   *          the stream to write to (will not be closed)
+   * @throws IOException
+   *           for errors during generation or writing
+   * @see #generateAnimatedQRCodeImage(String, String, Instant, int, int, ImageFormat)
+   */
+  default void writeAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final Instant orderTime,
+      final int width, final int height, final ImageFormat format, final OutputStream out) throws IOException {
+    out.write(this.generateAnimatedQRCodeImage(qrStartToken, qrStartSecret, orderTime, width, height, format));
+  }
+
+  /**
+   * Generates a (static) QR code image as a Base64 encoded image (data URI), and writes it to the supplied
+   * {@link Appendable} (for example a {@link java.io.Writer} or a {@link StringBuilder}).
+   * <p>
+   * The default implementation appends the result of
+   * {@link #generateQRCodeBase64Image(String, int, int, ImageFormat)}.
+   * </p>
+   * 
+   * @param autoStartToken
+   *          the BankID autostart token
+   * @param width
+   *          the width of the generated QR code (in pixels)
+   * @param height
+   *          the height of the generated QR code (in pixels)
+   * @param format
+   *          the format for the generated QR code
+   * @param out
+   *          where to write the data URI
+   * @throws IOException
+   *           for errors during generation or writing
+   * @see #generateQRCodeBase64Image(String, int, int, ImageFormat)
+   */
+  default void writeQRCodeBase64Image(final String autoStartToken, final int width, final int height, final ImageFormat format,
+      final Appendable out) throws IOException {
+    out.append(this.generateQRCodeBase64Image(autoStartToken, width, height, format));
+  }
+
+  /**
+   * Generates an "animated" QR code image as a Base64 encoded image (data URI), and writes it to the supplied
+   * {@link Appendable} (for example a {@link java.io.Writer} or a {@link StringBuilder}).
+   * <p>
+   * The default implementation appends the result of
+   * {@link #generateAnimatedQRCodeBase64Image(String, String, Instant, int, int, ImageFormat)}.
+   * </p>
+   * 
+   * @param qrStartToken
+   *          the QR start token (see {@link OrderResponse#getQrStartToken()})
+   * @param qrStartSecret
+   *          the QR start secret (see {@link OrderResponse#getQrStartSecret()})
+   * @param orderTime
+   *          the instant when the result from an {@link BankIDClient#authenticate(String, String, se.litsec.bankid.rpapi.types.Requirement)}
+   *          or a {@link BankIDClient#sign(String, String, DataToSign, se.litsec.bankid.rpapi.types.Requirement)} call was received
+   * @param width
+   *          the width of the generated QR code (in pixels)
+   * @param height
+   *          the height of the generated QR code (in pixels)
+   * @param format
+   *          the format for the generated QR code
+   * @param out
+   *          where to write the data URI
+   * @throws IOException
+   *           for errors during generation or writing
+   * @see #generateAnimatedQRCodeBase64Image(String, String, Instant, int, int, ImageFormat)
+   */
+  default void writeAnimatedQRCodeBase64Image(final String qrStartToken, final String qrStartSecret, final Instant orderTime,
+      final int width, final int height, final ImageFormat format, final Appendable out) throws IOException {
+    out.append(this.generateAnimatedQRCodeBase64Image(qrStartToken, qrStartSecret, orderTime, width, height, format));
+  }
+
   /**
    * Enum representing an image format.
    */
   public enum ImageFormat {
-    JPG("JPG"), PNG("PNG"), SVG("SVG");
+    JPG("JPG", "image/jpeg"), PNG("PNG", "image/png"), SVG("SVG", "image/svg+xml");
 
     /**
      * Returns the image format in text format.
@@ -238,6 +458,15 @@ public interface QRGenerator {
       return this.imageFormatName;
     }
 
+    /**
+     * Returns the media type (MIME type) for the image format.
+     * 
+     * @return the media type
+     */
+    public String getMediaType() {
+      return this.mediaType;
+    }
+
     /**
      * Parses an image format string into an {@code ImageFormat} instance.
      * 
@@ -259,13 +488,19 @@ public interface QRGenerator {
      * 
      * @param imageFormatName
      *          the image format name
+     * @param mediaType
+     *          the media type
      */
-    private ImageFormat(final String imageFormatName) {
+    private ImageFormat(final String imageFormatName, final String mediaType) {
       this.imageFormatName = imageFormatName;
+      this.mediaType = mediaType;
     }
 
     /** The image format name. */
     private String imageFormatName;
+
+    /** The media type. */
+    private String mediaType;
   }
 
 }
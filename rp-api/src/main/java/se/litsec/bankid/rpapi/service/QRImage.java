@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service;
+
+import java.util.Base64;
+
+import se.litsec.bankid.rpapi.service.QRGenerator.ImageFormat;
+
+/**
+ * Represents a QR code image that is rendered using one pixel per QR code module.
+ * <p>
+ * Such an image is very small, and it is meant to be scaled up by the browser, for example using the CSS property
+ * {@code image-rendering: pixelated} and a width and height that is a multiple of {@link #getModules()}.
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class QRImage {
+
+  /** The image bytes. */
+  private final byte[] image;
+
+  /** The image format. */
+  private final ImageFormat format;
+
+  /** The number of modules per side (including the quiet zone). */
+  private final int modules;
+
+  /**
+   * Constructor.
+   *
+   * @param image
+   *          the image bytes
+   * @param format
+   *          the image format
+   * @param modules
+   *          the number of modules per side (including the quiet zone)
+   */
+  public QRImage(final byte[] image, final ImageFormat format, final int modules) {
+    this.image = image;
+    this.format = format;
+    this.modules = modules;
+  }
+
+  /**
+   * Returns the image bytes.
+   *
+   * @return the image bytes
+   */
+  public byte[] getImage() {
+    return this.image;
+  }
+
+  /**
+   * Returns the image format.
+   *
+   * @return the image format
+   */
+  public ImageFormat getFormat() {
+    return this.format;
+  }
+
+  /**
+   * Returns the number of modules per side of the QR code, including the quiet zone. Since one pixel is used per
+   * module, this is also the width and height (in pixels) of the image.
+   *
+   * @return the number of modules per side
+   */
+  public int getModules() {
+    return this.modules;
+  }
+
+  /**
+   * Returns the image as a Base64 encoded image, see {@link QRGenerator#generateQRCodeBase64Image(String)}.
+   *
+   * @return the base64 encoded image
+   */
+  public String getBase64Image() {
+    return String.format("data:%s;base64, %s", this.format.getMediaType(), Base64.getEncoder().encodeToString(this.image));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return String.format("%s image, %dx%d modules, %d bytes", this.format, this.modules, this.modules, this.image.length);
+  }
+
+}
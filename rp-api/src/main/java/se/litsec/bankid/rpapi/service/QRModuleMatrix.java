@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service;
+
+import java.util.Base64;
+
+/**
+ * Represents the modules of an encoded QR code, i.e., the QR code without any image rendering.
+ * <p>
+ * The modules are packed into a bit set, row by row, with the most significant bit of each byte first. The module at
+ * position (x, y) is bit number {@code y * size + x}, and a set bit represents a dark module. The matrix does not
+ * include the quiet zone, so a renderer should add a light margin of (at least) {@value #QUIET_ZONE} modules around
+ * the code.
+ * </p>
+ * <p>
+ * For a BankID QR code the bit set is about 150 bytes, which makes it suitable for being sent to the browser and
+ * rendered there (on a canvas or as SVG).
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class QRModuleMatrix {
+
+  /** The recommended size of the quiet zone (in modules). */
+  public static final int QUIET_ZONE = 4;
+
+  /** The number of modules per side. */
+  private final int size;
+
+  /** The modules. */
+  private final byte[] modules;
+
+  /**
+   * Constructor.
+   *
+   * @param size
+   *          the number of modules per side
+   * @param modules
+   *          the modules packed into a bit set (see class description)
+   */
+  public QRModuleMatrix(final int size, final byte[] modules) {
+    if (modules.length < (size * size + 7) / 8) {
+      throw new IllegalArgumentException("Too few bytes for the given size");
+    }
+    this.size = size;
+    this.modules = modules;
+  }
+
+  /**
+   * Returns the number of modules per side (not including the quiet zone).
+   *
+   * @return the number of modules per side
+   */
+  public int getSize() {
+    return this.size;
+  }
+
+  /**
+   * Returns the modules packed into a bit set (see class description).
+   *
+   * @return the modules
+   */
+  public byte[] getModules() {
+    return this.modules;
+  }
+
+  /**
+   * Returns the modules packed into a bit set (see class description) as a Base64 encoded string.
+   *
+   * @return the Base64 encoded modules
+   */
+  public String getBase64Modules() {
+    return Base64.getEncoder().encodeToString(this.modules);
+  }
+
+  /**
+   * Tells whether the module at the given position is dark.
+   *
+   * @param x
+   *          the column
+   * @param y
+   *          the row
+   * @return true if the module is dark and false otherwise
+   */
+  public boolean isDark(final int x, final int y) {
+    final int bit = y * this.size + x;
+    return (this.modules[bit >>> 3] & (0x80 >>> (bit & 7))) != 0;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return String.format("%dx%d modules", this.size, this.size);
+  }
+
+}
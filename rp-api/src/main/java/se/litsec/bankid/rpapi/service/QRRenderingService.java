@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import se.litsec.bankid.rpapi.service.QRGenerator.ImageFormat;
+
+/**
+ * A service that generates QR code images on a dedicated, bounded, pool of threads instead of on the calling (request)
+ * thread. All methods return immediately with a {@link CompletableFuture}.
+ * <p>
+ * If the service is saturated, i.e., if the maximum number of queued renderings has been reached, the returned future
+ * is completed exceptionally with a {@link RejectedExecutionException} directly. Errors during generation are reported
+ * by completing the future exceptionally with the {@link java.io.IOException} thrown by the {@link QRGenerator}.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public interface QRRenderingService {
+
+  /**
+   * Generates a QR code image for the supplied autostart token.
+   *
+   * @param autoStartToken
+   *          the BankID autostart token
+   * @param width
+   *          the width of the generated QR code (in pixels)
+   * @param height
+   *          the height of the generated QR code (in pixels)
+   * @param format
+   *          the format for the generated QR code
+   * @return a future holding the image bytes
+   * @see QRGenerator#generateQRCodeImage(String, int, int, ImageFormat)
+   */
+  CompletableFuture<byte[]> renderQRCodeImage(final String autoStartToken, final int width, final int height,
+      final ImageFormat format);
+
+  /**
+   * Generates a QR code image for the supplied autostart token as a Base64 data URI.
+   *
+   * @param autoStartToken
+   *          the BankID autostart token
+   * @param width
+   *          the width of the generated QR code (in pixels)
+   * @param height
+   *          the height of the generated QR code (in pixels)
+   * @param format
+   *          the format for the generated QR code
+   * @return a future holding the data URI
+   * @see QRGenerator#generateQRCodeBase64Image(String, int, int, ImageFormat)
+   */
+  CompletableFuture<String> renderQRCodeBase64Image(final String autoStartToken, final int width, final int height,
+      final ImageFormat format);
+
+  /**
+   * Generates an "animated" QR code image. The frame is the one that is current when the rendering is performed.
+   *
+   * @param qrStartToken
+   *          the QR start token
+   * @param qrStartSecret
+   *          the QR start secret
+   * @param orderTime
+   *          the instant when the order response was received
+   * @param width
+   *          the width of the generated QR code (in pixels)
+   * @param height
+   *          the height of the generated QR code (in pixels)
+   * @param format
+   *          the format for the generated QR code
+   * @return a future holding the image bytes
+   * @see QRGenerator#generateAnimatedQRCodeImage(String, String, Instant, int, int, ImageFormat)
+   */
+  CompletableFuture<byte[]> renderAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret,
+      final Instant orderTime, final int width, final int height, final ImageFormat format);
+
+  /**
+   * Generates an "animated" QR code image as a Base64 data URI. The frame is the one that is current when the rendering
+   * is performed.
+   *
+   * @param qrStartToken
+   *          the QR start token
+   * @param qrStartSecret
+   *          the QR start secret
+   * @param orderTime
+   *          the instant when the order response was received
+   * @param width
+   *          the width of the generated QR code (in pixels)
+   * @param height
+   *          the height of the generated QR code (in pixels)
+   * @param format
+   *          the format for the generated QR code
+   * @return a future holding the data URI
+   * @see QRGenerator#generateAnimatedQRCodeBase64Image(String, String, Instant, int, int, ImageFormat)
+   */
+  CompletableFuture<String> renderAnimatedQRCodeBase64Image(final String qrStartToken, final String qrStartSecret,
+      final Instant orderTime, final int width, final int height, final ImageFormat format);
+
+  /**
+   * Returns the number of renderings waiting for a thread.
+   *
+   * @return the queue depth
+   */
+  int getQueueDepth();
+
+  /**
+   * Returns the number of renderings currently being performed.
+   *
+   * @return the number of active renderings
+   */
+  int getActiveRenderings();
+
+  /**
+   * Returns the number of renderings that have completed (successfully or not).
+   *
+   * @return the number of completed renderings
+   */
+  long getCompletedRenderings();
+
+  /**
+   * Returns the number of renderings that have been rejected because the service was saturated.
+   *
+   * @return the number of rejected renderings
+   */
+  long getRejectedRenderings();
+
+  /**
+   * Returns the average time that completed renderings have been waiting in the queue.
+   *
+   * @return the average queue time
+   */
+  Duration getAverageQueueTime();
+
+  /**
+   * Returns the average time that completed renderings have taken (not including the time in the queue).
+   *
+   * @return the average render time
+   */
+  Duration getAverageRenderTime();
+
+  /**
+   * Returns the longest time that a completed rendering has taken (including the time in the queue).
+   *
+   * @return the maximum latency
+   */
+  Duration getMaxLatency();
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service;
+
+import reactor.core.publisher.Flux;
+import se.litsec.bankid.rpapi.types.BankIDException;
+import se.litsec.bankid.rpapi.types.CollectResponse;
+import se.litsec.bankid.rpapi.types.OrderResponse;
+import se.litsec.bankid.rpapi.types.ProgressStatus;
+
+/**
+ * A reactive API for following the progress of a BankID order. Instead of writing a polling loop around
+ * {@link BankIDClient#collect(String)}, the caller subscribes to a stream of collect responses.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public interface ReactiveBankIDCollector {
+
+  /**
+   * Returns a stream of collect responses for the given order.
+   * <p>
+   * The stream emits a {@link CollectResponse} each time the {@link ProgressStatus} of the order changes. It completes
+   * after emitting the response having status {@link ProgressStatus#COMPLETE}, and it terminates with a
+   * {@link BankIDException} if the order fails (or if the collect call fails). The polling starts when the stream is
+   * subscribed to, and stops if the subscription is cancelled.
+   * </p>
+   *
+   * @param order
+   *          the order response from an auth or sign call
+   * @return a stream of collect responses
+   */
+  Flux<CollectResponse> collect(final OrderResponse order);
+
+}
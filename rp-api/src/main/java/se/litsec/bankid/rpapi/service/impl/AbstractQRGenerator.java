@@ -16,22 +16,18 @@
 package se.litsec.bankid.rpapi.service.impl;
 
 import java.io.IOException;
-import java.math.BigInteger;
-import java.nio.charset.StandardCharsets;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.io.OutputStream;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Base64;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-
 import org.springframework.util.Assert;
 
 import se.litsec.bankid.rpapi.service.BankIDClient;
 import se.litsec.bankid.rpapi.service.DataToSign;
 import se.litsec.bankid.rpapi.service.QRGenerator;
+import se.litsec.bankid.rpapi.service.QRImage;
+import se.litsec.bankid.rpapi.service.QRModuleMatrix;
 import se.litsec.bankid.rpapi.types.OrderResponse;
 
 /**
@@ -59,6 +55,12 @@ public abstract class AbstractQRGenerator implements QRGenerator {
   /** The configured default image format to use for generated QR images. */
   private ImageFormat defaultImageFormat = DEFAULT_IMAGE_FORMAT;
 
+  /** The initial capacity of the buffer used when building data URI:s. */
+  private static final int DATA_URI_CAPACITY = 2048;
+
+  /** Builds the QR data for animated QR codes. */
+  private final AnimatedQRInputBuilder animatedInputBuilder = new AnimatedQRInputBuilder();
+
   /**
    * Builds the URI that is used as input for the static QR generation.
    *
@@ -87,59 +89,187 @@ public abstract class AbstractQRGenerator implements QRGenerator {
    *           for errors calculating the code
    */
   protected String buildAnimatedInput(final String qrStartToken, final String qrStartSecret, final Instant orderTime) throws IOException {
-    try {
-      final String qrTime = Long.toString(orderTime.until(Instant.now(), ChronoUnit.SECONDS));
+    return this.buildAnimatedInput(qrStartToken, qrStartSecret, orderTime.until(Instant.now(), ChronoUnit.SECONDS));
+  }
 
-      final Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(qrStartSecret.getBytes(StandardCharsets.US_ASCII), "HmacSHA256"));
-      mac.update(qrTime.getBytes(StandardCharsets.US_ASCII));
+  /**
+   * Generates the QR data for an "animated" QR code given the number of seconds since the order was received.
+   * 
+   * @param qrStartToken
+   *          the QR start token (see {@link OrderResponse#getQrStartToken()})
+   * @param qrStartSecret
+   *          the QR start secret (see {@link OrderResponse#getQrStartSecret()})
+   * @param qrTime
+   *          the number of seconds since the result from an auth or sign call was received
+   * @return the QR data
+   * @throws IOException
+   *           for errors calculating the code
+   */
+  protected String buildAnimatedInput(final String qrStartToken, final String qrStartSecret, final long qrTime) throws IOException {
+    return this.animatedInputBuilder.build(qrStartToken, qrStartSecret, qrTime);
+  }
 
-      final String qrAuthCode = String.format("%064x", new BigInteger(1, mac.doFinal()));
+  /** {@inheritDoc} */
+  @Override
+  public byte[] generateAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final Instant orderTime,
+      final int width, final int height, final ImageFormat format) throws IOException {
+    return this.generateAnimatedQRCodeImage(qrStartToken, qrStartSecret, orderTime.until(Instant.now(), ChronoUnit.SECONDS),
+      width, height, format);
+  }
 
-      return String.join(".", "bankid", qrStartToken, qrTime, qrAuthCode);
-    }
-    catch (NoSuchAlgorithmException | InvalidKeyException | IllegalStateException e) {
-      throw new IOException("Failed to compute HMAC", e);
-    }
+  /**
+   * Generates an "animated" QR code image for a given number of seconds since the order was received.
+   * <p>
+   * Since the image is fully determined by the supplied parameters, this method may be used to generate a frame before
+   * it is needed.
+   * </p>
+   * <p>
+   * The default implementation calls
+   * {@link #generateAnimatedQRCodeImage(String, String, Instant, int, int, ImageFormat)} with an order time that is
+   * {@code qrTime} seconds back in time. Subclasses should override this method (the {@code Instant} variant then
+   * delegates to it), and a subclass must override at least one of the two.
+   * </p>
+   *
+   * @param qrStartToken
+   *          the QR start token (see {@link OrderResponse#getQrStartToken()})
+   * @param qrStartSecret
+   *          the QR start secret (see {@link OrderResponse#getQrStartSecret()})
+   * @param qrTime
+   *          the number of seconds since the result from an auth or sign call was received
+   * @param width
+   *          the width of the generated QR code (in pixels)
+   * @param height
+   *          the height of the generated QR code (in pixels)
+   * @param format
+   *          the format for the generated QR code
+   * @return an byte array representing the generated QR code
+   * @throws IOException
+   *           for errors during generation
+   */
+  public byte[] generateAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final long qrTime,
+      final int width, final int height, final ImageFormat format) throws IOException {
+    return this.generateAnimatedQRCodeImage(qrStartToken, qrStartSecret, Instant.now().minusSeconds(qrTime), width, height, format);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public QRImage generateModuleScaleAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final Instant orderTime,
+      final ImageFormat format) throws IOException {
+    return this.generateModuleScaleAnimatedQRCodeImage(qrStartToken, qrStartSecret, orderTime.until(Instant.now(), ChronoUnit.SECONDS),
+      format);
+  }
+
+  /**
+   * Generates an "animated" QR code image, using one pixel per QR code module, for a given number of seconds since the
+   * order was received.
+   * <p>
+   * The default implementation throws {@link UnsupportedOperationException}. Subclasses supporting module scale images
+   * should override this method (the {@code Instant} variant delegates to it).
+   * </p>
+   *
+   * @param qrStartToken
+   *          the QR start token (see {@link OrderResponse#getQrStartToken()})
+   * @param qrStartSecret
+   *          the QR start secret (see {@link OrderResponse#getQrStartSecret()})
+   * @param qrTime
+   *          the number of seconds since the result from an auth or sign call was received
+   * @param format
+   *          the format for the generated QR code
+   * @return the QR code image along with its size in modules
+   * @throws IOException
+   *           for errors during generation
+   */
+  public QRImage generateModuleScaleAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret,
+      final long qrTime, final ImageFormat format) throws IOException {
+    throw new UnsupportedOperationException("Module scale images are not supported by " + this.getClass().getName());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public QRModuleMatrix generateAnimatedQRCodeModules(final String qrStartToken, final String qrStartSecret, final Instant orderTime)
+      throws IOException {
+    return this.generateAnimatedQRCodeModules(qrStartToken, qrStartSecret, orderTime.until(Instant.now(), ChronoUnit.SECONDS));
+  }
+
+  /**
+   * Encodes an "animated" QR code, without rendering any image, for a given number of seconds since the order was
+   * received.
+   * <p>
+   * The default implementation throws {@link UnsupportedOperationException}. Subclasses supporting module matrices
+   * should override this method (the {@code Instant} variant delegates to it).
+   * </p>
+   *
+   * @param qrStartToken
+   *          the QR start token (see {@link OrderResponse#getQrStartToken()})
+   * @param qrStartSecret
+   *          the QR start secret (see {@link OrderResponse#getQrStartSecret()})
+   * @param qrTime
+   *          the number of seconds since the result from an auth or sign call was received
+   * @return the QR code module matrix
+   * @throws IOException
+   *           for errors during encoding
+   */
+  public QRModuleMatrix generateAnimatedQRCodeModules(final String qrStartToken, final String qrStartSecret,
+      final long qrTime) throws IOException {
+    throw new UnsupportedOperationException("Module matrices are not supported by " + this.getClass().getName());
   }
 
   /** {@inheritDoc} */
   @Override
   public byte[] generateQRCodeImage(final String autoStartToken) throws IOException {
-    return this.generateQRCodeImage(autoStartToken, this.defaultWidth, this.defaultHeight, this.defaultImageFormat);
+    return this.generateQRCodeImage(autoStartToken, this.getDefaultWidth(), this.getDefaultHeight(), this.getDefaultImageFormat());
   }
 
   /** {@inheritDoc} */
   @Override
   public byte[] generateAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final Instant orderTime)
       throws IOException {
-    return this.generateAnimatedQRCodeImage(qrStartToken, qrStartSecret, orderTime, this.defaultWidth, this.defaultHeight,
-      this.defaultImageFormat);
+    return this.generateAnimatedQRCodeImage(qrStartToken, qrStartSecret, orderTime, this.getDefaultWidth(), this.getDefaultHeight(),
+      this.getDefaultImageFormat());
   }
 
   /** {@inheritDoc} */
   @Override
   public String generateQRCodeBase64Image(final String autoStartToken, final int width, final int height, final ImageFormat format)
       throws IOException {
+    final StringBuilder sb = new StringBuilder(DATA_URI_CAPACITY);
+    this.writeQRCodeBase64Image(autoStartToken, width, height, format, sb);
+    return sb.toString();
+  }
 
-    final byte[] imageBytes = this.generateQRCodeImage(autoStartToken, width, height, format);
-    return String.format("data:image/%s;base64, %s",
-      format.getImageFormatName().toLowerCase(), Base64.getEncoder().encodeToString(imageBytes));
+  /** {@inheritDoc} */
+  @Override
+  public void writeQRCodeBase64Image(final String autoStartToken, final int width, final int height, final ImageFormat format,
+      final Appendable out) throws IOException {
+    out.append("data:").append(format.getMediaType()).append(";base64, ");
+    try (OutputStream base64 = Base64.getEncoder().wrap(new AppendableOutputStream(out))) {
+      this.writeQRCodeImage(autoStartToken, width, height, format, base64);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void writeAnimatedQRCodeBase64Image(final String qrStartToken, final String qrStartSecret, final Instant orderTime,
+      final int width, final int height, final ImageFormat format, final Appendable out) throws IOException {
+    out.append("data:").append(format.getMediaType()).append(";base64, ");
+    try (OutputStream base64 = Base64.getEncoder().wrap(new AppendableOutputStream(out))) {
+      this.writeAnimatedQRCodeImage(qrStartToken, qrStartSecret, orderTime, width, height, format, base64);
+    }
   }
 
   /** {@inheritDoc} */
   @Override
   public String generateQRCodeBase64Image(final String autoStartToken) throws IOException {
-    return this.generateQRCodeBase64Image(autoStartToken, this.defaultWidth, this.defaultHeight, this.defaultImageFormat);
+    return this.generateQRCodeBase64Image(autoStartToken, this.getDefaultWidth(), this.getDefaultHeight(), this.getDefaultImageFormat());
   }
 
   /** {@inheritDoc} */
   @Override
   public String generateAnimatedQRCodeBase64Image(final String qrStartToken, final String qrStartSecret, final Instant orderTime,
       final int width, final int height, final ImageFormat format) throws IOException {
-    final byte[] imageBytes = this.generateAnimatedQRCodeImage(qrStartToken, qrStartSecret, orderTime, width, height, format);
-    return String.format("data:image/%s;base64, %s",
-      format.getImageFormatName().toLowerCase(), Base64.getEncoder().encodeToString(imageBytes));
+    final StringBuilder sb = new StringBuilder(DATA_URI_CAPACITY);
+    this.writeAnimatedQRCodeBase64Image(qrStartToken, qrStartSecret, orderTime, width, height, format, sb);
+    return sb.toString();
   }
 
   /** {@inheritDoc} */
@@ -147,7 +277,34 @@ public abstract class AbstractQRGenerator implements QRGenerator {
   public String generateAnimatedQRCodeBase64Image(final String qrStartToken, final String qrStartSecret, final Instant orderTime)
       throws IOException {
     return this.generateAnimatedQRCodeBase64Image(qrStartToken, qrStartSecret, orderTime,
-      this.defaultWidth, this.defaultHeight, this.defaultImageFormat);
+      this.getDefaultWidth(), this.getDefaultHeight(), this.getDefaultImageFormat());
+  }
+
+  /**
+   * Returns the default width (in pixels) to use for generated QR images.
+   *
+   * @return the default width
+   */
+  protected int getDefaultWidth() {
+    return this.defaultWidth;
+  }
+
+  /**
+   * Returns the default height (in pixels) to use for generated QR images.
+   *
+   * @return the default height
+   */
+  protected int getDefaultHeight() {
+    return this.defaultHeight;
+  }
+
+  /**
+   * Returns the default image format to use for generated QR images.
+   *
+   * @return the default image format
+   */
+  protected ImageFormat getDefaultImageFormat() {
+    return this.defaultImageFormat;
   }
 
   /**
@@ -190,4 +347,32 @@ public abstract class AbstractQRGenerator implements QRGenerator {
     this.defaultImageFormat = defaultImageFormat;
   }
 
+  /**
+   * An {@link OutputStream} that writes each byte as a character to an {@link Appendable}. Only intended for ASCII
+   * output (such as Base64).
+   */
+  private static class AppendableOutputStream extends OutputStream {
+
+    /** The destination. */
+    private final Appendable out;
+
+    public AppendableOutputStream(final Appendable out) {
+      this.out = out;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(final int b) throws IOException {
+      this.out.append((char) (b & 0xff));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      for (int i = off; i < off + len; i++) {
+        this.out.append((char) (b[i] & 0xff));
+      }
+    }
+  }
+
 }
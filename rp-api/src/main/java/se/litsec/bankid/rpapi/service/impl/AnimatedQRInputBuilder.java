@@ -0,0 +1,263 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Builds the QR data for "animated" QR codes, i.e., {@code bankid.<qrStartToken>.<qrTime>.<qrAuthCode>}, where the
+ * auth code is the hex encoded HMAC-SHA256 of the time using the QR start secret as key.
+ * <p>
+ * A keyed MAC is set up once per QR start secret (i.e., per order) and is cloned for each frame, and the HMAC and the
+ * hex encoding is written into per-thread buffers. This way, the cost for a frame is basically the HMAC computation.
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+final class AnimatedQRInputBuilder {
+
+  /** The HMAC algorithm. */
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+  /** The length of a HMAC-SHA256 value. */
+  private static final int MAC_LENGTH = 32;
+
+  /** Lookup table for hex encoding. */
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /** The prefix for all animated QR codes. */
+  private static final char[] PREFIX = "bankid.".toCharArray();
+
+  /** The maximum number of keyed MAC:s that are kept. */
+  private static final int MAX_KEYED_MACS = 10000;
+
+  /** The time (in nanos) that a keyed MAC is kept (the maximum lifetime of a BankID order plus some margin). */
+  private static final long KEYED_MAC_LIFETIME = 5L * 60L * 1000000000L;
+
+  /** Per-thread buffers. */
+  private static final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+  /** The keyed MAC:s, indexed by QR start secret. */
+  private final Map<String, KeyedMac> keyedMacs = new ConcurrentHashMap<>();
+
+  /**
+   * Builds the QR data for the given time.
+   *
+   * @param qrStartToken
+   *          the QR start token
+   * @param qrStartSecret
+   *          the QR start secret
+   * @param qrTime
+   *          the number of seconds since the order response was received
+   * @return the QR data
+   * @throws IOException
+   *           for errors calculating the code
+   */
+  public String build(final String qrStartToken, final String qrStartSecret, final long qrTime) throws IOException {
+    final Buffers b = buffers.get();
+    final int length = this.build(qrStartToken, qrStartSecret, qrTime, b);
+    return new String(b.chars, 0, length);
+  }
+
+  /**
+   * Builds the QR data for the given time into the supplied buffers.
+   *
+   * @param qrStartToken
+   *          the QR start token
+   * @param qrStartSecret
+   *          the QR start secret
+   * @param qrTime
+   *          the number of seconds since the order response was received
+   * @param b
+   *          the buffers to use (the result is written to {@code b.chars})
+   * @return the number of characters written
+   * @throws IOException
+   *           for errors calculating the code
+   */
+  private int build(final String qrStartToken, final String qrStartSecret, final long qrTime, final Buffers b) throws IOException {
+
+    final int tokenLength = qrStartToken.length();
+    b.ensureCapacity(PREFIX.length + tokenLength + 1 + 20 + 1 + 2 * MAC_LENGTH);
+    final char[] chars = b.chars;
+
+    int pos = 0;
+    System.arraycopy(PREFIX, 0, chars, 0, PREFIX.length);
+    pos += PREFIX.length;
+    qrStartToken.getChars(0, tokenLength, chars, pos);
+    pos += tokenLength;
+    chars[pos++] = '.';
+
+    // Write the time (in ASCII) both to the char buffer and the byte buffer (used as HMAC input).
+    //
+    final int timeLength = writeDecimal(qrTime, b.time);
+    for (int i = 0; i < timeLength; i++) {
+      chars[pos++] = (char) b.time[i];
+    }
+    chars[pos++] = '.';
+
+    // Calculate the HMAC and hex encode it ...
+    //
+    try {
+      final Mac mac = this.getKeyedMac(qrStartSecret).newMac(b);
+      mac.update(b.time, 0, timeLength);
+      mac.doFinal(b.mac, 0);
+    }
+    catch (GeneralSecurityException | IllegalStateException e) {
+      throw new IOException("Failed to compute HMAC", e);
+    }
+    for (int i = 0; i < MAC_LENGTH; i++) {
+      chars[pos++] = HEX[(b.mac[i] >> 4) & 0x0f];
+      chars[pos++] = HEX[b.mac[i] & 0x0f];
+    }
+    return pos;
+  }
+
+  /**
+   * Gets the keyed MAC for the given secret (creating it if needed).
+   *
+   * @param qrStartSecret
+   *          the QR start secret
+   * @return the keyed MAC
+   * @throws GeneralSecurityException
+   *           for errors setting up the MAC
+   */
+  private KeyedMac getKeyedMac(final String qrStartSecret) throws GeneralSecurityException {
+    KeyedMac keyedMac = this.keyedMacs.get(qrStartSecret);
+    if (keyedMac == null) {
+      if (this.keyedMacs.size() >= MAX_KEYED_MACS) {
+        final long now = System.nanoTime();
+        this.keyedMacs.values().removeIf(k -> now - k.created > KEYED_MAC_LIFETIME);
+        if (this.keyedMacs.size() >= MAX_KEYED_MACS) {
+          this.keyedMacs.clear();
+        }
+      }
+      keyedMac = new KeyedMac(qrStartSecret);
+      this.keyedMacs.put(qrStartSecret, keyedMac);
+    }
+    return keyedMac;
+  }
+
+  /**
+   * Writes the decimal (ASCII) representation of a number into the supplied buffer.
+   *
+   * @param value
+   *          the value
+   * @param dest
+   *          the destination (at least 20 bytes)
+   * @return the number of bytes written
+   */
+  private static int writeDecimal(final long value, final byte[] dest) {
+    if (value < 0) {
+      final byte[] s = Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+      System.arraycopy(s, 0, dest, 0, s.length);
+      return s.length;
+    }
+    int length = 1;
+    for (long v = value / 10; v > 0; v /= 10) {
+      length++;
+    }
+    long v = value;
+    for (int i = length - 1; i >= 0; i--) {
+      dest[i] = (byte) ('0' + (v % 10));
+      v /= 10;
+    }
+    return length;
+  }
+
+  /**
+   * A MAC that has been initialized with the QR start secret.
+   */
+  private static class KeyedMac {
+
+    /** The key. */
+    private final SecretKeySpec key;
+
+    /** The initialized MAC that is cloned for each calculation (null if the provider does not support cloning). */
+    private final Mac prototype;
+
+    /** The creation time (in nanos). */
+    private final long created = System.nanoTime();
+
+    public KeyedMac(final String qrStartSecret) throws GeneralSecurityException {
+      this.key = new SecretKeySpec(qrStartSecret.getBytes(StandardCharsets.US_ASCII), HMAC_ALGORITHM);
+      Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+      mac.init(this.key);
+      try {
+        mac.clone();
+      }
+      catch (CloneNotSupportedException e) {
+        mac = null;
+      }
+      this.prototype = mac;
+    }
+
+    /**
+     * Returns a MAC, initialized with the key, that is ready for use.
+     *
+     * @param b
+     *          the per-thread buffers (holding a MAC to be used if cloning is not supported)
+     * @return a MAC
+     * @throws GeneralSecurityException
+     *           for errors
+     */
+    public Mac newMac(final Buffers b) throws GeneralSecurityException {
+      if (this.prototype != null) {
+        try {
+          return (Mac) this.prototype.clone();
+        }
+        catch (CloneNotSupportedException e) {
+        }
+      }
+      if (b.macInstance == null) {
+        b.macInstance = Mac.getInstance(HMAC_ALGORITHM);
+      }
+      b.macInstance.init(this.key);
+      return b.macInstance;
+    }
+  }
+
+  /**
+   * Per-thread buffers.
+   */
+  private static class Buffers {
+
+    /** The output buffer. */
+    private char[] chars = new char[128];
+
+    /** Buffer for the ASCII representation of the time. */
+    private final byte[] time = new byte[20];
+
+    /** Buffer for the HMAC value. */
+    private final byte[] mac = new byte[MAC_LENGTH];
+
+    /** MAC instance used if the provider does not support cloning. */
+    private Mac macInstance;
+
+    public void ensureCapacity(final int capacity) {
+      if (this.chars.length < capacity) {
+        this.chars = new char[capacity];
+      }
+    }
+  }
+
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+import org.springframework.web.util.DefaultUriBuilderFactory;
+import org.springframework.web.util.UriBuilderFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.litsec.bankid.rpapi.service.AsyncBankIDClient;
+import se.litsec.bankid.rpapi.service.DataToSign;
+import se.litsec.bankid.rpapi.service.QRGenerator;
+import se.litsec.bankid.rpapi.types.BankIDException;
+import se.litsec.bankid.rpapi.types.CollectResponse;
+import se.litsec.bankid.rpapi.types.CollectResponseJson;
+import se.litsec.bankid.rpapi.types.ErrorCode;
+import se.litsec.bankid.rpapi.types.OrderResponse;
+import se.litsec.bankid.rpapi.types.Requirement;
+
+/**
+ * A non-blocking implementation of the BankID Relying Party API methods based on the Apache HTTP async client.
+ * <p>
+ * The HTTP client is preferably created using {@link se.litsec.bankid.rpapi.support.BankIDAsyncHttpClientFactory
+ * BankIDAsyncHttpClientFactory}. Error handling is the same as for {@link BankIDClientImpl}.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class AsyncBankIDClientImpl implements AsyncBankIDClient {
+
+  /** Class logger. */
+  private final Logger log = LoggerFactory.getLogger(AsyncBankIDClientImpl.class);
+
+  /** The HTTP client used to send requests to the BankID server. */
+  private HttpAsyncClient httpClient;
+
+  /** The QR code generator. */
+  private QRGenerator qrGenerator;
+
+  /** Object mapper for JSON. */
+  private static ObjectMapper objectMapper = new ObjectMapper();
+
+  /** The /auth endpoint. */
+  private URI authUri;
+
+  /** The /sign endpoint. */
+  private URI signUri;
+
+  /** The /cancel endpoint. */
+  private URI cancelUri;
+
+  /** The /collect endpoint. */
+  private URI collectUri;
+
+  /**
+   * Constructor.
+   *
+   * @param httpClient
+   *          the (started) HTTP client used to send requests to the BankID server
+   * @param serviceUrl
+   *          the URL to the BankID web service
+   * @param qrGenerator
+   *          the QR code generator (may be {@code null} if QR codes are not used)
+   */
+  public AsyncBankIDClientImpl(final HttpAsyncClient httpClient, final String serviceUrl, final QRGenerator qrGenerator) {
+    Assert.notNull(httpClient, "'httpClient' must be not be null");
+    this.httpClient = httpClient;
+    Assert.hasText(serviceUrl, "'serviceUrl' must not be null or empty");
+    this.qrGenerator = qrGenerator;
+
+    final UriBuilderFactory uriFactory = new DefaultUriBuilderFactory(serviceUrl);
+    this.authUri = uriFactory.builder().path("/auth").build();
+    this.signUri = uriFactory.builder().path("/sign").build();
+    this.cancelUri = uriFactory.builder().path("/cancel").build();
+    this.collectUri = uriFactory.builder().path("/collect").build();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CompletableFuture<OrderResponse> authenticate(final String personalIdentityNumber, final String endUserIp,
+      final Requirement requirement) {
+
+    Assert.hasText(endUserIp, "'endUserIp' must not be null or empty");
+
+    log.debug("authenticate. request: [personalNumber='{}', endUserIp='{}', requirement=[{}]] [uri: {}]",
+      personalIdentityNumber, endUserIp, requirement, this.authUri);
+
+    return this.post("auth", this.authUri, () -> BankIDRequestEncoder.encodeAuth(personalIdentityNumber, endUserIp, requirement), body -> {
+      final OrderResponse response = objectMapper.readValue(body, OrderResponse.class);
+      log.info("authenticate. response: [{}]", response);
+      return response;
+    });
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CompletableFuture<OrderResponse> sign(final String personalIdentityNumber, final String endUserIp,
+      final DataToSign dataToSign, final Requirement requirement) {
+
+    Assert.hasText(endUserIp, "'endUserIp' must not be null or empty");
+    Assert.notNull(dataToSign, "'dataToSign' must not be null");
+    Assert.hasText(dataToSign.getUserVisibleData(), "'dataToSign.userVisibleData' must not be null");
+
+    log.debug("sign. request: [personalNumber='{}', endUserIp='{}', requirement=[{}], userVisibleData='{}', userNonVisibleData='{}'] [uri: {}]",
+      personalIdentityNumber, endUserIp, requirement, dataToSign.getUserVisibleData(),
+      dataToSign.getUserNonVisibleData() != null ? dataToSign.getUserNonVisibleData() : "<not set>", this.signUri);
+
+    return this.post("sign", this.signUri, () -> BankIDRequestEncoder.encodeSign(personalIdentityNumber, endUserIp,
+      requirement, dataToSign.getUserVisibleData(), dataToSign.getUserNonVisibleData()), body -> {
+      final OrderResponse response = objectMapper.readValue(body, OrderResponse.class);
+      log.info("sign. response: [{}]", response);
+      return response;
+    });
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CompletableFuture<Void> cancel(final String orderReference) {
+    Assert.hasText(orderReference, "'orderReference' must not be null or empty");
+
+    log.debug("cancel: Request for cancelling order {}", orderReference);
+
+    return this.post("cancel", this.cancelUri, () -> BankIDRequestEncoder.encodeOrderRef(orderReference), body -> {
+      log.info("cancel. Order {} successfully cancelled", orderReference);
+      return null;
+    });
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CompletableFuture<CollectResponse> collect(final String orderReference) {
+    Assert.hasText(orderReference, "'orderReference' must not be null or empty");
+
+    log.debug("collect: Request for collecting order {}", orderReference);
+
+    return this.post("collect", this.collectUri, () -> BankIDRequestEncoder.encodeOrderRef(orderReference), body -> {
+      final CollectResponseJson response = objectMapper.readValue(body, CollectResponseJson.class);
+      log.info("collect. response: [{}]", response);
+      return BankIDClientImpl.checkCollectResponse(response);
+    });
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public QRGenerator getQRGenerator() {
+    return this.qrGenerator;
+  }
+
+  /**
+   * Sends a JSON request to the BankID server and returns a future that is completed when the response has been
+   * received and processed.
+   *
+   * @param call
+   *          the name of the call (for logging and error messages)
+   * @param uri
+   *          the endpoint
+   * @param request
+   *          the encoder of the request body
+   * @param processor
+   *          the processor that is invoked with the response body of a successful response
+   * @return a future holding the processed result
+   */
+  private <T> CompletableFuture<T> post(final String call, final URI uri, final RequestEncoder request, final ResponseProcessor<T> processor) {
+
+    final CompletableFuture<T> future = new CompletableFuture<>();
+
+    final HttpPost httpPost = new HttpPost(uri);
+    try {
+      httpPost.setEntity(new ByteArrayEntity(request.encode(), ContentType.APPLICATION_JSON));
+    }
+    catch (Exception e) {
+      log.error("{}. Error during {}-call - {}", call, call, e.getMessage(), e);
+      future.completeExceptionally(new BankIDException(ErrorCode.UNKNOWN_ERROR, "Unknown error during " + call, e));
+      return future;
+    }
+
+    this.httpClient.execute(httpPost, new FutureCallback<HttpResponse>() {
+
+      @Override
+      public void completed(final HttpResponse response) {
+        try {
+          final int status = response.getStatusLine().getStatusCode();
+          final byte[] body = response.getEntity() != null ? EntityUtils.toByteArray(response.getEntity()) : null;
+          if (status >= 200 && status < 300) {
+            future.complete(processor.process(body));
+          }
+          else {
+            log.info("{}. Error during {}-call - {} - {}", call, call, response.getStatusLine(),
+              body != null ? new String(body, ContentType.APPLICATION_JSON.getCharset()) : "");
+            future.completeExceptionally(new BankIDException(BankIDClientImpl.getErrorResponse(body),
+              Character.toUpperCase(call.charAt(0)) + call.substring(1) + "-call failed"));
+          }
+        }
+        catch (BankIDException e) {
+          future.completeExceptionally(e);
+        }
+        catch (Exception e) {
+          this.failed(e);
+        }
+      }
+
+      @Override
+      public void failed(final Exception e) {
+        log.error("{}. Error during {}-call - {}", call, call, e.getMessage(), e);
+        future.completeExceptionally(new BankIDException(ErrorCode.UNKNOWN_ERROR, "Unknown error during " + call, e));
+      }
+
+      @Override
+      public void cancelled() {
+        future.cancel(false);
+      }
+    });
+
+    return future;
+  }
+
+  /**
+   * Encodes the body of a request.
+   */
+  @FunctionalInterface
+  private interface RequestEncoder {
+
+    /**
+     * Encodes the request body.
+     *
+     * @return the JSON body
+     * @throws Exception
+     *           for encoding errors
+     */
+    byte[] encode() throws Exception;
+  }
+
+  /**
+   * Processes the body of a successful response into the result object.
+   */
+  @FunctionalInterface
+  private interface ResponseProcessor<T> {
+
+    /**
+     * Processes the response body.
+     *
+     * @param body
+     *          the response body
+     * @return the result
+     * @throws Exception
+     *           for processing errors
+     */
+    T process(final byte[] body) throws Exception;
+  }
+
+}
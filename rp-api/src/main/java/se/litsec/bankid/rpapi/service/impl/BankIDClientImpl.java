@@ -17,18 +17,19 @@ package se.litsec.bankid.rpapi.service.impl;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.util.Assert;
 import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.DefaultUriBuilderFactory;
 import org.springframework.web.util.UriBuilderFactory;
 
-import com.fasterxml.jackson.annotation.JsonAutoDetect;
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import se.litsec.bankid.rpapi.service.BankIDClient;
@@ -62,6 +63,13 @@ public class BankIDClientImpl implements BankIDClient {
   /** Object mapper for JSON. */
   private static ObjectMapper objectMapper = new ObjectMapper();
 
+  /** The headers for the requests (the bodies are encoded by {@link BankIDRequestEncoder}). */
+  private static final HttpHeaders requestHeaders = new HttpHeaders();
+
+  static {
+    requestHeaders.setContentType(MediaType.APPLICATION_JSON);
+  }
+
   /** The /auth endpoint. */
   private URI authUri;
 
@@ -106,17 +114,18 @@ public class BankIDClientImpl implements BankIDClient {
 
     // Set up the request data.
     //
-    final AuthnRequest request = new AuthnRequest(personalIdentityNumber, endUserIp, requirement);
-    log.debug("authenticate. request: [{}] [uri: {}]", request, this.authUri);
+    log.debug("authenticate. request: [personalNumber='{}', endUserIp='{}', requirement=[{}]] [uri: {}]",
+      personalIdentityNumber, endUserIp, requirement, this.authUri);
 
     try {
-      final OrderResponse response = this.restTemplate.postForObject(this.authUri, request, OrderResponse.class);
+      final byte[] request = BankIDRequestEncoder.encodeAuth(personalIdentityNumber, endUserIp, requirement);
+      final OrderResponse response = this.restTemplate.postForObject(this.authUri, jsonEntity(request), OrderResponse.class);
       log.info("authenticate. response: [{}]", response);
       return response;
     }
     catch (HttpStatusCodeException e) {
       log.info("authenticate. Error during auth-call - {} - {} - {}", e.getMessage(), e.getStatusCode(), e.getResponseBodyAsString());
-      throw new BankIDException(this.getErrorResponse(e), "Auth-call failed", e);
+      throw new BankIDException(getErrorResponse(e.getResponseBodyAsByteArray()), "Auth-call failed", e);
     }
     catch (Exception e) {
       log.error("authenticate. Error during auth-call - {}", e.getMessage(), e);
@@ -133,17 +142,20 @@ public class BankIDClientImpl implements BankIDClient {
     Assert.notNull(dataToSign, "'dataToSign' must not be null");
     Assert.hasText(dataToSign.getUserVisibleData(), "'dataToSign.userVisibleData' must not be null");
 
-    final SignRequest request = new SignRequest(personalIdentityNumber, endUserIp, requirement, dataToSign);
-    log.debug("sign. request: [{}] [uri: {}]", request, this.authUri);
+    log.debug("sign. request: [personalNumber='{}', endUserIp='{}', requirement=[{}], userVisibleData='{}', userNonVisibleData='{}'] [uri: {}]",
+      personalIdentityNumber, endUserIp, requirement, dataToSign.getUserVisibleData(),
+      dataToSign.getUserNonVisibleData() != null ? dataToSign.getUserNonVisibleData() : "<not set>", this.signUri);
 
     try {
-      final OrderResponse response = this.restTemplate.postForObject(this.signUri, request, OrderResponse.class);
+      final byte[] request = BankIDRequestEncoder.encodeSign(personalIdentityNumber, endUserIp, requirement,
+        dataToSign.getUserVisibleData(), dataToSign.getUserNonVisibleData());
+      final OrderResponse response = this.restTemplate.postForObject(this.signUri, jsonEntity(request), OrderResponse.class);
       log.info("sign. response: [{}]", response);
       return response;
     }
     catch (HttpStatusCodeException e) {
       log.info("sign. Error during sign-call - {} - {} - {}", e.getMessage(), e.getStatusCode(), e.getResponseBodyAsString());
-      throw new BankIDException(this.getErrorResponse(e), "Sign-call failed", e);
+      throw new BankIDException(getErrorResponse(e.getResponseBodyAsByteArray()), "Sign-call failed", e);
     }
     catch (Exception e) {
       log.error("sign. Error during sign-call - {}", e.getMessage(), e);
@@ -158,15 +170,14 @@ public class BankIDClientImpl implements BankIDClient {
 
     log.debug("cancel: Request for cancelling order {}", orderReference);
 
-    final OrderRefRequest request = new OrderRefRequest(orderReference);
-
     try {
-      this.restTemplate.postForObject(this.cancelUri, request, Void.class);
+      final byte[] request = BankIDRequestEncoder.encodeOrderRef(orderReference);
+      this.restTemplate.postForObject(this.cancelUri, jsonEntity(request), Void.class);
       log.info("cancel. Order {} successfully cancelled", orderReference);
     }
     catch (HttpStatusCodeException e) {
       log.info("cancel. Error during cancel-call - {} - {} - {}", e.getMessage(), e.getStatusCode(), e.getResponseBodyAsString());
-      throw new BankIDException(this.getErrorResponse(e), "Cancel-call failed", e);
+      throw new BankIDException(getErrorResponse(e.getResponseBodyAsByteArray()), "Cancel-call failed", e);
     }
     catch (Exception e) {
       log.error("cancel. Error during cancel-call - {}", e.getMessage(), e);
@@ -181,21 +192,15 @@ public class BankIDClientImpl implements BankIDClient {
 
     log.debug("collect: Request for collecting order {}", orderReference);
 
-    final OrderRefRequest request = new OrderRefRequest(orderReference);
     try {
-      CollectResponseJson response = this.restTemplate.postForObject(this.collectUri, request, CollectResponseJson.class);
+      final byte[] request = BankIDRequestEncoder.encodeOrderRef(orderReference);
+      CollectResponseJson response = this.restTemplate.postForObject(this.collectUri, jsonEntity(request), CollectResponseJson.class);
       log.info("collect. response: [{}]", response);
-
-      if (CollectResponseJson.Status.FAILED.equals(response.getStatus())) {
-        throw new BankIDException(response.getErrorCode(), String.format("Order '%s' failed with code '%s'", orderReference, response
-          .getErrorCode()
-          .getValue()));
-      }
-      return response;
+      return checkCollectResponse(response);
     }
     catch (HttpStatusCodeException e) {
       log.info("cancel. Error during cancel-call - {} - {} - {}", e.getMessage(), e.getStatusCode(), e.getResponseBodyAsString());
-      throw new BankIDException(this.getErrorResponse(e), "Cancel-call failed", e);
+      throw new BankIDException(getErrorResponse(e.getResponseBodyAsByteArray()), "Cancel-call failed", e);
     }
     catch (Exception e) {
       log.error("cancel. Error during cancel-call - {}", e.getMessage(), e);
@@ -210,14 +215,30 @@ public class BankIDClientImpl implements BankIDClient {
   }
 
   /**
-   * Given an HTTP status error the method returns its contents as an {@link ErrorResponse}.
+   * Checks a collect response and throws a {@link BankIDException} if the order has failed.
+   * 
+   * @param response
+   *          the collect response
+   * @return the supplied response
+   * @throws BankIDException
+   *           if the order has failed
+   */
+  static CollectResponse checkCollectResponse(final CollectResponseJson response) throws BankIDException {
+    if (CollectResponseJson.Status.FAILED.equals(response.getStatus())) {
+      throw new BankIDException(response.getErrorCode(), String.format("Order '%s' failed with code '%s'",
+        response.getOrderReference(), response.getErrorCode().getValue()));
+    }
+    return response;
+  }
+
+  /**
+   * Given the body of an HTTP error response the method returns its contents as an {@link ErrorResponse}.
    * 
-   * @param exception
-   *          the exception
+   * @param body
+   *          the response body (may be {@code null})
    * @return an ErrorResponse
    */
-  private ErrorResponse getErrorResponse(final HttpStatusCodeException exception) {
-    final byte[] body = exception.getResponseBodyAsByteArray();
+  static ErrorResponse getErrorResponse(final byte[] body) {
     if (body == null) {
       return new ErrorResponse(ErrorCode.UNKNOWN_ERROR, null);
     }
@@ -225,69 +246,21 @@ public class BankIDClientImpl implements BankIDClient {
       return objectMapper.readValue(body, ErrorResponse.class);
     }
     catch (IOException e) {
-      log.error("Failed to deserialize error response {} into ErrorResponse structure", exception.getResponseBodyAsString(), e);
+      LoggerFactory.getLogger(BankIDClientImpl.class).error("Failed to deserialize error response {} into ErrorResponse structure",
+        new String(body, StandardCharsets.UTF_8), e);
       return new ErrorResponse(ErrorCode.UNKNOWN_ERROR, null);
     }
   }
 
   /**
-   * Represents the data sent in an /auth call.
-   */
-  @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
-  @JsonInclude(Include.NON_NULL)
-  private static class AuthnRequest {
-
-    private final String personalNumber;
-    private final String endUserIp;
-    private final Requirement requirement;
-
-    public AuthnRequest(final String personalNumber, final String endUserIp, final Requirement requirement) {
-      this.personalNumber = personalNumber;
-      this.endUserIp = endUserIp;
-      this.requirement = requirement;
-    }
-
-    @Override
-    public String toString() {
-      return String.format("personalNumber='%s', endUserIp='%s', requirement=[%s]", this.personalNumber, this.endUserIp, this.requirement);
-    }
-  }
-
-  /**
-   * Represents the data sent in a /sign call.
-   */
-  @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
-  @JsonInclude(Include.NON_NULL)
-  private static class SignRequest extends AuthnRequest {
-
-    private final String userVisibleData;
-    private final String userNonVisibleData;
-
-    public SignRequest(final String personalNumber, final String endUserIp, final Requirement requirement, final DataToSign dataToSign) {
-      super(personalNumber, endUserIp, requirement);
-      this.userVisibleData = dataToSign.getUserVisibleData();
-      this.userNonVisibleData = dataToSign.getUserNonVisibleData();
-    }
-
-    @Override
-    public String toString() {
-      return String.format("%s, userVisibleData='%s', userNonVisibleData='%s'",
-        super.toString(), this.userVisibleData, this.userNonVisibleData != null ? this.userNonVisibleData : "<not set>");
-    }
-
-  }
-
-  /**
-   * Represents the data sent in /collect and /cancel calls.
+   * Wraps an encoded request body in an entity having the JSON content type.
+   * 
+   * @param body
+   *          the encoded body
+   * @return an HTTP entity
    */
-  @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
-  private static class OrderRefRequest {
-    @SuppressWarnings("unused")
-    private final String orderRef;
-
-    public OrderRefRequest(final String orderRef) {
-      this.orderRef = orderRef;
-    }
+  private static HttpEntity<byte[]> jsonEntity(final byte[] body) {
+    return new HttpEntity<>(body, requestHeaders);
   }
 
 }
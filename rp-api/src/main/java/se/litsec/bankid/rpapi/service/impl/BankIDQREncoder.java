@@ -0,0 +1,763 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.util.Arrays;
+
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+import se.litsec.bankid.rpapi.service.QRModuleMatrix;
+
+/**
+ * A QR encoder specialized for BankID payloads.
+ * <p>
+ * The BankID QR payloads ({@code bankid.<token>.<time>.<code>} and {@code bankid:///?autostarttoken=<token>}) are
+ * always encoded in byte mode, using error correction level L, and they always end up in the same QR version (6 for
+ * animated codes and 4 for static ones). This encoder therefore precomputes, for each of the versions 1 to 9, the
+ * function patterns, the order in which the data modules are placed, the mask patterns and the Reed-Solomon generator
+ * polynomials. Encoding a payload is then only a matter of writing the codewords, calculating the error correction
+ * codewords, and choosing the mask.
+ * </p>
+ * <p>
+ * The result is identical to what the ZXing {@code Encoder} produces (with no hints). Content that the ZXing encoder
+ * would not encode in byte mode, or that does not fit in version 9, is not handled by this encoder (see
+ * {@link #encode(String)}).
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+final class BankIDQREncoder {
+
+  /** The highest version supported (the byte mode character count is 8 bits up to version 9). */
+  private static final int MAX_VERSION = 9;
+
+  /** The number of mask patterns. */
+  private static final int NUM_MASK_PATTERNS = 8;
+
+  /** The error correction level used. */
+  private static final ErrorCorrectionLevel EC_LEVEL = ErrorCorrectionLevel.L;
+
+  /** Marks a module that is not yet assigned when the templates are built. */
+  private static final byte EMPTY = -1;
+
+  /** The coordinates for the (first copy of the) format information. */
+  private static final int[][] TYPE_INFO_COORDINATES = {
+      { 8, 0 }, { 8, 1 }, { 8, 2 }, { 8, 3 }, { 8, 4 }, { 8, 5 }, { 8, 7 }, { 8, 8 },
+      { 7, 8 }, { 5, 8 }, { 4, 8 }, { 3, 8 }, { 2, 8 }, { 1, 8 }, { 0, 8 } };
+
+  /** Exponent table for GF(256) (using the QR code primitive polynomial). */
+  private static final int[] EXP = new int[512];
+
+  /** Logarithm table for GF(256). */
+  private static final int[] LOG = new int[256];
+
+  /** The precomputed templates, indexed by version number. */
+  private static final Template[] TEMPLATES = new Template[MAX_VERSION + 1];
+
+  /** Per-thread buffers. */
+  private static final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+  static {
+    int x = 1;
+    for (int i = 0; i < 255; i++) {
+      EXP[i] = x;
+      LOG[x] = i;
+      x <<= 1;
+      if (x >= 0x100) {
+        x ^= 0x11d;
+      }
+    }
+    for (int i = 255; i < EXP.length; i++) {
+      EXP[i] = EXP[i - 255];
+    }
+    for (int v = 1; v <= MAX_VERSION; v++) {
+      TEMPLATES[v] = new Template(Version.getVersionForNumber(v));
+    }
+  }
+
+  /**
+   * Encodes the supplied content.
+   *
+   * @param content
+   *          the content to encode
+   * @return the encoded QR code, or null if the content is not handled by this encoder (in which case the general ZXing
+   *         encoder should be used)
+   */
+  public static Result encode(final String content) {
+    final int length = content.length();
+    if (length == 0 || !isByteMode(content)) {
+      return null;
+    }
+    // Mode indicator (4 bits), character count (8 bits) and the data ...
+    final int bytesNeeded = (4 + 8 + 8 * length + 7) / 8;
+    Template template = null;
+    for (int v = 1; v <= MAX_VERSION; v++) {
+      if (TEMPLATES[v].numDataBytes >= bytesNeeded) {
+        template = TEMPLATES[v];
+        break;
+      }
+    }
+    if (template == null) {
+      return null;
+    }
+
+    final Buffers b = buffers.get();
+    final byte[] data = b.data;
+
+    // Data codewords: mode indicator 0100 (byte), count, data, terminator and padding ...
+    int bit = 0;
+    bit = writeBits(data, bit, 0x4, 4);
+    bit = writeBits(data, bit, length, 8);
+    for (int i = 0; i < length; i++) {
+      bit = writeBits(data, bit, content.charAt(i), 8);
+    }
+    final int capacity = template.numDataBytes * 8;
+    bit = Math.min(bit + 4, capacity);
+    bit = (bit + 7) & ~7;
+    for (int i = bit / 8, pad = 0; i < template.numDataBytes; i++, pad++) {
+      data[i] = (byte) ((pad & 1) == 0 ? 0xec : 0x11);
+    }
+
+    // Error correction and interleaving ...
+    final byte[] codewords = b.codewords;
+    final byte[] ec = b.ec;
+    int dataOffset = 0;
+    for (int block = 0; block < template.numBlocks; block++) {
+      final int blockDataBytes = block < template.numBlocksGroup1 ? template.dataBytesGroup1 : template.dataBytesGroup1 + 1;
+      reedSolomon(data, dataOffset, blockDataBytes, template.generator, ec);
+      for (int i = 0; i < blockDataBytes; i++) {
+        final int pos = i < template.dataBytesGroup1
+            ? i * template.numBlocks + block
+            : template.dataBytesGroup1 * template.numBlocks + (block - template.numBlocksGroup1);
+        codewords[pos] = data[dataOffset + i];
+      }
+      for (int i = 0; i < template.ecBytesPerBlock; i++) {
+        codewords[template.numDataBytes + i * template.numBlocks + block] = ec[i];
+      }
+      dataOffset += blockDataBytes;
+    }
+
+    // Place the codeword bits in the data modules (unmasked), the remainder bits are 0 ...
+    final int size = template.size;
+    final long[] dataRows = b.dataRows;
+    final long[] dataCols = b.dataCols;
+    Arrays.fill(dataRows, 0, size, 0L);
+    Arrays.fill(dataCols, 0, size, 0L);
+    final int totalBits = template.totalCodewords * 8;
+    for (int i = 0; i < totalBits; i++) {
+      if ((codewords[i >>> 3] & (0x80 >>> (i & 7))) != 0) {
+        final int x = template.dataX[i];
+        final int y = template.dataY[i];
+        dataRows[y] |= 1L << x;
+        dataCols[x] |= 1L << y;
+      }
+    }
+
+    // Choose the mask giving the lowest penalty ...
+    final long[] rows = b.rows;
+    final long[] cols = b.cols;
+    int bestMask = 0;
+    int minPenalty = Integer.MAX_VALUE;
+    for (int mask = 0; mask < NUM_MASK_PATTERNS; mask++) {
+      template.apply(dataRows, mask, template.functionRows, template.formatRows, template.maskRows, rows);
+      template.apply(dataCols, mask, template.functionCols, template.formatCols, template.maskCols, cols);
+      final int penalty = penalty(rows, cols, size);
+      if (penalty < minPenalty) {
+        minPenalty = penalty;
+        bestMask = mask;
+      }
+    }
+    final long[] modules = new long[size];
+    template.apply(dataRows, bestMask, template.functionRows, template.formatRows, template.maskRows, modules);
+    return new Result(size, modules);
+  }
+
+  /**
+   * Tells whether the ZXing encoder would encode the content in byte mode (using ISO-8859-1).
+   *
+   * @param content
+   *          the content
+   * @return true if byte mode is used
+   */
+  private static boolean isByteMode(final String content) {
+    boolean nonAlphanumeric = false;
+    for (int i = 0; i < content.length(); i++) {
+      final char c = content.charAt(i);
+      if (c > 0xff) {
+        return false;
+      }
+      if (!nonAlphanumeric && !isAlphanumeric(c)) {
+        nonAlphanumeric = true;
+      }
+    }
+    return nonAlphanumeric;
+  }
+
+  /**
+   * Tells whether the character is part of the QR alphanumeric character set.
+   *
+   * @param c
+   *          the character
+   * @return true if the character is alphanumeric
+   */
+  private static boolean isAlphanumeric(final char c) {
+    return (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || c == ' ' || c == '$' || c == '%' || c == '*' || c == '+'
+        || c == '-' || c == '.' || c == '/' || c == ':';
+  }
+
+  /**
+   * Writes bits (most significant first) into a byte array.
+   */
+  private static int writeBits(final byte[] dest, int bit, final int value, final int numBits) {
+    for (int i = numBits - 1; i >= 0; i--, bit++) {
+      final int index = bit >>> 3;
+      if ((bit & 7) == 0) {
+        dest[index] = 0;
+      }
+      if (((value >>> i) & 1) != 0) {
+        dest[index] |= 0x80 >>> (bit & 7);
+      }
+    }
+    return bit;
+  }
+
+  /**
+   * Calculates the Reed-Solomon error correction codewords for a block.
+   */
+  private static void reedSolomon(final byte[] data, final int offset, final int length, final int[] generator, final byte[] ec) {
+    final int numEc = generator.length - 1;
+    for (int i = 0; i < numEc; i++) {
+      ec[i] = 0;
+    }
+    for (int i = 0; i < length; i++) {
+      final int factor = (data[offset + i] ^ ec[0]) & 0xff;
+      System.arraycopy(ec, 1, ec, 0, numEc - 1);
+      ec[numEc - 1] = 0;
+      if (factor != 0) {
+        final int logFactor = LOG[factor];
+        for (int j = 0; j < numEc; j++) {
+          if (generator[j + 1] != 0) {
+            ec[j] ^= EXP[LOG[generator[j + 1]] + logFactor];
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Calculates the mask penalty for a matrix, using the same rules, and the same interpretation of them, as the ZXing
+   * encoder. Each row and column fits in a {@code long}, so the rules are evaluated on whole rows and columns at a time.
+   *
+   * @param rows
+   *          the matrix rows (bit x of row y is the module at (x, y))
+   * @param cols
+   *          the matrix columns (bit y of column x is the module at (x, y))
+   * @param size
+   *          the number of modules per side
+   * @return the penalty
+   */
+  private static int penalty(final long[] rows, final long[] cols, final int size) {
+    final long all = (1L << size) - 1;
+    int penalty = 0;
+    int dark = 0;
+    for (int i = 0; i < size; i++) {
+      penalty += runPenalty(rows[i], all) + runPenalty(cols[i], all);
+      penalty += finderPenalty(rows[i], size) + finderPenalty(cols[i], size);
+      dark += Long.bitCount(rows[i]);
+    }
+
+    // Rule 2: 2x2 blocks of the same colour
+    for (int y = 0; y < size - 1; y++) {
+      final long a = rows[y];
+      final long same = ~(a ^ rows[y + 1]);
+      penalty += 3 * Long.bitCount(same & (same >>> 1) & ~(a ^ (a >>> 1)) & (all >>> 1));
+    }
+
+    // Rule 4: the proportion of dark modules
+    final int total = size * size;
+    penalty += Math.abs(dark * 2 - total) * 10 / total * 10;
+
+    return penalty;
+  }
+
+  /**
+   * Rule 1: each run of five or more modules of the same colour gives 3 points plus 1 for each module above five.
+   *
+   * @param line
+   *          the row or column
+   * @param all
+   *          a mask covering the row or column
+   * @return the penalty
+   */
+  private static int runPenalty(final long line, final long all) {
+    // Bit i is set if module i and i + 1 have the same colour, and a run of n modules gives n - 1 consecutive bits ...
+    final long same = ~(line ^ (line >>> 1)) & (all >>> 1);
+    // ... and a run of n >= 5 modules gives n - 4 bits here, and the penalty is (n - 4) + 2.
+    final long runs = same & (same >>> 1) & (same >>> 2) & (same >>> 3);
+    return Long.bitCount(runs) + 2 * Long.bitCount(runs & ~(runs << 1));
+  }
+
+  /**
+   * Rule 3: each 1011101 pattern with four light modules before or after it gives 40 points (where modules outside of
+   * the matrix count as light).
+   *
+   * @param line
+   *          the row or column
+   * @param size
+   *          the number of modules per side
+   * @return the penalty
+   */
+  private static int finderPenalty(final long line, final int size) {
+    long matches = line & ~(line >>> 1) & (line >>> 2) & (line >>> 3) & (line >>> 4) & ~(line >>> 5) & (line >>> 6)
+        & ((1L << (size - 6)) - 1);
+    int penalty = 0;
+    while (matches != 0) {
+      final int x = Long.numberOfTrailingZeros(matches);
+      matches &= matches - 1;
+      if ((line & range(x - 4, x, size)) == 0 || (line & range(x + 7, x + 11, size)) == 0) {
+        penalty += 40;
+      }
+    }
+    return penalty;
+  }
+
+  /**
+   * Returns a mask for the bits {@code from} (inclusive) to {@code to} (exclusive), clamped to the matrix.
+   */
+  private static long range(int from, int to, final int size) {
+    from = Math.max(from, 0);
+    to = Math.min(to, size);
+    return from >= to ? 0L : ((1L << (to - from)) - 1) << from;
+  }
+
+  /**
+   * Returns the mask bit for a module (see section 8.8 of JISX0510:2004).
+   */
+  private static boolean isMasked(final int mask, final int x, final int y) {
+    switch (mask) {
+    case 0:
+      return ((y + x) & 1) == 0;
+    case 1:
+      return (y & 1) == 0;
+    case 2:
+      return x % 3 == 0;
+    case 3:
+      return (y + x) % 3 == 0;
+    case 4:
+      return (((y / 2) + (x / 3)) & 1) == 0;
+    case 5:
+      return ((y * x) & 1) + ((y * x) % 3) == 0;
+    case 6:
+      return ((((y * x) & 1) + ((y * x) % 3)) & 1) == 0;
+    default:
+      return ((((y * x) % 3) + ((y + x) & 1)) & 1) == 0;
+    }
+  }
+
+  /**
+   * Calculates a BCH code.
+   */
+  private static int bchCode(int value, final int poly) {
+    final int msbSetInPoly = 32 - Integer.numberOfLeadingZeros(poly);
+    value <<= msbSetInPoly - 1;
+    while (32 - Integer.numberOfLeadingZeros(value) >= msbSetInPoly) {
+      value ^= poly << (32 - Integer.numberOfLeadingZeros(value) - msbSetInPoly);
+    }
+    return value;
+  }
+
+  /**
+   * The result of an encoding.
+   */
+  static final class Result {
+
+    /** The number of modules per side. */
+    private final int size;
+
+    /** The rows of the matrix (bit x of row y is set if the module at (x, y) is dark). */
+    private final long[] rows;
+
+    private Result(final int size, final long[] rows) {
+      this.size = size;
+      this.rows = rows;
+    }
+
+    /**
+     * Returns the number of modules per side.
+     *
+     * @return the size
+     */
+    public int getSize() {
+      return this.size;
+    }
+
+    /**
+     * Tells whether the module at the given position is dark.
+     *
+     * @param x
+     *          the column
+     * @param y
+     *          the row
+     * @return true if the module is dark
+     */
+    public boolean isDark(final int x, final int y) {
+      return (this.rows[y] & (1L << x)) != 0;
+    }
+
+    /**
+     * Renders the QR code into a bit matrix in the same way as the ZXing {@code QRCodeWriter} does, i.e., with a quiet
+     * zone of {@value QRModuleMatrix#QUIET_ZONE} modules, and scaled to fit the given width and height. A width and
+     * height of 0 gives one bit per module.
+     *
+     * @param width
+     *          the requested width
+     * @param height
+     *          the requested height
+     * @return a bit matrix
+     */
+    public BitMatrix render(final int width, final int height) {
+      final int qrSize = this.size + 2 * QRModuleMatrix.QUIET_ZONE;
+      final int outputWidth = Math.max(width, qrSize);
+      final int outputHeight = Math.max(height, qrSize);
+      final int multiple = Math.min(outputWidth / qrSize, outputHeight / qrSize);
+      final int leftPadding = (outputWidth - this.size * multiple) / 2;
+      final int topPadding = (outputHeight - this.size * multiple) / 2;
+
+      final BitMatrix output = new BitMatrix(outputWidth, outputHeight);
+      for (int y = 0, outputY = topPadding; y < this.size; y++, outputY += multiple) {
+        long row = this.rows[y];
+        while (row != 0) {
+          // Render each run of dark modules as one region ...
+          final int start = Long.numberOfTrailingZeros(row);
+          final int length = Long.numberOfTrailingZeros(~(row >>> start));
+          output.setRegion(leftPadding + start * multiple, outputY, length * multiple, multiple);
+          row &= ~(((1L << length) - 1) << start);
+        }
+      }
+      return output;
+    }
+
+    /**
+     * Returns the modules as a {@link QRModuleMatrix}.
+     *
+     * @return a module matrix
+     */
+    public QRModuleMatrix toModuleMatrix() {
+      final byte[] packed = new byte[(this.size * this.size + 7) / 8];
+      for (int y = 0, bit = 0; y < this.size; y++) {
+        for (int x = 0; x < this.size; x++, bit++) {
+          if ((this.rows[y] & (1L << x)) != 0) {
+            packed[bit >>> 3] |= 0x80 >>> (bit & 7);
+          }
+        }
+      }
+      return new QRModuleMatrix(this.size, packed);
+    }
+  }
+
+  /**
+   * Precomputed data for a QR version. The matrix parts are stored both as rows and as columns (see
+   * {@link BankIDQREncoder#penalty(long[], long[], int)}).
+   */
+  private static final class Template {
+
+    /** The number of modules per side. */
+    private final int size;
+
+    /** The total number of codewords. */
+    private final int totalCodewords;
+
+    /** The number of data codewords. */
+    private final int numDataBytes;
+
+    /** The number of error correction blocks. */
+    private final int numBlocks;
+
+    /** The number of blocks in the first group (the second group has one more data codeword per block). */
+    private final int numBlocksGroup1;
+
+    /** The number of data codewords per block in the first group. */
+    private final int dataBytesGroup1;
+
+    /** The number of error correction codewords per block. */
+    private final int ecBytesPerBlock;
+
+    /** The Reed-Solomon generator polynomial (highest degree first). */
+    private final int[] generator;
+
+    /** The column of each data module, in placement order. */
+    private final int[] dataX;
+
+    /** The row of each data module, in placement order. */
+    private final int[] dataY;
+
+    /** The function patterns and the version information (dark modules). */
+    private final long[] functionRows;
+
+    /** See {@link #functionRows}. */
+    private final long[] functionCols;
+
+    /** The format information (dark modules), per mask. */
+    private final long[][] formatRows;
+
+    /** See {@link #formatRows}. */
+    private final long[][] formatCols;
+
+    /** The data modules that are inverted, per mask. */
+    private final long[][] maskRows;
+
+    /** See {@link #maskRows}. */
+    private final long[][] maskCols;
+
+    public Template(final Version version) {
+      this.size = version.getDimensionForVersion();
+      this.totalCodewords = version.getTotalCodewords();
+      final Version.ECBlocks ecBlocks = version.getECBlocksForLevel(EC_LEVEL);
+      this.numDataBytes = this.totalCodewords - ecBlocks.getTotalECCodewords();
+      this.numBlocks = ecBlocks.getNumBlocks();
+      this.numBlocksGroup1 = this.numBlocks - this.totalCodewords % this.numBlocks;
+      this.dataBytesGroup1 = this.numDataBytes / this.numBlocks;
+      this.ecBytesPerBlock = this.totalCodewords / this.numBlocks - this.dataBytesGroup1;
+
+      int[] g = { 1 };
+      for (int i = 0; i < this.ecBytesPerBlock; i++) {
+        final int[] next = new int[g.length + 1];
+        for (int j = 0; j < g.length; j++) {
+          next[j] ^= g[j];
+          if (g[j] != 0) {
+            next[j + 1] ^= EXP[LOG[g[j]] + i];
+          }
+        }
+        g = next;
+      }
+      this.generator = g;
+
+      final int size = this.size;
+      final byte[] m = new byte[size * size];
+      Arrays.fill(m, EMPTY);
+
+      // Finder patterns and separators ...
+      this.finderPattern(m, 0, 0);
+      this.finderPattern(m, size - 7, 0);
+      this.finderPattern(m, 0, size - 7);
+      for (int i = 0; i < 8; i++) {
+        m[7 * size + i] = 0;
+        m[7 * size + size - 8 + i] = 0;
+        m[(size - 8) * size + i] = 0;
+      }
+      for (int i = 0; i < 7; i++) {
+        m[i * size + 7] = 0;
+        m[i * size + size - 8] = 0;
+        m[(size - 7 + i) * size + 7] = 0;
+      }
+      // Dark module ...
+      m[(size - 8) * size + 8] = 1;
+
+      // Alignment patterns ...
+      final int[] centers = version.getAlignmentPatternCenters();
+      for (int y : centers) {
+        for (int x : centers) {
+          if (m[y * size + x] == EMPTY) {
+            for (int dy = -2; dy <= 2; dy++) {
+              for (int dx = -2; dx <= 2; dx++) {
+                final int d = Math.max(Math.abs(dx), Math.abs(dy));
+                m[(y + dy) * size + x + dx] = (byte) (d == 1 ? 0 : 1);
+              }
+            }
+          }
+        }
+      }
+
+      // Timing patterns ...
+      for (int i = 8; i < size - 8; i++) {
+        final byte bit = (byte) ((i + 1) % 2);
+        if (m[6 * size + i] == EMPTY) {
+          m[6 * size + i] = bit;
+        }
+        if (m[i * size + 6] == EMPTY) {
+          m[i * size + 6] = bit;
+        }
+      }
+
+      // Format information (two copies) ...
+      this.formatRows = new long[NUM_MASK_PATTERNS][size];
+      this.formatCols = new long[NUM_MASK_PATTERNS][size];
+      for (int mask = 0; mask < NUM_MASK_PATTERNS; mask++) {
+        final int typeInfo = (EC_LEVEL.getBits() << 3) | mask;
+        final int bits = ((typeInfo << 10) | bchCode(typeInfo, 0x537)) ^ 0x5412;
+        for (int i = 0; i < 15; i++) {
+          final int x2 = i < 8 ? size - i - 1 : 8;
+          final int y2 = i < 8 ? 8 : size - 7 + (i - 8);
+          m[TYPE_INFO_COORDINATES[i][1] * size + TYPE_INFO_COORDINATES[i][0]] = 0;
+          m[y2 * size + x2] = 0;
+          if (((bits >>> i) & 1) != 0) {
+            set(this.formatRows[mask], this.formatCols[mask], TYPE_INFO_COORDINATES[i][0], TYPE_INFO_COORDINATES[i][1]);
+            set(this.formatRows[mask], this.formatCols[mask], x2, y2);
+          }
+        }
+      }
+
+      // Version information ...
+      if (version.getVersionNumber() >= 7) {
+        final int bits = (version.getVersionNumber() << 12) | bchCode(version.getVersionNumber(), 0x1f25);
+        for (int i = 0; i < 6; i++) {
+          for (int j = 0; j < 3; j++) {
+            final byte bit = (byte) ((bits >>> (i * 3 + j)) & 1);
+            m[(size - 11 + j) * size + i] = bit;
+            m[i * size + size - 11 + j] = bit;
+          }
+        }
+      }
+
+      // Data module placement order (upwards and downwards in two-module wide columns) ...
+      final int[] dataX = new int[size * size];
+      final int[] dataY = new int[size * size];
+      int count = 0;
+      int direction = -1;
+      int y = size - 1;
+      for (int x = size - 1; x > 0; x -= 2) {
+        if (x == 6) {
+          x--;
+        }
+        for (; y >= 0 && y < size; y += direction) {
+          for (int i = 0; i < 2; i++) {
+            if (m[y * size + x - i] == EMPTY) {
+              dataX[count] = x - i;
+              dataY[count++] = y;
+              m[y * size + x - i] = 0;
+            }
+          }
+        }
+        direction = -direction;
+        y += direction;
+      }
+      this.dataX = Arrays.copyOf(dataX, count);
+      this.dataY = Arrays.copyOf(dataY, count);
+
+      this.maskRows = new long[NUM_MASK_PATTERNS][size];
+      this.maskCols = new long[NUM_MASK_PATTERNS][size];
+      for (int mask = 0; mask < NUM_MASK_PATTERNS; mask++) {
+        for (int i = 0; i < count; i++) {
+          if (isMasked(mask, this.dataX[i], this.dataY[i])) {
+            set(this.maskRows[mask], this.maskCols[mask], this.dataX[i], this.dataY[i]);
+          }
+        }
+      }
+
+      this.functionRows = new long[size];
+      this.functionCols = new long[size];
+      for (int i = 0; i < m.length; i++) {
+        if (m[i] == 1) {
+          set(this.functionRows, this.functionCols, i % size, i / size);
+        }
+      }
+    }
+
+    /**
+     * Assembles the rows (or columns) of the matrix for the given data and mask.
+     *
+     * @param data
+     *          the (unmasked) data modules
+     * @param mask
+     *          the mask
+     * @param function
+     *          the function patterns
+     * @param format
+     *          the format information per mask
+     * @param masks
+     *          the mask patterns
+     * @param dest
+     *          the destination
+     */
+    public void apply(final long[] data, final int mask, final long[] function, final long[][] format, final long[][] masks,
+        final long[] dest) {
+      final long[] f = format[mask];
+      final long[] x = masks[mask];
+      for (int i = 0; i < this.size; i++) {
+        dest[i] = function[i] | f[i] | (data[i] ^ x[i]);
+      }
+    }
+
+    /**
+     * Writes a finder pattern with its upper left corner at the given position.
+     */
+    private void finderPattern(final byte[] m, final int x0, final int y0) {
+      for (int dy = 0; dy < 7; dy++) {
+        for (int dx = 0; dx < 7; dx++) {
+          final int d = Math.max(Math.abs(dx - 3), Math.abs(dy - 3));
+          m[(y0 + dy) * this.size + x0 + dx] = (byte) (d == 2 ? 0 : 1);
+        }
+      }
+    }
+
+    /**
+     * Sets the module (x, y) in the supplied rows and columns.
+     */
+    private static void set(final long[] rows, final long[] cols, final int x, final int y) {
+      rows[y] |= 1L << x;
+      cols[x] |= 1L << y;
+    }
+  }
+
+  /**
+   * Per-thread buffers (sized for the largest supported version).
+   */
+  private static class Buffers {
+
+    /** The data codewords. */
+    private final byte[] data;
+
+    /** The interleaved codewords. */
+    private final byte[] codewords;
+
+    /** The error correction codewords for a block. */
+    private final byte[] ec;
+
+    /** The data modules (rows). */
+    private final long[] dataRows;
+
+    /** The data modules (columns). */
+    private final long[] dataCols;
+
+    /** The rows of the matrix being evaluated. */
+    private final long[] rows;
+
+    /** The columns of the matrix being evaluated. */
+    private final long[] cols;
+
+    public Buffers() {
+      final Template t = TEMPLATES[MAX_VERSION];
+      this.data = new byte[t.totalCodewords];
+      this.codewords = new byte[t.totalCodewords];
+      int maxEc = 0;
+      for (int v = 1; v <= MAX_VERSION; v++) {
+        maxEc = Math.max(maxEc, TEMPLATES[v].ecBytesPerBlock);
+      }
+      this.ec = new byte[maxEc];
+      this.dataRows = new long[t.size];
+      this.dataCols = new long[t.size];
+      this.rows = new long[t.size];
+      this.cols = new long[t.size];
+    }
+  }
+
+  // Hidden constructor
+  private BankIDQREncoder() {
+  }
+
+}
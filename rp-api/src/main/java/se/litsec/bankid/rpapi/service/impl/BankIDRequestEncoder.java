@@ -0,0 +1,481 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.litsec.bankid.rpapi.types.Requirement;
+
+/**
+ * Encodes the JSON bodies for the BankID /auth, /sign, /collect and /cancel calls.
+ * <p>
+ * The bodies are written straight into an exactly sized byte array using prebuilt fragments for the property names,
+ * instead of letting Jackson introspect a request object on each call. A {@link Requirement} is serialized (by Jackson)
+ * the first time it is seen, and the resulting bytes are reused as long as the same, unmodified, object is passed in.
+ * </p>
+ * <p>
+ * The output is identical to what Jackson produces for the corresponding request objects, i.e., properties having
+ * {@code null} values are left out and strings are escaped in the same way. Strings containing unpaired surrogates are
+ * rejected with an {@link IllegalArgumentException}, just like Jackson refuses to UTF-8 encode them.
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+final class BankIDRequestEncoder {
+
+  /** The start of an orderRef body. */
+  private static final byte[] ORDER_REF_PREFIX = ascii("{\"orderRef\":\"");
+
+  /** The end of an orderRef body. */
+  private static final byte[] ORDER_REF_SUFFIX = ascii("\"}");
+
+  /** The personalNumber property (including the opening quote of the value). */
+  private static final byte[] PERSONAL_NUMBER = ascii("\"personalNumber\":\"");
+
+  /** The endUserIp property (including the opening quote of the value). */
+  private static final byte[] END_USER_IP = ascii("\"endUserIp\":\"");
+
+  /** The requirement property. */
+  private static final byte[] REQUIREMENT = ascii("\"requirement\":");
+
+  /** The userVisibleData property (including the opening quote of the value). */
+  private static final byte[] USER_VISIBLE_DATA = ascii("\"userVisibleData\":\"");
+
+  /** The userNonVisibleData property (including the opening quote of the value). */
+  private static final byte[] USER_NON_VISIBLE_DATA = ascii("\"userNonVisibleData\":\"");
+
+  /** Hex digits for unicode escapes. */
+  private static final byte[] HEX = ascii("0123456789ABCDEF");
+
+  /** The number of serialized requirements that are kept (must be a power of 2). */
+  private static final int REQUIREMENT_CACHE_SIZE = 16;
+
+  /** Serialized requirements, indexed by the identity hash code of the requirement object. */
+  private static final AtomicReferenceArray<EncodedRequirement> requirementCache = new AtomicReferenceArray<>(
+    REQUIREMENT_CACHE_SIZE);
+
+  /** Object mapper used to serialize requirements. */
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  /**
+   * Encodes the body for the /collect and /cancel calls.
+   *
+   * @param orderRef
+   *          the order reference
+   * @return the JSON body
+   * @throws IllegalArgumentException
+   *           if the order reference contains an unpaired surrogate
+   */
+  static byte[] encodeOrderRef(final String orderRef) {
+    final int length = orderRef.length();
+    final byte[] body = new byte[ORDER_REF_PREFIX.length + length + ORDER_REF_SUFFIX.length];
+    System.arraycopy(ORDER_REF_PREFIX, 0, body, 0, ORDER_REF_PREFIX.length);
+    int pos = ORDER_REF_PREFIX.length;
+    for (int i = 0; i < length; i++) {
+      final char c = orderRef.charAt(i);
+      if (c < 0x20 || c >= 0x80 || c == '"' || c == '\\') {
+        // Not an order reference issued by BankID - fall back to the general encoding.
+        return encodeOrderRefEscaped(orderRef);
+      }
+      body[pos++] = (byte) c;
+    }
+    System.arraycopy(ORDER_REF_SUFFIX, 0, body, pos, ORDER_REF_SUFFIX.length);
+    return body;
+  }
+
+  /**
+   * Encodes the body for the /auth call.
+   *
+   * @param personalNumber
+   *          the personal identity number (may be {@code null})
+   * @param endUserIp
+   *          the end user IP address
+   * @param requirement
+   *          the requirement (may be {@code null})
+   * @return the JSON body
+   * @throws JsonProcessingException
+   *           if the requirement can not be serialized
+   * @throws IllegalArgumentException
+   *           if a string contains an unpaired surrogate
+   */
+  static byte[] encodeAuth(final String personalNumber, final String endUserIp, final Requirement requirement)
+      throws JsonProcessingException {
+    return encodeSign(personalNumber, endUserIp, requirement, null, null);
+  }
+
+  /**
+   * Encodes the body for the /sign call.
+   *
+   * @param personalNumber
+   *          the personal identity number (may be {@code null})
+   * @param endUserIp
+   *          the end user IP address
+   * @param requirement
+   *          the requirement (may be {@code null})
+   * @param userVisibleData
+   *          the user visible data
+   * @param userNonVisibleData
+   *          the user non visible data (may be {@code null})
+   * @return the JSON body
+   * @throws JsonProcessingException
+   *           if the requirement can not be serialized
+   * @throws IllegalArgumentException
+   *           if a string contains an unpaired surrogate
+   */
+  static byte[] encodeSign(final String personalNumber, final String endUserIp, final Requirement requirement,
+      final String userVisibleData, final String userNonVisibleData) throws JsonProcessingException {
+
+    final byte[] requirementBytes = requirement != null ? encodeRequirement(requirement) : null;
+
+    // Calculate the exact size of the body (the braces and the separating commas included) ...
+    //
+    int length = 2;
+    int fields = 0;
+    if (personalNumber != null) {
+      length += PERSONAL_NUMBER.length + escapedLength(personalNumber) + 1;
+      fields++;
+    }
+    if (endUserIp != null) {
+      length += END_USER_IP.length + escapedLength(endUserIp) + 1;
+      fields++;
+    }
+    if (requirementBytes != null) {
+      length += REQUIREMENT.length + requirementBytes.length;
+      fields++;
+    }
+    if (userVisibleData != null) {
+      length += USER_VISIBLE_DATA.length + escapedLength(userVisibleData) + 1;
+      fields++;
+    }
+    if (userNonVisibleData != null) {
+      length += USER_NON_VISIBLE_DATA.length + escapedLength(userNonVisibleData) + 1;
+      fields++;
+    }
+    if (fields > 1) {
+      length += fields - 1;
+    }
+
+    // ... and write it.
+    //
+    final byte[] body = new byte[length];
+    body[0] = '{';
+    int pos = 1;
+    if (personalNumber != null) {
+      pos = writeString(body, pos, PERSONAL_NUMBER, personalNumber);
+    }
+    if (endUserIp != null) {
+      pos = writeString(body, pos, END_USER_IP, endUserIp);
+    }
+    if (requirementBytes != null) {
+      pos = writeName(body, pos, REQUIREMENT);
+      System.arraycopy(requirementBytes, 0, body, pos, requirementBytes.length);
+      pos += requirementBytes.length;
+    }
+    if (userVisibleData != null) {
+      pos = writeString(body, pos, USER_VISIBLE_DATA, userVisibleData);
+    }
+    if (userNonVisibleData != null) {
+      pos = writeString(body, pos, USER_NON_VISIBLE_DATA, userNonVisibleData);
+    }
+    body[pos] = '}';
+    return body;
+  }
+
+  /**
+   * Encodes an orderRef body where the order reference contains characters that need to be escaped.
+   *
+   * @param orderRef
+   *          the order reference
+   * @return the JSON body
+   */
+  private static byte[] encodeOrderRefEscaped(final String orderRef) {
+    final byte[] body = new byte[ORDER_REF_PREFIX.length + escapedLength(orderRef) + ORDER_REF_SUFFIX.length];
+    System.arraycopy(ORDER_REF_PREFIX, 0, body, 0, ORDER_REF_PREFIX.length);
+    final int pos = writeEscaped(body, ORDER_REF_PREFIX.length, orderRef);
+    System.arraycopy(ORDER_REF_SUFFIX, 0, body, pos, ORDER_REF_SUFFIX.length);
+    return body;
+  }
+
+  /**
+   * Returns the serialized form of the supplied requirement. The bytes are serialized once, and then reused as long as
+   * the requirement object has not been modified.
+   *
+   * @param requirement
+   *          the requirement
+   * @return the serialized requirement
+   * @throws JsonProcessingException
+   *           for serialization errors
+   */
+  private static byte[] encodeRequirement(final Requirement requirement) throws JsonProcessingException {
+    final int slot = System.identityHashCode(requirement) & (REQUIREMENT_CACHE_SIZE - 1);
+    EncodedRequirement encoded = requirementCache.get(slot);
+    if (encoded == null || !encoded.matches(requirement)) {
+      encoded = new EncodedRequirement(requirement);
+      requirementCache.set(slot, encoded);
+    }
+    return encoded.bytes;
+  }
+
+  /**
+   * Writes a property name (preceded by a comma if it is not the first property).
+   *
+   * @param body
+   *          the body
+   * @param pos
+   *          the current position
+   * @param name
+   *          the property name fragment
+   * @return the new position
+   */
+  private static int writeName(final byte[] body, int pos, final byte[] name) {
+    if (pos > 1) {
+      body[pos++] = ',';
+    }
+    System.arraycopy(name, 0, body, pos, name.length);
+    return pos + name.length;
+  }
+
+  /**
+   * Writes a string property.
+   *
+   * @param body
+   *          the body
+   * @param pos
+   *          the current position
+   * @param name
+   *          the property name fragment (ending with the opening quote of the value)
+   * @param value
+   *          the value
+   * @return the new position
+   */
+  private static int writeString(final byte[] body, final int pos, final byte[] name, final String value) {
+    final int end = writeEscaped(body, writeName(body, pos, name), value);
+    body[end] = '"';
+    return end + 1;
+  }
+
+  /**
+   * Returns the number of bytes that the supplied string occupies when it is escaped and UTF-8 encoded.
+   *
+   * @param s
+   *          the string
+   * @return the encoded length
+   * @throws IllegalArgumentException
+   *           if the string contains an unpaired surrogate
+   */
+  private static int escapedLength(final String s) {
+    final int length = s.length();
+    int encoded = 0;
+    for (int i = 0; i < length; i++) {
+      final char c = s.charAt(i);
+      if (c < 0x80) {
+        encoded += c == '"' || c == '\\' ? 2 : c >= 0x20 ? 1 : shortEscape(c) != 0 ? 2 : 6;
+      }
+      else if (c < 0x800) {
+        encoded += 2;
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+        encoded += 4;
+        i++;
+      }
+      else if (Character.isSurrogate(c)) {
+        throw new IllegalArgumentException(
+          String.format("Unpaired surrogate 0x%04X at index %d can not be UTF-8 encoded", (int) c, i));
+      }
+      else {
+        encoded += 3;
+      }
+    }
+    return encoded;
+  }
+
+  /**
+   * Writes the supplied string escaped and UTF-8 encoded. The string must have been checked by
+   * {@link #escapedLength(String)}.
+   *
+   * @param body
+   *          the body
+   * @param pos
+   *          the current position
+   * @param s
+   *          the string
+   * @return the new position
+   */
+  private static int writeEscaped(final byte[] body, int pos, final String s) {
+    final int length = s.length();
+    for (int i = 0; i < length; i++) {
+      final char c = s.charAt(i);
+      if (c < 0x80) {
+        if (c == '"' || c == '\\') {
+          body[pos++] = '\\';
+          body[pos++] = (byte) c;
+        }
+        else if (c >= 0x20) {
+          body[pos++] = (byte) c;
+        }
+        else {
+          body[pos++] = '\\';
+          final char e = shortEscape(c);
+          if (e != 0) {
+            body[pos++] = (byte) e;
+          }
+          else {
+            body[pos++] = 'u';
+            body[pos++] = '0';
+            body[pos++] = '0';
+            body[pos++] = HEX[c >> 4];
+            body[pos++] = HEX[c & 0xf];
+          }
+        }
+      }
+      else if (c < 0x800) {
+        body[pos++] = (byte) (0xc0 | (c >> 6));
+        body[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+        final int cp = Character.toCodePoint(c, s.charAt(++i));
+        body[pos++] = (byte) (0xf0 | (cp >> 18));
+        body[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+        body[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+        body[pos++] = (byte) (0x80 | (cp & 0x3f));
+      }
+      else {
+        body[pos++] = (byte) (0xe0 | (c >> 12));
+        body[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        body[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return pos;
+  }
+
+  /**
+   * Returns the short escape character for a control character, or 0 if the character is escaped as {@code \\u00XX}.
+   *
+   * @param c
+   *          the control character
+   * @return the escape character or 0
+   */
+  private static char shortEscape(final char c) {
+    switch (c) {
+    case '\b':
+      return 'b';
+    case '\t':
+      return 't';
+    case '\n':
+      return 'n';
+    case '\f':
+      return 'f';
+    case '\r':
+      return 'r';
+    default:
+      return 0;
+    }
+  }
+
+  /**
+   * Returns the bytes for an ASCII string.
+   *
+   * @param s
+   *          the string
+   * @return the bytes
+   */
+  private static byte[] ascii(final String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * A serialized requirement along with a copy of the requirement it was serialized from.
+   * <p>
+   * The autoStartTokenRequired property is deprecated, but it must still be copied and compared since it is serialized
+   * as long as it is part of {@link Requirement}.
+   * </p>
+   */
+  @SuppressWarnings("deprecation")
+  private static class EncodedRequirement {
+
+    /** The requirement object that was serialized. */
+    private final Requirement source;
+
+    /** A copy of the requirement at the time it was serialized. */
+    private final Requirement copy;
+
+    /** The serialized requirement. */
+    private final byte[] bytes;
+
+    /**
+     * Constructor.
+     *
+     * @param requirement
+     *          the requirement to serialize
+     * @throws JsonProcessingException
+     *           for serialization errors
+     */
+    EncodedRequirement(final Requirement requirement) throws JsonProcessingException {
+      this.source = requirement;
+
+      // Serialize a copy so that concurrent modifications of the source can not make the bytes and the copy differ.
+      this.copy = new Requirement();
+      this.copy.setCardReader(requirement.getCardReader());
+      this.copy.setCertificatePolicies(copyOf(requirement.getCertificatePolicies()));
+      this.copy.setIssuerCn(copyOf(requirement.getIssuerCn()));
+      this.copy.setAutoStartTokenRequired(requirement.getAutoStartTokenRequired());
+      this.copy.setAllowFingerprint(requirement.getAllowFingerprint());
+      this.copy.setTokenStartRequired(requirement.getTokenStartRequired());
+      this.bytes = objectMapper.writeValueAsBytes(this.copy);
+    }
+
+    /**
+     * Tells whether this object holds the serialization of the supplied requirement, i.e., if it is the same object and
+     * it has not been modified since it was serialized.
+     *
+     * @param requirement
+     *          the requirement
+     * @return true if the serialized bytes may be used, and false otherwise
+     */
+    boolean matches(final Requirement requirement) {
+      return this.source == requirement
+          && this.copy.getCardReader() == requirement.getCardReader()
+          && Objects.equals(this.copy.getCertificatePolicies(), requirement.getCertificatePolicies())
+          && Objects.equals(this.copy.getIssuerCn(), requirement.getIssuerCn())
+          && Objects.equals(this.copy.getAutoStartTokenRequired(), requirement.getAutoStartTokenRequired())
+          && Objects.equals(this.copy.getAllowFingerprint(), requirement.getAllowFingerprint())
+          && Objects.equals(this.copy.getTokenStartRequired(), requirement.getTokenStartRequired());
+    }
+
+    /**
+     * Copies a list.
+     *
+     * @param list
+     *          the list to copy (may be {@code null})
+     * @return a copy, or {@code null}
+     */
+    private static List<String> copyOf(final List<String> list) {
+      return list != null ? new ArrayList<>(list) : null;
+    }
+  }
+
+  // Hidden constructor
+  private BankIDRequestEncoder() {
+  }
+
+}
@@ -0,0 +1,580 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import se.litsec.bankid.rpapi.service.QRGenerator;
+import se.litsec.bankid.rpapi.service.QRImage;
+import se.litsec.bankid.rpapi.service.QRModuleMatrix;
+
+/**
+ * A {@link QRGenerator} decorator that caches the frames of "animated" QR codes and static QR code images.
+ * <p>
+ * An animated QR frame is fully determined by the QR start token, the QR start secret and the number of whole seconds
+ * since the order was received. Therefore, all callers asking for the same frame (for example several browser windows
+ * polling the same order) share one generated image. A frame is generated once, and is kept until the second after it
+ * was current has passed.
+ * </p>
+ * <p>
+ * If a precompute executor is assigned (see {@link #setPrecomputeExecutor(Executor)}), the generator will, in the
+ * background, generate the next frames for an order each time a frame is requested. Serving a frame is then only a map
+ * lookup.
+ * </p>
+ * <p>
+ * Static QR code images (and their data URI:s) are kept in a least recently used cache holding at most
+ * {@link #setStaticCacheSize(int)} images. An image is kept for {@link #setStaticTimeToLive(Duration)} (by default the
+ * lifetime of a BankID order) after it was generated, so a page reload or a retry does not re-encode the image.
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class CachingQRGenerator extends AbstractQRGenerator {
+
+  /** The default number of frames to generate ahead of time. */
+  public static final int DEFAULT_PRECOMPUTE_FRAMES = 2;
+
+  /** The default maximum number of cached static images. */
+  public static final int DEFAULT_STATIC_CACHE_SIZE = 1000;
+
+  /** The default time to live for cached static images (the lifetime of a BankID order). */
+  public static final Duration DEFAULT_STATIC_TIME_TO_LIVE = Duration.ofMinutes(3);
+
+  /** Class logger. */
+  private final Logger log = LoggerFactory.getLogger(CachingQRGenerator.class);
+
+  /** The underlying generator. */
+  private final AbstractQRGenerator generator;
+
+  /** The executor used to generate frames ahead of time (null means no precomputation). */
+  private Executor precomputeExecutor;
+
+  /** The number of frames to generate ahead of time. */
+  private int precomputeFrames = DEFAULT_PRECOMPUTE_FRAMES;
+
+  /** The cached frames. */
+  private final Map<FrameKey, Frame> frames = new ConcurrentHashMap<>();
+
+  /** The maximum number of cached static images. */
+  private int staticCacheSize = DEFAULT_STATIC_CACHE_SIZE;
+
+  /** The time to live (in millis) for cached static images. */
+  private long staticTimeToLive = DEFAULT_STATIC_TIME_TO_LIVE.toMillis();
+
+  /** The cached static images (in access order). Guarded by itself. */
+  private final LinkedHashMap<StaticKey, StaticImage> staticImages = new LinkedHashMap<StaticKey, StaticImage>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<StaticKey, StaticImage> eldest) {
+      return this.size() > staticCacheSize;
+    }
+  };
+
+  /** The time (in millis) when expired frames were last removed. */
+  private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+  /**
+   * Constructor.
+   *
+   * @param generator
+   *          the underlying generator
+   */
+  public CachingQRGenerator(final AbstractQRGenerator generator) {
+    Assert.notNull(generator, "'generator' must not be null");
+    this.generator = generator;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] generateQRCodeImage(final String autoStartToken, final int width, final int height, final ImageFormat format)
+      throws IOException {
+    return this.getStaticImage(autoStartToken, width, height, format).image;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String generateQRCodeBase64Image(final String autoStartToken, final int width, final int height, final ImageFormat format)
+      throws IOException {
+    return this.getStaticImage(autoStartToken, width, height, format).getDataUri();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void writeQRCodeBase64Image(final String autoStartToken, final int width, final int height, final ImageFormat format,
+      final Appendable out) throws IOException {
+    out.append(this.getStaticImage(autoStartToken, width, height, format).getDataUri());
+  }
+
+  /**
+   * Returns the cached static image for the given parameters, generating it if needed.
+   */
+  private StaticImage getStaticImage(final String autoStartToken, final int width, final int height, final ImageFormat format)
+      throws IOException {
+
+    final long now = System.currentTimeMillis();
+    this.sweep(now);
+
+    final StaticKey key = new StaticKey(autoStartToken, width, height, format);
+    synchronized (this.staticImages) {
+      final StaticImage image = this.staticImages.get(key);
+      if (image != null && image.expires >= now) {
+        return image;
+      }
+    }
+    final StaticImage image = new StaticImage(this.generator.generateQRCodeImage(autoStartToken, width, height, format), format,
+      now + this.staticTimeToLive);
+    synchronized (this.staticImages) {
+      this.staticImages.put(key, image);
+    }
+    return image;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] generateAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final Instant orderTime,
+      final int width, final int height, final ImageFormat format) throws IOException {
+
+    final long qrTime = orderTime.until(Instant.now(), ChronoUnit.SECONDS);
+    final byte[] image = this.getFrame(qrStartToken, qrStartSecret, orderTime, qrTime, width, height, format).await();
+    this.precompute(qrStartToken, qrStartSecret, orderTime, qrTime + 1, width, height, format);
+    return image;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] generateAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final long qrTime,
+      final int width, final int height, final ImageFormat format) throws IOException {
+    return this.generator.generateAnimatedQRCodeImage(qrStartToken, qrStartSecret, qrTime, width, height, format);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public QRImage generateModuleScaleQRCodeImage(final String autoStartToken, final ImageFormat format) throws IOException {
+    return this.generator.generateModuleScaleQRCodeImage(autoStartToken, format);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public QRImage generateModuleScaleAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final long qrTime,
+      final ImageFormat format) throws IOException {
+    return this.generator.generateModuleScaleAnimatedQRCodeImage(qrStartToken, qrStartSecret, qrTime, format);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public QRModuleMatrix generateQRCodeModules(final String autoStartToken) throws IOException {
+    return this.generator.generateQRCodeModules(autoStartToken);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public QRModuleMatrix generateAnimatedQRCodeModules(final String qrStartToken, final String qrStartSecret, final long qrTime)
+      throws IOException {
+    return this.generator.generateAnimatedQRCodeModules(qrStartToken, qrStartSecret, qrTime);
+  }
+
+  /**
+   * Generates, in the background, the first frames of an animated QR code using the default width, height and image
+   * format. This method may be invoked when an order has been started, so that the first frame is available when it is
+   * requested.
+   * <p>
+   * If no precompute executor has been assigned, this method does nothing.
+   * </p>
+   *
+   * @param qrStartToken
+   *          the QR start token
+   * @param qrStartSecret
+   *          the QR start secret
+   * @param orderTime
+   *          the instant when the order response was received
+   */
+  public void precompute(final String qrStartToken, final String qrStartSecret, final Instant orderTime) {
+    this.precompute(qrStartToken, qrStartSecret, orderTime, Math.max(0, orderTime.until(Instant.now(), ChronoUnit.SECONDS)),
+      this.getDefaultWidth(), this.getDefaultHeight(), this.getDefaultImageFormat());
+  }
+
+  /**
+   * Schedules generation of the frames starting with {@code fromQrTime} (if not already generated).
+   */
+  private void precompute(final String qrStartToken, final String qrStartSecret, final Instant orderTime, final long fromQrTime,
+      final int width, final int height, final ImageFormat format) {
+
+    if (this.precomputeExecutor == null) {
+      return;
+    }
+    for (long qrTime = fromQrTime; qrTime < fromQrTime + this.precomputeFrames; qrTime++) {
+      final FrameKey key = new FrameKey(qrStartToken, qrTime, width, height, format);
+      if (this.frames.containsKey(key)) {
+        continue;
+      }
+      final long t = qrTime;
+      try {
+        this.precomputeExecutor.execute(() -> this.getFrame(qrStartToken, qrStartSecret, orderTime, t, width, height, format));
+      }
+      catch (RejectedExecutionException e) {
+        log.debug("Precompute executor saturated - not generating frame {} for {}", qrTime, qrStartToken);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the cached frame for the given parameters, generating it if needed.
+   */
+  private Frame getFrame(final String qrStartToken, final String qrStartSecret, final Instant orderTime, final long qrTime,
+      final int width, final int height, final ImageFormat format) {
+
+    final long now = System.currentTimeMillis();
+    this.sweep(now);
+
+    final FrameKey key = new FrameKey(qrStartToken, qrTime, width, height, format);
+    Frame frame = this.frames.get(key);
+    if (frame != null) {
+      return frame;
+    }
+    // The frame is needed until the second after it was current has passed ...
+    final Frame newFrame = new Frame(orderTime.toEpochMilli() + (qrTime + 2) * 1000L);
+    frame = this.frames.putIfAbsent(key, newFrame);
+    if (frame != null) {
+      return frame;
+    }
+    try {
+      newFrame.future.complete(this.generator.generateAnimatedQRCodeImage(qrStartToken, qrStartSecret, qrTime, width, height, format));
+    }
+    catch (IOException | RuntimeException e) {
+      this.frames.remove(key, newFrame);
+      newFrame.future.completeExceptionally(e);
+    }
+    catch (Error e) {
+      this.frames.remove(key, newFrame);
+      newFrame.future.completeExceptionally(e);
+      throw e;
+    }
+    return newFrame;
+  }
+
+  /**
+   * Removes expired frames. This is done at most once per second.
+   *
+   * @param now
+   *          the current time (in millis)
+   */
+  private void sweep(final long now) {
+    final long last = this.lastSweep.get();
+    if (now - last < 1000L || !this.lastSweep.compareAndSet(last, now)) {
+      return;
+    }
+    this.frames.values().removeIf(f -> f.expires < now);
+    synchronized (this.staticImages) {
+      this.staticImages.values().removeIf(i -> i.expires < now);
+    }
+  }
+
+  /**
+   * Returns the number of frames currently held by the cache.
+   *
+   * @return the number of cached frames
+   */
+  public int getCachedFrames() {
+    return this.frames.size();
+  }
+
+  /**
+   * Returns the number of static images currently held by the cache.
+   *
+   * @return the number of cached static images
+   */
+  public int getCachedStaticImages() {
+    synchronized (this.staticImages) {
+      return this.staticImages.size();
+    }
+  }
+
+  /**
+   * Returns the default width of the underlying generator.
+   */
+  @Override
+  protected int getDefaultWidth() {
+    return this.generator.getDefaultWidth();
+  }
+
+  /**
+   * Returns the default height of the underlying generator.
+   */
+  @Override
+  protected int getDefaultHeight() {
+    return this.generator.getDefaultHeight();
+  }
+
+  /**
+   * Returns the default image format of the underlying generator.
+   */
+  @Override
+  protected ImageFormat getDefaultImageFormat() {
+    return this.generator.getDefaultImageFormat();
+  }
+
+  /**
+   * Assigns the default width of the underlying generator.
+   */
+  @Override
+  public void setDefaultWidth(final int defaultWidth) {
+    this.generator.setDefaultWidth(defaultWidth);
+  }
+
+  /**
+   * Assigns the default height of the underlying generator.
+   */
+  @Override
+  public void setDefaultHeight(final int defaultHeight) {
+    this.generator.setDefaultHeight(defaultHeight);
+  }
+
+  /**
+   * Assigns the default image format of the underlying generator.
+   */
+  @Override
+  public void setDefaultImageFormat(final ImageFormat defaultImageFormat) {
+    this.generator.setDefaultImageFormat(defaultImageFormat);
+  }
+
+  /**
+   * Assigns the executor that is used to generate frames ahead of time. If not assigned, no frames are generated ahead
+   * of time (but frames are still shared between callers).
+   *
+   * @param precomputeExecutor
+   *          the executor
+   */
+  public void setPrecomputeExecutor(final Executor precomputeExecutor) {
+    this.precomputeExecutor = precomputeExecutor;
+  }
+
+  /**
+   * Assigns the number of frames to generate ahead of time. The default is {@value #DEFAULT_PRECOMPUTE_FRAMES}.
+   *
+   * @param precomputeFrames
+   *          the number of frames
+   */
+  public void setPrecomputeFrames(final int precomputeFrames) {
+    Assert.isTrue(precomputeFrames > 0, "'precomputeFrames' must be greater than 0");
+    this.precomputeFrames = precomputeFrames;
+  }
+
+  /**
+   * Assigns the maximum number of static images to cache. When the cache is full, the least recently used image is
+   * removed. The default is {@value #DEFAULT_STATIC_CACHE_SIZE}.
+   *
+   * @param staticCacheSize
+   *          the maximum number of cached static images
+   */
+  public void setStaticCacheSize(final int staticCacheSize) {
+    Assert.isTrue(staticCacheSize > 0, "'staticCacheSize' must be greater than 0");
+    this.staticCacheSize = staticCacheSize;
+  }
+
+  /**
+   * Assigns for how long a static image is cached after it was generated. The default is
+   * {@link #DEFAULT_STATIC_TIME_TO_LIVE}.
+   *
+   * @param staticTimeToLive
+   *          the time to live
+   */
+  public void setStaticTimeToLive(final Duration staticTimeToLive) {
+    Assert.notNull(staticTimeToLive, "'staticTimeToLive' must not be null");
+    Assert.isTrue(!staticTimeToLive.isNegative(), "'staticTimeToLive' must not be negative");
+    this.staticTimeToLive = staticTimeToLive.toMillis();
+  }
+
+  /**
+   * Key for a cached static image.
+   */
+  private static class StaticKey {
+
+    private final String autoStartToken;
+
+    private final int width;
+
+    private final int height;
+
+    private final ImageFormat format;
+
+    public StaticKey(final String autoStartToken, final int width, final int height, final ImageFormat format) {
+      this.autoStartToken = autoStartToken;
+      this.width = width;
+      this.height = height;
+      this.format = format;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(this.autoStartToken, this.width, this.height, this.format);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof StaticKey)) {
+        return false;
+      }
+      final StaticKey other = (StaticKey) obj;
+      return this.width == other.width && this.height == other.height && this.format == other.format
+          && this.autoStartToken.equals(other.autoStartToken);
+    }
+  }
+
+  /**
+   * A cached static image.
+   */
+  private static class StaticImage {
+
+    /** The image bytes. */
+    private final byte[] image;
+
+    /** The image format. */
+    private final ImageFormat format;
+
+    /** When the image expires (in millis). */
+    private final long expires;
+
+    /** The data URI (created when first requested). */
+    private volatile String dataUri;
+
+    public StaticImage(final byte[] image, final ImageFormat format, final long expires) {
+      this.image = image;
+      this.format = format;
+      this.expires = expires;
+    }
+
+    /**
+     * Returns the image as a data URI.
+     *
+     * @return the data URI
+     */
+    public String getDataUri() {
+      String uri = this.dataUri;
+      if (uri == null) {
+        uri = "data:" + this.format.getMediaType() + ";base64, " + Base64.getEncoder().encodeToString(this.image);
+        this.dataUri = uri;
+      }
+      return uri;
+    }
+  }
+
+  /**
+   * Key for a cached frame.
+   */
+  private static class FrameKey {
+
+    private final String qrStartToken;
+
+    private final long qrTime;
+
+    private final int width;
+
+    private final int height;
+
+    private final ImageFormat format;
+
+    public FrameKey(final String qrStartToken, final long qrTime, final int width, final int height, final ImageFormat format) {
+      this.qrStartToken = qrStartToken;
+      this.qrTime = qrTime;
+      this.width = width;
+      this.height = height;
+      this.format = format;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(this.qrStartToken, this.qrTime, this.width, this.height, this.format);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof FrameKey)) {
+        return false;
+      }
+      final FrameKey other = (FrameKey) obj;
+      return this.qrTime == other.qrTime && this.width == other.width && this.height == other.height
+          && this.format == other.format && this.qrStartToken.equals(other.qrStartToken);
+    }
+  }
+
+  /**
+   * A cached (or ongoing) frame generation.
+   */
+  private static class Frame {
+
+    /** The generated image. */
+    private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+    /** When the frame expires (in millis). */
+    private final long expires;
+
+    public Frame(final long expires) {
+      this.expires = expires;
+    }
+
+    /**
+     * Waits for the generated image.
+     *
+     * @return the image bytes
+     * @throws IOException
+     *           if the generation failed
+     */
+    public byte[] await() throws IOException {
+      try {
+        return this.future.get();
+      }
+      catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        else if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new IOException("Failed to generate QR code", e.getCause());
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for QR code", e);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+import se.litsec.bankid.rpapi.service.BankIDClient;
+import se.litsec.bankid.rpapi.service.DataToSign;
+import se.litsec.bankid.rpapi.service.QRGenerator;
+import se.litsec.bankid.rpapi.types.BankIDException;
+import se.litsec.bankid.rpapi.types.CollectResponse;
+import se.litsec.bankid.rpapi.types.ErrorCode;
+import se.litsec.bankid.rpapi.types.OrderResponse;
+import se.litsec.bankid.rpapi.types.ProgressStatus;
+import se.litsec.bankid.rpapi.types.Requirement;
+import se.litsec.bankid.rpapi.types.UserCancelException;
+
+/**
+ * A {@link BankIDClient} decorator that coalesces collect calls for the same order.
+ * <p>
+ * Concurrent callers of {@link #collect(String)} for the same order reference share one call to the underlying
+ * client. The result is remembered for a short period (the memoize window), so callers within that period get the
+ * result without a new call to the BankID server. Final results, i.e., a completed order or an order that failed, are
+ * remembered until they are evicted (after the terminal result lifetime, or when {@link #evict(String)} or
+ * {@link #cancel(String)} is invoked for the order).
+ * </p>
+ * <p>
+ * All other calls are passed on to the underlying client unchanged.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class CoalescingBankIDClient implements BankIDClient {
+
+  /** The default memoize window. */
+  public static final Duration DEFAULT_MEMOIZE_WINDOW = Duration.ofSeconds(1);
+
+  /** The default lifetime for terminal results (the maximum lifetime of a BankID order). */
+  public static final Duration DEFAULT_TERMINAL_RESULT_LIFETIME = Duration.ofMinutes(3);
+
+  /** The error codes that are reported by BankID when an order has failed (i.e., final results). */
+  private static final Set<ErrorCode> TERMINAL_ERROR_CODES = EnumSet.of(ErrorCode.EXPIRED_TRANSACTION, ErrorCode.CERTIFICATE_ERR,
+    ErrorCode.USER_CANCEL, ErrorCode.CANCELLED, ErrorCode.START_FAILED);
+
+  /** The underlying client. */
+  private final BankIDClient client;
+
+  /** The memoize window (in nanos). */
+  private long memoizeWindow = DEFAULT_MEMOIZE_WINDOW.toNanos();
+
+  /** The lifetime for terminal results (in nanos). */
+  private long terminalResultLifetime = DEFAULT_TERMINAL_RESULT_LIFETIME.toNanos();
+
+  /** The ongoing and remembered collect calls. */
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  /** The time (in nanos) when expired entries were last removed. */
+  private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+  /**
+   * Constructor.
+   *
+   * @param client
+   *          the underlying client
+   */
+  public CoalescingBankIDClient(final BankIDClient client) {
+    Assert.notNull(client, "'client' must not be null");
+    this.client = client;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public OrderResponse authenticate(final String personalIdentityNumber, final String endUserIp, final Requirement requirement)
+      throws BankIDException {
+    return this.client.authenticate(personalIdentityNumber, endUserIp, requirement);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public OrderResponse sign(final String personalIdentityNumber, final String endUserIp, final DataToSign dataToSign,
+      final Requirement requirement) throws BankIDException {
+    return this.client.sign(personalIdentityNumber, endUserIp, dataToSign, requirement);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void cancel(final String orderReference) throws BankIDException {
+    try {
+      this.client.cancel(orderReference);
+    }
+    finally {
+      this.evict(orderReference);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CollectResponse collect(final String orderReference) throws UserCancelException, BankIDException {
+    Assert.hasText(orderReference, "'orderReference' must not be null or empty");
+
+    final long now = System.nanoTime();
+    this.sweep(now);
+
+    while (true) {
+      final Entry entry = this.entries.get(orderReference);
+      if (entry != null && entry.isValid(now)) {
+        return entry.await();
+      }
+      final Entry newEntry = new Entry();
+      final boolean owner = entry == null
+          ? this.entries.putIfAbsent(orderReference, newEntry) == null
+          : this.entries.replace(orderReference, entry, newEntry);
+      if (!owner) {
+        // Someone else beat us to it ...
+        continue;
+      }
+      try {
+        newEntry.complete(this.client.collect(orderReference), null);
+      }
+      catch (BankIDException | RuntimeException e) {
+        newEntry.complete(null, e);
+      }
+      catch (Error e) {
+        // Don't leave waiting callers hanging, and don't remember the result ...
+        this.entries.remove(orderReference, newEntry);
+        newEntry.complete(null, e);
+        throw e;
+      }
+      return newEntry.await();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public QRGenerator getQRGenerator() {
+    return this.client.getQRGenerator();
+  }
+
+  /**
+   * Removes any remembered collect result for the given order.
+   *
+   * @param orderReference
+   *          the order reference
+   */
+  public void evict(final String orderReference) {
+    this.entries.remove(orderReference);
+  }
+
+  /**
+   * Removes expired entries. This is done at most once per memoize window.
+   *
+   * @param now
+   *          the current time (in nanos)
+   */
+  private void sweep(final long now) {
+    final long last = this.lastSweep.get();
+    if (now - last < this.memoizeWindow || !this.lastSweep.compareAndSet(last, now)) {
+      return;
+    }
+    this.entries.values().removeIf(e -> !e.isValid(now));
+  }
+
+  /**
+   * Assigns the memoize window, i.e., for how long a (non-final) collect result is re-used. The default is
+   * {@link #DEFAULT_MEMOIZE_WINDOW}.
+   *
+   * @param memoizeWindow
+   *          the memoize window
+   */
+  public void setMemoizeWindow(final Duration memoizeWindow) {
+    Assert.notNull(memoizeWindow, "'memoizeWindow' must not be null");
+    this.memoizeWindow = memoizeWindow.toNanos();
+  }
+
+  /**
+   * Assigns for how long a final result (completed or failed order) is remembered. The default is
+   * {@link #DEFAULT_TERMINAL_RESULT_LIFETIME}.
+   *
+   * @param terminalResultLifetime
+   *          the lifetime for final results
+   */
+  public void setTerminalResultLifetime(final Duration terminalResultLifetime) {
+    Assert.notNull(terminalResultLifetime, "'terminalResultLifetime' must not be null");
+    this.terminalResultLifetime = terminalResultLifetime.toNanos();
+  }
+
+  /**
+   * Represents an ongoing, or remembered, collect call.
+   */
+  private class Entry {
+
+    /** The result. */
+    private final CompletableFuture<CollectResponse> future = new CompletableFuture<>();
+
+    /** The time (in nanos) when the call completed. */
+    private volatile long completed;
+
+    /** Whether the result is final. */
+    private volatile boolean terminal;
+
+    /**
+     * Completes the entry.
+     *
+     * @param response
+     *          the response (null if the call failed)
+     * @param error
+     *          the error (null if the call succeeded)
+     */
+    public void complete(final CollectResponse response, final Throwable error) {
+      this.completed = System.nanoTime();
+      if (error == null) {
+        this.terminal = response.getProgressStatus() == ProgressStatus.COMPLETE;
+        this.future.complete(response);
+      }
+      else {
+        this.terminal = isTerminal(error);
+        this.future.completeExceptionally(error);
+      }
+    }
+
+    /**
+     * Tells whether the error means that the order has reached a final state.
+     *
+     * @param error
+     *          the error
+     * @return true if the error is final and false otherwise
+     */
+    private boolean isTerminal(final Throwable error) {
+      if (!(error instanceof BankIDException)) {
+        return false;
+      }
+      final BankIDException e = (BankIDException) error;
+      if (e.getErrorCode() == ErrorCode.UNKNOWN_ERROR && e.getCause() instanceof BankIDException) {
+        // BankIDClientImpl reports a failed order as an unknown error caused by the actual error ...
+        return this.isTerminal(e.getCause());
+      }
+      return TERMINAL_ERROR_CODES.contains(e.getErrorCode());
+    }
+
+    /**
+     * Tells whether the entry may be used (i.e., the call is ongoing, or its result has not expired).
+     *
+     * @param now
+     *          the current time (in nanos)
+     * @return true if the entry may be used and false otherwise
+     */
+    public boolean isValid(final long now) {
+      if (!this.future.isDone()) {
+        return true;
+      }
+      final long age = now - this.completed;
+      return age < (this.terminal ? terminalResultLifetime : memoizeWindow);
+    }
+
+    /**
+     * Waits for the result.
+     *
+     * @return the collect response
+     * @throws BankIDException
+     *           if the collect call failed
+     */
+    public CollectResponse await() throws BankIDException {
+      try {
+        return this.future.get();
+      }
+      catch (ExecutionException e) {
+        if (e.getCause() instanceof BankIDException) {
+          throw (BankIDException) e.getCause();
+        }
+        else if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new BankIDException(ErrorCode.UNKNOWN_ERROR, "Unknown error during collect", e.getCause());
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new BankIDException(ErrorCode.UNKNOWN_ERROR, "Interrupted while waiting for collect", e);
+      }
+    }
+  }
+
+}
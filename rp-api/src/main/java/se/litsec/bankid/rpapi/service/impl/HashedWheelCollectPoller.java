@@ -0,0 +1,442 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+import se.litsec.bankid.rpapi.service.BankIDClient;
+import se.litsec.bankid.rpapi.service.CollectPoller;
+import se.litsec.bankid.rpapi.types.BankIDException;
+import se.litsec.bankid.rpapi.types.CollectResponse;
+import se.litsec.bankid.rpapi.types.ErrorCode;
+import se.litsec.bankid.rpapi.types.ProgressStatus;
+
+/**
+ * A {@link CollectPoller} that drives all collect calls from a single hashed timing wheel.
+ * <p>
+ * The wheel consists of a number of slots, and one revolution of the wheel corresponds to the poll interval (by
+ * default two seconds, as recommended by BankID). A timer thread advances the wheel one slot per tick, and all orders
+ * in the current slot are handed over to a bounded pool of worker threads that perform the collect calls. A newly
+ * registered order is placed in the least loaded slot, so the collect calls are spread evenly over time instead of
+ * being sent in bursts. Each order is thus polled once per revolution.
+ * </p>
+ * <p>
+ * If the worker pool is saturated, an order is skipped for the current revolution. An order is never polled again
+ * while a previous collect call for the same order is in progress.
+ * </p>
+ * <p>
+ * An order is released when it is complete or has failed. A collect call that fails with an error that BankID says
+ * should be retried (a network error, {@code requestTimeout}, {@code internalError} or {@code Maintenance}) is
+ * reported to the listener, but the order is kept and polled again in the next revolution. After
+ * {@link #setMaxConsecutiveErrors(int) a number of consecutive such errors}, the order is released anyway.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class HashedWheelCollectPoller implements CollectPoller, InitializingBean, DisposableBean {
+
+  /** The default poll interval, i.e., the time for one revolution of the wheel. */
+  public static final Duration DEFAULT_POLL_INTERVAL = Duration.ofSeconds(2);
+
+  /** The default tick duration, i.e., the time between two slots of the wheel. */
+  public static final Duration DEFAULT_TICK_DURATION = Duration.ofMillis(100);
+
+  /** The default number of worker threads. */
+  public static final int DEFAULT_WORKER_THREADS = 4;
+
+  /** The default maximum number of collect tasks waiting for a worker thread. */
+  public static final int DEFAULT_WORKER_QUEUE_SIZE = 1000;
+
+  /** The default maximum number of consecutive failed collect calls before an order is released. */
+  public static final int DEFAULT_MAX_CONSECUTIVE_ERRORS = 5;
+
+  /** The error codes for failed collect calls that should be retried. */
+  private static final Set<ErrorCode> TRANSIENT_ERROR_CODES = EnumSet.of(ErrorCode.REQUEST_TIMEOUT, ErrorCode.INTERNAL_ERROR,
+    ErrorCode.MAINTENANCE, ErrorCode.UNKNOWN_ERROR);
+
+  /** Class logger. */
+  private final Logger log = LoggerFactory.getLogger(HashedWheelCollectPoller.class);
+
+  /** The client used to make the collect calls. */
+  private final BankIDClient client;
+
+  /** The poll interval. */
+  private Duration pollInterval = DEFAULT_POLL_INTERVAL;
+
+  /** The tick duration. */
+  private Duration tickDuration = DEFAULT_TICK_DURATION;
+
+  /** The number of worker threads. */
+  private int workerThreads = DEFAULT_WORKER_THREADS;
+
+  /** The maximum number of collect tasks waiting for a worker thread. */
+  private int workerQueueSize = DEFAULT_WORKER_QUEUE_SIZE;
+
+  /** The maximum number of consecutive failed collect calls before an order is released. */
+  private int maxConsecutiveErrors = DEFAULT_MAX_CONSECUTIVE_ERRORS;
+
+  /** The slots of the wheel. */
+  private Set<Entry>[] wheel;
+
+  /** All registered orders. */
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  /** The current tick. */
+  private long tick = 0;
+
+  /** The timer thread advancing the wheel. */
+  private ScheduledExecutorService timer;
+
+  /** The worker threads performing the collect calls. */
+  private ThreadPoolExecutor workers;
+
+  /**
+   * Constructor.
+   *
+   * @param client
+   *          the client used to make the collect calls
+   */
+  public HashedWheelCollectPoller(final BankIDClient client) {
+    Assert.notNull(client, "'client' must not be null");
+    this.client = client;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void register(final String orderReference, final CollectListener listener) {
+    Assert.hasText(orderReference, "'orderReference' must not be null or empty");
+    Assert.notNull(listener, "'listener' must not be null");
+    Assert.state(this.wheel != null, "Poller has not been started");
+
+    // Find the least loaded slot ...
+    //
+    int slot = 0;
+    for (int i = 1; i < this.wheel.length; i++) {
+      if (this.wheel[i].size() < this.wheel[slot].size()) {
+        slot = i;
+      }
+    }
+    final Entry entry = new Entry(orderReference, listener, slot);
+    final Entry previous = this.entries.put(orderReference, entry);
+    if (previous != null) {
+      this.remove(previous);
+    }
+    this.wheel[slot].add(entry);
+
+    // The entry may have been unregistered (or released) between the put and the add above, and then its removal from
+    // the slot happened before it was added ...
+    //
+    if (entry.removed) {
+      this.wheel[slot].remove(entry);
+    }
+    log.debug("Order {} registered for polling in slot {}", orderReference, slot);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void unregister(final String orderReference) {
+    final Entry entry = this.entries.remove(orderReference);
+    if (entry != null) {
+      this.remove(entry);
+      log.debug("Order {} unregistered from polling", orderReference);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getRegisteredOrders() {
+    return this.entries.size();
+  }
+
+  /**
+   * Advances the wheel one slot and dispatches the collect calls for all orders in that slot.
+   */
+  private void tick() {
+    final Set<Entry> slot = this.wheel[(int) (this.tick++ % this.wheel.length)];
+    for (Entry entry : slot) {
+      if (!entry.inProgress.compareAndSet(false, true)) {
+        continue;
+      }
+      try {
+        this.workers.execute(() -> this.collect(entry));
+      }
+      catch (RejectedExecutionException e) {
+        entry.inProgress.set(false);
+        log.debug("Worker pool saturated - skipping collect for order {} this round", entry.orderReference);
+      }
+    }
+  }
+
+  /**
+   * Performs a collect call for the given entry and reports the result to the listener.
+   *
+   * @param entry
+   *          the entry
+   */
+  private void collect(final Entry entry) {
+    try {
+      if (entry.removed) {
+        return;
+      }
+      final CollectResponse response = this.client.collect(entry.orderReference);
+      entry.errors = 0;
+      final ProgressStatus status = response.getProgressStatus();
+      if (status == ProgressStatus.COMPLETE) {
+        this.release(entry);
+      }
+      if (status != entry.lastStatus) {
+        entry.lastStatus = status;
+        entry.listener.onStatusChange(response);
+      }
+    }
+    catch (BankIDException e) {
+      this.onError(entry, e);
+    }
+    catch (Exception e) {
+      log.error("Error during collect for order {} - {}", entry.orderReference, e.getMessage(), e);
+      this.onError(entry, new BankIDException(ErrorCode.UNKNOWN_ERROR, "Unknown error during collect", e));
+    }
+    finally {
+      entry.inProgress.set(false);
+    }
+  }
+
+  /**
+   * Handles a failed collect call. The entry is released if the error is final, or if there have been too many
+   * consecutive errors, and the error is reported to the listener.
+   *
+   * @param entry
+   *          the entry
+   * @param error
+   *          the error
+   */
+  private void onError(final Entry entry, final BankIDException error) {
+    if (!isTransient(error)) {
+      this.release(entry);
+    }
+    else if (++entry.errors >= this.maxConsecutiveErrors) {
+      log.info("Collect for order {} failed {} times in a row - releasing order", entry.orderReference, entry.errors);
+      this.release(entry);
+    }
+    else {
+      log.debug("Collect for order {} failed ({}) - will retry", entry.orderReference, error.getErrorCode());
+    }
+    entry.listener.onError(error);
+  }
+
+  /**
+   * Tells whether the supplied error is one that should be retried.
+   *
+   * @param error
+   *          the error
+   * @return true if the collect call should be retried, and false if the error is final
+   */
+  private static boolean isTransient(final BankIDException error) {
+    if (error.getErrorCode() == ErrorCode.UNKNOWN_ERROR && error.getCause() instanceof BankIDException) {
+      // BankIDClientImpl reports a failed order as an unknown error caused by the actual error ...
+      return isTransient((BankIDException) error.getCause());
+    }
+    return TRANSIENT_ERROR_CODES.contains(error.getErrorCode());
+  }
+
+  /**
+   * Releases the given entry (and unregisters it if it still is the registered entry for its order).
+   *
+   * @param entry
+   *          the entry
+   */
+  private void release(final Entry entry) {
+    this.entries.remove(entry.orderReference, entry);
+    this.remove(entry);
+  }
+
+  /**
+   * Removes the entry from its slot.
+   *
+   * @param entry
+   *          the entry
+   */
+  private void remove(final Entry entry) {
+    entry.removed = true;
+    this.wheel[entry.slot].remove(entry);
+  }
+
+  /**
+   * Assigns the poll interval, i.e., the time between two collect calls for an order. The default is
+   * {@link #DEFAULT_POLL_INTERVAL}.
+   *
+   * @param pollInterval
+   *          the poll interval
+   */
+  public void setPollInterval(final Duration pollInterval) {
+    Assert.notNull(pollInterval, "'pollInterval' must not be null");
+    this.pollInterval = pollInterval;
+  }
+
+  /**
+   * Assigns the tick duration, i.e., the time between two slots of the wheel. The number of slots of the wheel will be
+   * the poll interval divided by the tick duration. The default is {@link #DEFAULT_TICK_DURATION}.
+   *
+   * @param tickDuration
+   *          the tick duration
+   */
+  public void setTickDuration(final Duration tickDuration) {
+    Assert.notNull(tickDuration, "'tickDuration' must not be null");
+    this.tickDuration = tickDuration;
+  }
+
+  /**
+   * Assigns the number of worker threads performing the collect calls. The default is {@value #DEFAULT_WORKER_THREADS}.
+   *
+   * @param workerThreads
+   *          the number of worker threads
+   */
+  public void setWorkerThreads(final int workerThreads) {
+    Assert.isTrue(workerThreads > 0, "'workerThreads' must be greater than 0");
+    this.workerThreads = workerThreads;
+  }
+
+  /**
+   * Assigns the maximum number of collect tasks that may wait for a worker thread. The default is
+   * {@value #DEFAULT_WORKER_QUEUE_SIZE}.
+   *
+   * @param workerQueueSize
+   *          the queue size
+   */
+  public void setWorkerQueueSize(final int workerQueueSize) {
+    Assert.isTrue(workerQueueSize > 0, "'workerQueueSize' must be greater than 0");
+    this.workerQueueSize = workerQueueSize;
+  }
+
+  /**
+   * Assigns the maximum number of consecutive failed collect calls (that should be retried) for an order before the
+   * order is released. The default is {@value #DEFAULT_MAX_CONSECUTIVE_ERRORS}.
+   *
+   * @param maxConsecutiveErrors
+   *          the maximum number of consecutive errors
+   */
+  public void setMaxConsecutiveErrors(final int maxConsecutiveErrors) {
+    Assert.isTrue(maxConsecutiveErrors > 0, "'maxConsecutiveErrors' must be greater than 0");
+    this.maxConsecutiveErrors = maxConsecutiveErrors;
+  }
+
+  /**
+   * Sets up the wheel and starts the timer and worker threads.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.isTrue(!this.tickDuration.isNegative() && !this.tickDuration.isZero(), "'tickDuration' must be positive");
+    Assert.isTrue(this.pollInterval.compareTo(this.tickDuration) >= 0, "'pollInterval' must not be less than 'tickDuration'");
+
+    final int slots = (int) (this.pollInterval.toMillis() / this.tickDuration.toMillis());
+    this.wheel = new Set[slots];
+    for (int i = 0; i < slots; i++) {
+      this.wheel[i] = ConcurrentHashMap.newKeySet();
+    }
+
+    final AtomicInteger workerCount = new AtomicInteger();
+    this.workers = new ThreadPoolExecutor(this.workerThreads, this.workerThreads, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(this.workerQueueSize), r -> {
+        final Thread t = new Thread(r, "bankid-collect-" + workerCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+
+    this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r, "bankid-collect-timer");
+      t.setDaemon(true);
+      return t;
+    });
+    final long tickMillis = this.tickDuration.toMillis();
+    this.timer.scheduleAtFixedRate(() -> {
+      try {
+        this.tick();
+      }
+      catch (Exception e) {
+        log.error("Error in collect poller timer - {}", e.getMessage(), e);
+      }
+    }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+
+    log.info("Collect poller started - {} slots, tick duration {} ms, {} worker threads", slots, tickMillis, this.workerThreads);
+  }
+
+  /**
+   * Stops the timer and worker threads.
+   */
+  @Override
+  public void destroy() throws Exception {
+    if (this.timer != null) {
+      this.timer.shutdownNow();
+    }
+    if (this.workers != null) {
+      this.workers.shutdownNow();
+    }
+    this.entries.clear();
+  }
+
+  /**
+   * Represents a registered order.
+   */
+  private static class Entry {
+
+    /** The order reference. */
+    private final String orderReference;
+
+    /** The listener. */
+    private final CollectListener listener;
+
+    /** The wheel slot. */
+    private final int slot;
+
+    /** The status reported in the latest call to the listener. */
+    private volatile ProgressStatus lastStatus;
+
+    /** The number of consecutive failed collect calls. */
+    private volatile int errors = 0;
+
+    /** Whether a collect call is in progress. */
+    private final AtomicBoolean inProgress = new AtomicBoolean(false);
+
+    /** Whether the entry has been removed. */
+    private volatile boolean removed = false;
+
+    public Entry(final String orderReference, final CollectListener listener, final int slot) {
+      this.orderReference = orderReference;
+      this.listener = listener;
+      this.slot = slot;
+    }
+  }
+
+}
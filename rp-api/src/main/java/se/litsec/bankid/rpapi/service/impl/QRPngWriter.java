@@ -0,0 +1,263 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * Writes a QR code bit matrix as a 1-bit grayscale PNG image.
+ * <p>
+ * Compared to rendering a {@code BufferedImage} and writing it using the general ImageIO PNG writer, this is
+ * considerably cheaper, both in CPU and in allocated memory. Each row is packed to 8 pixels per byte directly from the bit
+ * matrix, and buffers and the {@link Deflater} are re-used.
+ * </p>
+ * <p>
+ * The buffers (and their deflaters) are kept in a pool holding at most {@link #POOL_SIZE} entries. A writer that finds
+ * the pool empty creates new buffers, and buffers that do not fit in the pool when they are returned are discarded (and
+ * their deflater is ended). The native memory held by the pooled deflaters, and the size of the pooled buffers, is
+ * therefore bounded, regardless of how many threads that write images.
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+final class QRPngWriter {
+
+  /** The PNG signature. */
+  private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+  /** PNG filter type None. */
+  private static final byte FILTER_NONE = 0;
+
+  /** The maximum number of pooled buffers. */
+  private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+  /** The maximum size (in bytes) of a compressed image data buffer that is kept when the buffers are returned. */
+  private static final int MAX_RETAINED_IDAT_SIZE = 16 * 1024;
+
+  /** Pooled buffers. */
+  private static final BlockingQueue<Buffers> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+  /**
+   * Writes the PNG image for the supplied bit matrix (one pixel per bit).
+   *
+   * @param matrix
+   *          the bit matrix
+   * @param out
+   *          the destination
+   * @throws IOException
+   *           for write errors
+   */
+  public static void write(final BitMatrix matrix, final OutputStream out) throws IOException {
+    final int width = matrix.getWidth();
+    final int height = matrix.getHeight();
+    final int rowBytes = (width + 7) / 8;
+
+    final Buffers b = acquire();
+    try {
+      b.ensureCapacity(rowBytes);
+      write(matrix, width, height, rowBytes, b, out);
+    }
+    finally {
+      release(b);
+    }
+  }
+
+  /**
+   * Writes the PNG image using the supplied buffers.
+   */
+  private static void write(final BitMatrix matrix, final int width, final int height, final int rowBytes, final Buffers b,
+      final OutputStream out) throws IOException {
+
+    out.write(SIGNATURE);
+
+    // IHDR: width, height, bit depth 1, colour type 0 (grayscale), compression 0, filter 0, interlace 0
+    final byte[] ihdr = new byte[13];
+    writeInt(ihdr, 0, width);
+    writeInt(ihdr, 4, height);
+    ihdr[8] = 1;
+    writeChunk(out, "IHDR", ihdr, 0, ihdr.length, b);
+
+    // IDAT
+    final Deflater deflater = b.deflater;
+    deflater.reset();
+    b.idat.reset();
+    for (int y = 0; y < height; y++) {
+      // Filter type None - the PNG specification recommends this for bit depths below 8 ...
+      b.row[0] = FILTER_NONE;
+      packRow(matrix, y, width, b.row);
+      deflate(deflater, b.row, rowBytes + 1, b);
+    }
+    deflater.finish();
+    while (!deflater.finished()) {
+      final int n = deflater.deflate(b.deflateBuffer);
+      b.idat.write(b.deflateBuffer, 0, n);
+    }
+    writeChunk(out, "IDAT", b.idat.buffer(), 0, b.idat.size(), b);
+
+    writeChunk(out, "IEND", b.deflateBuffer, 0, 0, b);
+  }
+
+  /**
+   * Returns the PNG image for the supplied bit matrix (one pixel per bit).
+   *
+   * @param matrix
+   *          the bit matrix
+   * @return the PNG image
+   */
+  public static byte[] toBytes(final BitMatrix matrix) {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream(256 + matrix.getWidth() * matrix.getHeight() / 64);
+    try {
+      write(matrix, bos);
+    }
+    catch (IOException e) {
+      // Will never happen for a ByteArrayOutputStream
+      throw new IllegalStateException(e);
+    }
+    return bos.toByteArray();
+  }
+
+  /**
+   * Packs one row of the matrix into bytes (8 pixels per byte, most significant bit first). A dark module is black (0)
+   * and a light module is white (1). The first byte of the destination (the filter type) is left untouched.
+   */
+  private static void packRow(final BitMatrix matrix, final int y, final int width, final byte[] dest) {
+    int pos = 1;
+    for (int x = 0; x < width; x += 8) {
+      int v = 0;
+      final int end = Math.min(x + 8, width);
+      for (int i = x; i < end; i++) {
+        v = (v << 1) | (matrix.get(i, y) ? 0 : 1);
+      }
+      dest[pos++] = (byte) ~(~v << (8 - (end - x)));
+    }
+  }
+
+  /**
+   * Gets buffers from the pool, or creates new buffers if the pool is empty.
+   */
+  private static Buffers acquire() {
+    final Buffers b = pool.poll();
+    return b != null ? b : new Buffers();
+  }
+
+  /**
+   * Returns buffers to the pool. If the pool is full, the deflater is ended.
+   */
+  private static void release(final Buffers b) {
+    if (b.idat.buffer().length > MAX_RETAINED_IDAT_SIZE) {
+      b.idat = new ExposedByteArrayOutputStream();
+    }
+    if (!pool.offer(b)) {
+      b.deflater.end();
+    }
+  }
+
+  /**
+   * Feeds the supplied bytes to the deflater and collects the output.
+   */
+  private static void deflate(final Deflater deflater, final byte[] data, final int length, final Buffers b) {
+    deflater.setInput(data, 0, length);
+    while (!deflater.needsInput()) {
+      final int n = deflater.deflate(b.deflateBuffer);
+      b.idat.write(b.deflateBuffer, 0, n);
+    }
+  }
+
+  /**
+   * Writes a PNG chunk.
+   */
+  private static void writeChunk(final OutputStream out, final String type, final byte[] data, final int offset, final int length,
+      final Buffers b) throws IOException {
+
+    final byte[] header = b.header;
+    writeInt(header, 0, length);
+    for (int i = 0; i < 4; i++) {
+      header[4 + i] = (byte) type.charAt(i);
+    }
+    out.write(header, 0, 8);
+    out.write(data, offset, length);
+
+    final CRC32 crc = b.crc;
+    crc.reset();
+    crc.update(header, 4, 4);
+    crc.update(data, offset, length);
+    writeInt(header, 0, (int) crc.getValue());
+    out.write(header, 0, 4);
+  }
+
+  /**
+   * Writes a 32-bit big-endian integer.
+   */
+  private static void writeInt(final byte[] dest, final int offset, final int value) {
+    dest[offset] = (byte) (value >>> 24);
+    dest[offset + 1] = (byte) (value >>> 16);
+    dest[offset + 2] = (byte) (value >>> 8);
+    dest[offset + 3] = (byte) value;
+  }
+
+  /**
+   * Pooled buffers.
+   */
+  private static class Buffers {
+
+    /** The deflater. */
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+    /** The CRC calculator. */
+    private final CRC32 crc = new CRC32();
+
+    /** Buffer for chunk headers and CRC:s. */
+    private final byte[] header = new byte[8];
+
+    /** Buffer for deflater output. */
+    private final byte[] deflateBuffer = new byte[1024];
+
+    /** The compressed image data. */
+    private ExposedByteArrayOutputStream idat = new ExposedByteArrayOutputStream();
+
+    /** The current row (including the filter type byte). */
+    private byte[] row = new byte[1];
+
+    public void ensureCapacity(final int rowBytes) {
+      if (this.row.length < rowBytes + 1) {
+        this.row = new byte[rowBytes + 1];
+      }
+    }
+  }
+
+  /**
+   * A {@link ByteArrayOutputStream} that gives access to its buffer.
+   */
+  private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+    public byte[] buffer() {
+      return this.buf;
+    }
+  }
+
+  // Hidden constructor
+  private QRPngWriter() {
+  }
+
+}
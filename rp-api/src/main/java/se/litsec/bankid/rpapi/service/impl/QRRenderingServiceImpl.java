@@ -0,0 +1,319 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+import se.litsec.bankid.rpapi.service.QRGenerator;
+import se.litsec.bankid.rpapi.service.QRGenerator.ImageFormat;
+import se.litsec.bankid.rpapi.service.QRRenderingService;
+
+/**
+ * A {@link QRRenderingService} that uses a fixed number of threads (by default one per available processor) and a
+ * bounded queue. When the queue is full, a rendering request is rejected immediately instead of being queued, so that a
+ * burst of QR requests does not build up an ever growing backlog and does not occupy the threads handling other
+ * requests (such as auth and collect).
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class QRRenderingServiceImpl implements QRRenderingService, InitializingBean, DisposableBean {
+
+  /** The default maximum number of renderings waiting for a thread. */
+  public static final int DEFAULT_QUEUE_SIZE = 100;
+
+  /** Class logger. */
+  private final Logger log = LoggerFactory.getLogger(QRRenderingServiceImpl.class);
+
+  /** The underlying generator. */
+  private final QRGenerator generator;
+
+  /** The number of threads. */
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  /** The maximum number of renderings waiting for a thread. */
+  private int queueSize = DEFAULT_QUEUE_SIZE;
+
+  /** The rendering threads. */
+  private ThreadPoolExecutor executor;
+
+  /** The number of completed renderings. */
+  private final LongAdder completed = new LongAdder();
+
+  /** The number of rejected renderings. */
+  private final LongAdder rejected = new LongAdder();
+
+  /** The total queue time (in nanos) for completed renderings. */
+  private final LongAdder totalQueueTime = new LongAdder();
+
+  /** The total render time (in nanos) for completed renderings. */
+  private final LongAdder totalRenderTime = new LongAdder();
+
+  /** The maximum latency (in nanos) for completed renderings. */
+  private final AtomicLong maxLatency = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param generator
+   *          the generator that performs the renderings
+   */
+  public QRRenderingServiceImpl(final QRGenerator generator) {
+    Assert.notNull(generator, "'generator' must not be null");
+    this.generator = generator;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CompletableFuture<byte[]> renderQRCodeImage(final String autoStartToken, final int width, final int height,
+      final ImageFormat format) {
+    return this.submit(() -> this.generator.generateQRCodeImage(autoStartToken, width, height, format));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CompletableFuture<String> renderQRCodeBase64Image(final String autoStartToken, final int width, final int height,
+      final ImageFormat format) {
+    return this.submit(() -> this.generator.generateQRCodeBase64Image(autoStartToken, width, height, format));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CompletableFuture<byte[]> renderAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret,
+      final Instant orderTime, final int width, final int height, final ImageFormat format) {
+    return this.submit(
+      () -> this.generator.generateAnimatedQRCodeImage(qrStartToken, qrStartSecret, orderTime, width, height, format));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CompletableFuture<String> renderAnimatedQRCodeBase64Image(final String qrStartToken, final String qrStartSecret,
+      final Instant orderTime, final int width, final int height, final ImageFormat format) {
+    return this.submit(
+      () -> this.generator.generateAnimatedQRCodeBase64Image(qrStartToken, qrStartSecret, orderTime, width, height, format));
+  }
+
+  /**
+   * Submits a rendering to the executor.
+   *
+   * @param rendering
+   *          the rendering
+   * @return a future holding the result
+   */
+  private <T> CompletableFuture<T> submit(final Rendering<T> rendering) {
+    Assert.state(this.executor != null, "Rendering service has not been started");
+
+    final RenderingTask<T> task = new RenderingTask<>(rendering);
+    try {
+      this.executor.execute(task);
+    }
+    catch (RejectedExecutionException e) {
+      this.rejected.increment();
+      log.debug("QR rendering service saturated - rejecting rendering");
+      task.future.completeExceptionally(e);
+    }
+    return task.future;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getQueueDepth() {
+    return this.executor != null ? this.executor.getQueue().size() : 0;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getActiveRenderings() {
+    return this.executor != null ? this.executor.getActiveCount() : 0;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long getCompletedRenderings() {
+    return this.completed.sum();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long getRejectedRenderings() {
+    return this.rejected.sum();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Duration getAverageQueueTime() {
+    final long count = this.completed.sum();
+    return count == 0 ? Duration.ZERO : Duration.ofNanos(this.totalQueueTime.sum() / count);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Duration getAverageRenderTime() {
+    final long count = this.completed.sum();
+    return count == 0 ? Duration.ZERO : Duration.ofNanos(this.totalRenderTime.sum() / count);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Duration getMaxLatency() {
+    return Duration.ofNanos(this.maxLatency.get());
+  }
+
+  /**
+   * Assigns the number of rendering threads. The default is the number of available processors.
+   *
+   * @param threads
+   *          the number of threads
+   */
+  public void setThreads(final int threads) {
+    Assert.isTrue(threads > 0, "'threads' must be greater than 0");
+    this.threads = threads;
+  }
+
+  /**
+   * Assigns the maximum number of renderings that may wait for a thread. The default is {@value #DEFAULT_QUEUE_SIZE}.
+   *
+   * @param queueSize
+   *          the queue size
+   */
+  public void setQueueSize(final int queueSize) {
+    Assert.isTrue(queueSize > 0, "'queueSize' must be greater than 0");
+    this.queueSize = queueSize;
+  }
+
+  /**
+   * Starts the rendering threads.
+   */
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    final AtomicInteger threadCount = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(this.threads, this.threads, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(this.queueSize), r -> {
+        final Thread t = new Thread(r, "bankid-qr-render-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+    log.info("QR rendering service started - {} threads, queue size {}", this.threads, this.queueSize);
+  }
+
+  /**
+   * Stops the rendering threads. Renderings that are waiting in the queue are completed exceptionally with a
+   * {@link RejectedExecutionException}.
+   */
+  @Override
+  public void destroy() throws Exception {
+    if (this.executor != null) {
+      for (Runnable r : this.executor.shutdownNow()) {
+        if (r instanceof RenderingTask) {
+          ((RenderingTask<?>) r).future.completeExceptionally(
+            new RejectedExecutionException("QR rendering service has been shut down"));
+        }
+      }
+    }
+  }
+
+  /**
+   * A rendering that has been submitted to the executor.
+   */
+  private class RenderingTask<T> implements Runnable {
+
+    /** The rendering. */
+    private final Rendering<T> rendering;
+
+    /** The future that is completed when the rendering has been performed. */
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+
+    /** When the task was submitted (nanos). */
+    private final long submitted = System.nanoTime();
+
+    /**
+     * Constructor.
+     *
+     * @param rendering
+     *          the rendering
+     */
+    RenderingTask(final Rendering<T> rendering) {
+      this.rendering = rendering;
+    }
+
+    /**
+     * Performs the rendering and completes the future. The future is always completed, also if the rendering throws an
+     * {@link Error}.
+     */
+    @Override
+    public void run() {
+      final long started = System.nanoTime();
+      T result = null;
+      Throwable error = null;
+      try {
+        result = this.rendering.render();
+      }
+      catch (IOException | RuntimeException e) {
+        log.debug("QR rendering failed - {}", e.getMessage(), e);
+        error = e;
+      }
+      catch (Throwable t) {
+        log.error("QR rendering failed - {}", t.getMessage(), t);
+        error = t;
+      }
+      // Update the metrics before the caller is informed ...
+      final long now = System.nanoTime();
+      completed.increment();
+      totalQueueTime.add(started - this.submitted);
+      totalRenderTime.add(now - started);
+      maxLatency.accumulateAndGet(now - this.submitted, Math::max);
+
+      if (error != null) {
+        this.future.completeExceptionally(error);
+      }
+      else {
+        this.future.complete(result);
+      }
+    }
+  }
+
+  /**
+   * A rendering task.
+   */
+  @FunctionalInterface
+  private interface Rendering<T> {
+
+    /**
+     * Performs the rendering.
+     *
+     * @return the result
+     * @throws IOException
+     *           for rendering errors
+     */
+    T render() throws IOException;
+  }
+
+}
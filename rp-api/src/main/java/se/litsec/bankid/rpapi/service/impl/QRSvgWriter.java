@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * Writes a QR code module matrix as an SVG image.
+ * <p>
+ * The image consists of a white background and one single path where each horizontal run of dark modules is a
+ * rectangle. The view box is the module matrix (including the quiet zone), so the image scales to any size without
+ * loss, and the {@code width} and {@code height} attributes tell the default size of the image.
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+final class QRSvgWriter {
+
+  /**
+   * Writes the SVG image for the supplied module matrix.
+   *
+   * @param matrix
+   *          the module matrix (one bit per module)
+   * @param width
+   *          the width of the image (in pixels)
+   * @param height
+   *          the height of the image (in pixels)
+   * @param out
+   *          the destination
+   * @throws IOException
+   *           for write errors
+   */
+  public static void write(final BitMatrix matrix, final int width, final int height, final Appendable out) throws IOException {
+    final int matrixWidth = matrix.getWidth();
+    final int matrixHeight = matrix.getHeight();
+
+    out.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(Integer.toString(width))
+      .append("\" height=\"").append(Integer.toString(height))
+      .append("\" viewBox=\"0 0 ").append(Integer.toString(matrixWidth)).append(' ').append(Integer.toString(matrixHeight))
+      .append("\" shape-rendering=\"crispEdges\"><rect width=\"100%\" height=\"100%\" fill=\"#fff\"/><path d=\"");
+
+    for (int y = 0; y < matrixHeight; y++) {
+      int x = 0;
+      while (x < matrixWidth) {
+        if (!matrix.get(x, y)) {
+          x++;
+          continue;
+        }
+        final int start = x;
+        while (x < matrixWidth && matrix.get(x, y)) {
+          x++;
+        }
+        final String run = Integer.toString(x - start);
+        out.append('M').append(Integer.toString(start)).append(',').append(Integer.toString(y))
+          .append('h').append(run).append("v1h-").append(run).append('z');
+      }
+    }
+    out.append("\"/></svg>");
+  }
+
+  /**
+   * Writes the SVG image for the supplied module matrix to an output stream.
+   *
+   * @param matrix
+   *          the module matrix (one bit per module)
+   * @param width
+   *          the width of the image (in pixels)
+   * @param height
+   *          the height of the image (in pixels)
+   * @param out
+   *          the stream to write to (the image is UTF-8 encoded)
+   * @throws IOException
+   *           for write errors
+   */
+  public static void write(final BitMatrix matrix, final int width, final int height, final OutputStream out) throws IOException {
+    final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    write(matrix, width, height, writer);
+    writer.flush();
+  }
+
+  // Hidden constructor
+  private QRSvgWriter() {
+  }
+
+}
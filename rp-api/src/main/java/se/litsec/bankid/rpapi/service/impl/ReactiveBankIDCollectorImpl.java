@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.time.Duration;
+
+import org.springframework.util.Assert;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import se.litsec.bankid.rpapi.service.AsyncBankIDClient;
+import se.litsec.bankid.rpapi.service.ReactiveBankIDCollector;
+import se.litsec.bankid.rpapi.types.CollectResponse;
+import se.litsec.bankid.rpapi.types.OrderResponse;
+import se.litsec.bankid.rpapi.types.ProgressStatus;
+
+/**
+ * Implementation of the {@link ReactiveBankIDCollector} interface based on an {@link AsyncBankIDClient}.
+ * <p>
+ * No thread is held while waiting, neither for the BankID server nor between two collect calls. The delays between
+ * calls are driven by a shared {@link Scheduler} (by default {@link Schedulers#parallel()}), so a large number of
+ * orders may be followed using only a few threads.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class ReactiveBankIDCollectorImpl implements ReactiveBankIDCollector {
+
+  /** The default interval between two collect calls for an order (BankID recommends two seconds). */
+  public static final Duration DEFAULT_POLL_INTERVAL = Duration.ofSeconds(2);
+
+  /** The client used to make the collect calls. */
+  private final AsyncBankIDClient client;
+
+  /** The scheduler driving the delays between collect calls. */
+  private Scheduler scheduler = Schedulers.parallel();
+
+  /** The interval between two collect calls. */
+  private Duration pollInterval = DEFAULT_POLL_INTERVAL;
+
+  /**
+   * Constructor.
+   *
+   * @param client
+   *          the client used to make the collect calls
+   */
+  public ReactiveBankIDCollectorImpl(final AsyncBankIDClient client) {
+    Assert.notNull(client, "'client' must not be null");
+    this.client = client;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Flux<CollectResponse> collect(final OrderResponse order) {
+    Assert.notNull(order, "'order' must not be null");
+    Assert.hasText(order.getOrderReference(), "'order.orderReference' must not be null or empty");
+
+    final String orderReference = order.getOrderReference();
+
+    return Mono.defer(() -> Mono.fromFuture(this.client.collect(orderReference)))
+      .repeatWhen(completed -> completed.delayElements(this.pollInterval, this.scheduler))
+      .distinctUntilChanged(CollectResponse::getProgressStatus)
+      .takeUntil(r -> ProgressStatus.COMPLETE == r.getProgressStatus());
+  }
+
+  /**
+   * Assigns the scheduler that drives the delays between collect calls. The default is {@link Schedulers#parallel()}.
+   *
+   * @param scheduler
+   *          the scheduler
+   */
+  public void setScheduler(final Scheduler scheduler) {
+    Assert.notNull(scheduler, "'scheduler' must not be null");
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Assigns the interval between two collect calls for an order. The default is {@link #DEFAULT_POLL_INTERVAL}.
+   *
+   * @param pollInterval
+   *          the poll interval
+   */
+  public void setPollInterval(final Duration pollInterval) {
+    Assert.notNull(pollInterval, "'pollInterval' must not be null");
+    Assert.isTrue(!pollInterval.isNegative() && !pollInterval.isZero(), "'pollInterval' must be positive");
+    this.pollInterval = pollInterval;
+  }
+
+}
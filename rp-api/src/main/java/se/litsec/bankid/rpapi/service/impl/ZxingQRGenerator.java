@@ -17,22 +17,30 @@ package se.litsec.bankid.rpapi.service.impl;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.time.Instant;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.util.Assert;
 
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.WriterException;
 import com.google.zxing.client.j2se.MatrixToImageWriter;
 import com.google.zxing.common.BitMatrix;
 import com.google.zxing.qrcode.QRCodeWriter;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.encoder.ByteMatrix;
+import com.google.zxing.qrcode.encoder.Encoder;
+
+import se.litsec.bankid.rpapi.service.QRImage;
+import se.litsec.bankid.rpapi.service.QRModuleMatrix;
 
 /**
  * A QR generator implementation based on the ZXing open source library.
  * <p>
- * <b>Note:</b> This implementation does not support the SVG image format.
+ * PNG images are written as 1-bit images directly from the QR code bit matrix, and SVG images are written
+ * directly from the QR code modules (giving a small image that scales to any size). JPG images are rendered using
+ * ImageIO.
  * </p>
  * 
  * @author Martin Lindström (martin@litsec.se)
@@ -46,18 +54,62 @@ public class ZxingQRGenerator extends AbstractQRGenerator {
   @Override
   public byte[] generateQRCodeImage(final String autoStartToken, final int width, final int height, final ImageFormat format)
       throws IOException {
-    return this.generateQRCode(this.buildInput(autoStartToken), width, height, format);
+    final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    this.writeQRCode(this.buildInput(autoStartToken), width, height, format, stream);
+    return stream.toByteArray();
   }
 
   /** {@inheritDoc} */
   @Override
-  public byte[] generateAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final Instant orderTime,
+  public byte[] generateAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final long qrTime,
       final int width, final int height, final ImageFormat format) throws IOException {
-    return this.generateQRCode(this.buildAnimatedInput(qrStartToken, qrStartSecret, orderTime), width, height, format);
+    final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    this.writeQRCode(this.buildAnimatedInput(qrStartToken, qrStartSecret, qrTime), width, height, format, stream);
+    return stream.toByteArray();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void writeQRCodeImage(final String autoStartToken, final int width, final int height, final ImageFormat format,
+      final OutputStream out) throws IOException {
+    this.writeQRCode(this.buildInput(autoStartToken), width, height, format, out);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void writeAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final Instant orderTime,
+      final int width, final int height, final ImageFormat format, final OutputStream out) throws IOException {
+    this.writeQRCode(this.buildAnimatedInput(qrStartToken, qrStartSecret, orderTime), width, height, format, out);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public QRImage generateModuleScaleQRCodeImage(final String autoStartToken, final ImageFormat format) throws IOException {
+    return this.generateModuleScaleQRCode(this.buildInput(autoStartToken), format);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public QRImage generateModuleScaleAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final long qrTime,
+      final ImageFormat format) throws IOException {
+    return this.generateModuleScaleQRCode(this.buildAnimatedInput(qrStartToken, qrStartSecret, qrTime), format);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public QRModuleMatrix generateQRCodeModules(final String autoStartToken) throws IOException {
+    return this.generateModules(this.buildInput(autoStartToken));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public QRModuleMatrix generateAnimatedQRCodeModules(final String qrStartToken, final String qrStartSecret, final long qrTime)
+      throws IOException {
+    return this.generateModules(this.buildAnimatedInput(qrStartToken, qrStartSecret, qrTime));
   }
 
   /**
-   * Generates the QR code image based on the supplied input string.
+   * Writes the QR code image based on the supplied input string.
    * 
    * @param input
    *          the input
@@ -67,33 +119,137 @@ public class ZxingQRGenerator extends AbstractQRGenerator {
    *          the height of the generated QR code (in pixels)
    * @param format
    *          the format for the generated QR code
-   * @return an byte array representing the generated QR code
+   * @param out
+   *          the stream to write to
    * @throws IOException
    *           for errors during generation
    */
-  private byte[] generateQRCode(final String input, final int width, final int height, final ImageFormat format) throws IOException {
+  private void writeQRCode(final String input, final int width, final int height, final ImageFormat format, final OutputStream out)
+      throws IOException {
+    log.debug("Generating QR code in {} format based on {}", format, input);
     if (ImageFormat.SVG.equals(format)) {
-      throw new IOException("Image format SVG is not supported by " + this.getClass().getSimpleName());
+      // Encode with one pixel per module and let the SVG scale it ...
+      this.writeImage(this.encode(input, 0, 0), width, height, format, out);
+    }
+    else {
+      final BitMatrix matrix = this.encode(input, width, height);
+      this.writeImage(matrix, matrix.getWidth(), matrix.getHeight(), format, out);
+    }
+  }
+
+  /**
+   * Generates the QR code image based on the supplied input string using one pixel per module.
+   * 
+   * @param input
+   *          the input
+   * @param format
+   *          the format for the generated QR code
+   * @return the generated QR code
+   * @throws IOException
+   *           for errors during generation
+   */
+  private QRImage generateModuleScaleQRCode(final String input, final ImageFormat format) throws IOException {
+    log.debug("Generating module scale QR code in {} format based on {}", format, input);
+    final BitMatrix matrix = this.encode(input, 0, 0);
+    final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    this.writeImage(matrix, matrix.getWidth(), matrix.getHeight(), format, stream);
+    return new QRImage(stream.toByteArray(), format, matrix.getWidth());
+  }
+
+  /**
+   * Encodes the supplied input string into a module matrix.
+   * 
+   * @param input
+   *          the input
+   * @return the module matrix
+   * @throws IOException
+   *           for encoding errors
+   */
+  private QRModuleMatrix generateModules(final String input) throws IOException {
+    log.debug("Generating QR code modules based on {}", input);
+    final BankIDQREncoder.Result result = BankIDQREncoder.encode(input);
+    if (result != null) {
+      return result.toModuleMatrix();
     }
     try {
-      log.debug("Generating QR code in {} format based on {}", format, input);
-      final QRCodeWriter writer = new QRCodeWriter();
-      final BitMatrix bytes = writer.encode(input, BarcodeFormat.QR_CODE, width, height);
-      final ByteArrayOutputStream stream = new ByteArrayOutputStream();
-      MatrixToImageWriter.writeToStream(bytes, format.getImageFormatName(), stream);
-      return stream.toByteArray();
+      // Use the same error correction level as QRCodeWriter does by default ...
+      final ByteMatrix matrix = Encoder.encode(input, ErrorCorrectionLevel.L).getMatrix();
+      final int size = matrix.getWidth();
+      final byte[] modules = new byte[(size * size + 7) / 8];
+      int bit = 0;
+      for (int y = 0; y < size; y++) {
+        for (int x = 0; x < size; x++, bit++) {
+          if (matrix.get(x, y) == 1) {
+            modules[bit >>> 3] |= 0x80 >>> (bit & 7);
+          }
+        }
+      }
+      return new QRModuleMatrix(size, modules);
     }
     catch (WriterException e) {
       throw new IOException("Failed to generate QR code: " + e.getMessage(), e);
     }
   }
 
-  /** {@inheritDoc} */
-  @Override
-  public void setDefaultImageFormat(final ImageFormat defaultImageFormat) {
-    Assert.isTrue(ImageFormat.SVG.equals(defaultImageFormat),
-      "Image format SVG is not supported by " + this.getClass().getSimpleName());
-    super.setDefaultImageFormat(defaultImageFormat);
+  /**
+   * Encodes the input into a bit matrix. If the width and height are 0, one bit per module is used.
+   * <p>
+   * BankID payloads are encoded using {@link BankIDQREncoder}, and other input (or invalid dimensions) using the ZXing
+   * {@link QRCodeWriter}. Both give the same result.
+   * </p>
+   * 
+   * @param input
+   *          the input
+   * @param width
+   *          the width (in pixels)
+   * @param height
+   *          the height (in pixels)
+   * @return the bit matrix
+   * @throws IOException
+   *           for encoding errors
+   */
+  private BitMatrix encode(final String input, final int width, final int height) throws IOException {
+    if (width >= 0 && height >= 0) {
+      final BankIDQREncoder.Result result = BankIDQREncoder.encode(input);
+      if (result != null) {
+        return result.render(width, height);
+      }
+    }
+    try {
+      return new QRCodeWriter().encode(input, BarcodeFormat.QR_CODE, width, height);
+    }
+    catch (WriterException e) {
+      throw new IOException("Failed to generate QR code: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Writes the bit matrix as an image.
+   * 
+   * @param matrix
+   *          the bit matrix
+   * @param width
+   *          the width of the image (only used for SVG, raster images get the size of the matrix)
+   * @param height
+   *          the height of the image (only used for SVG, raster images get the size of the matrix)
+   * @param format
+   *          the image format
+   * @param out
+   *          the stream to write to
+   * @throws IOException
+   *           for write errors
+   */
+  private void writeImage(final BitMatrix matrix, final int width, final int height, final ImageFormat format, final OutputStream out)
+      throws IOException {
+    if (ImageFormat.SVG.equals(format)) {
+      QRSvgWriter.write(matrix, width, height, out);
+    }
+    else if (ImageFormat.PNG.equals(format)) {
+      QRPngWriter.write(matrix, out);
+    }
+    else {
+      MatrixToImageWriter.writeToStream(matrix, format.getImageFormatName(), out);
+    }
   }
 
 }
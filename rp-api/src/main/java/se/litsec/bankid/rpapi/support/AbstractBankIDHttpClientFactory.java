@@ -0,0 +1,229 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support;
+
+import java.security.KeyStore;
+import java.security.cert.CertificateFactory;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.ssl.PrivateKeyStrategy;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.springframework.beans.factory.config.AbstractFactoryBean;
+import org.springframework.core.io.Resource;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+/**
+ * Abstract base class for Spring factory beans that create HTTP clients (or objects wrapping HTTP clients) that are
+ * used to communicate with the BankID server.
+ * <p>
+ * The class handles the TLS setup (relying party key and certificate and trust in the BankID server certificate) and
+ * the connection pool settings that are common to all clients.
+ * </p>
+ *
+ * @param <T>
+ *          the type of object created by the factory
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public abstract class AbstractBankIDHttpClientFactory<T> extends AbstractFactoryBean<T> {
+
+  /** The default maximum number of pooled connections per route. */
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+
+  /** The default maximum number of pooled connections in total. */
+  public static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 40;
+
+  /** The root certificate that we trust when verifying the BankID server certificate. */
+  private Resource trustedRoot;
+
+  /** The keystore holding the client TLS key and certificate (BankID relying party certificate). */
+  private KeyStore keyStore;
+
+  /** The alias to the BankID RP certificate in the keyStore property. */
+  private String keyAlias;
+
+  /** The password for the entry holding the BankID RP key and certificate. */
+  private char[] keyPassword;
+
+  /** The SSL/TLS trust store. */
+  private KeyStore trustStore;
+
+  /** The maximum number of pooled connections per route. */
+  private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+
+  /** The maximum number of pooled connections in total. */
+  private int maxConnectionsTotal = DEFAULT_MAX_CONNECTIONS_TOTAL;
+
+  /**
+   * The time (in millis) that an idle connection is kept alive if the server does not state a keep-alive time. A
+   * value less than or equal to 0 means that the connection is kept alive indefinitely.
+   */
+  private long keepAliveTime = -1L;
+
+  /**
+   * Creates the SSL context holding the relying party key material and the trust in the BankID server certificate.
+   *
+   * @return a SSLContext
+   * @throws Exception
+   *           for errors setting up the context
+   */
+  protected SSLContext createSSLContext() throws Exception {
+    final PrivateKeyStrategy keyStrategy = (aliases, socket) -> {
+      return this.keyAlias != null ? this.keyAlias : aliases.keySet().stream().findFirst().orElse(null);
+    };
+
+    return SSLContextBuilder.create()
+      .loadKeyMaterial(this.keyStore, this.keyPassword, keyStrategy)
+      .loadTrustMaterial(this.trustStore, null)
+      .build();
+  }
+
+  /**
+   * Creates the keep-alive strategy for pooled connections. The {@code Keep-Alive} header from the server is used, and
+   * if not present, the configured keep-alive time is used.
+   *
+   * @return a keep-alive strategy
+   */
+  protected ConnectionKeepAliveStrategy createKeepAliveStrategy() {
+    return (response, context) -> {
+      final long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+      return duration > 0 ? duration : this.keepAliveTime;
+    };
+  }
+
+  /**
+   * Assigns the trusted root certificate that we use when verifying the BankID server certificate.
+   *
+   * @param trustedRoot
+   *          resource to the trusted root certificate
+   */
+  public void setTrustedRoot(final Resource trustedRoot) {
+    this.trustedRoot = trustedRoot;
+  }
+
+  /**
+   * Assigns the keystore holding the client TLS key and certificate (BankID relying party certificate).
+   * <p>
+   * Note: The keystore must have been unlocked (loaded).
+   * </p>
+   *
+   * @param keyStore
+   *          the keystore
+   */
+  public void setKeyStore(final KeyStore keyStore) {
+    this.keyStore = keyStore;
+  }
+
+  /**
+   * Assigns the alias to the BankID RP certificate in the keyStore property. If not assigned, it will be assumed that
+   * only one private key exists and the first alias will be choosen.
+   *
+   * @param keyAlias
+   *          the key alias
+   */
+  public void setKeyAlias(final String keyAlias) {
+    this.keyAlias = StringUtils.hasText(keyAlias) ? keyAlias.trim() : null;
+  }
+
+  /**
+   * Assigns the password for the entry holding the BankID RP key and certificate.
+   *
+   * @param keyPassword
+   *          the key entry password
+   */
+  public void setKeyPassword(final char[] keyPassword) {
+    Assert.notNull(keyPassword, "'keyPassword' must not be null");
+    this.keyPassword = new char[keyPassword.length];
+    System.arraycopy(keyPassword, 0, this.keyPassword, 0, keyPassword.length);
+  }
+
+  /**
+   * Returns the maximum number of pooled connections per route.
+   *
+   * @return the maximum number of connections per route
+   */
+  protected int getMaxConnectionsPerRoute() {
+    return this.maxConnectionsPerRoute;
+  }
+
+  /**
+   * Assigns the maximum number of pooled connections per route, i.e., the maximum number of concurrent connections to
+   * the BankID server. The default is {@value #DEFAULT_MAX_CONNECTIONS_PER_ROUTE}.
+   *
+   * @param maxConnectionsPerRoute
+   *          the maximum number of connections per route
+   */
+  public void setMaxConnectionsPerRoute(final int maxConnectionsPerRoute) {
+    Assert.isTrue(maxConnectionsPerRoute > 0, "'maxConnectionsPerRoute' must be greater than 0");
+    this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+  }
+
+  /**
+   * Returns the maximum number of pooled connections in total.
+   *
+   * @return the maximum number of connections
+   */
+  protected int getMaxConnectionsTotal() {
+    return this.maxConnectionsTotal;
+  }
+
+  /**
+   * Assigns the maximum number of pooled connections in total. The default is {@value #DEFAULT_MAX_CONNECTIONS_TOTAL}.
+   *
+   * @param maxConnectionsTotal
+   *          the maximum number of connections
+   */
+  public void setMaxConnectionsTotal(final int maxConnectionsTotal) {
+    Assert.isTrue(maxConnectionsTotal > 0, "'maxConnectionsTotal' must be greater than 0");
+    this.maxConnectionsTotal = maxConnectionsTotal;
+  }
+
+  /**
+   * Assigns the time (in millis) that an idle connection is kept alive if the BankID server does not give a
+   * {@code Keep-Alive} header in its response. If not assigned (or assigned a value less than or equal to 0), the
+   * connection is kept alive indefinitely.
+   *
+   * @param keepAliveTime
+   *          keep-alive time in millis
+   */
+  public void setKeepAliveTime(final long keepAliveTime) {
+    this.keepAliveTime = keepAliveTime;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.notNull(this.trustedRoot, "Property 'trustedRoot' must be assigned");
+    Assert.notNull(this.keyStore, "Property 'keyStore' must be assigned");
+    Assert.notNull(this.keyPassword, "Property 'keyPassword' must be assigned");
+    Assert.isTrue(this.maxConnectionsTotal >= this.maxConnectionsPerRoute,
+      "Property 'maxConnectionsTotal' must be greater than, or equal to, 'maxConnectionsPerRoute'");
+
+    // Load trust store ...
+    //
+    this.trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+    this.trustStore.load(null);
+    this.trustStore.setCertificateEntry("bankid-trust", CertificateFactory.getInstance("X.509")
+      .generateCertificate(this.trustedRoot.getInputStream()));
+
+    super.afterPropertiesSet();
+  }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support;
+
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.springframework.util.Assert;
+
+import se.litsec.bankid.rpapi.service.impl.AsyncBankIDClientImpl;
+
+/**
+ * Spring factory class for configuring and creating a non-blocking HTTP client that can be used to communicate with
+ * the BankID server, see {@link AsyncBankIDClientImpl}.
+ * <p>
+ * The client is based on the Apache HTTP async client and uses a small number of I/O dispatcher threads (by default,
+ * one per available processor) to serve all ongoing requests. The created client is started by the factory, and closed
+ * when the factory is destroyed.
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class BankIDAsyncHttpClientFactory extends AbstractBankIDHttpClientFactory<CloseableHttpAsyncClient> {
+
+  /** The number of I/O dispatcher threads. */
+  private int ioThreadCount = Runtime.getRuntime().availableProcessors();
+
+  /** {@inheritDoc} */
+  @Override
+  public Class<?> getObjectType() {
+    return CloseableHttpAsyncClient.class;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected CloseableHttpAsyncClient createInstance() throws Exception {
+    final CloseableHttpAsyncClient httpClient = HttpAsyncClients.custom()
+      .setSSLContext(this.createSSLContext())
+      .setSSLHostnameVerifier(new DefaultHostnameVerifier())
+      .setMaxConnPerRoute(this.getMaxConnectionsPerRoute())
+      .setMaxConnTotal(this.getMaxConnectionsTotal())
+      .setKeepAliveStrategy(this.createKeepAliveStrategy())
+      .setDefaultIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(this.ioThreadCount).build())
+      .build();
+    httpClient.start();
+    return httpClient;
+  }
+
+  /**
+   * Closes the HTTP client.
+   */
+  @Override
+  protected void destroyInstance(final CloseableHttpAsyncClient instance) throws Exception {
+    if (instance != null) {
+      instance.close();
+    }
+  }
+
+  /**
+   * Assigns the number of I/O dispatcher threads used by the client. The default is the number of available processors.
+   *
+   * @param ioThreadCount
+   *          the number of I/O threads
+   */
+  public void setIoThreadCount(final int ioThreadCount) {
+    Assert.isTrue(ioThreadCount > 0, "'ioThreadCount' must be greater than 0");
+    this.ioThreadCount = ioThreadCount;
+  }
+
+}
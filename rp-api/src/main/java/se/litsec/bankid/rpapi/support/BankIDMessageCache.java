@@ -0,0 +1,345 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.MessageSource;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.util.Assert;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.litsec.bankid.rpapi.support.BankIDMessage.ShortName;
+
+/**
+ * A cache holding the rendered texts of all BankID messages for a set of locales. The texts are resolved through the
+ * {@link MessageSource} once, when the bean is initialized, so a collect poll does not have to format the message and
+ * fall back through locales each time.
+ * <p>
+ * The texts are available both as strings and as UTF-8 encoded JSON arrays (holding the text of each message code),
+ * that may be written as is to a response. If the messages are reloaded, {@link #refresh()} should be invoked; the
+ * texts for all locales are then replaced in one atomic step. The cache is also refreshed when the application context
+ * is refreshed.
+ * </p>
+ * <p>
+ * A locale that is not configured falls back to its language and then to the first configured locale.
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class BankIDMessageCache implements InitializingBean, ApplicationListener<ContextRefreshedEvent> {
+
+  /** The default locales (English and Swedish). */
+  public static final List<Locale> DEFAULT_LOCALES = Collections.unmodifiableList(Arrays.asList(Locale.ENGLISH, new Locale("sv")));
+
+  /** Class logger. */
+  private final Logger log = LoggerFactory.getLogger(BankIDMessageCache.class);
+
+  /** The message source. */
+  private final MessageSource messageSource;
+
+  /** The message repository. */
+  private final BankIDMessageRepository repository;
+
+  /** The locales to render messages for. */
+  private List<Locale> locales = DEFAULT_LOCALES;
+
+  /** For JSON encoding. */
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  /** The rendered messages. */
+  private volatile Rendered rendered;
+
+  /**
+   * Constructor using the {@link DefaultBankIDMessageRepository}.
+   *
+   * @param messageSource
+   *          the message source
+   */
+  public BankIDMessageCache(final MessageSource messageSource) {
+    this(messageSource, new DefaultBankIDMessageRepository());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param messageSource
+   *          the message source
+   * @param repository
+   *          the message repository
+   */
+  public BankIDMessageCache(final MessageSource messageSource, final BankIDMessageRepository repository) {
+    Assert.notNull(messageSource, "'messageSource' must not be null");
+    Assert.notNull(repository, "'repository' must not be null");
+    this.messageSource = messageSource;
+    this.repository = repository;
+  }
+
+  /**
+   * Returns the texts for the message codes of the given message (see {@link BankIDMessage#getMessageCodes()}).
+   *
+   * @param shortName
+   *          the message short name
+   * @param locale
+   *          the locale (null means the first configured locale)
+   * @return an immutable list of texts, or null if the message does not exist
+   */
+  public List<String> getMessages(final ShortName shortName, final Locale locale) {
+    final Entry entry = this.getEntry(shortName, locale);
+    return entry != null ? entry.texts : null;
+  }
+
+  /**
+   * Returns the text of the given message. If the message has several message codes, the texts are separated by a
+   * space.
+   *
+   * @param shortName
+   *          the message short name
+   * @param locale
+   *          the locale (null means the first configured locale)
+   * @return the text, or null if the message does not exist
+   */
+  public String getMessage(final ShortName shortName, final Locale locale) {
+    final Entry entry = this.getEntry(shortName, locale);
+    return entry != null ? entry.text : null;
+  }
+
+  /**
+   * Returns the texts of the given message as a UTF-8 encoded JSON array of strings.
+   *
+   * @param shortName
+   *          the message short name
+   * @param locale
+   *          the locale (null means the first configured locale)
+   * @return a read-only buffer holding the JSON, or null if the message does not exist
+   */
+  public ByteBuffer getJsonMessage(final ShortName shortName, final Locale locale) {
+    final Entry entry = this.getEntry(shortName, locale);
+    return entry != null ? ByteBuffer.wrap(entry.json).asReadOnlyBuffer() : null;
+  }
+
+  /**
+   * Writes the texts of the given message as a UTF-8 encoded JSON array of strings to the supplied stream.
+   *
+   * @param shortName
+   *          the message short name
+   * @param locale
+   *          the locale (null means the first configured locale)
+   * @param stream
+   *          the stream to write to
+   * @return true if the message was written and false if the message does not exist
+   * @throws IOException
+   *           for write errors
+   */
+  public boolean writeJsonMessage(final ShortName shortName, final Locale locale, final OutputStream stream) throws IOException {
+    final Entry entry = this.getEntry(shortName, locale);
+    if (entry == null) {
+      return false;
+    }
+    stream.write(entry.json);
+    return true;
+  }
+
+  /**
+   * Renders all messages for all configured locales, and replaces the previously rendered messages.
+   */
+  public void refresh() {
+    final Map<Locale, Entry[]> entries = new HashMap<>();
+    for (Locale locale : this.locales) {
+      final Entry[] localeEntries = new Entry[ShortName.values().length];
+      for (ShortName shortName : ShortName.values()) {
+        final BankIDMessage message = this.repository.getBankIDMessage(shortName);
+        if (message != null) {
+          localeEntries[shortName.ordinal()] = this.render(message, locale);
+        }
+      }
+      entries.put(locale, localeEntries);
+    }
+    this.rendered = new Rendered(entries, this.locales.get(0));
+    log.debug("Rendered BankID messages for locales {}", this.locales);
+  }
+
+  /**
+   * Renders a message.
+   *
+   * @param message
+   *          the message
+   * @param locale
+   *          the locale
+   * @return the rendered entry
+   */
+  private Entry render(final BankIDMessage message, final Locale locale) {
+    final List<String> texts = new ArrayList<>(message.getMessageCodes().size());
+    for (String code : message.getMessageCodes()) {
+      final String text = this.messageSource.getMessage(code, null, null, locale);
+      if (text == null) {
+        log.warn("No message for code '{}' and locale '{}'", code, locale);
+      }
+      texts.add(text != null ? text : code);
+    }
+    try {
+      return new Entry(Collections.unmodifiableList(texts), String.join(" ", texts), this.objectMapper.writeValueAsBytes(texts));
+    }
+    catch (JsonProcessingException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns the entry for the given message and locale.
+   *
+   * @param shortName
+   *          the message short name
+   * @param locale
+   *          the locale
+   * @return the entry or null
+   */
+  private Entry getEntry(final ShortName shortName, final Locale locale) {
+    Assert.notNull(shortName, "'shortName' must not be null");
+    final Rendered r = this.rendered;
+    Assert.state(r != null, "Message cache has not been initialized");
+    return r.get(locale)[shortName.ordinal()];
+  }
+
+  /**
+   * Assigns the locales to render messages for. The first locale is the fallback for locales that are not configured.
+   * The default is {@link #DEFAULT_LOCALES}.
+   *
+   * @param locales
+   *          the locales
+   */
+  public void setLocales(final List<Locale> locales) {
+    Assert.notEmpty(locales, "'locales' must not be empty");
+    this.locales = Collections.unmodifiableList(new ArrayList<>(locales));
+  }
+
+  /**
+   * Renders the messages.
+   */
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    this.refresh();
+  }
+
+  /**
+   * Renders the messages again when the application context is refreshed.
+   */
+  @Override
+  public void onApplicationEvent(final ContextRefreshedEvent event) {
+    this.refresh();
+  }
+
+  /**
+   * The rendered messages for all locales.
+   */
+  private static class Rendered {
+
+    /** The entries for each configured locale (indexed by the short name ordinal). */
+    private final Map<Locale, Entry[]> entries;
+
+    /** The entries for the configured locales that only have a language, indexed by the language. */
+    private final Map<String, Entry[]> languages = new HashMap<>();
+
+    /** The entries for the default locale. */
+    private final Entry[] defaultEntries;
+
+    /**
+     * Constructor.
+     *
+     * @param entries
+     *          the entries for each configured locale
+     * @param defaultLocale
+     *          the default locale
+     */
+    public Rendered(final Map<Locale, Entry[]> entries, final Locale defaultLocale) {
+      this.entries = entries;
+      this.defaultEntries = entries.get(defaultLocale);
+      for (Map.Entry<Locale, Entry[]> e : entries.entrySet()) {
+        if (new Locale(e.getKey().getLanguage()).equals(e.getKey())) {
+          this.languages.put(e.getKey().getLanguage(), e.getValue());
+        }
+      }
+    }
+
+    /**
+     * Returns the entries for a locale. If the locale is not configured, the entries for its language are returned, and
+     * if the language is not configured either, the entries for the default locale are returned. The fallback is not
+     * remembered, since the locale normally comes from the client (the Accept-Language header).
+     *
+     * @param locale
+     *          the locale (may be null)
+     * @return the entries
+     */
+    public Entry[] get(final Locale locale) {
+      if (locale == null) {
+        return this.defaultEntries;
+      }
+      Entry[] e = this.entries.get(locale);
+      if (e == null) {
+        e = this.languages.get(locale.getLanguage());
+      }
+      return e != null ? e : this.defaultEntries;
+    }
+  }
+
+  /**
+   * A rendered message.
+   */
+  private static class Entry {
+
+    /** The texts for each message code. */
+    private final List<String> texts;
+
+    /** The texts joined. */
+    private final String text;
+
+    /** The texts as a UTF-8 encoded JSON array. */
+    private final byte[] json;
+
+    /**
+     * Constructor.
+     *
+     * @param texts
+     *          the texts for each message code
+     * @param text
+     *          the texts joined
+     * @param json
+     *          the texts as a UTF-8 encoded JSON array
+     */
+    public Entry(final List<String> texts, final String text, final byte[] json) {
+      this.texts = texts;
+      this.text = text;
+      this.json = json;
+    }
+  }
+
+}
@@ -46,7 +46,7 @@ public class BankIDMessageImpl implements BankIDMessage {
     Assert.notNull(shortName, "shortName must not be null");
     Assert.notEmpty(messageCodes, "messageCodes must not be empty");
     this.shortName = shortName;
-    this.messageCodes = Arrays.asList(messageCodes);
+    this.messageCodes = Collections.unmodifiableList(Arrays.asList(messageCodes));
   }
 
   /**
@@ -61,7 +61,7 @@ public class BankIDMessageImpl implements BankIDMessage {
     Assert.notNull(shortName, "shortName must not be null");
     Assert.notEmpty(messageCodes, "messageCodes must not be empty");
     this.shortName = shortName;
-    this.messageCodes = messageCodes;
+    this.messageCodes = Collections.unmodifiableList(messageCodes);
   }
 
   /** {@inheritDoc} */
@@ -73,7 +73,7 @@ public class BankIDMessageImpl implements BankIDMessage {
   /** {@inheritDoc} */
   @Override
   public List<String> getMessageCodes() {
-    return Collections.unmodifiableList(this.messageCodes);
+    return this.messageCodes;
   }
 
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support;
+
+import org.springframework.util.Assert;
+
+import se.litsec.bankid.rpapi.support.BankIDMessage.ShortName;
+import se.litsec.bankid.rpapi.support.useragent.UserDeviceType;
+import se.litsec.bankid.rpapi.types.ErrorCode;
+import se.litsec.bankid.rpapi.types.ProgressStatus;
+
+/**
+ * Resolves which {@link BankIDMessage} to display to the user for a collect status or an error, according to section
+ * 6 of the BankID Relying Party Guidelines.
+ * <p>
+ * The rules are evaluated once, when the resolver is created, for all combinations of status (or error), user device
+ * type, operation (auth or sign) and start method. The resulting messages are stored in a decision table, so resolving
+ * the message for a collect poll is a single array access.
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class BankIDMessageResolver {
+
+  /**
+   * How the BankID app was started.
+   */
+  public enum StartMethod {
+
+    /** The app was started on the user's device using the autostart token. */
+    AUTO_START,
+
+    /** The app (on another device) was started by scanning a QR code. */
+    QR_CODE,
+
+    /** The user gave his or her personal identity number and started the app (on another device) manually. */
+    PERSONAL_IDENTITY_NUMBER;
+  }
+
+  /** The number of progress statuses. */
+  private static final int STATUSES = ProgressStatus.values().length;
+
+  /** The number of user device types. */
+  private static final int DEVICES = UserDeviceType.values().length;
+
+  /** The number of start methods. */
+  private static final int METHODS = StartMethod.values().length;
+
+  /** The number of table entries per status (or error). */
+  private static final int ENTRIES_PER_CODE = DEVICES * 2 * METHODS;
+
+  /** The decision table. */
+  private final BankIDMessage[] table;
+
+  /**
+   * Constructor using the {@link DefaultBankIDMessageRepository}.
+   */
+  public BankIDMessageResolver() {
+    this(new DefaultBankIDMessageRepository());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param repository
+   *          the repository holding the messages
+   */
+  public BankIDMessageResolver(final BankIDMessageRepository repository) {
+    Assert.notNull(repository, "'repository' must not be null");
+    this.table = new BankIDMessage[(STATUSES + ErrorCode.values().length) * ENTRIES_PER_CODE];
+    for (UserDeviceType device : UserDeviceType.values()) {
+      final boolean mobile = device != UserDeviceType.DESKTOP;
+      for (StartMethod method : StartMethod.values()) {
+        for (int s = 0; s < 2; s++) {
+          final boolean sign = s == 1;
+          for (ProgressStatus status : ProgressStatus.values()) {
+            this.table[index(status.ordinal(), device, sign, method)] = getMessage(repository, getShortName(status, mobile, sign, method));
+          }
+          for (ErrorCode error : ErrorCode.values()) {
+            this.table[index(STATUSES + error.ordinal(), device, sign, method)] = getMessage(repository, getShortName(error, method));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the message to display for a pending (or complete) order.
+   *
+   * @param status
+   *          the progress status (hint code)
+   * @param deviceType
+   *          the user device type
+   * @param sign
+   *          true for a signature operation and false for an authentication operation
+   * @param startMethod
+   *          how the BankID app was started
+   * @return the message, or {@code null} if no message should be displayed (complete)
+   */
+  public BankIDMessage getMessage(final ProgressStatus status, final UserDeviceType deviceType, final boolean sign,
+      final StartMethod startMethod) {
+    Assert.notNull(status, "'status' must not be null");
+    return this.table[index(status.ordinal(), deviceType, sign, startMethod)];
+  }
+
+  /**
+   * Returns the message to display for a failed order or an error response.
+   *
+   * @param errorCode
+   *          the error code (hint code or error code)
+   * @param deviceType
+   *          the user device type
+   * @param sign
+   *          true for a signature operation and false for an authentication operation
+   * @param startMethod
+   *          how the BankID app was started
+   * @return the message
+   */
+  public BankIDMessage getMessage(final ErrorCode errorCode, final UserDeviceType deviceType, final boolean sign,
+      final StartMethod startMethod) {
+    Assert.notNull(errorCode, "'errorCode' must not be null");
+    return this.table[index(STATUSES + errorCode.ordinal(), deviceType, sign, startMethod)];
+  }
+
+  /**
+   * Returns the table index.
+   *
+   * @param code
+   *          the status or error index
+   * @param deviceType
+   *          the device type
+   * @param sign
+   *          sign or auth
+   * @param startMethod
+   *          the start method
+   * @return the index
+   */
+  private static int index(final int code, final UserDeviceType deviceType, final boolean sign, final StartMethod startMethod) {
+    Assert.notNull(deviceType, "'deviceType' must not be null");
+    Assert.notNull(startMethod, "'startMethod' must not be null");
+    return code * ENTRIES_PER_CODE + (deviceType.ordinal() * 2 + (sign ? 1 : 0)) * METHODS + startMethod.ordinal();
+  }
+
+  /**
+   * Gets a message from the repository.
+   *
+   * @param repository
+   *          the repository
+   * @param shortName
+   *          the short name (may be null)
+   * @return the message, or null
+   */
+  private static BankIDMessage getMessage(final BankIDMessageRepository repository, final ShortName shortName) {
+    if (shortName == null) {
+      return null;
+    }
+    final BankIDMessage message = repository.getBankIDMessage(shortName);
+    Assert.state(message != null, "No message for " + shortName + " in repository");
+    return message;
+  }
+
+  /**
+   * The rules for a progress status.
+   *
+   * @param status
+   *          the status
+   * @param mobile
+   *          whether the user is on a mobile device
+   * @param sign
+   *          sign or auth
+   * @param startMethod
+   *          the start method
+   * @return the message short name, or null if no message should be displayed
+   */
+  private static ShortName getShortName(final ProgressStatus status, final boolean mobile, final boolean sign,
+      final StartMethod startMethod) {
+    switch (status) {
+    case OUTSTANDING_TRANSACTION:
+      return startMethod == StartMethod.AUTO_START ? ShortName.RFA13
+          : startMethod == StartMethod.QR_CODE ? ShortName.EXT2 : ShortName.RFA1;
+    case NO_CLIENT:
+      return startMethod == StartMethod.QR_CODE ? ShortName.EXT2 : ShortName.RFA1;
+    case STARTED:
+      if (startMethod == StartMethod.PERSONAL_IDENTITY_NUMBER) {
+        return mobile ? ShortName.RFA14_MOBILE : ShortName.RFA14_DESKTOP;
+      }
+      return mobile ? ShortName.RFA15_MOBILE : ShortName.RFA15_DESKTOP;
+    case USER_SIGN:
+      return sign ? ShortName.RFA9_SIGN : ShortName.RFA9_AUTH;
+    case UNKNOWN_HINTCODE:
+      return sign ? ShortName.RFA21_SIGN : ShortName.RFA21_AUTH;
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * The rules for an error code.
+   *
+   * @param errorCode
+   *          the error code
+   * @param startMethod
+   *          the start method
+   * @return the message short name
+   */
+  private static ShortName getShortName(final ErrorCode errorCode, final StartMethod startMethod) {
+    switch (errorCode) {
+    case EXPIRED_TRANSACTION:
+      return ShortName.RFA8;
+    case CERTIFICATE_ERR:
+      return ShortName.RFA16;
+    case USER_CANCEL:
+      return ShortName.RFA6;
+    case CANCELLED:
+      return ShortName.RFA3;
+    case START_FAILED:
+      return startMethod == StartMethod.QR_CODE ? ShortName.RFA17_QR : ShortName.RFA17_PNR;
+    case ALREADY_IN_PROGRESS:
+      return ShortName.RFA4;
+    case REQUEST_TIMEOUT:
+    case MAINTENANCE:
+    case INTERNAL_ERROR:
+      return ShortName.RFA5;
+    default:
+      return ShortName.RFA22;
+    }
+  }
+
+}
@@ -15,45 +15,55 @@
  */
 package se.litsec.bankid.rpapi.support;
 
-import java.security.KeyStore;
-import java.security.cert.CertificateFactory;
-
-import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
-import org.apache.http.ssl.PrivateKeyStrategy;
-import org.apache.http.ssl.SSLContextBuilder;
-import org.springframework.beans.factory.config.AbstractFactoryBean;
-import org.springframework.core.io.Resource;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
-import org.springframework.util.Assert;
-import org.springframework.util.StringUtils;
 import org.springframework.web.client.RestTemplate;
 
 /**
- * Spring factory class for configuring and creating a {@link RestTemplate} instance that can be used to communicate
+ * Spring factory class for configuring and creating a {@link RestTemplate} instance that can be used to communicate
  * with the BankID server.
+ * <p>
+ * The underlying HTTP client uses a pool of (mutual TLS) connections to the BankID server. The default pool settings
+ * of the Apache HTTP client only allows two concurrent connections per route, which is too little for a service that
+ * has many ongoing orders (each being polled using {@code /collect}). Therefore, the pool size, keep-alive and
+ * eviction settings may be configured using the setters of this class.
+ * </p>
  * 
  * @author Martin Lindström (martin@litsec.se)
  */
-public class BankIDRestTemplateFactory extends AbstractFactoryBean<RestTemplate> {
+public class BankIDRestTemplateFactory extends AbstractBankIDHttpClientFactory<RestTemplate> {
+
+  /** The default period of inactivity (in millis) after which pooled connections are re-validated before use. */
+  public static final int DEFAULT_VALIDATE_AFTER_INACTIVITY = 2000;
 
-  /** The root certificate that we trust when verifying the BankID server certificate. */
-  private Resource trustedRoot;
+  /** Class logger. */
+  private final Logger log = LoggerFactory.getLogger(BankIDRestTemplateFactory.class);
 
-  /** The keystore holding the client TLS key and certificate (BankID relying party certificate). */
-  private KeyStore keyStore;
+  /** The time (in millis) that a connection may remain idle in the pool before it is evicted (0 means no eviction). */
+  private long maxIdleTime = 0L;
 
-  /** The alias to the BankID RP certificate in the keyStore property. */
-  private String keyAlias;
+  /** Whether expired connections should be evicted from the pool by a background thread. */
+  private boolean evictExpiredConnections = false;
 
-  /** The password for the entry holding the BankID RP key and certificate. */
-  private char[] keyPassword;
+  /** The period of inactivity (in millis) after which pooled connections are re-validated before use. */
+  private int validateAfterInactivity = DEFAULT_VALIDATE_AFTER_INACTIVITY;
 
-  /** The SSL/TLS trust store. */
-  private KeyStore trustStore;
+  /** The HTTP client created by the factory. */
+  private CloseableHttpClient httpClient;
 
   /** {@inheritDoc} */
   @Override
@@ -64,87 +74,82 @@ public class BankIDRestTemplateFactory extends AbstractFactoryBean<RestTemplate>
   /** {@inheritDoc} */
   @Override
   protected RestTemplate createInstance() throws Exception {
-    
-    final PrivateKeyStrategy keyStrategy = (aliases, socket) -> {
-      return this.keyAlias != null ? this.keyAlias : aliases.keySet().stream().findFirst().orElse(null);
-    };
-
-    final SSLContext sslContext = SSLContextBuilder.create()
-      .loadKeyMaterial(this.keyStore, this.keyPassword, keyStrategy)
-      .loadTrustMaterial(this.trustStore, null)
-      .build();
 
-    final CloseableHttpClient httpClient = HttpClients.custom()
-      .setSSLContext(sslContext)
-      .setSSLHostnameVerifier(new DefaultHostnameVerifier())
+    final Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory> create()
+      .register("https", new SSLConnectionSocketFactory(this.createSSLContext(), new DefaultHostnameVerifier()))
+      .register("http", PlainConnectionSocketFactory.getSocketFactory())
       .build();
 
+    final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+    connectionManager.setDefaultMaxPerRoute(this.getMaxConnectionsPerRoute());
+    connectionManager.setMaxTotal(this.getMaxConnectionsTotal());
+    connectionManager.setValidateAfterInactivity(this.validateAfterInactivity);
+
+    final HttpClientBuilder builder = HttpClients.custom()
+      .setConnectionManager(connectionManager)
+      .setKeepAliveStrategy(this.createKeepAliveStrategy());
+    if (this.evictExpiredConnections) {
+      builder.evictExpiredConnections();
+    }
+    if (this.maxIdleTime > 0) {
+      builder.evictIdleConnections(this.maxIdleTime, TimeUnit.MILLISECONDS);
+    }
+    this.httpClient = builder.build();
+
     final HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory();
-    requestFactory.setHttpClient(httpClient);
+    requestFactory.setHttpClient(this.httpClient);
 
     return new RestTemplate(requestFactory);
   }
 
   /**
-   * Assigns the trusted root certificate that we use when verifying the BankID server certificate.
-   * 
-   * @param trustedRoot
-   *          resource to the trusted root certificate
+   * Closes the underlying HTTP client (and its connection pool).
    */
-  public void setTrustedRoot(final Resource trustedRoot) {
-    this.trustedRoot = trustedRoot;
+  @Override
+  protected void destroyInstance(final RestTemplate instance) throws Exception {
+    if (this.httpClient != null) {
+      try {
+        this.httpClient.close();
+      }
+      catch (IOException e) {
+        log.warn("Failed to close HTTP client - {}", e.getMessage(), e);
+      }
+      this.httpClient = null;
+    }
   }
 
   /**
-   * Assigns the keystore holding the client TLS key and certificate (BankID relying party certificate).
-   * <p>
-   * Note: The keystore must have been unlocked (loaded).
-   * </p>
+   * Assigns the time (in millis) that a connection may remain idle in the pool before it is evicted by a background
+   * thread. If not assigned (or assigned a value less than or equal to 0), idle connections are not evicted.
    * 
-   * @param keyStore
-   *          the keystore
+   * @param maxIdleTime
+   *          max idle time in millis
    */
-  public void setKeyStore(final KeyStore keyStore) {
-    this.keyStore = keyStore;
+  public void setMaxIdleTime(final long maxIdleTime) {
+    this.maxIdleTime = maxIdleTime;
   }
 
   /**
-   * Assigns the alias to the BankID RP certificate in the keyStore property. If not assigned, it will be assumed that
-   * only one private key exists and the first alias will be choosen.
+   * Tells whether expired connections should be evicted from the pool by a background thread. The default is
+   * {@code false}.
    * 
-   * @param keyAlias
-   *          the key alias
+   * @param evictExpiredConnections
+   *          whether to evict expired connections
    */
-  public void setKeyAlias(final String keyAlias) {
-    this.keyAlias = StringUtils.hasText(keyAlias) ? keyAlias.trim() : null;
+  public void setEvictExpiredConnections(final boolean evictExpiredConnections) {
+    this.evictExpiredConnections = evictExpiredConnections;
   }
 
   /**
-   * Assigns the password for the entry holding the BankID RP key and certificate.
+   * Assigns the period of inactivity (in millis) after which pooled connections are re-validated before they are
+   * leased. A value less than or equal to 0 disables validation. The default is
+   * {@value #DEFAULT_VALIDATE_AFTER_INACTIVITY}.
    * 
-   * @param keyPassword
-   *          the key entry password
+   * @param validateAfterInactivity
+   *          period of inactivity in millis
    */
-  public void setKeyPassword(final char[] keyPassword) {
-    Assert.notNull(keyPassword, "'keyPassword' must not be null");
-    this.keyPassword = new char[keyPassword.length];
-    System.arraycopy(keyPassword, 0, this.keyPassword, 0, keyPassword.length);
-  }
-
-  /** {@inheritDoc} */
-  @Override
-  public void afterPropertiesSet() throws Exception {
-    super.afterPropertiesSet();
-    Assert.notNull(this.trustedRoot, "Property 'trustedRoot' must be assigned");
-    Assert.notNull(this.keyStore, "Property 'keyStore' must be assigned");
-    Assert.notNull(this.keyPassword, "Property 'keyPassword' must be assigned");
-
-    // Load trust store ...
-    //
-    this.trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
-    this.trustStore.load(null);
-    this.trustStore.setCertificateEntry("bankid-trust", CertificateFactory.getInstance("X.509")
-      .generateCertificate(this.trustedRoot.getInputStream()));
+  public void setValidateAfterInactivity(final int validateAfterInactivity) {
+    this.validateAfterInactivity = validateAfterInactivity;
   }
 
 }
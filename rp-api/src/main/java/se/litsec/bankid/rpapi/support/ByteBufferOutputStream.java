@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import org.springframework.util.Assert;
+
+/**
+ * An {@link OutputStream} that writes to a {@link ByteBuffer}. This makes it possible to write QR code images (see
+ * {@link se.litsec.bankid.rpapi.service.QRGenerator#writeQRCodeImage(String, int, int, se.litsec.bankid.rpapi.service.QRGenerator.ImageFormat, OutputStream)})
+ * directly to a (possibly direct) buffer without any intermediate byte arrays.
+ * <p>
+ * If the buffer does not have room for the written bytes, an {@link IOException} is thrown.
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class ByteBufferOutputStream extends OutputStream {
+
+  /** The buffer to write to. */
+  private final ByteBuffer buffer;
+
+  /**
+   * Constructor.
+   *
+   * @param buffer
+   *          the buffer to write to (starting at its current position)
+   */
+  public ByteBufferOutputStream(final ByteBuffer buffer) {
+    Assert.notNull(buffer, "'buffer' must not be null");
+    this.buffer = buffer;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void write(final int b) throws IOException {
+    try {
+      this.buffer.put((byte) b);
+    }
+    catch (BufferOverflowException e) {
+      throw new IOException("Buffer is full", e);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    try {
+      this.buffer.put(b, off, len);
+    }
+    catch (BufferOverflowException e) {
+      throw new IOException("Buffer is full", e);
+    }
+  }
+
+  /**
+   * Returns the underlying buffer.
+   *
+   * @return the buffer
+   */
+  public ByteBuffer getBuffer() {
+    return this.buffer;
+  }
+
+}
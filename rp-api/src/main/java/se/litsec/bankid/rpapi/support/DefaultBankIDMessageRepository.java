@@ -15,57 +15,81 @@
  */
 package se.litsec.bankid.rpapi.support;
 
-import java.util.Arrays;
-import java.util.List;
+import java.util.EnumMap;
+import java.util.Map;
 
 import se.litsec.bankid.rpapi.support.BankIDMessage.ShortName;
 
 /**
  * Default implementation for the {@code BankIDMessageRepository} interface. The implementation uses the message codes
  * defined in this jar under bankid-messages.properties.
+ * <p>
+ * The messages are held in an {@link EnumMap}, so a lookup is a single array access.
+ * </p>
  * 
  * @author Martin Lindström (martin@litsec.se)
  */
 public class DefaultBankIDMessageRepository implements BankIDMessageRepository {
 
   /** The hardwired mappings. */
-  private final List<BankIDMessage> repository = Arrays.asList(
-    new BankIDMessageImpl(ShortName.RFA1, "bankid.msg.rfa1"),
-    new BankIDMessageImpl(ShortName.RFA2, "bankid.msg.rfa2"),
-    new BankIDMessageImpl(ShortName.RFA3, "bankid.msg.rfa3"),
-    new BankIDMessageImpl(ShortName.RFA4, "bankid.msg.rfa4"),
-    new BankIDMessageImpl(ShortName.RFA5, "bankid.msg.rfa5"),
-    new BankIDMessageImpl(ShortName.RFA6, "bankid.msg.rfa6"),
-    new BankIDMessageImpl(ShortName.RFA8, "bankid.msg.rfa8"),
-    new BankIDMessageImpl(ShortName.RFA9, "bankid.msg.rfa9"),
-    new BankIDMessageImpl(ShortName.RFA9_AUTH, "bankid.msg.rfa9-auth"),
-    new BankIDMessageImpl(ShortName.RFA9_SIGN, "bankid.msg.rfa9-sign"),
-    new BankIDMessageImpl(ShortName.RFA13, "bankid.msg.rfa13"),
-    new BankIDMessageImpl(ShortName.RFA14_DESKTOP, "bankid.msg.rfa14-desktop.1", "bankid.msg.rfa14-desktop.2"),
-    new BankIDMessageImpl(ShortName.RFA14_MOBILE, "bankid.msg.rfa14-mobile.1", "bankid.msg.rfa14-mobile.2"),
-    new BankIDMessageImpl(ShortName.RFA15_DESKTOP, "bankid.msg.rfa15-desktop.1", "bankid.msg.rfa15-desktop.2"),
-    new BankIDMessageImpl(ShortName.RFA15_MOBILE, "bankid.msg.rfa15-mobile.1", "bankid.msg.rfa15-mobile.2"),
-    new BankIDMessageImpl(ShortName.RFA16, "bankid.msg.rfa16"),
-    new BankIDMessageImpl(ShortName.RFA17_PNR, "bankid.msg.rfa17-pnr"),
-    new BankIDMessageImpl(ShortName.RFA17_QR, "bankid.msg.rfa17-qr"),
-    new BankIDMessageImpl(ShortName.RFA18, "bankid.msg.rfa18"),
-    new BankIDMessageImpl(ShortName.RFA19, "bankid.msg.rfa19"),
-    new BankIDMessageImpl(ShortName.RFA19_AUTH, "bankid.msg.rfa19-auth"),
-    new BankIDMessageImpl(ShortName.RFA19_SIGN, "bankid.msg.rfa19-sign"),
-    new BankIDMessageImpl(ShortName.RFA20, "bankid.msg.rfa20"),
-    new BankIDMessageImpl(ShortName.RFA20_AUTH, "bankid.msg.rfa20-auth"),
-    new BankIDMessageImpl(ShortName.RFA20_SIGN, "bankid.msg.rfa20-sign"),
-    new BankIDMessageImpl(ShortName.RFA21, "bankid.msg.rfa21"),
-    new BankIDMessageImpl(ShortName.RFA21_AUTH, "bankid.msg.rfa21-auth"),
-    new BankIDMessageImpl(ShortName.RFA21_SIGN, "bankid.msg.rfa21-sign"),
-    new BankIDMessageImpl(ShortName.RFA22, "bankid.msg.rfa22"),
-    new BankIDMessageImpl(ShortName.EXT1, "bankid.msg.ext1"),
-    new BankIDMessageImpl(ShortName.EXT2, "bankid.msg.ext2"));
+  private final Map<ShortName, BankIDMessage> repository = new EnumMap<>(ShortName.class);
+
+  /**
+   * Constructor.
+   */
+  public DefaultBankIDMessageRepository() {
+    this.add(
+      new BankIDMessageImpl(ShortName.RFA1, "bankid.msg.rfa1"),
+      new BankIDMessageImpl(ShortName.RFA2, "bankid.msg.rfa2"),
+      new BankIDMessageImpl(ShortName.RFA3, "bankid.msg.rfa3"),
+      new BankIDMessageImpl(ShortName.RFA4, "bankid.msg.rfa4"),
+      new BankIDMessageImpl(ShortName.RFA5, "bankid.msg.rfa5"),
+      new BankIDMessageImpl(ShortName.RFA6, "bankid.msg.rfa6"),
+      new BankIDMessageImpl(ShortName.RFA8, "bankid.msg.rfa8"),
+      new BankIDMessageImpl(ShortName.RFA9, "bankid.msg.rfa9"),
+      new BankIDMessageImpl(ShortName.RFA9_AUTH, "bankid.msg.rfa9-auth"),
+      new BankIDMessageImpl(ShortName.RFA9_SIGN, "bankid.msg.rfa9-sign"),
+      new BankIDMessageImpl(ShortName.RFA13, "bankid.msg.rfa13"),
+      new BankIDMessageImpl(ShortName.RFA14_DESKTOP, "bankid.msg.rfa14-desktop.1", "bankid.msg.rfa14-desktop.2"),
+      new BankIDMessageImpl(ShortName.RFA14_MOBILE, "bankid.msg.rfa14-mobile.1", "bankid.msg.rfa14-mobile.2"),
+      new BankIDMessageImpl(ShortName.RFA15_DESKTOP, "bankid.msg.rfa15-desktop.1", "bankid.msg.rfa15-desktop.2"),
+      new BankIDMessageImpl(ShortName.RFA15_MOBILE, "bankid.msg.rfa15-mobile.1", "bankid.msg.rfa15-mobile.2"),
+      new BankIDMessageImpl(ShortName.RFA16, "bankid.msg.rfa16"),
+      new BankIDMessageImpl(ShortName.RFA17_PNR, "bankid.msg.rfa17-pnr"),
+      new BankIDMessageImpl(ShortName.RFA17_QR, "bankid.msg.rfa17-qr"),
+      new BankIDMessageImpl(ShortName.RFA18, "bankid.msg.rfa18"),
+      new BankIDMessageImpl(ShortName.RFA19, "bankid.msg.rfa19"),
+      new BankIDMessageImpl(ShortName.RFA19_AUTH, "bankid.msg.rfa19-auth"),
+      new BankIDMessageImpl(ShortName.RFA19_SIGN, "bankid.msg.rfa19-sign"),
+      new BankIDMessageImpl(ShortName.RFA20, "bankid.msg.rfa20"),
+      new BankIDMessageImpl(ShortName.RFA20_AUTH, "bankid.msg.rfa20-auth"),
+      new BankIDMessageImpl(ShortName.RFA20_SIGN, "bankid.msg.rfa20-sign"),
+      new BankIDMessageImpl(ShortName.RFA21, "bankid.msg.rfa21"),
+      new BankIDMessageImpl(ShortName.RFA21_AUTH, "bankid.msg.rfa21-auth"),
+      new BankIDMessageImpl(ShortName.RFA21_SIGN, "bankid.msg.rfa21-sign"),
+      new BankIDMessageImpl(ShortName.RFA22, "bankid.msg.rfa22"),
+      new BankIDMessageImpl(ShortName.EXT1, "bankid.msg.ext1"),
+      new BankIDMessageImpl(ShortName.EXT2, "bankid.msg.ext2"),
+      new BankIDMessageImpl(ShortName.EXT3, "bankid.msg.ext3"),
+      new BankIDMessageImpl(ShortName.EXT4, "bankid.msg.ext4"));
+  }
 
   /** {@inheritDoc} */
   @Override
   public BankIDMessage getBankIDMessage(ShortName id) {
-    return this.repository.stream().filter(b -> b.getShortName().equals(id)).findFirst().orElse(null);
+    return id != null ? this.repository.get(id) : null;
+  }
+
+  /**
+   * Adds messages to the repository.
+   *
+   * @param messages
+   *          the messages to add
+   */
+  private void add(final BankIDMessage... messages) {
+    for (BankIDMessage m : messages) {
+      this.repository.put(m.getShortName(), m);
+    }
   }
 
 }
@@ -16,11 +16,8 @@
 package se.litsec.bankid.rpapi.support;
 
 import java.io.Serializable;
+import java.time.Clock;
 import java.time.Year;
-import java.util.Calendar;
-import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.springframework.util.Assert;
 
@@ -73,8 +70,29 @@ public class PersonalIdentityNumber implements Serializable {
   /** The control digit. */
   private int controlDigit;
 
-  /** Pattern for a personal identity number. */
-  private static final Pattern pattern = Pattern.compile("^(\\d{2}){0,1}(\\d{2})(\\d{2})(\\d{2})([-|+]{0,1})?(\\d{3})(\\d{1})$");
+  /** The maximum length of a formatted personal identity number. */
+  public static final int MAX_FORMATTED_LENGTH = 13;
+
+  /** The bit of a packed value that is set if the delimiter is '+' (the digits are held in the bits above). */
+  private static final long PACKED_PLUS_DELIMITER = 1L;
+
+  /** Error kind for an invalid format. */
+  private static final int ERROR_FORMAT = 0;
+
+  /** Error kind for an invalid date of month. */
+  private static final int ERROR_DATE = 1;
+
+  /** Error kind for a birth date that does not exist. */
+  private static final int ERROR_BIRTH_DATE = 2;
+
+  /** Error kind for a samordningsnummer date that does not exist. */
+  private static final int ERROR_SAMORDNINGSNUMMER = 3;
+
+  /** Error kind for an incorrect control digit. */
+  private static final int ERROR_CONTROL_DIGIT = 4;
+
+  /** Gives the current year (used when the century is not given). */
+  private static volatile CurrentYear currentYear = new CurrentYear(Clock.systemDefaultZone());
 
   /**
    * Constructor that parses the supplied personal identity number.
@@ -97,54 +115,22 @@ public class PersonalIdentityNumber implements Serializable {
    */
   public PersonalIdentityNumber(final String number) throws PersonalIdentityNumberException {
     Assert.notNull(number, "number must not be null");
-
-    final Matcher matcher = pattern.matcher(number.trim());
-    if (!matcher.find()) {
-      throw new PersonalIdentityNumberException("Invalid format of personal identity number");
+    final long packed = parsePacked(number, 0, number.length());
+    if (packed < 0) {
+      throw new PersonalIdentityNumberException(getErrorMessage(packed));
     }
+    this.unpack(packed);
+  }
 
-    try {
-      // First handle the year
-      //
-      this.processYear(matcher.group(1), matcher.group(2), matcher.group(5));
-
-      // The month
-      this.month = Integer.parseInt(matcher.group(3));
-
-      // The date (may be larger for a samordningsnummer).
-      this.date = Integer.parseInt(matcher.group(4));
-      if (this.date < 1 || this.date > 31 && this.date < 61 || this.date > 91) {
-        throw new PersonalIdentityNumberException("Invalid date - " + matcher.group(4));
-      }
-
-      // OK, we have the complete birth date. Let's check if it is a valid date ...
-      //
-      final Calendar cal = Calendar.getInstance();
-      cal.setLenient(false);
-      cal.set(this.century * 100 + this.year, this.month - 1, this.date > 60 ? this.date - 60 : this.date);
-      try {
-        cal.getTime();
-      }
-      catch (Exception e) {
-        final String msg = this.date > 60 ? "Invalid samordningsnummer" : "Invalid birth date";
-        throw new PersonalIdentityNumberException(String.format("%s - %02d%02d%02d%02d",
-          msg, this.century, this.year, this.month, this.date));
-      }
-
-      // The birth number and control digit
-      this.birthNumber = Integer.parseInt(matcher.group(6));
-      this.controlDigit = Integer.parseInt(matcher.group(7));
-
-      // Validate the control digit
-      //
-      final int luhn = calculateLuhn(this.getNumber(Format.TEN_DIGITS_NO_DELIMITER).substring(0, 9));
-      if (luhn != this.controlDigit) {
-        throw new PersonalIdentityNumberException("Invalid personal identity number - control digit is incorrect");
-      }
-    }
-    catch (NumberFormatException e) {
-      throw new PersonalIdentityNumberException("Invalid personal number", e);
-    }
+  /**
+   * Constructor creating an object from a packed value.
+   *
+   * @param packed
+   *          the packed value
+   * @see #fromPackedValue(long)
+   */
+  private PersonalIdentityNumber(final long packed) {
+    this.unpack(packed);
   }
 
   /**
@@ -180,19 +166,156 @@ public class PersonalIdentityNumber implements Serializable {
    * @return personal identity number string
    */
   public String getNumber(final Format format) {
-    if (format == Format.TWELVE_DIGITS_NO_DELIMITER) {
-      return String.format("%02d%02d%02d%02d%03d%d", this.century, this.year, this.month, this.date, this.birthNumber, this.controlDigit);
+    final char[] chars = new char[MAX_FORMATTED_LENGTH];
+    return new String(chars, 0, format(this.toPackedValue(), format, chars, 0));
+  }
+
+  /**
+   * Writes the personal identity number according to the required format into the supplied buffer.
+   *
+   * @param format
+   *          the required format for the personal identity number
+   * @param dest
+   *          the destination buffer (needs room for at most {@value #MAX_FORMATTED_LENGTH} characters)
+   * @param offset
+   *          the offset where to start writing
+   * @return the number of characters written
+   */
+  public int formatTo(final Format format, final char[] dest, final int offset) {
+    return format(this.toPackedValue(), format, dest, offset);
+  }
+
+  /**
+   * Appends the personal identity number according to the required format to the supplied builder.
+   *
+   * @param format
+   *          the required format for the personal identity number
+   * @param sb
+   *          the builder to append to
+   * @return the supplied builder
+   */
+  public StringBuilder formatTo(final Format format, final StringBuilder sb) {
+    return format(this.toPackedValue(), format, sb);
+  }
+
+  /**
+   * Returns the personal identity number packed into a {@code long}.
+   * <p>
+   * The packed value holds the twelve digits as a decimal number (YYYYMMDDNNNC) shifted one bit to the left, and bit 0
+   * is set if the delimiter is '+'. Thus, packed values are ordered by birth date, and they are equal if and only if the
+   * corresponding {@code PersonalIdentityNumber} objects are equal. A large set of personal identity numbers may be
+   * kept as packed values using 8 bytes per number.
+   * </p>
+   *
+   * @return the packed value
+   * @see #fromPackedValue(long)
+   */
+  public long toPackedValue() {
+    final long digits = (((((long) this.century * 100 + this.year) * 100 + this.month) * 100 + this.date) * 1000
+        + this.birthNumber) * 10 + this.controlDigit;
+    return pack(digits, this.delimiter == '+');
+  }
+
+  /**
+   * Creates a {@code PersonalIdentityNumber} from a packed value (see {@link #toPackedValue()}).
+   * <p>
+   * The packed value is not validated (apart from its layout) since it is assumed to have been created by
+   * {@link #toPackedValue()}.
+   * </p>
+   *
+   * @param packed
+   *          the packed value
+   * @return a {@code PersonalIdentityNumber} object
+   */
+  public static PersonalIdentityNumber fromPackedValue(final long packed) {
+    checkPackedValue(packed);
+    return new PersonalIdentityNumber(packed);
+  }
+
+  /**
+   * Writes a packed personal identity number (see {@link #toPackedValue()}) according to the required format into the
+   * supplied buffer.
+   *
+   * @param packed
+   *          the packed value
+   * @param format
+   *          the required format for the personal identity number
+   * @param dest
+   *          the destination buffer (needs room for at most {@value #MAX_FORMATTED_LENGTH} characters)
+   * @param offset
+   *          the offset where to start writing
+   * @return the number of characters written
+   */
+  public static int format(final long packed, final Format format, final char[] dest, final int offset) {
+    checkPackedValue(packed);
+    final boolean twelve = format == Format.TWELVE_DIGITS_NO_DELIMITER || format == Format.TWELVE_DIGITS_DELIMITER;
+    final boolean delimited = format == Format.TWELVE_DIGITS_DELIMITER || format == Format.TEN_DIGITS_DELIMITER;
+    final int length = (twelve ? 12 : 10) + (delimited ? 1 : 0);
+
+    long digits = packed >>> 1;
+    int pos = offset + length;
+    for (int i = 0; i < 4; i++, digits /= 10) {
+      dest[--pos] = (char) ('0' + digits % 10);
     }
-    else if (format == Format.TWELVE_DIGITS_DELIMITER) {
-      return String.format("%02d%02d%02d%02d%c%03d%d", this.century, this.year, this.month, this.date, this.delimiter, this.birthNumber,
-        this.controlDigit);
+    if (delimited) {
+      dest[--pos] = (packed & PACKED_PLUS_DELIMITER) != 0 ? '+' : '-';
     }
-    else if (format == Format.TEN_DIGITS_NO_DELIMITER) {
-      return String.format("%02d%02d%02d%03d%d", this.year, this.month, this.date, this.birthNumber, this.controlDigit);
+    while (pos > offset) {
+      dest[--pos] = (char) ('0' + digits % 10);
+      digits /= 10;
     }
-    else { // TEN_DIGITS_DELIMITER
-      return String.format("%02d%02d%02d%c%03d%d", this.year, this.month, this.date, this.delimiter, this.birthNumber, this.controlDigit);
+    return length;
+  }
+
+  /**
+   * Appends a packed personal identity number (see {@link #toPackedValue()}) according to the required format to the
+   * supplied builder.
+   *
+   * @param packed
+   *          the packed value
+   * @param format
+   *          the required format for the personal identity number
+   * @param sb
+   *          the builder to append to
+   * @return the supplied builder
+   */
+  public static StringBuilder format(final long packed, final Format format, final StringBuilder sb) {
+    checkPackedValue(packed);
+    final boolean twelve = format == Format.TWELVE_DIGITS_NO_DELIMITER || format == Format.TWELVE_DIGITS_DELIMITER;
+    final boolean delimited = format == Format.TWELVE_DIGITS_DELIMITER || format == Format.TEN_DIGITS_DELIMITER;
+
+    final long digits = packed >>> 1;
+    long divisor = twelve ? 100000000000L : 1000000000L;
+    for (int i = twelve ? 12 : 10; i > 0; i--, divisor /= 10) {
+      if (i == 4 && delimited) {
+        sb.append((packed & PACKED_PLUS_DELIMITER) != 0 ? '+' : '-');
+      }
+      sb.append((char) ('0' + (digits / divisor) % 10));
     }
+    return sb;
+  }
+
+  /**
+   * Asserts that the supplied value has the layout of a packed personal identity number.
+   *
+   * @param packed
+   *          the packed value
+   */
+  private static void checkPackedValue(final long packed) {
+    Assert.isTrue(packed >= 0 && (packed >>> 1) < 1000000000000L, "Invalid packed personal identity number");
+  }
+
+  /**
+   * Packs the twelve digits and the delimiter into a {@code long} (see {@link #toPackedValue()}).
+   *
+   * @param digits
+   *          the twelve digits as a decimal number
+   * @param plus
+   *          whether the delimiter is '+'
+   * @return the packed value
+   */
+  private static long pack(final long digits, final boolean plus) {
+    return digits << 1 | (plus ? PACKED_PLUS_DELIMITER : 0);
   }
 
   /**
@@ -209,65 +332,255 @@ public class PersonalIdentityNumber implements Serializable {
   }
 
   /**
-   * Parses the year digits.
-   * <p>
-   * If century digits are missing we look at the delimiter. This should be '+' from the year a person is 100 and '-'
-   * otherwise. If the delimiter is missing we assume the person is under 100.
-   * </p>
+   * Assigns the clock that is used to get the current year. The current year is needed to tell the century of a ten
+   * digit number, and the delimiter of a twelve digit number. The default is the system clock (in the default time
+   * zone).
    *
-   * @param centuryDigits
-   *          century digits (may be null)
-   * @param yearDigits
-   *          the year digits (2 digits)
-   * @param delimeter
-   *          the delimiter (may be the empty string)
-   * @throws NumberFormatException
-   *           for illegal numbers (should not happen since the regex matched)
+   * @param clock
+   *          the clock
    */
-  private void processYear(final String centuryDigits, final String yearDigits, final String delimeter) throws NumberFormatException {
-    this.year = Integer.parseInt(yearDigits);
-    if (centuryDigits == null) {
-      // If delimiter is "+" the person is 100 or over, if it is "-" he or she is under 100,
-      // and if there is no delimiter, we'll assume under 100.
-      //
-      if ("-".equals(delimeter) || delimeter.isEmpty()) {
-        this.century = Year.now().minusYears(this.year).getValue() / 100;
-        this.delimiter = '-';
-      }
-      else { // +
-        this.century = Year.now().minusYears(100 + this.year).getValue() / 100;
-        this.delimiter = '+';
+  public static void setClock(final Clock clock) {
+    Assert.notNull(clock, "clock must not be null");
+    currentYear = new CurrentYear(clock);
+  }
+
+  /**
+   * Parses a personal identity number (see {@link #PersonalIdentityNumber(String)}) into its packed value (see
+   * {@link #toPackedValue()}) without creating any objects. This is the parsing used by the constructor and by
+   * {@link PersonalIdentityNumberBulkValidator}.
+   *
+   * @param number
+   *          the characters holding the personal identity number
+   * @param from
+   *          the start index (inclusive)
+   * @param to
+   *          the end index (exclusive)
+   * @return the packed value, or a negative error code if the number is not valid (see {@link #getErrorMessage(long)})
+   */
+  static long parsePacked(final CharSequence number, final int from, final int to) {
+
+    // Leading and trailing whitespace is ignored (in the same way as String.trim) ...
+    //
+    int start = from;
+    int end = to;
+    while (start < end && number.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && number.charAt(end - 1) <= ' ') {
+      end--;
+    }
+
+    // Check the format: 10 or 12 digits, and optionally a delimiter in front of the last four digits ...
+    //
+    final int length = end - start;
+    if (length < 10 || length > 13) {
+      return error(ERROR_FORMAT, 0);
+    }
+    final boolean hasDelimiter = length == 11 || length == 13;
+    final int delimiterPos = hasDelimiter ? end - 5 : -1;
+    for (int i = start; i < end; i++) {
+      final char c = number.charAt(i);
+      if (i == delimiterPos ? c != '-' && c != '+' && c != '|' : c < '0' || c > '9') {
+        return error(ERROR_FORMAT, 0);
       }
     }
+
+    int pos = start;
+    final int centuryDigits = length >= 12 ? twoDigits(number, pos) : -1;
+    if (centuryDigits >= 0) {
+      pos += 2;
+    }
+    final int year = twoDigits(number, pos);
+    final int month = twoDigits(number, pos + 2);
+    final int date = twoDigits(number, pos + 4);
+    pos += 6;
+    final char delimiterChar = hasDelimiter ? number.charAt(pos++) : 0;
+    final int birthNumber = 100 * (number.charAt(pos) - '0') + twoDigits(number, pos + 1);
+    final int controlDigit = number.charAt(pos + 3) - '0';
+
+    // First handle the year. If century digits are missing we look at the delimiter. This should be '+' from the year
+    // a person is 100 and '-' otherwise. If the delimiter is missing we assume the person is under 100.
+    // If the century digits are given, we make sure to use "-" if the person is under 100 and "+" if he or she is 100
+    // or over, no matter what the delimiter is set to.
+    //
+    final int now = currentYear.get();
+    final int century;
+    final boolean plus;
+    if (centuryDigits < 0) {
+      plus = delimiterChar != '-' && delimiterChar != 0;
+      century = plus ? (now - 100 - year) / 100 : (now - year) / 100;
+    }
     else {
-      this.century = Integer.parseInt(centuryDigits);
-      // No matter what the delimiter is set to, we make sure to use "-" if the person is
-      // under 100 and "+" if he or she is 100 or over.
-      //
-      this.delimiter = Year.now().getValue() - (this.century * 100 + this.year) >= 100 ? '+' : '-';
+      century = centuryDigits;
+      plus = now - (century * 100 + year) >= 100;
     }
+
+    // The date (may be larger for a samordningsnummer).
+    if (date < 1 || date > 31 && date < 61 || date > 91) {
+      return error(ERROR_DATE, date);
+    }
+
+    // OK, we have the complete birth date. Let's check if it is a valid date ...
+    //
+    if (!isValidDate(century * 100 + year, month, date > 60 ? date - 60 : date)) {
+      return error(date > 60 ? ERROR_SAMORDNINGSNUMMER : ERROR_BIRTH_DATE,
+        Math.max(0, ((century * 100L + year) * 100 + month) * 100 + date));
+    }
+
+    // Validate the control digit
+    //
+    if (calculateLuhn(year, month, date, birthNumber) != controlDigit) {
+      return error(ERROR_CONTROL_DIGIT, 0);
+    }
+
+    final long digits = ((((century * 100L + year) * 100 + month) * 100 + date) * 1000 + birthNumber) * 10 + controlDigit;
+    return pack(digits, plus);
   }
 
   /**
-   * Calculates a checksum of the passed value according to the luhn algorithm.
+   * Returns the error code for a parse error (see {@link #parsePacked(CharSequence, int, int)}).
    *
-   * @param number
-   *          the value to calculate the checksum for
-   * @return the luhn digit
+   * @param kind
+   *          the kind of error
+   * @param value
+   *          the (non-negative) value to include in the error message
+   * @return the (negative) error code
+   */
+  private static long error(final int kind, final long value) {
+    return -1L - (kind | value << 3);
+  }
+
+  /**
+   * Returns the error message for an error code returned by {@link #parsePacked(CharSequence, int, int)}.
+   *
+   * @param error
+   *          the error code
+   * @return the error message
+   */
+  static String getErrorMessage(final long error) {
+    final long code = -1L - error;
+    final long value = code >>> 3;
+    switch ((int) (code & 7)) {
+    case ERROR_DATE:
+      return "Invalid date - " + (value < 10 ? "0" : "") + value;
+    case ERROR_BIRTH_DATE:
+    case ERROR_SAMORDNINGSNUMMER:
+      final String digits = Long.toString(value);
+      return ((code & 7) == ERROR_SAMORDNINGSNUMMER ? "Invalid samordningsnummer - " : "Invalid birth date - ")
+          + "00000000".substring(Math.min(8, digits.length())) + digits;
+    case ERROR_CONTROL_DIGIT:
+      return "Invalid personal identity number - control digit is incorrect";
+    default:
+      return "Invalid format of personal identity number";
+    }
+  }
+
+  /**
+   * Assigns the fields from a packed value.
+   *
+   * @param packed
+   *          the packed value
+   */
+  private void unpack(final long packed) {
+    long digits = packed >>> 1;
+    this.controlDigit = (int) (digits % 10);
+    digits /= 10;
+    this.birthNumber = (int) (digits % 1000);
+    digits /= 1000;
+    this.date = (int) (digits % 100);
+    digits /= 100;
+    this.month = (int) (digits % 100);
+    digits /= 100;
+    this.year = (int) (digits % 100);
+    this.century = (int) (digits / 100);
+    this.delimiter = (packed & PACKED_PLUS_DELIMITER) != 0 ? '+' : '-';
+  }
+
+  /**
+   * Returns the value of the two decimal digits at the given position.
+   *
+   * @param s
+   *          the characters
+   * @param pos
+   *          the position
+   * @return the value
+   */
+  private static int twoDigits(final CharSequence s, final int pos) {
+    return 10 * (s.charAt(pos) - '0') + (s.charAt(pos + 1) - '0');
+  }
+
+  /**
+   * Tells whether the given date exists. The calendar rules are the same as for {@link java.util.GregorianCalendar},
+   * i.e., Julian dates before October 15, 1582.
+   *
+   * @param year
+   *          the year
+   * @param month
+   *          the month (1-12)
+   * @param day
+   *          the day of month
+   * @return true if the date is valid and false otherwise
    */
-  private static int calculateLuhn(String number) {
-    int luhn = 0;
-    for (int i = number.length() - 1; i >= 0; i--) {
-      int c = number.charAt(i) - 48;
-      luhn += i % 2 == 0 ? (c *= 2) > 9 ? c - 9 : c : c;
+  private static boolean isValidDate(final int year, final int month, final int day) {
+    if (year < 1 || month < 1 || month > 12 || day < 1) {
+      return false;
+    }
+    if (year == 1582 && month == 10 && day > 4 && day < 15) {
+      return false;
     }
+    final int days;
+    if (month == 2) {
+      final boolean leap = year > 1582 ? year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) : year % 4 == 0;
+      days = leap ? 29 : 28;
+    }
+    else {
+      days = month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+    return day <= days;
+  }
+
+  /**
+   * Calculates the control digit according to the luhn algorithm over the ten digit form (excluding the control digit),
+   * i.e., YYMMDDNNN.
+   * <p>
+   * Note: A digit sum that is a multiple of 10 gives 10 (and not 0). This is how the control digit always has been
+   * calculated by this class, and is kept as is.
+   * </p>
+   *
+   * @param year
+   *          the two digit year
+   * @param month
+   *          the month
+   * @param date
+   *          the date
+   * @param birthNumber
+   *          the birth number
+   * @return the luhn digit
+   */
+  private static int calculateLuhn(final int year, final int month, final int date, final int birthNumber) {
+    final int luhn = luhnDoubled(year / 10) + year % 10
+        + luhnDoubled(month / 10) + month % 10
+        + luhnDoubled(date / 10) + date % 10
+        + luhnDoubled(birthNumber / 100) + (birthNumber / 10) % 10 + luhnDoubled(birthNumber % 10);
     return luhn != 0 ? 10 - luhn % 10 : luhn;
   }
 
+  /**
+   * Returns the luhn value of a digit in a doubled position.
+   *
+   * @param digit
+   *          the digit
+   * @return the doubled digit with its digits added
+   */
+  private static int luhnDoubled(final int digit) {
+    final int d = digit * 2;
+    return d > 9 ? d - 9 : d;
+  }
+
   /** {@inheritDoc} */
   @Override
   public int hashCode() {
-    return Objects.hash(this.birthNumber, this.century, this.controlDigit, this.date, this.delimiter, this.month, this.year);
+    return Long.hashCode(this.toPackedValue());
   }
 
   /** {@inheritDoc} */
@@ -293,4 +606,39 @@ public class PersonalIdentityNumber implements Serializable {
     return this.getNumber(Format.TWELVE_DIGITS_DELIMITER);
   }
 
+  /**
+   * Gives the current year according to a clock. The year, and the time when the next year starts, are cached, so
+   * getting the year is only a matter of reading the clock.
+   */
+  private static class CurrentYear {
+
+    /** The clock. */
+    private final Clock clock;
+
+    /** The cached year, when it starts and when it ends (in millis). */
+    private volatile long[] cached = { 0L, Long.MAX_VALUE, Long.MIN_VALUE };
+
+    public CurrentYear(final Clock clock) {
+      this.clock = clock;
+    }
+
+    /**
+     * Returns the current year.
+     *
+     * @return the current year
+     */
+    public int get() {
+      final long[] c = this.cached;
+      final long now = this.clock.millis();
+      if (now >= c[1] && now < c[2]) {
+        return (int) c[0];
+      }
+      final Year year = Year.now(this.clock);
+      this.cached = new long[] { year.getValue(),
+          year.atDay(1).atStartOfDay(this.clock.getZone()).toInstant().toEpochMilli(),
+          year.plusYears(1).atDay(1).atStartOfDay(this.clock.getZone()).toInstant().toEpochMilli() };
+      return year.getValue();
+    }
+  }
+
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.springframework.util.Assert;
+
+/**
+ * Validates large batches of personal identity numbers held as ASCII digits, for example the normalized output of
+ * {@link PersonalIdentityNumberBulkValidator}.
+ * <p>
+ * Each record is twelve ASCII digits (the {@link PersonalIdentityNumber.Format#TWELVE_DIGITS_NO_DELIMITER} format),
+ * and the records are stored at a fixed distance (stride) from each other, so {@code "196904146856\n"} records give a
+ * stride of 13. A record is valid if all characters are digits, the month is 01-12, the day is 01-31 (or 61-91 for a
+ * samordningsnummer) and the control digit is correct. The control digit is checked in the same way as by
+ * {@link PersonalIdentityNumber}. Note that the day is not checked against the length of the month, so a record that
+ * passes this check may still be rejected by {@link PersonalIdentityNumber#parse(String)} (for example 19690231).
+ * </p>
+ * <p>
+ * The checks are done using SWAR (SIMD within a register) operations, where eight digits are read and checked as one
+ * {@code long}, instead of digit by digit.
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public final class PersonalIdentityNumberBatchValidator {
+
+  /** The length of a record. */
+  public static final int RECORD_LENGTH = 12;
+
+  /** Eight times the ASCII character '0'. */
+  private static final long ZEROS = 0x3030303030303030L;
+
+  /** Eight times the high nibble mask. */
+  private static final long HIGH_NIBBLES = 0xf0f0f0f0f0f0f0f0L;
+
+  /** Eight times the value that, when added to a digit, gives a carry into the high nibble if it is greater than 9. */
+  private static final long SIXES = 0x0606060606060606L;
+
+  /** Eight times the value that, when added to a digit, sets the high bit if it is greater than 4. */
+  private static final long GREATER_THAN_FOUR = 0x7b7b7b7b7b7b7b7bL;
+
+  /** Eight times the high bit of a byte. */
+  private static final long HIGH_BITS = 0x8080808080808080L;
+
+  /** The digits in the first eight characters (CCYYMMDD) that are doubled by the luhn algorithm (Y, M and D). */
+  private static final long DOUBLED_FIRST = 0x00ff00ff00ff0000L;
+
+  /** The digits in the first eight characters (CCYYMMDD) that are not doubled by the luhn algorithm. */
+  private static final long SINGLE_FIRST = 0xff00ff00ff000000L;
+
+  /** The digits in the last four characters (NNNC) that are doubled by the luhn algorithm. */
+  private static final long DOUBLED_LAST = 0x00ff00ffL;
+
+  /** Multiplier summing all bytes of a {@code long} into the highest byte. */
+  private static final long BYTE_SUM = 0x0101010101010101L;
+
+  /**
+   * Validates records held in a byte array.
+   *
+   * @param buffer
+   *          the buffer holding the records
+   * @param offset
+   *          the offset of the first record
+   * @param stride
+   *          the distance between the start of two records (at least {@value #RECORD_LENGTH})
+   * @param count
+   *          the number of records
+   * @param result
+   *          a bit set where bit {@code i} is set if record {@code i} is valid and cleared otherwise (must hold at least
+   *          {@code count} bits)
+   * @return the number of valid records
+   */
+  public static int validate(final byte[] buffer, final int offset, final int stride, final int count, final long[] result) {
+    Assert.notNull(buffer, "'buffer' must not be null");
+    return validate(ByteBuffer.wrap(buffer), offset, stride, count, result);
+  }
+
+  /**
+   * Validates records held in a byte buffer (which may be a direct or memory mapped buffer).
+   *
+   * @param buffer
+   *          the buffer holding the records
+   * @param offset
+   *          the index of the first record
+   * @param stride
+   *          the distance between the start of two records (at least {@value #RECORD_LENGTH})
+   * @param count
+   *          the number of records
+   * @param result
+   *          a bit set where bit {@code i} is set if record {@code i} is valid and cleared otherwise (must hold at least
+   *          {@code count} bits)
+   * @return the number of valid records
+   */
+  public static int validate(final ByteBuffer buffer, final int offset, final int stride, final int count, final long[] result) {
+    Assert.notNull(buffer, "'buffer' must not be null");
+    Assert.notNull(result, "'result' must not be null");
+    Assert.isTrue(stride >= RECORD_LENGTH, "'stride' must be at least " + RECORD_LENGTH);
+    Assert.isTrue(offset >= 0 && count >= 0, "'offset' and 'count' must not be negative");
+    Assert.isTrue(count == 0 || offset + (long) stride * (count - 1) + RECORD_LENGTH <= buffer.limit(),
+      "'buffer' does not hold " + count + " records");
+    Assert.isTrue(result.length >= (count + 63) / 64, "'result' is too small");
+
+    final ByteBuffer records = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    int valid = 0;
+    for (int word = 0; word * 64 < count; word++) {
+      long bits = 0;
+      final int end = Math.min(64, count - word * 64);
+      for (int i = 0; i < end; i++) {
+        final int pos = offset + (word * 64 + i) * stride;
+        if (isValid(records.getLong(pos), records.getInt(pos + 8) & 0xffffffffL)) {
+          bits |= 1L << i;
+        }
+      }
+      result[word] = bits;
+      valid += Long.bitCount(bits);
+    }
+    return valid;
+  }
+
+  /**
+   * Validates one record.
+   *
+   * @param first
+   *          the first eight characters (CCYYMMDD), the first character in the lowest byte
+   * @param last
+   *          the last four characters (NNNC), the first character in the lowest byte
+   * @return true if the record is valid
+   */
+  private static boolean isValid(final long first, final long last) {
+    // All characters must be digits, i.e., have the high nibble 3 both before and after adding 6 ...
+    //
+    if ((first & HIGH_NIBBLES) != ZEROS || (first + SIXES & HIGH_NIBBLES) != ZEROS
+        || (last & HIGH_NIBBLES) != (ZEROS >>> 32) || (last + (SIXES >>> 32) & HIGH_NIBBLES) != (ZEROS >>> 32)) {
+      return false;
+    }
+    final long d1 = first - ZEROS;
+    final long d2 = last - (ZEROS >>> 32);
+
+    final int month = (int) (10 * (d1 >>> 32 & 0xff) + (d1 >>> 40 & 0xff));
+    final int day = (int) (10 * (d1 >>> 48 & 0xff) + (d1 >>> 56));
+    if (month < 1 || month > 12 || day < 1 || day > 31 && day < 61 || day > 91) {
+      return false;
+    }
+
+    // The luhn sum over YYMMDDNNN. A doubled digit d gives 2d, or 2d - 9 if d > 4 ...
+    //
+    final long doubled1 = d1 & DOUBLED_FIRST;
+    final long doubled2 = d2 & DOUBLED_LAST;
+    final int doubledSum = (int) ((doubled1 * BYTE_SUM >>> 56) + (doubled2 * BYTE_SUM >>> 56));
+    final int overFour = Long.bitCount(doubled1 + (GREATER_THAN_FOUR & DOUBLED_FIRST) & HIGH_BITS)
+        + Long.bitCount(doubled2 + (GREATER_THAN_FOUR & DOUBLED_LAST) & HIGH_BITS);
+    final int singleSum = (int) (((d1 & SINGLE_FIRST) * BYTE_SUM >>> 56) + (d2 >>> 8 & 0xff));
+    final int luhn = 2 * doubledSum - 9 * overFour + singleSum;
+
+    // The same control digit as PersonalIdentityNumber (a multiple of 10 gives 10, and thus never matches) ...
+    return (luhn != 0 ? 10 - luhn % 10 : 0) == (int) (d2 >>> 24);
+  }
+
+  // Hidden constructor
+  private PersonalIdentityNumberBatchValidator() {
+  }
+
+}
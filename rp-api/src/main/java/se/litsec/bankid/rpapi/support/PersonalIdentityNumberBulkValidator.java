@@ -0,0 +1,493 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import se.litsec.bankid.rpapi.support.PersonalIdentityNumber.Format;
+
+/**
+ * Validates and normalizes large files of personal identity numbers, such as customer registers or migration dumps.
+ * <p>
+ * The input file holds one personal identity number per line (in any of the formats accepted by
+ * {@link PersonalIdentityNumber#parse(String)}), and blank lines are ignored. The file is memory mapped and split into
+ * chunks (at line boundaries) that are validated in parallel on a {@link ForkJoinPool}. The results are written in the
+ * order of the input file:
+ * </p>
+ * <ul>
+ * <li>The normalized stream gets each valid number in the {@link Format#TWELVE_DIGITS_NO_DELIMITER} format followed by
+ * a newline.</li>
+ * <li>The error stream gets a line for each invalid number, holding the line number (starting at 1), the (trimmed)
+ * input line and the error message separated by tabs.</li>
+ * </ul>
+ * <p>
+ * The validation works directly on the mapped bytes and does not create any objects for valid numbers, so the
+ * throughput is bounded by the disk rather than by the garbage collector. The input is expected to be ASCII (or any
+ * encoding where digits and delimiters are single bytes).
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class PersonalIdentityNumberBulkValidator {
+
+  /** The default chunk size (in bytes). */
+  public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+  /** The length of a normalized line. */
+  private static final int NORMALIZED_LINE_LENGTH = 13;
+
+  /** The minimum length of an input line holding a valid number (including the newline). */
+  private static final int MIN_VALID_LINE_LENGTH = 11;
+
+  /** Class logger. */
+  private final Logger log = LoggerFactory.getLogger(PersonalIdentityNumberBulkValidator.class);
+
+  /** The pool performing the validation. */
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  /** The chunk size (in bytes). */
+  private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+  /**
+   * Validates the numbers of the given file.
+   *
+   * @param file
+   *          the file holding one personal identity number per line
+   * @param normalized
+   *          the stream where valid numbers are written (in the {@link Format#TWELVE_DIGITS_NO_DELIMITER} format)
+   * @param errors
+   *          the stream where invalid numbers are reported
+   * @return the result of the validation
+   * @throws IOException
+   *           for errors reading the file or writing to the streams
+   */
+  public Result validate(final Path file, final OutputStream normalized, final OutputStream errors) throws IOException {
+    Assert.notNull(file, "'file' must not be null");
+    Assert.notNull(normalized, "'normalized' must not be null");
+    Assert.notNull(errors, "'errors' must not be null");
+
+    final long started = System.nanoTime();
+    final Result result = new Result();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      final int maxPending = 2 * this.pool.getParallelism();
+      final Deque<ForkJoinTask<Chunk>> pending = new ArrayDeque<>();
+      long position = 0;
+      while (position < size) {
+        final long end = this.findChunkEnd(channel, position, size);
+        pending.addLast(this.pool.submit(new ChunkValidation(channel, position, end)));
+        position = end;
+        if (pending.size() >= maxPending) {
+          this.write(join(pending.removeFirst()), result, normalized, errors);
+        }
+      }
+      while (!pending.isEmpty()) {
+        this.write(join(pending.removeFirst()), result, normalized, errors);
+      }
+    }
+    normalized.flush();
+    errors.flush();
+
+    log.debug("Validated {} personal identity numbers in {} ({} invalid) - {} ms",
+      result.getRecords(), file, result.getInvalid(), (System.nanoTime() - started) / 1000000L);
+    return result;
+  }
+
+  /**
+   * Returns the end of the chunk starting at the given position. The chunk ends after the first newline following the
+   * chunk size (or at the end of the file).
+   *
+   * @param channel
+   *          the file channel
+   * @param start
+   *          the start of the chunk
+   * @param size
+   *          the file size
+   * @return the end of the chunk (exclusive)
+   * @throws IOException
+   *           for read errors
+   */
+  private long findChunkEnd(final FileChannel channel, final long start, final long size) throws IOException {
+    long position = start + this.chunkSize - 1;
+    if (position >= size - 1) {
+      return size;
+    }
+    final ByteBuffer buffer = ByteBuffer.allocate(256);
+    while (position < size) {
+      buffer.clear();
+      final int read = channel.read(buffer, position);
+      if (read <= 0) {
+        break;
+      }
+      for (int i = 0; i < read; i++) {
+        if (buffer.get(i) == '\n') {
+          return position + i + 1;
+        }
+      }
+      position += read;
+    }
+    return size;
+  }
+
+  /**
+   * Writes the result of a chunk to the output streams.
+   *
+   * @param chunk
+   *          the chunk
+   * @param result
+   *          the result to update
+   * @param normalized
+   *          the stream for valid numbers
+   * @param errors
+   *          the stream for errors
+   * @throws IOException
+   *           for write errors
+   */
+  private void write(final Chunk chunk, final Result result, final OutputStream normalized, final OutputStream errors)
+      throws IOException {
+    normalized.write(chunk.normalized, 0, chunk.normalizedLength);
+    for (final ChunkError error : chunk.errors) {
+      errors.write(Long.toString(result.lines + error.line + 1).getBytes(StandardCharsets.US_ASCII));
+      errors.write('\t');
+      errors.write(error.input);
+      errors.write('\t');
+      errors.write(error.message.getBytes(StandardCharsets.UTF_8));
+      errors.write('\n');
+    }
+    result.lines += chunk.lines;
+    result.valid += chunk.valid;
+    result.invalid += chunk.errors.size();
+  }
+
+  /**
+   * Waits for a chunk validation to complete.
+   *
+   * @param task
+   *          the task
+   * @return the validated chunk
+   * @throws IOException
+   *           if the chunk could not be read
+   */
+  private static Chunk join(final ForkJoinTask<Chunk> task) throws IOException {
+    try {
+      return task.join();
+    }
+    catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Assigns the pool that performs the validation. The default is the {@link ForkJoinPool#commonPool()}.
+   *
+   * @param pool
+   *          the fork-join pool
+   */
+  public void setPool(final ForkJoinPool pool) {
+    Assert.notNull(pool, "'pool' must not be null");
+    this.pool = pool;
+  }
+
+  /**
+   * Assigns the (approximate) number of bytes that are validated by one task. The default is
+   * {@value #DEFAULT_CHUNK_SIZE}.
+   *
+   * @param chunkSize
+   *          the chunk size in bytes
+   */
+  public void setChunkSize(final int chunkSize) {
+    Assert.isTrue(chunkSize > 0, "'chunkSize' must be greater than 0");
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * The result of a bulk validation.
+   */
+  public static class Result {
+
+    /** The number of lines. */
+    private long lines;
+
+    /** The number of valid numbers. */
+    private long valid;
+
+    /** The number of invalid numbers. */
+    private long invalid;
+
+    /**
+     * Returns the number of lines in the file (including blank lines).
+     *
+     * @return the number of lines
+     */
+    public long getLines() {
+      return this.lines;
+    }
+
+    /**
+     * Returns the number of records (non-blank lines) in the file.
+     *
+     * @return the number of records
+     */
+    public long getRecords() {
+      return this.valid + this.invalid;
+    }
+
+    /**
+     * Returns the number of valid personal identity numbers.
+     *
+     * @return the number of valid numbers
+     */
+    public long getValid() {
+      return this.valid;
+    }
+
+    /**
+     * Returns the number of invalid personal identity numbers.
+     *
+     * @return the number of invalid numbers
+     */
+    public long getInvalid() {
+      return this.invalid;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+      return String.format("lines=%d, valid=%d, invalid=%d", this.lines, this.valid, this.invalid);
+    }
+  }
+
+  /**
+   * The validation of one chunk of the file.
+   */
+  private static class ChunkValidation extends RecursiveTask<Chunk> {
+
+    /** For serializing. */
+    private static final long serialVersionUID = -3587206716395616047L;
+
+    /** The file channel. */
+    private final transient FileChannel channel;
+
+    /** The start of the chunk. */
+    private final long start;
+
+    /** The end of the chunk (exclusive). */
+    private final long end;
+
+    /**
+     * Constructor.
+     *
+     * @param channel
+     *          the file channel
+     * @param start
+     *          the start of the chunk
+     * @param end
+     *          the end of the chunk (exclusive)
+     */
+    public ChunkValidation(final FileChannel channel, final long start, final long end) {
+      this.channel = channel;
+      this.start = start;
+      this.end = end;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected Chunk compute() {
+      if (this.end - this.start > Integer.MAX_VALUE) {
+        throw new UncheckedIOException(new IOException("Line too long at position " + this.start));
+      }
+      final MappedByteBuffer buffer;
+      try {
+        buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, this.start, this.end - this.start);
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      final int length = buffer.limit();
+      final ByteSequence bytes = new ByteSequence(buffer);
+      final Chunk chunk = new Chunk(NORMALIZED_LINE_LENGTH * (length / MIN_VALID_LINE_LENGTH + 1));
+      final char[] digits = new char[PersonalIdentityNumber.MAX_FORMATTED_LENGTH];
+
+      int lineStart = 0;
+      while (lineStart < length) {
+        int lineEnd = lineStart;
+        while (lineEnd < length && buffer.get(lineEnd) != '\n') {
+          lineEnd++;
+        }
+        chunk.lines++;
+
+        int from = lineStart;
+        int to = lineEnd;
+        while (from < to && (buffer.get(from) & 0xff) <= ' ') {
+          from++;
+        }
+        while (to > from && (buffer.get(to - 1) & 0xff) <= ' ') {
+          to--;
+        }
+        if (from < to) {
+          final long packed = PersonalIdentityNumber.parsePacked(bytes, from, to);
+          if (packed >= 0) {
+            final int n = PersonalIdentityNumber.format(packed, Format.TWELVE_DIGITS_NO_DELIMITER, digits, 0);
+            for (int i = 0; i < n; i++) {
+              chunk.normalized[chunk.normalizedLength++] = (byte) digits[i];
+            }
+            chunk.normalized[chunk.normalizedLength++] = '\n';
+            chunk.valid++;
+          }
+          else {
+            final byte[] input = new byte[to - from];
+            for (int i = 0; i < input.length; i++) {
+              input[i] = buffer.get(from + i);
+            }
+            chunk.errors.add(new ChunkError(chunk.lines - 1, input, PersonalIdentityNumber.getErrorMessage(packed)));
+          }
+        }
+        lineStart = lineEnd + 1;
+      }
+      return chunk;
+    }
+  }
+
+  /**
+   * The validation result for one chunk.
+   */
+  private static class Chunk {
+
+    /** The normalized numbers. */
+    private final byte[] normalized;
+
+    /** The number of bytes used in {@code normalized}. */
+    private int normalizedLength;
+
+    /** The number of lines. */
+    private int lines;
+
+    /** The number of valid numbers. */
+    private int valid;
+
+    /** The invalid numbers. */
+    private final List<ChunkError> errors = new ArrayList<>();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity
+     *          the capacity needed for the normalized numbers
+     */
+    public Chunk(final int capacity) {
+      this.normalized = new byte[capacity];
+    }
+  }
+
+  /**
+   * An invalid number found in a chunk.
+   */
+  private static class ChunkError {
+
+    /** The line number within the chunk (starting at 0). */
+    private final int line;
+
+    /** The input line. */
+    private final byte[] input;
+
+    /** The error message. */
+    private final String message;
+
+    /**
+     * Constructor.
+     *
+     * @param line
+     *          the line number within the chunk
+     * @param input
+     *          the input line
+     * @param message
+     *          the error message
+     */
+    public ChunkError(final int line, final byte[] input, final String message) {
+      this.line = line;
+      this.input = input;
+      this.message = message;
+    }
+  }
+
+  /**
+   * A {@link CharSequence} view of a byte buffer (each byte is a character), so that the bytes can be parsed without
+   * being decoded into strings.
+   */
+  private static class ByteSequence implements CharSequence {
+
+    /** The buffer. */
+    private final ByteBuffer buffer;
+
+    /**
+     * Constructor.
+     *
+     * @param buffer
+     *          the buffer
+     */
+    public ByteSequence(final ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int length() {
+      return this.buffer.limit();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public char charAt(final int index) {
+      return (char) (this.buffer.get(index) & 0xff);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public CharSequence subSequence(final int start, final int end) {
+      final char[] chars = new char[end - start];
+      for (int i = 0; i < chars.length; i++) {
+        chars[i] = this.charAt(start + i);
+      }
+      return new String(chars);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+      return this.subSequence(0, this.length()).toString();
+    }
+  }
+
+}
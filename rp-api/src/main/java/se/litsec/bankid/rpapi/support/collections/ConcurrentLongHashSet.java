@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support.collections;
+
+import java.util.function.LongConsumer;
+
+import org.springframework.util.Assert;
+
+/**
+ * A thread safe set of {@code long} values. The values are spread over a number of stripes, where each stripe is a
+ * {@link LongHashSet} guarded by its own lock. Thus, threads working with different values rarely contend, and the
+ * memory per value is the same as for {@link LongHashSet}.
+ * <p>
+ * Iteration ({@link #forEach(LongConsumer)}) locks one stripe at a time, so it does not give a consistent snapshot of
+ * the whole set.
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class ConcurrentLongHashSet {
+
+  /** The stripes (each stripe is its own lock). */
+  private final LongHashSet[] stripes;
+
+  /** The stripe mask. */
+  private final int stripeMask;
+
+  /**
+   * Constructor creating an empty set using the default number of stripes (four per processor).
+   */
+  public ConcurrentLongHashSet() {
+    this(LongHashing.DEFAULT_EXPECTED_SIZE, 0);
+  }
+
+  /**
+   * Constructor creating an empty set.
+   *
+   * @param expectedSize
+   *          the expected number of values
+   * @param stripes
+   *          the number of stripes (rounded up to a power of two), 0 means four per processor
+   */
+  public ConcurrentLongHashSet(final int expectedSize, final int stripes) {
+    Assert.isTrue(expectedSize >= 0, "expectedSize must not be negative");
+    Assert.isTrue(stripes >= 0, "stripes must not be negative");
+    final int n = LongHashing.stripes(stripes);
+    this.stripes = new LongHashSet[n];
+    for (int i = 0; i < n; i++) {
+      this.stripes[i] = new LongHashSet(expectedSize / n);
+    }
+    this.stripeMask = n - 1;
+  }
+
+  /**
+   * Adds a value to the set.
+   *
+   * @param value
+   *          the value
+   * @return true if the value was added and false if it already was present
+   */
+  public boolean add(final long value) {
+    final LongHashSet stripe = this.stripe(value);
+    synchronized (stripe) {
+      return stripe.add(value);
+    }
+  }
+
+  /**
+   * Tells whether the set contains the given value.
+   *
+   * @param value
+   *          the value
+   * @return true if the value is present and false otherwise
+   */
+  public boolean contains(final long value) {
+    final LongHashSet stripe = this.stripe(value);
+    synchronized (stripe) {
+      return stripe.contains(value);
+    }
+  }
+
+  /**
+   * Removes a value from the set.
+   *
+   * @param value
+   *          the value
+   * @return true if the value was removed and false if it was not present
+   */
+  public boolean remove(final long value) {
+    final LongHashSet stripe = this.stripe(value);
+    synchronized (stripe) {
+      return stripe.remove(value);
+    }
+  }
+
+  /**
+   * Returns the number of values in the set.
+   *
+   * @return the size
+   */
+  public int size() {
+    int size = 0;
+    for (LongHashSet stripe : this.stripes) {
+      synchronized (stripe) {
+        size += stripe.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Tells whether the set is empty.
+   *
+   * @return true if the set is empty
+   */
+  public boolean isEmpty() {
+    return this.size() == 0;
+  }
+
+  /**
+   * Removes all values.
+   */
+  public void clear() {
+    for (LongHashSet stripe : this.stripes) {
+      synchronized (stripe) {
+        stripe.clear();
+      }
+    }
+  }
+
+  /**
+   * Invokes the action for each value in the set (in no particular order). The action is invoked while holding the lock
+   * for the value's stripe, so it must not access this set.
+   *
+   * @param action
+   *          the action
+   */
+  public void forEach(final LongConsumer action) {
+    for (LongHashSet stripe : this.stripes) {
+      synchronized (stripe) {
+        stripe.forEach(action);
+      }
+    }
+  }
+
+  /**
+   * Returns the stripe for a value.
+   *
+   * @param value
+   *          the value
+   * @return the stripe
+   */
+  private LongHashSet stripe(final long value) {
+    return this.stripes[LongHashing.stripe(value, this.stripeMask)];
+  }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support.collections;
+
+import org.springframework.util.Assert;
+
+import se.litsec.bankid.rpapi.support.collections.LongIntHashMap.LongIntConsumer;
+
+/**
+ * A thread safe map from {@code long} keys to {@code int} values, suitable for counters (see
+ * {@link #addTo(long, int)}). The keys are spread over a number of stripes, where each stripe is a
+ * {@link LongIntHashMap} guarded by its own lock. Thus, threads working with different keys rarely contend, and the
+ * memory per entry is the same as for {@link LongIntHashMap}.
+ * <p>
+ * A key that is not present has the value 0. Iteration ({@link #forEach(LongIntConsumer)}) locks one stripe at a time,
+ * so it does not give a consistent snapshot of the whole map.
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class ConcurrentLongIntHashMap {
+
+  /** The stripes (each stripe is its own lock). */
+  private final LongIntHashMap[] stripes;
+
+  /** The stripe mask. */
+  private final int stripeMask;
+
+  /**
+   * Constructor creating an empty map using the default number of stripes (four per processor).
+   */
+  public ConcurrentLongIntHashMap() {
+    this(LongHashing.DEFAULT_EXPECTED_SIZE, 0);
+  }
+
+  /**
+   * Constructor creating an empty map.
+   *
+   * @param expectedSize
+   *          the expected number of entries
+   * @param stripes
+   *          the number of stripes (rounded up to a power of two), 0 means four per processor
+   */
+  public ConcurrentLongIntHashMap(final int expectedSize, final int stripes) {
+    Assert.isTrue(expectedSize >= 0, "expectedSize must not be negative");
+    Assert.isTrue(stripes >= 0, "stripes must not be negative");
+    final int n = LongHashing.stripes(stripes);
+    this.stripes = new LongIntHashMap[n];
+    for (int i = 0; i < n; i++) {
+      this.stripes[i] = new LongIntHashMap(expectedSize / n);
+    }
+    this.stripeMask = n - 1;
+  }
+
+  /**
+   * Returns the value for the given key.
+   *
+   * @param key
+   *          the key
+   * @return the value, or 0 if the key is not present
+   */
+  public int get(final long key) {
+    final LongIntHashMap stripe = this.stripe(key);
+    synchronized (stripe) {
+      return stripe.get(key);
+    }
+  }
+
+  /**
+   * Tells whether the map contains the given key.
+   *
+   * @param key
+   *          the key
+   * @return true if the key is present
+   */
+  public boolean containsKey(final long key) {
+    final LongIntHashMap stripe = this.stripe(key);
+    synchronized (stripe) {
+      return stripe.containsKey(key);
+    }
+  }
+
+  /**
+   * Associates the value with the key.
+   *
+   * @param key
+   *          the key
+   * @param value
+   *          the value
+   * @return the previous value, or 0 if the key was not present
+   */
+  public int put(final long key, final int value) {
+    final LongIntHashMap stripe = this.stripe(key);
+    synchronized (stripe) {
+      return stripe.put(key, value);
+    }
+  }
+
+  /**
+   * Atomically adds to the value for the given key (a key that is not present is added with the value {@code delta}).
+   *
+   * @param key
+   *          the key
+   * @param delta
+   *          the value to add
+   * @return the new value
+   */
+  public int addTo(final long key, final int delta) {
+    final LongIntHashMap stripe = this.stripe(key);
+    synchronized (stripe) {
+      return stripe.addTo(key, delta);
+    }
+  }
+
+  /**
+   * Removes the entry for the given key.
+   *
+   * @param key
+   *          the key
+   * @return the removed value, or 0 if the key was not present
+   */
+  public int remove(final long key) {
+    final LongIntHashMap stripe = this.stripe(key);
+    synchronized (stripe) {
+      return stripe.remove(key);
+    }
+  }
+
+  /**
+   * Returns the number of entries in the map.
+   *
+   * @return the size
+   */
+  public int size() {
+    int size = 0;
+    for (LongIntHashMap stripe : this.stripes) {
+      synchronized (stripe) {
+        size += stripe.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Tells whether the map is empty.
+   *
+   * @return true if the map is empty
+   */
+  public boolean isEmpty() {
+    return this.size() == 0;
+  }
+
+  /**
+   * Removes all entries.
+   */
+  public void clear() {
+    for (LongIntHashMap stripe : this.stripes) {
+      synchronized (stripe) {
+        stripe.clear();
+      }
+    }
+  }
+
+  /**
+   * Invokes the action for each entry in the map (in no particular order). The action is invoked while holding the lock
+   * for the entry's stripe, so it must not access this map.
+   *
+   * @param action
+   *          the action
+   */
+  public void forEach(final LongIntConsumer action) {
+    for (LongIntHashMap stripe : this.stripes) {
+      synchronized (stripe) {
+        stripe.forEach(action);
+      }
+    }
+  }
+
+  /**
+   * Returns the stripe for a key.
+   *
+   * @param key
+   *          the key
+   * @return the stripe
+   */
+  private LongIntHashMap stripe(final long key) {
+    return this.stripes[LongHashing.stripe(key, this.stripeMask)];
+  }
+
+}
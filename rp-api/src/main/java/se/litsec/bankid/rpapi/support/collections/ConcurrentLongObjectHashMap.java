@@ -0,0 +1,246 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support.collections;
+
+import java.util.function.LongFunction;
+
+import org.springframework.util.Assert;
+
+import se.litsec.bankid.rpapi.support.collections.LongObjectHashMap.LongObjectConsumer;
+
+/**
+ * A thread safe map from {@code long} keys to objects. The keys are spread over a number of stripes, where each stripe
+ * is a {@link LongObjectHashMap} guarded by its own lock. Thus, threads working with different keys rarely contend,
+ * and the memory per entry is the same as for {@link LongObjectHashMap}.
+ * <p>
+ * {@code null} values are not allowed. Iteration ({@link #forEach(LongObjectConsumer)}) locks one stripe at a time, so
+ * it does not give a consistent snapshot of the whole map.
+ * </p>
+ *
+ * @param <V>
+ *          the value type
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class ConcurrentLongObjectHashMap<V> {
+
+  /** The stripes (each stripe is its own lock). */
+  private final LongObjectHashMap<V>[] stripes;
+
+  /** The stripe mask. */
+  private final int stripeMask;
+
+  /**
+   * Constructor creating an empty map using the default number of stripes (four per processor).
+   */
+  public ConcurrentLongObjectHashMap() {
+    this(LongHashing.DEFAULT_EXPECTED_SIZE, 0);
+  }
+
+  /**
+   * Constructor creating an empty map.
+   *
+   * @param expectedSize
+   *          the expected number of entries
+   * @param stripes
+   *          the number of stripes (rounded up to a power of two), 0 means four per processor
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public ConcurrentLongObjectHashMap(final int expectedSize, final int stripes) {
+    Assert.isTrue(expectedSize >= 0, "expectedSize must not be negative");
+    Assert.isTrue(stripes >= 0, "stripes must not be negative");
+    final int n = LongHashing.stripes(stripes);
+    this.stripes = new LongObjectHashMap[n];
+    for (int i = 0; i < n; i++) {
+      this.stripes[i] = new LongObjectHashMap<>(expectedSize / n);
+    }
+    this.stripeMask = n - 1;
+  }
+
+  /**
+   * Returns the value for the given key.
+   *
+   * @param key
+   *          the key
+   * @return the value, or null if the key is not present
+   */
+  public V get(final long key) {
+    final LongObjectHashMap<V> stripe = this.stripe(key);
+    synchronized (stripe) {
+      return stripe.get(key);
+    }
+  }
+
+  /**
+   * Tells whether the map contains the given key.
+   *
+   * @param key
+   *          the key
+   * @return true if the key is present
+   */
+  public boolean containsKey(final long key) {
+    final LongObjectHashMap<V> stripe = this.stripe(key);
+    synchronized (stripe) {
+      return stripe.containsKey(key);
+    }
+  }
+
+  /**
+   * Associates the value with the key.
+   *
+   * @param key
+   *          the key
+   * @param value
+   *          the value (must not be null)
+   * @return the previous value, or null if the key was not present
+   */
+  public V put(final long key, final V value) {
+    final LongObjectHashMap<V> stripe = this.stripe(key);
+    synchronized (stripe) {
+      return stripe.put(key, value);
+    }
+  }
+
+  /**
+   * Associates the value with the key if the key is not already present.
+   *
+   * @param key
+   *          the key
+   * @param value
+   *          the value (must not be null)
+   * @return the current value, or null if the key was not present (and the value was added)
+   */
+  public V putIfAbsent(final long key, final V value) {
+    final LongObjectHashMap<V> stripe = this.stripe(key);
+    synchronized (stripe) {
+      return stripe.putIfAbsent(key, value);
+    }
+  }
+
+  /**
+   * Returns the value for the given key, and if the key is not present, atomically adds the value given by the mapping
+   * function. The function is invoked while holding the lock for the key's stripe, so it should be short and must not
+   * access this map.
+   *
+   * @param key
+   *          the key
+   * @param mappingFunction
+   *          the function giving the value for a key that is not present (must not return null)
+   * @return the current (or added) value
+   */
+  public V computeIfAbsent(final long key, final LongFunction<? extends V> mappingFunction) {
+    final LongObjectHashMap<V> stripe = this.stripe(key);
+    synchronized (stripe) {
+      return stripe.computeIfAbsent(key, mappingFunction);
+    }
+  }
+
+  /**
+   * Removes the entry for the given key.
+   *
+   * @param key
+   *          the key
+   * @return the removed value, or null if the key was not present
+   */
+  public V remove(final long key) {
+    final LongObjectHashMap<V> stripe = this.stripe(key);
+    synchronized (stripe) {
+      return stripe.remove(key);
+    }
+  }
+
+  /**
+   * Removes the entry for the given key if it is mapped to the given value.
+   *
+   * @param key
+   *          the key
+   * @param value
+   *          the expected value
+   * @return true if the entry was removed
+   */
+  public boolean remove(final long key, final Object value) {
+    final LongObjectHashMap<V> stripe = this.stripe(key);
+    synchronized (stripe) {
+      final V current = stripe.get(key);
+      if (current != null && current.equals(value)) {
+        stripe.remove(key);
+        return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Returns the number of entries in the map.
+   *
+   * @return the size
+   */
+  public int size() {
+    int size = 0;
+    for (LongObjectHashMap<V> stripe : this.stripes) {
+      synchronized (stripe) {
+        size += stripe.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Tells whether the map is empty.
+   *
+   * @return true if the map is empty
+   */
+  public boolean isEmpty() {
+    return this.size() == 0;
+  }
+
+  /**
+   * Removes all entries.
+   */
+  public void clear() {
+    for (LongObjectHashMap<V> stripe : this.stripes) {
+      synchronized (stripe) {
+        stripe.clear();
+      }
+    }
+  }
+
+  /**
+   * Invokes the action for each entry in the map (in no particular order). The action is invoked while holding the lock
+   * for the entry's stripe, so it must not access this map.
+   *
+   * @param action
+   *          the action
+   */
+  public void forEach(final LongObjectConsumer<? super V> action) {
+    for (LongObjectHashMap<V> stripe : this.stripes) {
+      synchronized (stripe) {
+        stripe.forEach(action);
+      }
+    }
+  }
+
+  /**
+   * Returns the stripe for a key.
+   *
+   * @param key
+   *          the key
+   * @return the stripe
+   */
+  private LongObjectHashMap<V> stripe(final long key) {
+    return this.stripes[LongHashing.stripe(key, this.stripeMask)];
+  }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support.collections;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+import org.springframework.util.Assert;
+
+/**
+ * A set of {@code long} values using open addressing (linear probing) in one {@code long} array. No values are boxed,
+ * and the memory used is 8 bytes per slot. Between 37.5% and 75% of the slots are used (unless the set has shrunk), so
+ * a value costs between 11 and 22 bytes.
+ * <p>
+ * This class is not thread safe, see {@link ConcurrentLongHashSet}.
+ * </p>
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class LongHashSet {
+
+  /** The slots (0 means a free slot). */
+  private long[] keys;
+
+  /** Whether the set contains 0 (which can not be stored in the slots). */
+  private boolean containsZero;
+
+  /** The number of values in the slots. */
+  private int used;
+
+  /** The slot mask. */
+  private int mask;
+
+  /** The number of values at which the table is grown. */
+  private int maxFill;
+
+  /**
+   * Constructor creating an empty set.
+   */
+  public LongHashSet() {
+    this(LongHashing.DEFAULT_EXPECTED_SIZE);
+  }
+
+  /**
+   * Constructor creating an empty set that may hold the given number of values without being grown.
+   *
+   * @param expectedSize
+   *          the expected number of values
+   */
+  public LongHashSet(final int expectedSize) {
+    Assert.isTrue(expectedSize >= 0, "expectedSize must not be negative");
+    this.allocate(LongHashing.capacityFor(expectedSize));
+  }
+
+  /**
+   * Adds a value to the set.
+   *
+   * @param value
+   *          the value
+   * @return true if the value was added and false if it already was present
+   */
+  public boolean add(final long value) {
+    if (value == 0) {
+      final boolean added = !this.containsZero;
+      this.containsZero = true;
+      return added;
+    }
+    int pos = LongHashing.mix(value) & this.mask;
+    long current;
+    while ((current = this.keys[pos]) != 0) {
+      if (current == value) {
+        return false;
+      }
+      pos = (pos + 1) & this.mask;
+    }
+    this.keys[pos] = value;
+    if (++this.used > this.maxFill) {
+      this.rehash(this.keys.length * 2);
+    }
+    return true;
+  }
+
+  /**
+   * Tells whether the set contains the given value.
+   *
+   * @param value
+   *          the value
+   * @return true if the value is present and false otherwise
+   */
+  public boolean contains(final long value) {
+    if (value == 0) {
+      return this.containsZero;
+    }
+    int pos = LongHashing.mix(value) & this.mask;
+    long current;
+    while ((current = this.keys[pos]) != 0) {
+      if (current == value) {
+        return true;
+      }
+      pos = (pos + 1) & this.mask;
+    }
+    return false;
+  }
+
+  /**
+   * Removes a value from the set.
+   *
+   * @param value
+   *          the value
+   * @return true if the value was removed and false if it was not present
+   */
+  public boolean remove(final long value) {
+    if (value == 0) {
+      final boolean removed = this.containsZero;
+      this.containsZero = false;
+      return removed;
+    }
+    int pos = LongHashing.mix(value) & this.mask;
+    long current;
+    while ((current = this.keys[pos]) != 0) {
+      if (current == value) {
+        this.used--;
+        this.shiftKeys(pos);
+        return true;
+      }
+      pos = (pos + 1) & this.mask;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of values in the set.
+   *
+   * @return the size
+   */
+  public int size() {
+    return this.used + (this.containsZero ? 1 : 0);
+  }
+
+  /**
+   * Tells whether the set is empty.
+   *
+   * @return true if the set is empty
+   */
+  public boolean isEmpty() {
+    return this.size() == 0;
+  }
+
+  /**
+   * Removes all values (the table keeps its capacity).
+   */
+  public void clear() {
+    Arrays.fill(this.keys, 0L);
+    this.used = 0;
+    this.containsZero = false;
+  }
+
+  /**
+   * Invokes the action for each value in the set (in no particular order).
+   *
+   * @param action
+   *          the action
+   */
+  public void forEach(final LongConsumer action) {
+    if (this.containsZero) {
+      action.accept(0L);
+    }
+    for (long key : this.keys) {
+      if (key != 0) {
+        action.accept(key);
+      }
+    }
+  }
+
+  /**
+   * Returns the values of the set (in no particular order).
+   *
+   * @return an array holding the values
+   */
+  public long[] toArray() {
+    final long[] values = new long[this.size()];
+    int i = this.containsZero ? 1 : 0;
+    for (long key : this.keys) {
+      if (key != 0) {
+        values[i++] = key;
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Closes the gap after a removed slot by moving the following entries back (so that no "deleted" markers are
+   * needed).
+   *
+   * @param pos
+   *          the slot that was freed
+   */
+  private void shiftKeys(int pos) {
+    while (true) {
+      final int last = pos;
+      pos = (pos + 1) & this.mask;
+      long current;
+      while (true) {
+        if ((current = this.keys[pos]) == 0) {
+          this.keys[last] = 0;
+          return;
+        }
+        final int slot = LongHashing.mix(current) & this.mask;
+        if (last <= pos ? last >= slot || slot > pos : last >= slot && slot > pos) {
+          break;
+        }
+        pos = (pos + 1) & this.mask;
+      }
+      this.keys[last] = current;
+    }
+  }
+
+  /**
+   * Moves all values to a new table with the given capacity.
+   *
+   * @param capacity
+   *          the new capacity
+   */
+  private void rehash(final int capacity) {
+    if (capacity > LongHashing.MAX_CAPACITY) {
+      throw new IllegalStateException("Set is full");
+    }
+    final long[] old = this.keys;
+    this.allocate(capacity);
+    for (long key : old) {
+      if (key != 0) {
+        int pos = LongHashing.mix(key) & this.mask;
+        while (this.keys[pos] != 0) {
+          pos = (pos + 1) & this.mask;
+        }
+        this.keys[pos] = key;
+      }
+    }
+  }
+
+  /**
+   * Allocates a new (empty) table.
+   *
+   * @param capacity
+   *          the capacity
+   */
+  private void allocate(final int capacity) {
+    this.keys = new long[capacity];
+    this.mask = capacity - 1;
+    this.maxFill = LongHashing.maxFill(capacity);
+  }
+
+}
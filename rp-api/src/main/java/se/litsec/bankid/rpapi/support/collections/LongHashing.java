@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support.collections;
+
+/**
+ * Hashing and sizing helpers for the open addressing tables of this package.
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+final class LongHashing {
+
+  /** The maximum table capacity. */
+  static final int MAX_CAPACITY = 1 << 30;
+
+  /** The default expected number of entries. */
+  static final int DEFAULT_EXPECTED_SIZE = 16;
+
+  /** The load factor. A table is grown when it is more than three quarters full. */
+  static final float LOAD_FACTOR = 0.75f;
+
+  /**
+   * Mixes the bits of a key. Packed personal identity numbers are decimal numbers with a lot of structure, so all bits
+   * are mixed into the lower bits that are used to select the slot.
+   *
+   * @param key
+   *          the key
+   * @return the hash
+   */
+  static int mix(final long key) {
+    long h = key * 0x9e3779b97f4a7c15L;
+    h ^= h >>> 32;
+    return (int) (h ^ (h >>> 16));
+  }
+
+  /**
+   * Returns the stripe index for a key in a striped (concurrent) collection. A different mixing than {@link #mix(long)}
+   * is used, so that the keys of one stripe are spread over the whole table of that stripe.
+   *
+   * @param key
+   *          the key
+   * @param stripeMask
+   *          the stripe mask (the number of stripes is a power of two)
+   * @return the stripe index
+   */
+  static int stripe(final long key, final int stripeMask) {
+    return (int) ((key * 0xc2b2ae3d27d4eb4fL) >>> 40) & stripeMask;
+  }
+
+  /**
+   * Returns the number of stripes to use for a striped (concurrent) collection.
+   *
+   * @param stripes
+   *          the requested number of stripes (0 means a default based on the number of processors)
+   * @return the number of stripes (a power of two)
+   */
+  static int stripes(final int stripes) {
+    final int requested = stripes > 0 ? stripes : 4 * Runtime.getRuntime().availableProcessors();
+    return Math.min(1 << 16, requested == 1 ? 1 : Integer.highestOneBit(requested - 1) << 1);
+  }
+
+  /**
+   * Returns the table capacity (a power of two) needed for the given number of entries.
+   *
+   * @param expectedSize
+   *          the expected number of entries
+   * @return the capacity
+   */
+  static int capacityFor(final int expectedSize) {
+    final long needed = Math.max(2L, (long) Math.ceil(expectedSize / (double) LOAD_FACTOR));
+    if (needed > MAX_CAPACITY) {
+      throw new IllegalArgumentException("Too large expected size - " + expectedSize);
+    }
+    return Integer.highestOneBit((int) needed - 1) << 1;
+  }
+
+  /**
+   * Returns the maximum number of entries for a table of the given capacity before it needs to grow.
+   *
+   * @param capacity
+   *          the capacity
+   * @return the maximum number of entries
+   */
+  static int maxFill(final int capacity) {
+    return Math.min(capacity - 1, (int) (capacity * LOAD_FACTOR));
+  }
+
+  // Hidden constructor
+  private LongHashing() {
+  }
+
+}
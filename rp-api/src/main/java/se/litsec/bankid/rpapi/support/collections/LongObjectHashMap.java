@@ -0,0 +1,362 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support.collections;
+
+import java.util.Arrays;
+import java.util.function.LongFunction;
+
+import org.springframework.util.Assert;
+
+/**
+ * A map from {@code long} keys to objects using open addressing (linear probing) in one {@code long} array for the keys
+ * and one array for the values. No keys are boxed, and no entry objects are created, so an entry costs 8 bytes for the
+ * key plus one reference for the value per slot (between 37.5% and 75% of the slots are used).
+ * <p>
+ * {@code null} values are not allowed. This class is not thread safe, see {@link ConcurrentLongObjectHashMap}.
+ * </p>
+ *
+ * @param <V>
+ *          the value type
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class LongObjectHashMap<V> {
+
+  /** The keys (0 means a free slot). */
+  private long[] keys;
+
+  /** The values. */
+  private Object[] values;
+
+  /** The value for the key 0 (which can not be stored in the slots). */
+  private V zeroValue;
+
+  /** The number of entries in the slots. */
+  private int used;
+
+  /** The slot mask. */
+  private int mask;
+
+  /** The number of entries at which the table is grown. */
+  private int maxFill;
+
+  /**
+   * Constructor creating an empty map.
+   */
+  public LongObjectHashMap() {
+    this(LongHashing.DEFAULT_EXPECTED_SIZE);
+  }
+
+  /**
+   * Constructor creating an empty map that may hold the given number of entries without being grown.
+   *
+   * @param expectedSize
+   *          the expected number of entries
+   */
+  public LongObjectHashMap(final int expectedSize) {
+    Assert.isTrue(expectedSize >= 0, "expectedSize must not be negative");
+    this.allocate(LongHashing.capacityFor(expectedSize));
+  }
+
+  /**
+   * Returns the value for the given key.
+   *
+   * @param key
+   *          the key
+   * @return the value, or null if the key is not present
+   */
+  @SuppressWarnings("unchecked")
+  public V get(final long key) {
+    if (key == 0) {
+      return this.zeroValue;
+    }
+    final int pos = this.find(key);
+    return pos >= 0 ? (V) this.values[pos] : null;
+  }
+
+  /**
+   * Tells whether the map contains the given key.
+   *
+   * @param key
+   *          the key
+   * @return true if the key is present
+   */
+  public boolean containsKey(final long key) {
+    return key == 0 ? this.zeroValue != null : this.find(key) >= 0;
+  }
+
+  /**
+   * Associates the value with the key.
+   *
+   * @param key
+   *          the key
+   * @param value
+   *          the value (must not be null)
+   * @return the previous value, or null if the key was not present
+   */
+  @SuppressWarnings("unchecked")
+  public V put(final long key, final V value) {
+    Assert.notNull(value, "value must not be null");
+    if (key == 0) {
+      final V previous = this.zeroValue;
+      this.zeroValue = value;
+      return previous;
+    }
+    final int pos = this.find(key);
+    if (pos >= 0) {
+      final V previous = (V) this.values[pos];
+      this.values[pos] = value;
+      return previous;
+    }
+    this.insert(-pos - 1, key, value);
+    return null;
+  }
+
+  /**
+   * Associates the value with the key if the key is not already present.
+   *
+   * @param key
+   *          the key
+   * @param value
+   *          the value (must not be null)
+   * @return the current value, or null if the key was not present (and the value was added)
+   */
+  public V putIfAbsent(final long key, final V value) {
+    final V current = this.get(key);
+    return current != null ? current : this.put(key, value);
+  }
+
+  /**
+   * Returns the value for the given key, and if the key is not present, adds the value given by the mapping function.
+   *
+   * @param key
+   *          the key
+   * @param mappingFunction
+   *          the function giving the value for a key that is not present (must not return null)
+   * @return the current (or added) value
+   */
+  public V computeIfAbsent(final long key, final LongFunction<? extends V> mappingFunction) {
+    V value = this.get(key);
+    if (value == null) {
+      value = mappingFunction.apply(key);
+      this.put(key, value);
+    }
+    return value;
+  }
+
+  /**
+   * Removes the entry for the given key.
+   *
+   * @param key
+   *          the key
+   * @return the removed value, or null if the key was not present
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(final long key) {
+    if (key == 0) {
+      final V previous = this.zeroValue;
+      this.zeroValue = null;
+      return previous;
+    }
+    final int pos = this.find(key);
+    if (pos < 0) {
+      return null;
+    }
+    final V previous = (V) this.values[pos];
+    this.used--;
+    this.shiftKeys(pos);
+    return previous;
+  }
+
+  /**
+   * Returns the number of entries in the map.
+   *
+   * @return the size
+   */
+  public int size() {
+    return this.used + (this.zeroValue != null ? 1 : 0);
+  }
+
+  /**
+   * Tells whether the map is empty.
+   *
+   * @return true if the map is empty
+   */
+  public boolean isEmpty() {
+    return this.size() == 0;
+  }
+
+  /**
+   * Removes all entries (the table keeps its capacity).
+   */
+  public void clear() {
+    Arrays.fill(this.keys, 0L);
+    Arrays.fill(this.values, null);
+    this.used = 0;
+    this.zeroValue = null;
+  }
+
+  /**
+   * Invokes the action for each entry in the map (in no particular order).
+   *
+   * @param action
+   *          the action
+   */
+  @SuppressWarnings("unchecked")
+  public void forEach(final LongObjectConsumer<? super V> action) {
+    if (this.zeroValue != null) {
+      action.accept(0L, this.zeroValue);
+    }
+    for (int i = 0; i < this.keys.length; i++) {
+      if (this.keys[i] != 0) {
+        action.accept(this.keys[i], (V) this.values[i]);
+      }
+    }
+  }
+
+  /**
+   * Returns the keys of the map (in no particular order).
+   *
+   * @return an array holding the keys
+   */
+  public long[] keys() {
+    final long[] result = new long[this.size()];
+    int i = this.zeroValue != null ? 1 : 0;
+    for (long key : this.keys) {
+      if (key != 0) {
+        result[i++] = key;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Finds the slot for a (non-zero) key.
+   *
+   * @param key
+   *          the key
+   * @return the slot if the key is present, and otherwise {@code -(free slot) - 1}
+   */
+  private int find(final long key) {
+    int pos = LongHashing.mix(key) & this.mask;
+    long current;
+    while ((current = this.keys[pos]) != 0) {
+      if (current == key) {
+        return pos;
+      }
+      pos = (pos + 1) & this.mask;
+    }
+    return -pos - 1;
+  }
+
+  /**
+   * Inserts an entry in a free slot.
+   */
+  private void insert(final int pos, final long key, final V value) {
+    this.keys[pos] = key;
+    this.values[pos] = value;
+    if (++this.used > this.maxFill) {
+      this.rehash(this.keys.length * 2);
+    }
+  }
+
+  /**
+   * Closes the gap after a removed slot by moving the following entries back (so that no "deleted" markers are
+   * needed).
+   *
+   * @param pos
+   *          the slot that was freed
+   */
+  private void shiftKeys(int pos) {
+    while (true) {
+      final int last = pos;
+      pos = (pos + 1) & this.mask;
+      long current;
+      while (true) {
+        if ((current = this.keys[pos]) == 0) {
+          this.keys[last] = 0;
+          this.values[last] = null;
+          return;
+        }
+        final int slot = LongHashing.mix(current) & this.mask;
+        if (last <= pos ? last >= slot || slot > pos : last >= slot && slot > pos) {
+          break;
+        }
+        pos = (pos + 1) & this.mask;
+      }
+      this.keys[last] = current;
+      this.values[last] = this.values[pos];
+    }
+  }
+
+  /**
+   * Moves all entries to a new table with the given capacity.
+   *
+   * @param capacity
+   *          the new capacity
+   */
+  private void rehash(final int capacity) {
+    if (capacity > LongHashing.MAX_CAPACITY) {
+      throw new IllegalStateException("Map is full");
+    }
+    final long[] oldKeys = this.keys;
+    final Object[] oldValues = this.values;
+    this.allocate(capacity);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0) {
+        int pos = LongHashing.mix(oldKeys[i]) & this.mask;
+        while (this.keys[pos] != 0) {
+          pos = (pos + 1) & this.mask;
+        }
+        this.keys[pos] = oldKeys[i];
+        this.values[pos] = oldValues[i];
+      }
+    }
+  }
+
+  /**
+   * Allocates a new (empty) table.
+   *
+   * @param capacity
+   *          the capacity
+   */
+  private void allocate(final int capacity) {
+    this.keys = new long[capacity];
+    this.values = new Object[capacity];
+    this.mask = capacity - 1;
+    this.maxFill = LongHashing.maxFill(capacity);
+  }
+
+  /**
+   * An operation accepting a {@code long} key and an object value.
+   *
+   * @param <V>
+   *          the value type
+   */
+  @FunctionalInterface
+  public interface LongObjectConsumer<V> {
+
+    /**
+     * Performs the operation.
+     *
+     * @param key
+     *          the key
+     * @param value
+     *          the value
+     */
+    void accept(final long key, final V value);
+  }
+
+}
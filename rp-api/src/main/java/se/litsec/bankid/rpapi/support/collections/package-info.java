@@ -0,0 +1,5 @@
+/**
+ * Primitive {@code long} keyed collections, intended for packed personal identity numbers (see
+ * {@link se.litsec.bankid.rpapi.support.PersonalIdentityNumber#toPackedValue()}).
+ */
+package se.litsec.bankid.rpapi.support.collections;
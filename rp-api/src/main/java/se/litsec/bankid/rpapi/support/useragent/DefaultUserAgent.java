@@ -17,20 +17,22 @@ package se.litsec.bankid.rpapi.support.useragent;
 
 import javax.servlet.http.HttpServletRequest;
 
-import org.springframework.mobile.device.Device;
-import org.springframework.mobile.device.LiteDeviceResolver;
 import org.springframework.util.Assert;
 
 /**
  * Default implementation of the {@link UserAgent} interface. This implementation requires spring-mobile on the
  * classpath.
+ * <p>
+ * The request is classified using a {@link UserAgentClassifier}, which caches the classification for each distinct
+ * "User-Agent" header. Unless another classifier is given, a classifier shared by all instances is used.
+ * </p>
  * 
  * @author Martin Lindström (martin@litsec.se)
  */
 public class DefaultUserAgent implements UserAgent {
 
-  /** The Spring mobile device resolver helping us to determine the type of device. */
-  private static final LiteDeviceResolver deviceResolver = new LiteDeviceResolver();
+  /** The classifier that is used if no classifier is given. */
+  private static final UserAgentClassifier defaultClassifier = new UserAgentClassifier();
 
   /** The HTTP request. */
   private final HttpServletRequest request;
@@ -38,6 +40,12 @@ public class DefaultUserAgent implements UserAgent {
   /** The user agent header. */
   private String userAgentHeader;
 
+  /** The classifier. */
+  private final UserAgentClassifier classifier;
+
+  /** The classification (resolved when first needed). */
+  private UserAgentClassification classification;
+
   /**
    * Constructor.
    * 
@@ -45,8 +53,22 @@ public class DefaultUserAgent implements UserAgent {
    *          the HTTP servlet request for the user
    */
   public DefaultUserAgent(final HttpServletRequest request) {
+    this(request, defaultClassifier);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param request
+   *          the HTTP servlet request for the user
+   * @param classifier
+   *          the classifier to use
+   */
+  public DefaultUserAgent(final HttpServletRequest request, final UserAgentClassifier classifier) {
     Assert.notNull(request, "request must not be null");
+    Assert.notNull(classifier, "classifier must not be null");
     this.request = request;
+    this.classifier = classifier;
     final String header = this.request.getHeader("User-Agent");
     this.userAgentHeader = header != null ? header : "";
   }
@@ -54,16 +76,7 @@ public class DefaultUserAgent implements UserAgent {
   /** {@inheritDoc} */
   @Override
   public UserDeviceType getUserDeviceType() {
-    final Device device = deviceResolver.resolveDevice(this.request);
-    if (device.isMobile()) {
-      return UserDeviceType.MOBILE;
-    }
-    else if (device.isTablet()) {
-      return UserDeviceType.TABLET;
-    }
-    else {
-      return UserDeviceType.DESKTOP;
-    }
+    return this.getClassification().getUserDeviceType();
   }
 
   /** {@inheritDoc} */
@@ -81,48 +94,31 @@ public class DefaultUserAgent implements UserAgent {
   /** {@inheritDoc} */
   @Override
   public boolean is_iOS() {
-    final String userAgent = this.getUserAgentHeader();
-    return (userAgent.contains("iphone") || userAgent.contains("ipod") || userAgent.contains("ipad"));
+    return this.getClassification().is_iOS();
   }
 
   /** {@inheritDoc} */
   @Override
   public boolean isNonEmbeddedMobileSafari() {
-    final String header = this.getUserAgentHeader();
-    if (header.contains("AppleWebKit") 
-        && !(header.contains("CriOS") || header.contains("Chrome")) /* Chrome */
-        && !header.contains("FxiOS") /* Firefox */) 
-    {
-      // Make sure that this is not an embedded Safari. So filter out the most common apps
-      // that we know do not have a whitelisting for the BankID app.
-      //
-      if (this.isEmbeddedBrowser()) {
-        return false;
-      }
-      return true;
-    }
-    else {
-      return false;
-    }
+    return this.getClassification().isNonEmbeddedMobileSafari();
   }
 
   /** {@inheritDoc} */
   @Override
   public boolean isEmbeddedBrowser() {
-    final String header = this.getUserAgentHeader();
-    if (header.contains("GSA")) {
-      // Google Search App
-      return true;
-    }
-    else if (header.contains("FBAN")) {
-      // Facebook app
-      return true;
-    }
-    else if (header.contains("Twitter")) {
-      // Twitter app
-      return true;
+    return this.getClassification().isEmbeddedBrowser();
+  }
+
+  /**
+   * Returns the classification of the request.
+   * 
+   * @return the classification
+   */
+  private UserAgentClassification getClassification() {
+    if (this.classification == null) {
+      this.classification = this.classifier.classify(this.request);
     }
-    return false;
+    return this.classification;
   }
 
 }
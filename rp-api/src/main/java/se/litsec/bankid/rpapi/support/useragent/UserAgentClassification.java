@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support.useragent;
+
+/**
+ * The immutable result of classifying a "User-Agent" header (see {@link UserAgentClassifier}), holding the device type
+ * and the predicates of {@link UserAgent}.
+ * 
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public final class UserAgentClassification {
+
+  /** The device type. */
+  private final UserDeviceType userDeviceType;
+
+  /** Whether the platform is iOS. */
+  private final boolean iOS;
+
+  /** Whether the browser is Safari (not embedded). */
+  private final boolean nonEmbeddedMobileSafari;
+
+  /** Whether the browser is embedded in another app. */
+  private final boolean embeddedBrowser;
+
+  /**
+   * Constructor.
+   * 
+   * @param userDeviceType
+   *          the device type
+   * @param iOS
+   *          whether the platform is iOS
+   * @param nonEmbeddedMobileSafari
+   *          whether the browser is Safari (not embedded)
+   * @param embeddedBrowser
+   *          whether the browser is embedded in another app
+   */
+  UserAgentClassification(final UserDeviceType userDeviceType, final boolean iOS, final boolean nonEmbeddedMobileSafari,
+      final boolean embeddedBrowser) {
+    this.userDeviceType = userDeviceType;
+    this.iOS = iOS;
+    this.nonEmbeddedMobileSafari = nonEmbeddedMobileSafari;
+    this.embeddedBrowser = embeddedBrowser;
+  }
+
+  /**
+   * Constructor copying a classification but with another device type.
+   * 
+   * @param classification
+   *          the classification to copy
+   * @param userDeviceType
+   *          the device type
+   */
+  UserAgentClassification(final UserAgentClassification classification, final UserDeviceType userDeviceType) {
+    this.userDeviceType = userDeviceType;
+    this.iOS = classification.iOS;
+    this.nonEmbeddedMobileSafari = classification.nonEmbeddedMobileSafari;
+    this.embeddedBrowser = classification.embeddedBrowser;
+  }
+
+  /**
+   * Returns the device type.
+   * 
+   * @return the device type
+   * @see UserAgent#getUserDeviceType()
+   */
+  public UserDeviceType getUserDeviceType() {
+    return this.userDeviceType;
+  }
+
+  /**
+   * Predicate telling whether the platform is iOS.
+   * 
+   * @return true for iOS and false otherwise
+   * @see UserAgent#is_iOS()
+   */
+  public boolean is_iOS() {
+    return this.iOS;
+  }
+
+  /**
+   * Predicate telling whether the browser is Safari (not embedded in another app).
+   * 
+   * @return true for Safari and false otherwise
+   * @see UserAgent#isNonEmbeddedMobileSafari()
+   */
+  public boolean isNonEmbeddedMobileSafari() {
+    return this.nonEmbeddedMobileSafari;
+  }
+
+  /**
+   * Predicate telling whether the browser is embedded in another app.
+   * 
+   * @return true for an embedded browser and false otherwise
+   * @see UserAgent#isEmbeddedBrowser()
+   */
+  public boolean isEmbeddedBrowser() {
+    return this.embeddedBrowser;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return String.format("device-type='%s', iOS='%s', non-embedded-mobile-safari='%s', embedded-browser='%s'",
+      this.userDeviceType, this.iOS, this.nonEmbeddedMobileSafari, this.embeddedBrowser);
+  }
+
+}
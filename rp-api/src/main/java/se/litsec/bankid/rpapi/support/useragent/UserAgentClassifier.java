@@ -0,0 +1,278 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support.useragent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.springframework.mobile.device.Device;
+import org.springframework.mobile.device.LiteDeviceResolver;
+import org.springframework.util.Assert;
+
+/**
+ * Classifies requests based on their "User-Agent" header. Since real traffic only has a few thousand distinct headers,
+ * the classifications are cached (keyed by the header), so the device resolving and the header scanning is only
+ * performed once per distinct header.
+ * <p>
+ * The Spring mobile device resolver also looks at a few other headers (x-wap-profile, Profile, Accept and Opera Mini
+ * headers), which may only turn a desktop into a mobile device. Those headers are checked for each request classified
+ * as desktop by its "User-Agent" header, so the result is the same as using the resolver directly.
+ * </p>
+ * <p>
+ * The header is scanned once for all patterns of interest (see {@link UserAgentPatternMatcher}). The signatures used to
+ * detect embedded browsers (see {@link UserAgent#isEmbeddedBrowser()}) may be configured using
+ * {@link #setEmbeddedBrowserSignatures(List)}.
+ * </p>
+ * <p>
+ * The cache is bounded. When it is full, an arbitrary entry is evicted. Headers longer than the maximum header length
+ * are not cached.
+ * </p>
+ * 
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class UserAgentClassifier {
+
+  /** The default maximum number of cached classifications. */
+  public static final int DEFAULT_MAX_SIZE = 4096;
+
+  /** The default maximum length of a header that is cached. */
+  public static final int DEFAULT_MAX_HEADER_LENGTH = 512;
+
+  /** The default signatures for embedded browsers (Google Search App, Facebook app and Twitter app). */
+  public static final List<String> DEFAULT_EMBEDDED_BROWSER_SIGNATURES = Collections.unmodifiableList(
+    Arrays.asList("GSA", "FBAN", "Twitter"));
+
+  /** The fixed patterns. The embedded browser signatures follow these. */
+  private static final List<String> PATTERNS = Arrays.asList("iphone", "ipod", "ipad", "AppleWebKit", "CriOS", "Chrome", "FxiOS");
+
+  /** The patterns that indicate iOS. */
+  private static final long IOS = 0x07L;
+
+  /** The pattern that indicates a WebKit browser. */
+  private static final long WEBKIT = 0x08L;
+
+  /** The patterns that indicate another browser than Safari (Chrome and Firefox). */
+  private static final long NOT_SAFARI = 0x70L;
+
+  /** The "User-Agent" header name. */
+  private static final String USER_AGENT = "User-Agent";
+
+  /** The Spring mobile device resolver helping us to determine the type of device. */
+  private static final LiteDeviceResolver deviceResolver = new LiteDeviceResolver();
+
+  /** The pattern matcher. */
+  private volatile UserAgentPatternMatcher matcher = createMatcher(DEFAULT_EMBEDDED_BROWSER_SIGNATURES);
+
+  /** The cached classifications. */
+  private final ConcurrentMap<String, UserAgentClassification> cache = new ConcurrentHashMap<>();
+
+  /** The maximum number of cached classifications. */
+  private int maxSize = DEFAULT_MAX_SIZE;
+
+  /** The maximum length of a header that is cached. */
+  private int maxHeaderLength = DEFAULT_MAX_HEADER_LENGTH;
+
+  /**
+   * Classifies the supplied request.
+   * 
+   * @param request
+   *          the HTTP servlet request
+   * @return the classification
+   */
+  public UserAgentClassification classify(final HttpServletRequest request) {
+    Assert.notNull(request, "request must not be null");
+    final String header = request.getHeader(USER_AGENT);
+    final String key = header != null ? header : "";
+
+    UserAgentClassification classification = this.cache.get(key);
+    if (classification == null) {
+      final long found = this.matcher.match(key);
+      final boolean embeddedBrowser = (found & ~(IOS | WEBKIT | NOT_SAFARI)) != 0;
+      classification = new UserAgentClassification(getUserDeviceType(new UserAgentOnlyRequest(request, header)),
+        (found & IOS) != 0, (found & (WEBKIT | NOT_SAFARI)) == WEBKIT && !embeddedBrowser, embeddedBrowser);
+      if (key.length() <= this.maxHeaderLength) {
+        if (this.cache.size() >= this.maxSize) {
+          final Iterator<String> i = this.cache.keySet().iterator();
+          if (i.hasNext()) {
+            this.cache.remove(i.next());
+          }
+        }
+        this.cache.putIfAbsent(key, classification);
+      }
+    }
+    if (classification.getUserDeviceType() == UserDeviceType.DESKTOP && hasMobileHeaders(request)) {
+      return new UserAgentClassification(classification, UserDeviceType.MOBILE);
+    }
+    return classification;
+  }
+
+  /**
+   * Returns the number of cached classifications.
+   * 
+   * @return the cache size
+   */
+  public int getCacheSize() {
+    return this.cache.size();
+  }
+
+  /**
+   * Removes all cached classifications.
+   */
+  public void clear() {
+    this.cache.clear();
+  }
+
+  /**
+   * Assigns the signatures (case sensitive sub strings of the "User-Agent" header) that indicate that the browser is
+   * embedded in another app. The default is {@link #DEFAULT_EMBEDDED_BROWSER_SIGNATURES}. Assigning the signatures
+   * clears the cache.
+   * 
+   * @param signatures
+   *          the signatures
+   */
+  public void setEmbeddedBrowserSignatures(final List<String> signatures) {
+    Assert.notNull(signatures, "signatures must not be null");
+    Assert.isTrue(PATTERNS.size() + signatures.size() <= UserAgentPatternMatcher.MAX_PATTERNS,
+      "At most " + (UserAgentPatternMatcher.MAX_PATTERNS - PATTERNS.size()) + " signatures are supported");
+    this.matcher = createMatcher(signatures);
+    this.cache.clear();
+  }
+
+  /**
+   * Assigns the maximum number of cached classifications. The default is {@value #DEFAULT_MAX_SIZE}.
+   * 
+   * @param maxSize
+   *          the maximum cache size
+   */
+  public void setMaxSize(final int maxSize) {
+    Assert.isTrue(maxSize > 0, "maxSize must be greater than 0");
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Assigns the maximum length of a "User-Agent" header that is cached. The default is
+   * {@value #DEFAULT_MAX_HEADER_LENGTH}.
+   * 
+   * @param maxHeaderLength
+   *          the maximum header length
+   */
+  public void setMaxHeaderLength(final int maxHeaderLength) {
+    Assert.isTrue(maxHeaderLength >= 0, "maxHeaderLength must not be negative");
+    this.maxHeaderLength = maxHeaderLength;
+  }
+
+  /**
+   * Creates the pattern matcher.
+   * 
+   * @param signatures
+   *          the embedded browser signatures
+   * @return the matcher
+   */
+  private static UserAgentPatternMatcher createMatcher(final List<String> signatures) {
+    final List<String> patterns = new ArrayList<>(PATTERNS);
+    patterns.addAll(signatures);
+    return new UserAgentPatternMatcher(patterns);
+  }
+
+  /**
+   * Resolves the device type.
+   * 
+   * @param request
+   *          the request
+   * @return the device type
+   */
+  private static UserDeviceType getUserDeviceType(final HttpServletRequest request) {
+    final Device device = deviceResolver.resolveDevice(request);
+    if (device.isMobile()) {
+      return UserDeviceType.MOBILE;
+    }
+    else if (device.isTablet()) {
+      return UserDeviceType.TABLET;
+    }
+    else {
+      return UserDeviceType.DESKTOP;
+    }
+  }
+
+  /**
+   * Tells whether the request has any of the headers, apart from "User-Agent", that makes the Spring mobile device
+   * resolver regard the device as a mobile device.
+   * 
+   * @param request
+   *          the request
+   * @return true if the request has such headers
+   */
+  private static boolean hasMobileHeaders(final HttpServletRequest request) {
+    if (request.getHeader("x-wap-profile") != null || request.getHeader("Profile") != null) {
+      return true;
+    }
+    final String accept = request.getHeader("Accept");
+    if (accept != null && accept.contains("wap")) {
+      return true;
+    }
+    final Enumeration<String> names = request.getHeaderNames();
+    while (names != null && names.hasMoreElements()) {
+      if (names.nextElement().contains("OperaMini")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A request that only exposes the "User-Agent" header, so that the device resolver classifies the header only.
+   */
+  private static class UserAgentOnlyRequest extends HttpServletRequestWrapper {
+
+    /** The "User-Agent" header. */
+    private final String userAgent;
+
+    /**
+     * Constructor.
+     * 
+     * @param request
+     *          the request
+     * @param userAgent
+     *          the "User-Agent" header (may be null)
+     */
+    public UserAgentOnlyRequest(final HttpServletRequest request, final String userAgent) {
+      super(request);
+      this.userAgent = userAgent;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getHeader(final String name) {
+      return USER_AGENT.equalsIgnoreCase(name) ? this.userAgent : null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Enumeration<String> getHeaderNames() {
+      return this.userAgent != null ? Collections.enumeration(Collections.singletonList(USER_AGENT)) : Collections.emptyEnumeration();
+    }
+  }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support.useragent;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import org.springframework.util.Assert;
+
+/**
+ * An Aho-Corasick automaton that finds which of a set of patterns (at most 64) occur in a string, in one pass over the
+ * string. The match result is a bit mask where bit {@code i} is set if pattern {@code i} was found.
+ * <p>
+ * The automaton is compiled into a complete transition table over the characters that occur in the patterns (all other
+ * characters share one symbol), so matching is one table lookup per character. Matching is case sensitive. Instances
+ * are immutable and thread safe.
+ * </p>
+ * 
+ * @author Martin Lindström (martin@litsec.se)
+ */
+final class UserAgentPatternMatcher {
+
+  /** The maximum number of patterns. */
+  static final int MAX_PATTERNS = 64;
+
+  /** Maps a character to its symbol (0 for characters not in any pattern). */
+  private final char[] symbols;
+
+  /** The number of symbols. */
+  private final int alphabetSize;
+
+  /** The transition table, indexed by {@code state * alphabetSize + symbol}. */
+  private final int[] transitions;
+
+  /** The patterns that are found when a state is entered. */
+  private final long[] outputs;
+
+  /**
+   * Constructor.
+   * 
+   * @param patterns
+   *          the patterns (non-empty strings)
+   */
+  UserAgentPatternMatcher(final List<String> patterns) {
+    Assert.notNull(patterns, "patterns must not be null");
+    Assert.isTrue(patterns.size() <= MAX_PATTERNS, "At most " + MAX_PATTERNS + " patterns are supported");
+
+    // Assign a symbol to each character that occurs in a pattern ...
+    //
+    char maxChar = 0;
+    for (String p : patterns) {
+      Assert.hasLength(p, "patterns must not be empty");
+      for (int i = 0; i < p.length(); i++) {
+        maxChar = (char) Math.max(maxChar, p.charAt(i));
+      }
+    }
+    this.symbols = new char[maxChar + 1];
+    int size = 1;
+    for (String p : patterns) {
+      for (int i = 0; i < p.length(); i++) {
+        if (this.symbols[p.charAt(i)] == 0) {
+          this.symbols[p.charAt(i)] = (char) size++;
+        }
+      }
+    }
+    this.alphabetSize = size;
+
+    // Build the trie (-1 means no transition) ...
+    //
+    int maxStates = 1;
+    for (String p : patterns) {
+      maxStates += p.length();
+    }
+    int[] trie = new int[maxStates * this.alphabetSize];
+    Arrays.fill(trie, -1);
+    long[] out = new long[maxStates];
+    int states = 1;
+    for (int n = 0; n < patterns.size(); n++) {
+      final String p = patterns.get(n);
+      int state = 0;
+      for (int i = 0; i < p.length(); i++) {
+        final int index = state * this.alphabetSize + this.symbols[p.charAt(i)];
+        if (trie[index] < 0) {
+          trie[index] = states++;
+        }
+        state = trie[index];
+      }
+      out[state] |= 1L << n;
+    }
+
+    // Turn the trie into a complete automaton by following the failure links (breadth first) ...
+    //
+    final int[] failure = new int[states];
+    final Deque<Integer> queue = new ArrayDeque<>();
+    for (int s = 0; s < this.alphabetSize; s++) {
+      if (trie[s] < 0) {
+        trie[s] = 0;
+      }
+      else {
+        failure[trie[s]] = 0;
+        queue.add(trie[s]);
+      }
+    }
+    while (!queue.isEmpty()) {
+      final int state = queue.poll();
+      out[state] |= out[failure[state]];
+      for (int s = 0; s < this.alphabetSize; s++) {
+        final int index = state * this.alphabetSize + s;
+        final int next = trie[index];
+        if (next < 0) {
+          trie[index] = trie[failure[state] * this.alphabetSize + s];
+        }
+        else {
+          failure[next] = trie[failure[state] * this.alphabetSize + s];
+          queue.add(next);
+        }
+      }
+    }
+    this.transitions = Arrays.copyOf(trie, states * this.alphabetSize);
+    this.outputs = Arrays.copyOf(out, states);
+  }
+
+  /**
+   * Finds the patterns that occur in the supplied string.
+   * 
+   * @param text
+   *          the string to search
+   * @return a bit mask where bit {@code i} is set if pattern {@code i} was found
+   */
+  long match(final String text) {
+    final char[] symbols = this.symbols;
+    final int[] transitions = this.transitions;
+    final long[] outputs = this.outputs;
+    final int alphabetSize = this.alphabetSize;
+
+    long found = 0;
+    int state = 0;
+    for (int i = 0, length = text.length(); i < length; i++) {
+      final char c = text.charAt(i);
+      state = transitions[state * alphabetSize + (c < symbols.length ? symbols[c] : 0)];
+      found |= outputs[state];
+    }
+    return found;
+  }
+
+}
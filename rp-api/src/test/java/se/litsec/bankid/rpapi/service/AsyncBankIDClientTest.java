@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import se.litsec.bankid.rpapi.service.impl.AsyncBankIDClientImpl;
+import se.litsec.bankid.rpapi.types.BankIDException;
+import se.litsec.bankid.rpapi.types.CollectResponse;
+import se.litsec.bankid.rpapi.types.ErrorCode;
+import se.litsec.bankid.rpapi.types.OrderResponse;
+import se.litsec.bankid.rpapi.types.ProgressStatus;
+
+/**
+ * Testing the {@link AsyncBankIDClient}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class AsyncBankIDClientTest {
+
+  private HttpServer server;
+
+  private CloseableHttpAsyncClient httpClient;
+
+  private AsyncBankIDClientImpl client;
+
+  @Before
+  public void setup() throws Exception {
+    this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    this.server.start();
+    this.httpClient = HttpAsyncClients.createDefault();
+    this.httpClient.start();
+    this.client = new AsyncBankIDClientImpl(this.httpClient,
+      "http://localhost:" + this.server.getAddress().getPort() + "/rp/v5.1", null);
+  }
+
+  @After
+  public void shutdown() throws Exception {
+    this.httpClient.close();
+    this.server.stop(0);
+  }
+
+  @Test
+  public void testAuthenticate() throws Exception {
+    this.respond("/rp/v5.1/auth", 200, "{ \"orderRef\" : \"131daac9-16c6-4618-beb0-365768f37288\", "
+        + "\"autoStartToken\" : \"7c40b5c9-fa74-49cf-b98c-bfe651f9a7c6\", "
+        + "\"qrStartToken\" : \"67df3917-fa0d-44e5-b327-edcc928297f8\", \"qrStartSecret\": \"d28db9a7-4cde-429e-a983-359be676944c\" }");
+
+    OrderResponse response = this.client.authenticate("196911292032", "85.228.133.223", null).get();
+    Assert.assertEquals("131daac9-16c6-4618-beb0-365768f37288", response.getOrderReference());
+    Assert.assertEquals("7c40b5c9-fa74-49cf-b98c-bfe651f9a7c6", response.getAutoStartToken());
+    Assert.assertEquals("67df3917-fa0d-44e5-b327-edcc928297f8", response.getQrStartToken());
+    Assert.assertEquals("d28db9a7-4cde-429e-a983-359be676944c", response.getQrStartSecret());
+  }
+
+  @Test
+  public void testAuthenticateError() throws Exception {
+    this.respond("/rp/v5.1/auth", 400, "{ \"errorCode\" : \"alreadyInProgress\", \"details\" : \"Order already in progress\" }");
+
+    try {
+      this.client.authenticate("196911292032", "85.228.133.223", null).get();
+      Assert.fail("Expected BankIDException");
+    }
+    catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof BankIDException);
+      Assert.assertEquals(ErrorCode.ALREADY_IN_PROGRESS, ((BankIDException) e.getCause()).getErrorCode());
+    }
+  }
+
+  @Test
+  public void testCollect() throws Exception {
+    this.respond("/rp/v5.1/collect", 200,
+      "{ \"orderRef\" : \"131daac9-16c6-4618-beb0-365768f37288\", \"status\" : \"pending\", \"hintCode\" : \"userSign\" }");
+
+    CollectResponse response = this.client.collect("131daac9-16c6-4618-beb0-365768f37288").get();
+    Assert.assertEquals("131daac9-16c6-4618-beb0-365768f37288", response.getOrderReference());
+    Assert.assertEquals(ProgressStatus.USER_SIGN, response.getProgressStatus());
+  }
+
+  @Test
+  public void testCollectFailed() throws Exception {
+    this.respond("/rp/v5.1/collect", 200,
+      "{ \"orderRef\" : \"131daac9-16c6-4618-beb0-365768f37288\", \"status\" : \"failed\", \"hintCode\" : \"userCancel\" }");
+
+    try {
+      this.client.collect("131daac9-16c6-4618-beb0-365768f37288").get();
+      Assert.fail("Expected BankIDException");
+    }
+    catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof BankIDException);
+      Assert.assertEquals(ErrorCode.USER_CANCEL, ((BankIDException) e.getCause()).getErrorCode());
+    }
+  }
+
+  private void respond(final String path, final int status, final String body) {
+    this.server.createContext(path, exchange -> {
+      final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(status, bytes.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(bytes);
+      }
+    });
+  }
+
+}
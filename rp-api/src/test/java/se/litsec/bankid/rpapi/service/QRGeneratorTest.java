@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import se.litsec.bankid.rpapi.service.QRGenerator.ImageFormat;
+
+/**
+ * Test cases for the default methods of {@code QRGenerator}.
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class QRGeneratorTest {
+
+  @Test
+  public void testWriteDefaults() throws Exception {
+    final QRGenerator generator = new MinimalGenerator();
+    final Instant orderTime = Instant.now();
+
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    generator.writeQRCodeImage("token", 100, 100, ImageFormat.PNG, bos);
+    Assert.assertEquals("token", new String(bos.toByteArray(), StandardCharsets.UTF_8));
+
+    bos.reset();
+    generator.writeAnimatedQRCodeImage("token", "secret", orderTime, 100, 100, ImageFormat.PNG, bos);
+    Assert.assertEquals("token.secret", new String(bos.toByteArray(), StandardCharsets.UTF_8));
+
+    final StringBuilder sb = new StringBuilder();
+    generator.writeQRCodeBase64Image("token", 100, 100, ImageFormat.PNG, sb);
+    Assert.assertEquals("data:token", sb.toString());
+
+    sb.setLength(0);
+    generator.writeAnimatedQRCodeBase64Image("token", "secret", orderTime, 100, 100, ImageFormat.PNG, sb);
+    Assert.assertEquals("data:token.secret", sb.toString());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testModuleScaleNotSupported() throws Exception {
+    new MinimalGenerator().generateModuleScaleQRCodeImage("token", ImageFormat.PNG);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testModulesNotSupported() throws Exception {
+    new MinimalGenerator().generateQRCodeModules("token");
+  }
+
+  /**
+   * An implementation that only implements the methods that have no default implementation.
+   */
+  private static class MinimalGenerator implements QRGenerator {
+
+    @Override
+    public byte[] generateQRCodeImage(final String autoStartToken, final int width, final int height, final ImageFormat format)
+        throws IOException {
+      return autoStartToken.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] generateQRCodeImage(final String autoStartToken) throws IOException {
+      return this.generateQRCodeImage(autoStartToken, 100, 100, ImageFormat.PNG);
+    }
+
+    @Override
+    public byte[] generateAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final Instant orderTime,
+        final int width, final int height, final ImageFormat format) throws IOException {
+      return (qrStartToken + "." + qrStartSecret).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] generateAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final Instant orderTime)
+        throws IOException {
+      return this.generateAnimatedQRCodeImage(qrStartToken, qrStartSecret, orderTime, 100, 100, ImageFormat.PNG);
+    }
+
+    @Override
+    public String generateQRCodeBase64Image(final String autoStartToken, final int width, final int height, final ImageFormat format)
+        throws IOException {
+      return "data:" + autoStartToken;
+    }
+
+    @Override
+    public String generateQRCodeBase64Image(final String autoStartToken) throws IOException {
+      return this.generateQRCodeBase64Image(autoStartToken, 100, 100, ImageFormat.PNG);
+    }
+
+    @Override
+    public String generateAnimatedQRCodeBase64Image(final String qrStartToken, final String qrStartSecret, final Instant orderTime,
+        final int width, final int height, final ImageFormat format) throws IOException {
+      return "data:" + qrStartToken + "." + qrStartSecret;
+    }
+
+    @Override
+    public String generateAnimatedQRCodeBase64Image(final String qrStartToken, final String qrStartSecret, final Instant orderTime)
+        throws IOException {
+      return this.generateAnimatedQRCodeBase64Image(qrStartToken, qrStartSecret, orderTime, 100, 100, ImageFormat.PNG);
+    }
+  }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import se.litsec.bankid.rpapi.service.QRGenerator.ImageFormat;
+
+/**
+ * Test cases for {@code AbstractQRGenerator}.
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class AbstractQRGeneratorTest {
+
+  @Test
+  public void testSubclassImplementingOriginalMethods() throws Exception {
+    final LegacyGenerator generator = new LegacyGenerator();
+
+    Assert.assertEquals("token.300.300.PNG", new String(generator.generateQRCodeImage("token"), StandardCharsets.UTF_8));
+    final String expected = "data:image/png;base64, "
+        + Base64.getEncoder().encodeToString("token.100.100.PNG".getBytes(StandardCharsets.UTF_8));
+    Assert.assertEquals(expected, generator.generateQRCodeBase64Image("token", 100, 100, ImageFormat.PNG));
+
+    // The qrTime variant delegates to the Instant variant ...
+    final String frame = new String(generator.generateAnimatedQRCodeImage("token", "secret", 5L, 100, 100, ImageFormat.PNG),
+      StandardCharsets.UTF_8);
+    Assert.assertTrue(frame.equals("token.secret.5") || frame.equals("token.secret.6"));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testModuleScaleNotSupported() throws Exception {
+    new LegacyGenerator().generateModuleScaleAnimatedQRCodeImage("token", "secret", Instant.now(), ImageFormat.PNG);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testModulesNotSupported() throws Exception {
+    new LegacyGenerator().generateAnimatedQRCodeModules("token", "secret", Instant.now());
+  }
+
+  /**
+   * A subclass that only implements the methods that were abstract before the qrTime, module scale and module matrix
+   * methods were added.
+   */
+  private static class LegacyGenerator extends AbstractQRGenerator {
+
+    @Override
+    public byte[] generateQRCodeImage(final String autoStartToken, final int width, final int height, final ImageFormat format)
+        throws IOException {
+      return String.join(".", autoStartToken, Integer.toString(width), Integer.toString(height), format.name())
+        .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] generateAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final Instant orderTime,
+        final int width, final int height, final ImageFormat format) throws IOException {
+      final long qrTime = orderTime.until(Instant.now(), ChronoUnit.SECONDS);
+      return String.join(".", qrStartToken, qrStartSecret, Long.toString(qrTime)).getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+}
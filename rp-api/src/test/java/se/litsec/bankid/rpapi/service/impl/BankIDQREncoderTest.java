@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.encoder.ByteMatrix;
+import com.google.zxing.qrcode.encoder.Encoder;
+
+/**
+ * Test cases for {@code BankIDQREncoder}.
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class BankIDQREncoderTest {
+
+  @Test
+  public void testSameAsZxing() throws Exception {
+    final ZxingQRGenerator generator = new ZxingQRGenerator();
+    final Random random = new Random(4711);
+    for (int i = 0; i < 200; i++) {
+      final String token = UUID.randomUUID().toString();
+      assertSameModules("bankid:///?autostarttoken=" + token);
+      assertSameModules(generator.buildAnimatedInput(token, UUID.randomUUID().toString(), random.nextInt(300)));
+    }
+    // Other lengths give other versions ...
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      sb.append((char) ('a' + random.nextInt(26)));
+      assertSameModules(sb.toString());
+    }
+  }
+
+  @Test
+  public void testRenderSameAsZxing() throws Exception {
+    final String input = new ZxingQRGenerator().buildAnimatedInput("67df3917-fa0d-44e5-b327-edcc928297f8",
+      "d28db9a7-4cde-429e-a983-359be676944c", 0);
+    final int[][] sizes = { { 0, 0 }, { 100, 100 }, { 300, 300 }, { 250, 400 }, { 49, 49 } };
+    for (int[] size : sizes) {
+      final BitMatrix expected = new QRCodeWriter().encode(input, BarcodeFormat.QR_CODE, size[0], size[1]);
+      Assert.assertEquals(expected, BankIDQREncoder.encode(input).render(size[0], size[1]));
+    }
+  }
+
+  @Test
+  public void testUnsupported() throws Exception {
+    // Numeric and alphanumeric content are encoded in other modes ...
+    Assert.assertNull(BankIDQREncoder.encode("123456"));
+    Assert.assertNull(BankIDQREncoder.encode("BANKID:///"));
+    Assert.assertNull(BankIDQREncoder.encode("€"));
+    Assert.assertNull(BankIDQREncoder.encode(""));
+    // Too long for version 9 ...
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 230; i++) {
+      sb.append('a');
+    }
+    Assert.assertNotNull(BankIDQREncoder.encode(sb.toString()));
+    Assert.assertNull(BankIDQREncoder.encode(sb.append('a').toString()));
+  }
+
+  private static void assertSameModules(final String input) throws Exception {
+    final ByteMatrix expected = Encoder.encode(input, ErrorCorrectionLevel.L).getMatrix();
+    final BankIDQREncoder.Result result = BankIDQREncoder.encode(input);
+    Assert.assertNotNull(input, result);
+    Assert.assertEquals(input, expected.getWidth(), result.getSize());
+    for (int y = 0; y < result.getSize(); y++) {
+      for (int x = 0; x < result.getSize(); x++) {
+        Assert.assertEquals(input, expected.get(x, y) == 1, result.isDark(x, y));
+      }
+    }
+  }
+
+}
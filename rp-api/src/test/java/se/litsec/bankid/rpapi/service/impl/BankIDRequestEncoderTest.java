@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.litsec.bankid.rpapi.types.Requirement;
+import se.litsec.bankid.rpapi.types.Requirement.CardReaderRequirement;
+
+/**
+ * Test cases for {@code BankIDRequestEncoder}.
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class BankIDRequestEncoderTest {
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private static final String[] STRINGS = { "", "197501011234", "192.168.1.1", "quote \" and backslash \\",
+      "tab\tnewline\nreturn\rbackspace\bformfeed\f", "control \u0001\u001f\u007f", "Åsa Öberg",
+      "euro € and emoji 😀", "/slash/" };
+
+  @Test
+  public void testOrderRef() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      final String orderRef = UUID.randomUUID().toString();
+      assertSameJson(jackson("orderRef", orderRef), BankIDRequestEncoder.encodeOrderRef(orderRef));
+    }
+    for (String s : STRINGS) {
+      assertSameJson(jackson("orderRef", s), BankIDRequestEncoder.encodeOrderRef(s));
+    }
+  }
+
+  @Test
+  public void testAuth() throws Exception {
+    final Requirement[] requirements = { null, new Requirement(), createRequirement() };
+    for (Requirement requirement : requirements) {
+      for (String s : STRINGS) {
+        assertSameJson(jackson("personalNumber", s, "endUserIp", "127.0.0.1", "requirement", requirement),
+          BankIDRequestEncoder.encodeAuth(s, "127.0.0.1", requirement));
+        assertSameJson(jackson("endUserIp", s, "requirement", requirement),
+          BankIDRequestEncoder.encodeAuth(null, s, requirement));
+      }
+    }
+    assertSameJson("{}", BankIDRequestEncoder.encodeAuth(null, null, null));
+  }
+
+  @Test
+  public void testSign() throws Exception {
+    final Requirement requirement = createRequirement();
+    for (String s : STRINGS) {
+      assertSameJson(jackson("personalNumber", "197501011234", "endUserIp", "127.0.0.1", "requirement", requirement,
+        "userVisibleData", s, "userNonVisibleData", s),
+        BankIDRequestEncoder.encodeSign("197501011234", "127.0.0.1", requirement, s, s));
+      assertSameJson(jackson("endUserIp", "127.0.0.1", "userVisibleData", s),
+        BankIDRequestEncoder.encodeSign(null, "127.0.0.1", null, s, null));
+    }
+  }
+
+  @Test
+  public void testModifiedRequirement() throws Exception {
+    final Requirement requirement = createRequirement();
+    assertSameJson(jackson("endUserIp", "127.0.0.1", "requirement", requirement),
+      BankIDRequestEncoder.encodeAuth(null, "127.0.0.1", requirement));
+
+    requirement.setAllowFingerprint(Boolean.FALSE);
+    requirement.getCertificatePolicies().add(Requirement.CP_NORDEA_EID);
+    requirement.setCardReader(null);
+    assertSameJson(jackson("endUserIp", "127.0.0.1", "requirement", requirement),
+      BankIDRequestEncoder.encodeAuth(null, "127.0.0.1", requirement));
+
+    requirement.setCertificatePolicies(null);
+    assertSameJson(jackson("endUserIp", "127.0.0.1", "requirement", requirement),
+      BankIDRequestEncoder.encodeAuth(null, "127.0.0.1", requirement));
+  }
+
+  @Test
+  public void testRequirementProperties() throws Exception {
+    // The encoder copies and compares each property of a requirement. If this test fails, a property has been added
+    // to (or removed from) Requirement, and BankIDRequestEncoder.EncodedRequirement must be updated.
+    final Set<String> fields = new HashSet<>();
+    for (Field field : Requirement.class.getDeclaredFields()) {
+      if (!Modifier.isStatic(field.getModifiers())) {
+        fields.add(field.getName());
+      }
+    }
+    Assert.assertEquals(new HashSet<>(Arrays.asList("cardReader", "certificatePolicies", "issuerCn",
+      "autoStartTokenRequired", "allowFingerprint", "tokenStartRequired")), fields);
+  }
+
+  @Test
+  public void testUnpairedSurrogate() throws Exception {
+    final String[] invalid = { "high \uD83D", "low \uDE00 first", "\uDE00\uD83D" };
+    for (String s : invalid) {
+      try {
+        BankIDRequestEncoder.encodeSign(null, "127.0.0.1", null, s, null);
+        Assert.fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException e) {
+      }
+      try {
+        BankIDRequestEncoder.encodeOrderRef(s);
+        Assert.fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException e) {
+      }
+    }
+  }
+
+  private static Requirement createRequirement() {
+    final Requirement requirement = new Requirement();
+    requirement.setCardReader(CardReaderRequirement.CLASS2);
+    requirement.setCertificatePolicies(
+      new ArrayList<>(Arrays.asList(Requirement.CP_BANKID_ON_FILE, Requirement.CP_MOBILE_BANKID)));
+    requirement.setAllowFingerprint(Boolean.TRUE);
+    requirement.setTokenStartRequired(Boolean.TRUE);
+    return requirement;
+  }
+
+  /**
+   * Serializes the supplied name/value pairs (leaving out null values) using Jackson.
+   */
+  private static String jackson(final Object... pairs) throws Exception {
+    final Map<String, Object> map = new LinkedHashMap<>();
+    for (int i = 0; i < pairs.length; i += 2) {
+      if (pairs[i + 1] != null) {
+        map.put((String) pairs[i], pairs[i + 1]);
+      }
+    }
+    return objectMapper.writeValueAsString(map);
+  }
+
+  private static void assertSameJson(final String expected, final byte[] actual) {
+    Assert.assertEquals(expected, new String(actual, StandardCharsets.UTF_8));
+  }
+
+}
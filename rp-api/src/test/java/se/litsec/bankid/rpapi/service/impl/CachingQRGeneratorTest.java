@@ -0,0 +1,190 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import se.litsec.bankid.rpapi.service.QRGenerator.ImageFormat;
+
+/**
+ * Test cases for {@code CachingQRGenerator}.
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class CachingQRGeneratorTest {
+
+  @Test
+  public void testFramesShared() throws Exception {
+    final CountingGenerator generator = new CountingGenerator();
+    final CachingQRGenerator cache = new CachingQRGenerator(generator);
+
+    final Instant orderTime = Instant.now().minusMillis(500);
+    final byte[] frame1 = cache.generateAnimatedQRCodeImage("token", "secret", orderTime);
+    final byte[] frame2 = cache.generateAnimatedQRCodeImage("token", "secret", orderTime);
+
+    // Unless we crossed a second boundary, the same frame should be returned ...
+    if (new String(frame1, StandardCharsets.UTF_8).equals(new String(frame2, StandardCharsets.UTF_8))) {
+      Assert.assertSame(frame1, frame2);
+      Assert.assertEquals(1, generator.calls.get());
+    }
+
+    cache.generateAnimatedQRCodeImage("token2", "secret2", orderTime);
+    Assert.assertTrue(generator.calls.get() >= 2);
+  }
+
+  @Test
+  public void testPrecompute() throws Exception {
+    final CountingGenerator generator = new CountingGenerator();
+    final CachingQRGenerator cache = new CachingQRGenerator(generator);
+    cache.setPrecomputeExecutor(Runnable::run);
+    cache.setPrecomputeFrames(3);
+
+    final Instant orderTime = Instant.now();
+    cache.precompute("token", "secret", orderTime);
+    Assert.assertEquals(3, generator.calls.get());
+    Assert.assertEquals(3, cache.getCachedFrames());
+
+    final byte[] frame = cache.generateAnimatedQRCodeImage("token", "secret", orderTime);
+    Assert.assertTrue(new String(frame, StandardCharsets.UTF_8).startsWith("token.secret."));
+    Assert.assertEquals(1, generator.calls(new String(frame, StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void testStaticImages() throws Exception {
+    final CountingGenerator generator = new CountingGenerator();
+    final CachingQRGenerator cache = new CachingQRGenerator(generator);
+    cache.setStaticCacheSize(2);
+
+    final byte[] image = cache.generateQRCodeImage("token1", 100, 100, ImageFormat.PNG);
+    Assert.assertSame(image, cache.generateQRCodeImage("token1", 100, 100, ImageFormat.PNG));
+    Assert.assertEquals(1, generator.calls.get());
+
+    final String dataUri = cache.generateQRCodeBase64Image("token1", 100, 100, ImageFormat.PNG);
+    Assert.assertEquals("data:image/png;base64, " + Base64.getEncoder().encodeToString(image), dataUri);
+    Assert.assertSame(dataUri, cache.generateQRCodeBase64Image("token1", 100, 100, ImageFormat.PNG));
+    final StringBuilder sb = new StringBuilder();
+    cache.writeQRCodeBase64Image("token1", 100, 100, ImageFormat.PNG, sb);
+    Assert.assertEquals(dataUri, sb.toString());
+    Assert.assertEquals(1, generator.calls.get());
+
+    // Other sizes and formats are other images ...
+    cache.generateQRCodeImage("token1", 200, 200, ImageFormat.PNG);
+    Assert.assertEquals(2, generator.calls.get());
+
+    // The least recently used image is removed when the cache is full ...
+    cache.generateQRCodeImage("token1", 100, 100, ImageFormat.PNG);
+    cache.generateQRCodeImage("token1", 100, 100, ImageFormat.SVG);
+    Assert.assertEquals(3, generator.calls.get());
+    Assert.assertEquals(2, cache.getCachedStaticImages());
+    cache.generateQRCodeImage("token1", 100, 100, ImageFormat.PNG);
+    Assert.assertEquals(3, generator.calls.get());
+    cache.generateQRCodeImage("token1", 200, 200, ImageFormat.PNG);
+    Assert.assertEquals(4, generator.calls.get());
+  }
+
+  @Test
+  public void testStaticImagesExpire() throws Exception {
+    final CountingGenerator generator = new CountingGenerator();
+    final CachingQRGenerator cache = new CachingQRGenerator(generator);
+    cache.setStaticTimeToLive(Duration.ofMillis(50));
+
+    final byte[] image = cache.generateQRCodeImage("token", 100, 100, ImageFormat.PNG);
+    Thread.sleep(100);
+    Assert.assertNotSame(image, cache.generateQRCodeImage("token", 100, 100, ImageFormat.PNG));
+    Assert.assertEquals(2, generator.calls.get());
+  }
+
+  @Test
+  public void testErrorNotCached() throws Exception {
+    final CountingGenerator generator = new CountingGenerator();
+    generator.error.set(new StackOverflowError());
+    final CachingQRGenerator cache = new CachingQRGenerator(generator);
+
+    final Instant orderTime = Instant.now();
+    try {
+      cache.generateAnimatedQRCodeImage("token", "secret", orderTime);
+      Assert.fail("Expected StackOverflowError");
+    }
+    catch (StackOverflowError e) {
+    }
+    Assert.assertEquals(0, cache.getCachedFrames());
+
+    final byte[] frame = cache.generateAnimatedQRCodeImage("token", "secret", orderTime);
+    Assert.assertTrue(new String(frame, StandardCharsets.UTF_8).startsWith("token.secret."));
+    Assert.assertEquals(2, generator.calls.get());
+  }
+
+  @Test
+  public void testDefaultsFromGenerator() throws Exception {
+    final CountingGenerator generator = new CountingGenerator();
+    generator.setDefaultWidth(200);
+    generator.setDefaultHeight(150);
+    generator.setDefaultImageFormat(ImageFormat.SVG);
+    final CachingQRGenerator cache = new CachingQRGenerator(generator);
+
+    Assert.assertEquals("token.200.150.SVG", new String(cache.generateQRCodeImage("token"), StandardCharsets.UTF_8));
+
+    cache.setDefaultWidth(100);
+    Assert.assertEquals(100, generator.getDefaultWidth());
+    Assert.assertEquals("token.100.150.SVG", new String(cache.generateQRCodeImage("token"), StandardCharsets.UTF_8));
+  }
+
+  private static class CountingGenerator extends AbstractQRGenerator {
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private final Map<String, AtomicInteger> perFrame = new ConcurrentHashMap<>();
+
+    private final AtomicReference<Error> error = new AtomicReference<>();
+
+    public int calls(final String frame) {
+      return this.perFrame.get(frame).get();
+    }
+
+    @Override
+    public byte[] generateQRCodeImage(final String autoStartToken, final int width, final int height, final ImageFormat format)
+        throws IOException {
+      this.calls.incrementAndGet();
+      return String.join(".", autoStartToken, Integer.toString(width), Integer.toString(height), format.name())
+        .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] generateAnimatedQRCodeImage(final String qrStartToken, final String qrStartSecret, final long qrTime,
+        final int width, final int height, final ImageFormat format) throws IOException {
+      this.calls.incrementAndGet();
+      final Error e = this.error.getAndSet(null);
+      if (e != null) {
+        throw e;
+      }
+      final String frame = String.join(".", qrStartToken, qrStartSecret, Long.toString(qrTime));
+      this.perFrame.computeIfAbsent(frame, f -> new AtomicInteger()).incrementAndGet();
+      return frame.getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import se.litsec.bankid.rpapi.service.BankIDClient;
+import se.litsec.bankid.rpapi.service.DataToSign;
+import se.litsec.bankid.rpapi.service.QRGenerator;
+import se.litsec.bankid.rpapi.types.BankIDException;
+import se.litsec.bankid.rpapi.types.CollectResponse;
+import se.litsec.bankid.rpapi.types.CollectResponseJson;
+import se.litsec.bankid.rpapi.types.ErrorCode;
+import se.litsec.bankid.rpapi.types.OrderResponse;
+import se.litsec.bankid.rpapi.types.Requirement;
+import se.litsec.bankid.rpapi.types.UserCancelException;
+
+/**
+ * Test cases for {@code CoalescingBankIDClient}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class CoalescingBankIDClientTest {
+
+  @Test
+  public void testConcurrentCallersShareCall() throws Exception {
+    final CountingClient upstream = new CountingClient(CollectResponseJson.Status.PENDING, null);
+    upstream.latch = new CountDownLatch(1);
+    final CoalescingBankIDClient client = new CoalescingBankIDClient(upstream);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<CollectResponse>> results = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        results.add(executor.submit(() -> client.collect("order1")));
+      }
+      Thread.sleep(100);
+      upstream.latch.countDown();
+      for (Future<CollectResponse> f : results) {
+        Assert.assertEquals("order1", f.get(5, TimeUnit.SECONDS).getOrderReference());
+      }
+      Assert.assertEquals(1, upstream.calls.get());
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testMemoizeWindow() throws Exception {
+    final CountingClient upstream = new CountingClient(CollectResponseJson.Status.PENDING, null);
+    final CoalescingBankIDClient client = new CoalescingBankIDClient(upstream);
+    client.setMemoizeWindow(Duration.ofMillis(100));
+
+    client.collect("order1");
+    client.collect("order1");
+    Assert.assertEquals(1, upstream.calls.get());
+
+    Thread.sleep(150);
+    client.collect("order1");
+    Assert.assertEquals(2, upstream.calls.get());
+  }
+
+  @Test
+  public void testTerminalResultsKept() throws Exception {
+    final CountingClient upstream = new CountingClient(CollectResponseJson.Status.FAILED, "userCancel");
+    final CoalescingBankIDClient client = new CoalescingBankIDClient(upstream);
+    client.setMemoizeWindow(Duration.ofMillis(10));
+
+    for (int i = 0; i < 3; i++) {
+      try {
+        client.collect("order1");
+        Assert.fail("Expected BankIDException");
+      }
+      catch (BankIDException e) {
+        Assert.assertEquals(ErrorCode.USER_CANCEL, e.getErrorCode());
+      }
+      Thread.sleep(20);
+    }
+    Assert.assertEquals(1, upstream.calls.get());
+
+    client.evict("order1");
+    try {
+      client.collect("order1");
+    }
+    catch (BankIDException e) {
+    }
+    Assert.assertEquals(2, upstream.calls.get());
+  }
+
+  @Test
+  public void testErrorCompletesWaiters() throws Exception {
+    final CountingClient upstream = new CountingClient(CollectResponseJson.Status.PENDING, null);
+    upstream.latch = new CountDownLatch(1);
+    upstream.error.set(new StackOverflowError());
+    final CoalescingBankIDClient client = new CoalescingBankIDClient(upstream);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<CollectResponse>> results = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        results.add(executor.submit(() -> client.collect("order1")));
+      }
+      Thread.sleep(100);
+      upstream.latch.countDown();
+      int errors = 0;
+      int bankIdErrors = 0;
+      for (Future<CollectResponse> f : results) {
+        try {
+          f.get(5, TimeUnit.SECONDS);
+        }
+        catch (ExecutionException e) {
+          if (e.getCause() instanceof StackOverflowError) {
+            errors++;
+          }
+          else if (e.getCause() instanceof BankIDException) {
+            bankIdErrors++;
+          }
+        }
+      }
+      Assert.assertEquals(1, errors);
+      Assert.assertEquals(3, bankIdErrors);
+      Assert.assertEquals(1, upstream.calls.get());
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    // The failed call is not remembered ...
+    Assert.assertEquals("order1", client.collect("order1").getOrderReference());
+    Assert.assertEquals(2, upstream.calls.get());
+  }
+
+  private static class CountingClient implements BankIDClient {
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private final CollectResponseJson.Status status;
+
+    private final String hintCode;
+
+    private CountDownLatch latch;
+
+    private final AtomicReference<Error> error = new AtomicReference<>();
+
+    public CountingClient(final CollectResponseJson.Status status, final String hintCode) {
+      this.status = status;
+      this.hintCode = hintCode;
+    }
+
+    @Override
+    public CollectResponse collect(final String orderReference) throws UserCancelException, BankIDException {
+      this.calls.incrementAndGet();
+      if (this.latch != null) {
+        try {
+          this.latch.await();
+        }
+        catch (InterruptedException e) {
+          throw new BankIDException(ErrorCode.UNKNOWN_ERROR, e);
+        }
+      }
+      final Error e = this.error.getAndSet(null);
+      if (e != null) {
+        throw e;
+      }
+      final CollectResponseJson response = new CollectResponseJson();
+      response.setOrderReference(orderReference);
+      response.setStatus(this.status);
+      response.setHintCode(this.hintCode);
+      return BankIDClientImpl.checkCollectResponse(response);
+    }
+
+    @Override
+    public OrderResponse authenticate(String personalIdentityNumber, String endUserIp, Requirement requirement) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public OrderResponse sign(String personalIdentityNumber, String endUserIp, DataToSign dataToSign, Requirement requirement) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void cancel(String orderReference) {
+    }
+
+    @Override
+    public QRGenerator getQRGenerator() {
+      return null;
+    }
+  }
+
+}
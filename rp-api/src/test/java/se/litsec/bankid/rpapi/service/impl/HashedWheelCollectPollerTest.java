@@ -0,0 +1,248 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.litsec.bankid.rpapi.service.BankIDClient;
+import se.litsec.bankid.rpapi.service.CollectPoller.CollectListener;
+import se.litsec.bankid.rpapi.service.DataToSign;
+import se.litsec.bankid.rpapi.service.QRGenerator;
+import se.litsec.bankid.rpapi.types.BankIDException;
+import se.litsec.bankid.rpapi.types.CollectResponse;
+import se.litsec.bankid.rpapi.types.CollectResponseJson;
+import se.litsec.bankid.rpapi.types.ErrorCode;
+import se.litsec.bankid.rpapi.types.OrderResponse;
+import se.litsec.bankid.rpapi.types.ProgressStatus;
+import se.litsec.bankid.rpapi.types.Requirement;
+import se.litsec.bankid.rpapi.types.UserCancelException;
+
+/**
+ * Test cases for {@code HashedWheelCollectPoller}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class HashedWheelCollectPollerTest {
+
+  private ScriptedClient client;
+
+  private HashedWheelCollectPoller poller;
+
+  @Before
+  public void setup() throws Exception {
+    this.client = new ScriptedClient();
+    this.poller = new HashedWheelCollectPoller(this.client);
+    this.poller.setPollInterval(Duration.ofMillis(50));
+    this.poller.setTickDuration(Duration.ofMillis(10));
+    this.poller.setWorkerThreads(2);
+    this.poller.afterPropertiesSet();
+  }
+
+  @After
+  public void shutdown() throws Exception {
+    this.poller.destroy();
+  }
+
+  @Test
+  public void testStatusChanges() throws Exception {
+    this.client.script("order1", "outstandingTransaction", "outstandingTransaction", "userSign", "userSign", "complete");
+    this.client.script("order2", "started", "complete");
+
+    final Listener listener1 = new Listener();
+    final Listener listener2 = new Listener();
+    this.poller.register("order1", listener1);
+    this.poller.register("order2", listener2);
+
+    Assert.assertTrue(listener1.done.await(5, TimeUnit.SECONDS));
+    Assert.assertTrue(listener2.done.await(5, TimeUnit.SECONDS));
+
+    Assert.assertEquals(Arrays.asList(ProgressStatus.OUTSTANDING_TRANSACTION, ProgressStatus.USER_SIGN, ProgressStatus.COMPLETE),
+      listener1.statuses);
+    Assert.assertEquals(Arrays.asList(ProgressStatus.STARTED, ProgressStatus.COMPLETE), listener2.statuses);
+    Assert.assertNull(listener1.error.get());
+    Assert.assertEquals(0, this.poller.getRegisteredOrders());
+  }
+
+  @Test
+  public void testFailed() throws Exception {
+    this.client.script("order1", "outstandingTransaction", "failed");
+
+    final Listener listener = new Listener();
+    this.poller.register("order1", listener);
+
+    Assert.assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+    Assert.assertEquals(Arrays.asList(ProgressStatus.OUTSTANDING_TRANSACTION), listener.statuses);
+    Assert.assertEquals(ErrorCode.USER_CANCEL, listener.error.get().getErrorCode());
+    Assert.assertEquals(0, this.poller.getRegisteredOrders());
+  }
+
+  @Test
+  public void testFailedWrapped() throws Exception {
+    // BankIDClientImpl reports a failed order as UNKNOWN_ERROR caused by the actual error ...
+    this.client.script("order1", "outstandingTransaction", "!wrapped", "complete");
+
+    final Listener listener = new Listener();
+    this.poller.register("order1", listener);
+
+    final long timeout = System.currentTimeMillis() + 5000L;
+    while (listener.errors.isEmpty() && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(200);
+    Assert.assertEquals(Arrays.asList(ErrorCode.UNKNOWN_ERROR), listener.errors);
+    Assert.assertEquals(Arrays.asList(ProgressStatus.OUTSTANDING_TRANSACTION), listener.statuses);
+    Assert.assertEquals(0, this.poller.getRegisteredOrders());
+  }
+
+  @Test
+  public void testTransientError() throws Exception {
+    this.client.script("order1", "outstandingTransaction", "!maintenance", "!io", "userSign", "complete");
+
+    final Listener listener = new Listener();
+    this.poller.register("order1", listener);
+
+    Assert.assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+    Assert.assertEquals(Arrays.asList(ProgressStatus.OUTSTANDING_TRANSACTION, ProgressStatus.USER_SIGN, ProgressStatus.COMPLETE),
+      listener.statuses);
+    Assert.assertEquals(Arrays.asList(ErrorCode.MAINTENANCE, ErrorCode.UNKNOWN_ERROR), listener.errors);
+    Assert.assertEquals(0, this.poller.getRegisteredOrders());
+  }
+
+  @Test
+  public void testMaxConsecutiveErrors() throws Exception {
+    this.poller.setMaxConsecutiveErrors(2);
+    this.client.script("order1", "!maintenance", "outstandingTransaction", "!maintenance", "!maintenance", "complete");
+
+    final Listener listener = new Listener();
+    this.poller.register("order1", listener);
+
+    // The successful collect in between resets the error count, so the order is released after the fourth call ...
+    final long timeout = System.currentTimeMillis() + 5000L;
+    while (listener.errors.size() < 3 && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(3, listener.errors.size());
+    Assert.assertEquals(0, this.poller.getRegisteredOrders());
+    Assert.assertEquals(Arrays.asList(ProgressStatus.OUTSTANDING_TRANSACTION), listener.statuses);
+  }
+
+  private static class Listener implements CollectListener {
+
+    private final List<ProgressStatus> statuses = new CopyOnWriteArrayList<>();
+
+    private final AtomicReference<BankIDException> error = new AtomicReference<>();
+
+    private final List<ErrorCode> errors = new CopyOnWriteArrayList<>();
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    @Override
+    public void onStatusChange(final CollectResponse response) {
+      this.statuses.add(response.getProgressStatus());
+      if (response.getProgressStatus() == ProgressStatus.COMPLETE) {
+        this.done.countDown();
+      }
+    }
+
+    @Override
+    public void onError(final BankIDException error) {
+      this.errors.add(error.getErrorCode());
+      if (error.getErrorCode() != ErrorCode.MAINTENANCE && error.getErrorCode() != ErrorCode.UNKNOWN_ERROR) {
+        this.error.set(error);
+        this.done.countDown();
+      }
+    }
+  }
+
+  /**
+   * Client that returns a scripted sequence of collect responses per order.
+   */
+  private static class ScriptedClient implements BankIDClient {
+
+    private final Map<String, Deque<String>> scripts = new ConcurrentHashMap<>();
+
+    public void script(final String orderReference, final String... statuses) {
+      this.scripts.put(orderReference, new ArrayDeque<>(Arrays.asList(statuses)));
+    }
+
+    @Override
+    public CollectResponse collect(final String orderReference) throws UserCancelException, BankIDException {
+      final String s = this.scripts.get(orderReference).poll();
+      if ("!maintenance".equals(s)) {
+        throw new BankIDException(ErrorCode.MAINTENANCE, "Maintenance");
+      }
+      else if ("!wrapped".equals(s)) {
+        throw new BankIDException(ErrorCode.UNKNOWN_ERROR, "Unknown error during collect",
+          new BankIDException(ErrorCode.EXPIRED_TRANSACTION, "Order failed"));
+      }
+      else if ("!io".equals(s)) {
+        throw new UncheckedIOException(new IOException("Connection reset"));
+      }
+      final CollectResponseJson response = new CollectResponseJson();
+      response.setOrderReference(orderReference);
+      if ("complete".equals(s)) {
+        response.setStatus(CollectResponseJson.Status.COMPLETE);
+      }
+      else if ("failed".equals(s)) {
+        response.setStatus(CollectResponseJson.Status.FAILED);
+        response.setHintCode("userCancel");
+      }
+      else {
+        response.setStatus(CollectResponseJson.Status.PENDING);
+        response.setHintCode(s);
+      }
+      return BankIDClientImpl.checkCollectResponse(response);
+    }
+
+    @Override
+    public OrderResponse authenticate(String personalIdentityNumber, String endUserIp, Requirement requirement) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public OrderResponse sign(String personalIdentityNumber, String endUserIp, DataToSign dataToSign, Requirement requirement) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void cancel(String orderReference) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public QRGenerator getQRGenerator() {
+      return null;
+    }
+  }
+
+}
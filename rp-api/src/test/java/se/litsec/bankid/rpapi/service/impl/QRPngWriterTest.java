@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.client.j2se.MatrixToImageWriter;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+/**
+ * Test cases for {@code QRPngWriter}.
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class QRPngWriterTest {
+
+  @Test
+  public void testPixels() throws Exception {
+    final String input = "bankid:///?autostarttoken=46f6aa68-a520-49d8-9be7-f0726d038c26";
+
+    // Sizes that are not multiples of 8, and the module scale ...
+    for (int size : new int[] { 0, 77, 123, 300 }) {
+      final BitMatrix matrix = new QRCodeWriter().encode(input, BarcodeFormat.QR_CODE, size, size);
+      final byte[] png = QRPngWriter.toBytes(matrix);
+
+      final BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+      Assert.assertEquals(matrix.getWidth(), image.getWidth());
+      Assert.assertEquals(matrix.getHeight(), image.getHeight());
+      for (int y = 0; y < matrix.getHeight(); y++) {
+        for (int x = 0; x < matrix.getWidth(); x++) {
+          Assert.assertEquals(matrix.get(x, y) ? 0xff000000 : 0xffffffff, image.getRGB(x, y));
+        }
+      }
+
+      final ByteArrayOutputStream imageIO = new ByteArrayOutputStream();
+      MatrixToImageWriter.writeToStream(matrix, "PNG", imageIO);
+      Assert.assertTrue(png.length <= imageIO.size());
+    }
+  }
+
+}
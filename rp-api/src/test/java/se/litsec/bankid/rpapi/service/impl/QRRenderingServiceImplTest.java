@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.litsec.bankid.rpapi.service.QRGenerator.ImageFormat;
+
+/**
+ * Test cases for {@code QRRenderingServiceImpl}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class QRRenderingServiceImplTest {
+
+  private BlockingGenerator generator;
+
+  private QRRenderingServiceImpl service;
+
+  @Before
+  public void setup() throws Exception {
+    this.generator = new BlockingGenerator();
+    this.service = new QRRenderingServiceImpl(this.generator);
+    this.service.setThreads(1);
+    this.service.setQueueSize(2);
+    this.service.afterPropertiesSet();
+  }
+
+  @After
+  public void shutdown() throws Exception {
+    this.generator.release.countDown();
+    this.service.destroy();
+  }
+
+  @Test
+  public void testRender() throws Exception {
+    this.generator.release.countDown();
+
+    final byte[] image = this.service.renderQRCodeImage("46f6aa68-a520-49d8-9be7-f0726d038c26", 100, 100, ImageFormat.PNG)
+      .get(10, TimeUnit.SECONDS);
+    Assert.assertArrayEquals(new ZxingQRGenerator().generateQRCodeImage("46f6aa68-a520-49d8-9be7-f0726d038c26", 100, 100,
+      ImageFormat.PNG), image);
+
+    final String dataUri = this.service.renderAnimatedQRCodeBase64Image("67df3917-fa0d-44e5-b327-edcc928297f8",
+      "d28db9a7-4cde-429e-a983-359be676944c", Instant.now(), 100, 100, ImageFormat.SVG).get(10, TimeUnit.SECONDS);
+    Assert.assertTrue(dataUri.startsWith("data:image/svg+xml;base64, "));
+
+    Assert.assertEquals(2, this.service.getCompletedRenderings());
+    Assert.assertEquals(0, this.service.getRejectedRenderings());
+    Assert.assertTrue(this.service.getMaxLatency().compareTo(this.service.getAverageRenderTime()) >= 0);
+  }
+
+  @Test
+  public void testRejected() throws Exception {
+    // One rendering is blocked in the thread, and two wait in the queue ...
+    final CompletableFuture<byte[]> first = this.service.renderQRCodeImage("token1", 100, 100, ImageFormat.PNG);
+    Assert.assertTrue(this.generator.started.await(10, TimeUnit.SECONDS));
+    this.service.renderQRCodeImage("token2", 100, 100, ImageFormat.PNG);
+    this.service.renderQRCodeImage("token3", 100, 100, ImageFormat.PNG);
+    Assert.assertEquals(2, this.service.getQueueDepth());
+    Assert.assertEquals(1, this.service.getActiveRenderings());
+
+    // ... so the next one is rejected directly
+    final CompletableFuture<byte[]> rejected = this.service.renderQRCodeImage("token4", 100, 100, ImageFormat.PNG);
+    Assert.assertTrue(rejected.isCompletedExceptionally());
+    try {
+      rejected.get();
+      Assert.fail("Expected RejectedExecutionException");
+    }
+    catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+    Assert.assertEquals(1, this.service.getRejectedRenderings());
+
+    this.generator.release.countDown();
+    Assert.assertNotNull(first.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testDestroyCompletesQueued() throws Exception {
+    final CompletableFuture<byte[]> first = this.service.renderQRCodeImage("token1", 100, 100, ImageFormat.PNG);
+    Assert.assertTrue(this.generator.started.await(10, TimeUnit.SECONDS));
+    final CompletableFuture<byte[]> queued = this.service.renderQRCodeImage("token2", 100, 100, ImageFormat.PNG);
+
+    this.service.destroy();
+    try {
+      queued.get(10, TimeUnit.SECONDS);
+      Assert.fail("Expected RejectedExecutionException");
+    }
+    catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+
+    // The running rendering is interrupted ...
+    try {
+      first.get(10, TimeUnit.SECONDS);
+      Assert.fail("Expected IOException");
+    }
+    catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  @Test
+  public void testErrorCompletesFuture() throws Exception {
+    final QRRenderingServiceImpl failing = new QRRenderingServiceImpl(new ZxingQRGenerator() {
+      @Override
+      public byte[] generateQRCodeImage(final String autoStartToken, final int width, final int height, final ImageFormat format)
+          throws IOException {
+        throw new Error("Rendering error");
+      }
+    });
+    failing.afterPropertiesSet();
+    try {
+      failing.renderQRCodeImage("token", 100, 100, ImageFormat.PNG).get(10, TimeUnit.SECONDS);
+      Assert.fail("Expected Error");
+    }
+    catch (ExecutionException e) {
+      Assert.assertEquals("Rendering error", e.getCause().getMessage());
+    }
+    finally {
+      failing.destroy();
+    }
+  }
+
+  private static class BlockingGenerator extends ZxingQRGenerator {
+
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    public byte[] generateQRCodeImage(final String autoStartToken, final int width, final int height, final ImageFormat format)
+        throws IOException {
+      this.started.countDown();
+      try {
+        this.release.await();
+      }
+      catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      return super.generateQRCodeImage(autoStartToken, width, height, format);
+    }
+  }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.service.impl;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import se.litsec.bankid.rpapi.service.AsyncBankIDClient;
+import se.litsec.bankid.rpapi.service.DataToSign;
+import se.litsec.bankid.rpapi.service.QRGenerator;
+import se.litsec.bankid.rpapi.types.BankIDException;
+import se.litsec.bankid.rpapi.types.CollectResponse;
+import se.litsec.bankid.rpapi.types.CollectResponseJson;
+import se.litsec.bankid.rpapi.types.ErrorCode;
+import se.litsec.bankid.rpapi.types.OrderResponse;
+import se.litsec.bankid.rpapi.types.ProgressStatus;
+import se.litsec.bankid.rpapi.types.Requirement;
+
+/**
+ * Test cases for {@code ReactiveBankIDCollectorImpl}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class ReactiveBankIDCollectorImplTest {
+
+  private static final String ORDER_REF = "131daac9-16c6-4618-beb0-365768f37288";
+
+  @Test
+  public void testCollectUntilComplete() throws Exception {
+    final ScriptedClient client = new ScriptedClient(
+      pending("outstandingTransaction"), pending("outstandingTransaction"), pending("userSign"), pending("userSign"), complete());
+    final ReactiveBankIDCollectorImpl collector = new ReactiveBankIDCollectorImpl(client);
+    collector.setPollInterval(Duration.ofMillis(10));
+
+    final List<ProgressStatus> statuses = collector.collect(order())
+      .map(CollectResponse::getProgressStatus)
+      .collectList()
+      .block(Duration.ofSeconds(5));
+
+    Assert.assertEquals(Arrays.asList(ProgressStatus.OUTSTANDING_TRANSACTION, ProgressStatus.USER_SIGN, ProgressStatus.COMPLETE),
+      statuses);
+    Assert.assertTrue(client.responses.isEmpty());
+  }
+
+  @Test
+  public void testCollectFailed() throws Exception {
+    final ScriptedClient client = new ScriptedClient(pending("outstandingTransaction"), failed("userCancel"));
+    final ReactiveBankIDCollectorImpl collector = new ReactiveBankIDCollectorImpl(client);
+    collector.setPollInterval(Duration.ofMillis(10));
+
+    try {
+      collector.collect(order()).collectList().block(Duration.ofSeconds(5));
+      Assert.fail("Expected BankIDException");
+    }
+    catch (RuntimeException e) {
+      final Throwable cause = e.getCause();
+      Assert.assertTrue(cause instanceof BankIDException);
+      Assert.assertEquals(ErrorCode.USER_CANCEL, ((BankIDException) cause).getErrorCode());
+    }
+  }
+
+  private static OrderResponse order() {
+    final OrderResponse order = new OrderResponse();
+    order.setOrderReference(ORDER_REF);
+    return order;
+  }
+
+  private static CollectResponseJson pending(final String hintCode) {
+    final CollectResponseJson r = new CollectResponseJson();
+    r.setOrderReference(ORDER_REF);
+    r.setStatus(CollectResponseJson.Status.PENDING);
+    r.setHintCode(hintCode);
+    return r;
+  }
+
+  private static CollectResponseJson complete() {
+    final CollectResponseJson r = new CollectResponseJson();
+    r.setOrderReference(ORDER_REF);
+    r.setStatus(CollectResponseJson.Status.COMPLETE);
+    return r;
+  }
+
+  private static CollectResponseJson failed(final String hintCode) {
+    final CollectResponseJson r = new CollectResponseJson();
+    r.setOrderReference(ORDER_REF);
+    r.setStatus(CollectResponseJson.Status.FAILED);
+    r.setHintCode(hintCode);
+    return r;
+  }
+
+  /**
+   * Client that returns a scripted sequence of collect responses.
+   */
+  private static class ScriptedClient implements AsyncBankIDClient {
+
+    private final Deque<CollectResponseJson> responses;
+
+    public ScriptedClient(final CollectResponseJson... responses) {
+      this.responses = new ArrayDeque<>(Arrays.stream(responses).collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<CollectResponse> collect(final String orderReference) {
+      final CompletableFuture<CollectResponse> future = new CompletableFuture<>();
+      final CollectResponseJson response = this.responses.poll();
+      try {
+        future.complete(BankIDClientImpl.checkCollectResponse(response));
+      }
+      catch (BankIDException e) {
+        future.completeExceptionally(e);
+      }
+      return future;
+    }
+
+    @Override
+    public CompletableFuture<OrderResponse> authenticate(String personalIdentityNumber, String endUserIp, Requirement requirement) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CompletableFuture<OrderResponse> sign(String personalIdentityNumber, String endUserIp, DataToSign dataToSign,
+        Requirement requirement) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CompletableFuture<Void> cancel(String orderReference) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public QRGenerator getQRGenerator() {
+      return null;
+    }
+  }
+
+}
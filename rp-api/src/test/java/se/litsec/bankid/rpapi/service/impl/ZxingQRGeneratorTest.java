@@ -15,12 +15,23 @@
  */
 package se.litsec.bankid.rpapi.service.impl;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.Base64;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.imageio.ImageIO;
 
 import org.junit.Assert;
@@ -34,7 +45,10 @@ import com.google.zxing.common.HybridBinarizer;
 
 import se.litsec.bankid.rpapi.service.QRGenerator;
 import se.litsec.bankid.rpapi.service.QRGenerator.ImageFormat;
+import se.litsec.bankid.rpapi.service.QRImage;
+import se.litsec.bankid.rpapi.service.QRModuleMatrix;
 import se.litsec.bankid.rpapi.service.impl.ZxingQRGenerator;
+import se.litsec.bankid.rpapi.support.ByteBufferOutputStream;
 
 /**
  * Test cases for the {@code ZxingQRGenerator} class.
@@ -56,13 +70,22 @@ public class ZxingQRGeneratorTest {
     bytes = generator.generateQRCodeImage(autoStartToken, 100, 100, ImageFormat.JPG);
     textInQR = decodeQRBytes(bytes);
     Assert.assertTrue(textInQR.endsWith(autoStartToken));
-    
-    try {
-      generator.generateQRCodeImage(autoStartToken, 100, 100, ImageFormat.SVG);
-      Assert.fail("SVG should not be accepted");
-    }
-    catch (IOException e) {      
-    }
+  }
+
+  @Test
+  public void testGenerateSvg() throws Exception {
+    final QRGenerator generator = new ZxingQRGenerator();
+
+    final String autoStartToken = "46f6aa68-a520-49d8-9be7-f0726d038c26";
+
+    final byte[] bytes = generator.generateQRCodeImage(autoStartToken, 300, 300, ImageFormat.SVG);
+    final String svg = new String(bytes, StandardCharsets.UTF_8);
+    Assert.assertTrue(svg.startsWith("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"300\" height=\"300\""));
+    Assert.assertTrue(svg.endsWith("</svg>"));
+    Assert.assertTrue(decodeSvg(svg).endsWith(autoStartToken));
+
+    final String image = generator.generateQRCodeBase64Image(autoStartToken, 300, 300, ImageFormat.SVG);
+    Assert.assertTrue(image.startsWith("data:image/svg+xml;base64, "));
   }
   
   @Test
@@ -77,6 +100,106 @@ public class ZxingQRGeneratorTest {
     Assert.assertTrue(textInQR.startsWith("bankid." + qrStartToken + "."));
   }
   
+  @Test
+  public void testGenerateModuleScale() throws Exception {
+    final QRGenerator generator = new ZxingQRGenerator();
+
+    final String qrStartToken = "67df3917-fa0d-44e5-b327-edcc928297f8";
+    final String qrStartSecret = "d28db9a7-4cde-429e-a983-359be676944c";
+
+    final QRImage image = generator.generateModuleScaleAnimatedQRCodeImage(qrStartToken, qrStartSecret, Instant.now(), ImageFormat.PNG);
+    Assert.assertEquals(ImageFormat.PNG, image.getFormat());
+    final BufferedImage bufferedImage = ImageIO.read(new ByteArrayInputStream(image.getImage()));
+    Assert.assertEquals(image.getModules(), bufferedImage.getWidth());
+    Assert.assertEquals(image.getModules(), bufferedImage.getHeight());
+    Assert.assertTrue(image.getModules() < 60);
+    Assert.assertTrue(image.getImage().length < generator.generateAnimatedQRCodeImage(qrStartToken, qrStartSecret, Instant.now()).length);
+
+    // Scale it up to be able to decode it ...
+    final BufferedImage scaled = new BufferedImage(image.getModules() * 4, image.getModules() * 4, BufferedImage.TYPE_INT_RGB);
+    final Graphics2D g = scaled.createGraphics();
+    g.drawImage(bufferedImage, 0, 0, scaled.getWidth(), scaled.getHeight(), null);
+    g.dispose();
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ImageIO.write(scaled, "PNG", bos);
+    Assert.assertTrue(decodeQRBytes(bos.toByteArray()).startsWith("bankid." + qrStartToken + "."));
+
+    final QRImage svg = generator.generateModuleScaleQRCodeImage("46f6aa68-a520-49d8-9be7-f0726d038c26", ImageFormat.SVG);
+    Assert.assertTrue(new String(svg.getImage(), StandardCharsets.UTF_8).contains(
+      String.format("width=\"%d\" height=\"%d\" viewBox=\"0 0 %d %d\"", svg.getModules(), svg.getModules(), svg.getModules(),
+        svg.getModules())));
+  }
+
+  @Test
+  public void testGenerateModules() throws Exception {
+    final QRGenerator generator = new ZxingQRGenerator();
+
+    final String autoStartToken = "46f6aa68-a520-49d8-9be7-f0726d038c26";
+    final QRModuleMatrix modules = generator.generateQRCodeModules(autoStartToken);
+    Assert.assertEquals((modules.getSize() * modules.getSize() + 7) / 8, modules.getModules().length);
+
+    // The same modules as in the module scale image (minus the quiet zone) ...
+    final QRImage image = generator.generateModuleScaleQRCodeImage(autoStartToken, ImageFormat.PNG);
+    Assert.assertEquals(modules.getSize() + 2 * QRModuleMatrix.QUIET_ZONE, image.getModules());
+    final BufferedImage bufferedImage = ImageIO.read(new ByteArrayInputStream(image.getImage()));
+    for (int y = 0; y < modules.getSize(); y++) {
+      for (int x = 0; x < modules.getSize(); x++) {
+        final int rgb = bufferedImage.getRGB(x + QRModuleMatrix.QUIET_ZONE, y + QRModuleMatrix.QUIET_ZONE);
+        Assert.assertEquals(modules.isDark(x, y), (rgb & 0xffffff) == 0);
+      }
+    }
+  }
+
+  @Test
+  public void testWriteToStream() throws Exception {
+    final QRGenerator generator = new ZxingQRGenerator();
+
+    final String autoStartToken = "46f6aa68-a520-49d8-9be7-f0726d038c26";
+
+    for (ImageFormat format : ImageFormat.values()) {
+      final byte[] expected = generator.generateQRCodeImage(autoStartToken, 200, 200, format);
+
+      final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      generator.writeQRCodeImage(autoStartToken, 200, 200, format, bos);
+      Assert.assertArrayEquals(expected, bos.toByteArray());
+
+      final ByteBuffer buffer = ByteBuffer.allocateDirect(expected.length);
+      generator.writeQRCodeImage(autoStartToken, 200, 200, format, new ByteBufferOutputStream(buffer));
+      Assert.assertEquals(0, buffer.remaining());
+
+      final StringWriter writer = new StringWriter();
+      generator.writeQRCodeBase64Image(autoStartToken, 200, 200, format, writer);
+      Assert.assertEquals(generator.generateQRCodeBase64Image(autoStartToken, 200, 200, format), writer.toString());
+      Assert.assertEquals(String.format("data:%s;base64, %s", format.getMediaType(), Base64.getEncoder().encodeToString(expected)),
+        writer.toString());
+    }
+
+    try {
+      generator.writeQRCodeImage(autoStartToken, 200, 200, ImageFormat.PNG, new ByteBufferOutputStream(ByteBuffer.allocate(10)));
+      Assert.fail("Expected IOException");
+    }
+    catch (IOException e) {
+    }
+  }
+
+  @Test
+  public void testAnimatedInput() throws Exception {
+    final ZxingQRGenerator generator = new ZxingQRGenerator();
+
+    final String qrStartToken = "67df3917-fa0d-44e5-b327-edcc928297f8";
+    final String qrStartSecret = "d28db9a7-4cde-429e-a983-359be676944c";
+
+    for (long qrTime : new long[] { 0, 1, 9, 10, 29, 100, 12345 }) {
+      final Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(qrStartSecret.getBytes(StandardCharsets.US_ASCII), "HmacSHA256"));
+      mac.update(Long.toString(qrTime).getBytes(StandardCharsets.US_ASCII));
+      final String expected = String.join(".", "bankid", qrStartToken, Long.toString(qrTime),
+        String.format("%064x", new BigInteger(1, mac.doFinal())));
+
+      Assert.assertEquals(expected, generator.buildAnimatedInput(qrStartToken, qrStartSecret, qrTime));
+    }
+  }
+
   @Test
   public void testGenerateEmbedded() throws Exception {
     final QRGenerator generator = new ZxingQRGenerator();
@@ -93,6 +216,37 @@ public class ZxingQRGeneratorTest {
     Assert.assertTrue(textInQR.endsWith(autoStartToken));    
   }
 
+  /**
+   * Decodes a QR code SVG image (as written by {@code QRSvgWriter}) into a string.
+   * 
+   * @param svg
+   *          the SVG image
+   * @return the encoded string
+   * @throws Exception
+   *           for errors
+   */
+  private static String decodeSvg(String svg) throws Exception {
+    final int scale = 4;
+    final Matcher viewBox = Pattern.compile("viewBox=\"0 0 (\\d+) (\\d+)\"").matcher(svg);
+    Assert.assertTrue(viewBox.find());
+    final BufferedImage image = new BufferedImage(Integer.parseInt(viewBox.group(1)) * scale,
+      Integer.parseInt(viewBox.group(2)) * scale, BufferedImage.TYPE_INT_RGB);
+    final Graphics2D g = image.createGraphics();
+    g.setColor(Color.WHITE);
+    g.fillRect(0, 0, image.getWidth(), image.getHeight());
+    g.setColor(Color.BLACK);
+    final Matcher runs = Pattern.compile("M(\\d+),(\\d+)h(\\d+)v1h-\\d+z").matcher(svg);
+    while (runs.find()) {
+      g.fillRect(Integer.parseInt(runs.group(1)) * scale, Integer.parseInt(runs.group(2)) * scale,
+        Integer.parseInt(runs.group(3)) * scale, scale);
+    }
+    g.dispose();
+
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ImageIO.write(image, "PNG", bos);
+    return decodeQRBytes(bos.toByteArray());
+  }
+
   /**
    * Decodes the QR code bytes into a string.
    * 
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.context.support.ResourceBundleMessageSource;
+import org.springframework.context.support.StaticMessageSource;
+
+import se.litsec.bankid.rpapi.support.BankIDMessage.ShortName;
+
+/**
+ * Test cases for {@code BankIDMessageCache}.
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class BankIDMessageCacheTest {
+
+  @Test
+  public void testMessages() throws Exception {
+    final ResourceBundleMessageSource messageSource = new ResourceBundleMessageSource();
+    messageSource.setBasename("bankid-messages");
+    messageSource.setDefaultEncoding("UTF-8");
+    messageSource.setFallbackToSystemLocale(false);
+
+    final BankIDMessageCache cache = new BankIDMessageCache(messageSource);
+    cache.afterPropertiesSet();
+
+    for (ShortName shortName : ShortName.values()) {
+      for (Locale locale : BankIDMessageCache.DEFAULT_LOCALES) {
+        final BankIDMessage message = new DefaultBankIDMessageRepository().getBankIDMessage(shortName);
+        Assert.assertEquals(message.getMessageCodes().size(), cache.getMessages(shortName, locale).size());
+        for (int i = 0; i < message.getMessageCodes().size(); i++) {
+          Assert.assertEquals(messageSource.getMessage(message.getMessageCodes().get(i), null, locale),
+            cache.getMessages(shortName, locale).get(i));
+        }
+      }
+    }
+    Assert.assertEquals("Start your BankID app.", cache.getMessage(ShortName.RFA1, Locale.ENGLISH));
+    Assert.assertEquals("Starta BankID-appen.", cache.getMessage(ShortName.RFA1, new Locale("sv", "SE")));
+    Assert.assertEquals("Start your BankID app.", cache.getMessage(ShortName.RFA1, Locale.GERMAN));
+    Assert.assertEquals("Start your BankID app.", cache.getMessage(ShortName.RFA1, null));
+  }
+
+  @Test
+  public void testClientLocales() throws Exception {
+    final StaticMessageSource messageSource = new StaticMessageSource();
+    messageSource.addMessage("bankid.msg.rfa1", Locale.ENGLISH, "Start the app");
+    messageSource.addMessage("bankid.msg.rfa1", new Locale("sv"), "Starta appen");
+
+    final BankIDMessageCache cache = new BankIDMessageCache(messageSource);
+    cache.setLocales(Arrays.asList(Locale.ENGLISH, new Locale("sv")));
+    cache.afterPropertiesSet();
+
+    for (int i = 0; i < 1000; i++) {
+      final String variant = "x" + i;
+      Assert.assertEquals("Starta appen", cache.getMessage(ShortName.RFA1, new Locale("sv", "SE", variant)));
+      Assert.assertEquals("Start the app", cache.getMessage(ShortName.RFA1, new Locale("en", "US", variant)));
+      Assert.assertEquals("Start the app", cache.getMessage(ShortName.RFA1, new Locale("fi", "FI", variant)));
+    }
+  }
+
+  @Test
+  public void testJsonAndRefresh() throws Exception {
+    final StaticMessageSource messageSource = new StaticMessageSource();
+    messageSource.addMessage("bankid.msg.rfa14-mobile.1", Locale.ENGLISH, "Searching \"BankID\"");
+    messageSource.addMessage("bankid.msg.rfa14-mobile.2", Locale.ENGLISH, "Åäö");
+
+    final BankIDMessageCache cache = new BankIDMessageCache(messageSource);
+    cache.setLocales(Arrays.asList(Locale.ENGLISH));
+    cache.afterPropertiesSet();
+
+    final String expected = "[\"Searching \\\"BankID\\\"\",\"Åäö\"]";
+    final ByteBuffer json = cache.getJsonMessage(ShortName.RFA14_MOBILE, Locale.ENGLISH);
+    Assert.assertTrue(json.isReadOnly());
+    final byte[] bytes = new byte[json.remaining()];
+    json.get(bytes);
+    Assert.assertEquals(expected, new String(bytes, StandardCharsets.UTF_8));
+
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    Assert.assertTrue(cache.writeJsonMessage(ShortName.RFA14_MOBILE, Locale.ENGLISH, bos));
+    Assert.assertEquals(expected, new String(bos.toByteArray(), StandardCharsets.UTF_8));
+
+    // Missing messages give the message code ...
+    Assert.assertEquals("bankid.msg.rfa1", cache.getMessage(ShortName.RFA1, Locale.ENGLISH));
+
+    messageSource.addMessage("bankid.msg.rfa1", Locale.ENGLISH, "Start the app");
+    Assert.assertEquals("bankid.msg.rfa1", cache.getMessage(ShortName.RFA1, Locale.ENGLISH));
+    cache.refresh();
+    Assert.assertEquals("Start the app", cache.getMessage(ShortName.RFA1, Locale.ENGLISH));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testNotInitialized() throws Exception {
+    new BankIDMessageCache(new StaticMessageSource()).getMessage(ShortName.RFA1, Locale.ENGLISH);
+  }
+
+}
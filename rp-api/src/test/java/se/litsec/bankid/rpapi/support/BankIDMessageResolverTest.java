@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import se.litsec.bankid.rpapi.support.BankIDMessage.ShortName;
+import se.litsec.bankid.rpapi.support.BankIDMessageResolver.StartMethod;
+import se.litsec.bankid.rpapi.support.useragent.UserDeviceType;
+import se.litsec.bankid.rpapi.types.ErrorCode;
+import se.litsec.bankid.rpapi.types.ProgressStatus;
+
+/**
+ * Test cases for {@code BankIDMessageResolver} and {@code DefaultBankIDMessageRepository}.
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class BankIDMessageResolverTest {
+
+  @Test
+  public void testRepository() throws Exception {
+    final DefaultBankIDMessageRepository repository = new DefaultBankIDMessageRepository();
+    for (ShortName shortName : ShortName.values()) {
+      final BankIDMessage message = repository.getBankIDMessage(shortName);
+      Assert.assertNotNull(shortName.name(), message);
+      Assert.assertEquals(shortName, message.getShortName());
+      Assert.assertFalse(message.getMessageCodes().isEmpty());
+    }
+    Assert.assertEquals("bankid.msg.ext4", repository.getBankIDMessage(ShortName.EXT4).getMessageCodes().get(0));
+    Assert.assertNull(repository.getBankIDMessage(null));
+  }
+
+  @Test
+  public void testProgressStatus() throws Exception {
+    final BankIDMessageResolver resolver = new BankIDMessageResolver();
+
+    Assert.assertEquals(ShortName.RFA13,
+      resolver.getMessage(ProgressStatus.OUTSTANDING_TRANSACTION, UserDeviceType.MOBILE, false, StartMethod.AUTO_START).getShortName());
+    Assert.assertEquals(ShortName.RFA1,
+      resolver.getMessage(ProgressStatus.OUTSTANDING_TRANSACTION, UserDeviceType.DESKTOP, false, StartMethod.PERSONAL_IDENTITY_NUMBER)
+        .getShortName());
+    Assert.assertEquals(ShortName.EXT2,
+      resolver.getMessage(ProgressStatus.NO_CLIENT, UserDeviceType.DESKTOP, true, StartMethod.QR_CODE).getShortName());
+    Assert.assertEquals(ShortName.RFA14_DESKTOP,
+      resolver.getMessage(ProgressStatus.STARTED, UserDeviceType.DESKTOP, false, StartMethod.PERSONAL_IDENTITY_NUMBER).getShortName());
+    Assert.assertEquals(ShortName.RFA15_MOBILE,
+      resolver.getMessage(ProgressStatus.STARTED, UserDeviceType.TABLET, false, StartMethod.AUTO_START).getShortName());
+    Assert.assertEquals(ShortName.RFA9_AUTH,
+      resolver.getMessage(ProgressStatus.USER_SIGN, UserDeviceType.MOBILE, false, StartMethod.QR_CODE).getShortName());
+    Assert.assertEquals(ShortName.RFA9_SIGN,
+      resolver.getMessage(ProgressStatus.USER_SIGN, UserDeviceType.MOBILE, true, StartMethod.QR_CODE).getShortName());
+    Assert.assertEquals(ShortName.RFA21_SIGN,
+      resolver.getMessage(ProgressStatus.UNKNOWN_HINTCODE, UserDeviceType.DESKTOP, true, StartMethod.AUTO_START).getShortName());
+    Assert.assertNull(resolver.getMessage(ProgressStatus.COMPLETE, UserDeviceType.DESKTOP, true, StartMethod.AUTO_START));
+  }
+
+  @Test
+  public void testErrorCode() throws Exception {
+    final BankIDMessageResolver resolver = new BankIDMessageResolver();
+
+    Assert.assertEquals(ShortName.RFA8,
+      resolver.getMessage(ErrorCode.EXPIRED_TRANSACTION, UserDeviceType.DESKTOP, false, StartMethod.AUTO_START).getShortName());
+    Assert.assertEquals(ShortName.RFA17_QR,
+      resolver.getMessage(ErrorCode.START_FAILED, UserDeviceType.DESKTOP, false, StartMethod.QR_CODE).getShortName());
+    Assert.assertEquals(ShortName.RFA17_PNR,
+      resolver.getMessage(ErrorCode.START_FAILED, UserDeviceType.MOBILE, true, StartMethod.AUTO_START).getShortName());
+    Assert.assertEquals(ShortName.RFA4,
+      resolver.getMessage(ErrorCode.ALREADY_IN_PROGRESS, UserDeviceType.MOBILE, true, StartMethod.AUTO_START).getShortName());
+    Assert.assertEquals(ShortName.RFA5,
+      resolver.getMessage(ErrorCode.MAINTENANCE, UserDeviceType.MOBILE, true, StartMethod.AUTO_START).getShortName());
+    Assert.assertEquals(ShortName.RFA22,
+      resolver.getMessage(ErrorCode.UNKNOWN_ERROR, UserDeviceType.MOBILE, true, StartMethod.AUTO_START).getShortName());
+
+    // All combinations give a message ...
+    for (ErrorCode e : ErrorCode.values()) {
+      for (UserDeviceType d : UserDeviceType.values()) {
+        for (StartMethod m : StartMethod.values()) {
+          Assert.assertNotNull(resolver.getMessage(e, d, false, m));
+          Assert.assertNotNull(resolver.getMessage(e, d, true, m));
+        }
+      }
+    }
+  }
+
+}
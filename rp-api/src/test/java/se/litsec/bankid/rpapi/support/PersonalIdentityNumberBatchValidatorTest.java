@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test cases for {@code PersonalIdentityNumberBatchValidator}.
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class PersonalIdentityNumberBatchValidatorTest {
+
+  @Test
+  public void testValidate() throws Exception {
+    final String[] records = { "196904146856", "196904146855", "19690414685a", "190212240469", "196913146856",
+        "196904326856", "196904616856", "19690414-685", "000000000000", "1969/4146856" };
+    final boolean[] expected = { true, false, false, true, false, false, false, false, false, false };
+
+    final byte[] buffer = String.join("\n", records).getBytes(StandardCharsets.US_ASCII);
+    final long[] result = new long[1];
+    Assert.assertEquals(2, PersonalIdentityNumberBatchValidator.validate(buffer, 0, 13, records.length, result));
+    for (int i = 0; i < records.length; i++) {
+      Assert.assertEquals(records[i], expected[i], (result[0] & 1L << i) != 0);
+    }
+  }
+
+  @Test
+  public void testSameAsParse() throws Exception {
+    // Compare with PersonalIdentityNumber. Numbers that parse must be valid, and numbers that are valid may only be
+    // rejected by parse because the day does not exist in the month ...
+    final Random random = new Random(1);
+    final int count = 100000;
+    final int offset = 3;
+    final int stride = 14;
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(offset + count * stride);
+    final String[] records = new String[count];
+    for (int i = 0; i < count; i++) {
+      records[i] = String.format("%02d%02d%02d%02d%04d", 18 + random.nextInt(3), random.nextInt(100), random.nextInt(14),
+        random.nextInt(4) == 0 ? 60 + random.nextInt(33) : random.nextInt(33), random.nextInt(10000));
+      buffer.position(offset + i * stride);
+      buffer.put(records[i].getBytes(StandardCharsets.US_ASCII));
+    }
+    buffer.clear();
+
+    final long[] result = new long[(count + 63) / 64];
+    final int valid = PersonalIdentityNumberBatchValidator.validate(buffer, offset, stride, count, result);
+    int parsed = 0;
+    for (int i = 0; i < count; i++) {
+      final boolean isValid = (result[i / 64] & 1L << i) != 0;
+      try {
+        PersonalIdentityNumber.parse(records[i]);
+        parsed++;
+        Assert.assertTrue(records[i], isValid);
+      }
+      catch (PersonalIdentityNumberException e) {
+        if (isValid) {
+          Assert.assertTrue(records[i] + " - " + e.getMessage(),
+            e.getMessage().startsWith("Invalid birth date") || e.getMessage().startsWith("Invalid samordningsnummer"));
+        }
+      }
+    }
+    Assert.assertTrue(parsed > 1000);
+    Assert.assertTrue(valid >= parsed);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTooSmallBuffer() throws Exception {
+    PersonalIdentityNumberBatchValidator.validate(new byte[24], 0, 13, 2, new long[1]);
+  }
+
+}
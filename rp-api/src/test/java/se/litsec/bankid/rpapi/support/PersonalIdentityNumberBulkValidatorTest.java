@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for {@code PersonalIdentityNumberBulkValidator}.
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class PersonalIdentityNumberBulkValidatorTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testValidate() throws Exception {
+    final String input = "196904146856\n"
+        + "19690414-6856\r\n"
+        + "\n"
+        + "  6904146856  \n"
+        + "690414-6856\n"
+        + "690414-6855\n"
+        + "garbage\n"
+        + "\t\n"
+        + "19690231-6856\n"
+        + "190212240469";
+
+    final ByteArrayOutputStream normalized = new ByteArrayOutputStream();
+    final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    final PersonalIdentityNumberBulkValidator.Result result =
+        new PersonalIdentityNumberBulkValidator().validate(this.write(input), normalized, errors);
+
+    Assert.assertEquals(10, result.getLines());
+    Assert.assertEquals(8, result.getRecords());
+    Assert.assertEquals(5, result.getValid());
+    Assert.assertEquals(3, result.getInvalid());
+    Assert.assertEquals("196904146856\n196904146856\n196904146856\n196904146856\n190212240469\n",
+      new String(normalized.toByteArray(), StandardCharsets.US_ASCII));
+    Assert.assertEquals("6\t690414-6855\tInvalid personal identity number - control digit is incorrect\n"
+        + "7\tgarbage\tInvalid format of personal identity number\n"
+        + "9\t19690231-6856\tInvalid birth date - 19690231\n",
+      new String(errors.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testChunks() throws Exception {
+    // Use small chunks so that the file is split into many chunks, and compare with parsing line by line ...
+    final Random random = new Random(1);
+    final StringBuilder input = new StringBuilder();
+    final StringBuilder expectedNormalized = new StringBuilder();
+    final StringBuilder expectedErrors = new StringBuilder();
+    final int lines = 20000;
+    for (int line = 1; line <= lines; line++) {
+      final String number = String.format("%02d%02d%02d%c%04d", 19 + random.nextInt(2), random.nextInt(100),
+        1 + random.nextInt(12), random.nextBoolean() ? '-' : '+', random.nextInt(10000))
+        .substring(random.nextBoolean() ? 0 : 2);
+      final String record = number.length() > 11 && random.nextBoolean() ? number : number.replace("-", "").replace("+", "");
+      input.append(record).append('\n');
+      try {
+        expectedNormalized.append(PersonalIdentityNumber.parse(record).getNumber()).append('\n');
+      }
+      catch (PersonalIdentityNumberException e) {
+        expectedErrors.append(line).append('\t').append(record).append('\t').append(e.getMessage()).append('\n');
+      }
+    }
+    final Path file = this.write(input.toString());
+
+    final ForkJoinPool pool = new ForkJoinPool(3);
+    try {
+      final PersonalIdentityNumberBulkValidator validator = new PersonalIdentityNumberBulkValidator();
+      validator.setPool(pool);
+      validator.setChunkSize(100);
+
+      final ByteArrayOutputStream normalized = new ByteArrayOutputStream();
+      final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+      final PersonalIdentityNumberBulkValidator.Result result = validator.validate(file, normalized, errors);
+
+      Assert.assertEquals(lines, result.getLines());
+      Assert.assertEquals(lines, result.getRecords());
+      Assert.assertEquals(expectedNormalized.toString(), new String(normalized.toByteArray(), StandardCharsets.US_ASCII));
+      Assert.assertEquals(expectedErrors.toString(), new String(errors.toByteArray(), StandardCharsets.UTF_8));
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testNonAsciiBytes() throws Exception {
+    // Bytes above 0x7f are not whitespace and must not be trimmed away ...
+    final String input = "196904146856é\n"
+        + "Å196904146856\n"
+        + " 196904146856 \n";
+    final String expectedErrors = "1\t196904146856é\tInvalid format of personal identity number\n"
+        + "2\tÅ196904146856\tInvalid format of personal identity number\n";
+
+    for (Charset charset : new Charset[] { StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1 }) {
+      final ByteArrayOutputStream normalized = new ByteArrayOutputStream();
+      final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+      final PersonalIdentityNumberBulkValidator.Result result =
+          new PersonalIdentityNumberBulkValidator().validate(this.write(input, charset), normalized, errors);
+
+      Assert.assertEquals(3, result.getRecords());
+      Assert.assertEquals(1, result.getValid());
+      Assert.assertEquals(2, result.getInvalid());
+      Assert.assertEquals("196904146856\n", new String(normalized.toByteArray(), StandardCharsets.US_ASCII));
+      Assert.assertEquals(expectedErrors, new String(errors.toByteArray(), charset));
+    }
+  }
+
+  @Test
+  public void testEmptyFile() throws Exception {
+    final ByteArrayOutputStream normalized = new ByteArrayOutputStream();
+    final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    final PersonalIdentityNumberBulkValidator.Result result =
+        new PersonalIdentityNumberBulkValidator().validate(this.write(""), normalized, errors);
+    Assert.assertEquals(0, result.getLines());
+    Assert.assertEquals(0, normalized.size());
+    Assert.assertEquals(0, errors.size());
+  }
+
+  private Path write(final String contents) throws Exception {
+    return this.write(contents, StandardCharsets.US_ASCII);
+  }
+
+  private Path write(final String contents, final Charset charset) throws Exception {
+    final Path file = this.folder.newFile().toPath();
+    Files.write(file, contents.getBytes(charset));
+    return file;
+  }
+
+}
@@ -15,6 +15,10 @@
  */
 package se.litsec.bankid.rpapi.support;
 
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -147,4 +151,91 @@ public class PersonalIdentityNumberTest {
     PersonalIdentityNumber p2 = mapper.readValue("\"196904146856\"", PersonalIdentityNumber.class);
     Assert.assertEquals(p, p2);
   }
+
+  @Test
+  public void testErrorMessages() throws Exception {
+    assertError("19691129NNNN", "Invalid format of personal identity number");
+    assertError("196911290000-", "Invalid format of personal identity number");
+    assertError("19730800-4737", "Invalid date - 00");
+    assertError("7308324737", "Invalid date - 32");
+    assertError("192313229252", "Invalid birth date - 19231322");
+    assertError("197202311412", "Invalid birth date - 19720231");
+    assertError("19720291-1412", "Invalid samordningsnummer - 19720291");
+    assertError("196904146850", "Invalid personal identity number - control digit is incorrect");
+  }
+
+  @Test
+  public void testWhitespace() throws Exception {
+    Assert.assertEquals("196904146856", new PersonalIdentityNumber(" 19690414-6856\t").getNumber());
+  }
+
+  @Test
+  public void testClock() throws Exception {
+    try {
+      // In 2068 a person born 1969 is 99 ...
+      PersonalIdentityNumber.setClock(Clock.fixed(Instant.parse("2068-12-31T12:00:00Z"), ZoneId.of("UTC")));
+      Assert.assertEquals("19690414-6856", new PersonalIdentityNumber("6904146856").toString());
+      Assert.assertEquals("19690414-6856", new PersonalIdentityNumber("196904146856").toString());
+
+      // ... and in 2069 he or she is 100
+      PersonalIdentityNumber.setClock(Clock.fixed(Instant.parse("2069-01-01T12:00:00Z"), ZoneId.of("UTC")));
+      Assert.assertEquals("20690414-6856", new PersonalIdentityNumber("6904146856").toString());
+      Assert.assertEquals("19690414+6856", new PersonalIdentityNumber("690414+6856").toString());
+      Assert.assertEquals("19690414+6856", new PersonalIdentityNumber("196904146856").toString());
+    }
+    finally {
+      PersonalIdentityNumber.setClock(Clock.systemDefaultZone());
+    }
+  }
+
+  @Test
+  public void testPacked() throws Exception {
+    final String[] numbers = { "19690414-6856", "19021224+0469", "19701063-2391" };
+    for (String number : numbers) {
+      final PersonalIdentityNumber p = new PersonalIdentityNumber(number);
+      final long packed = p.toPackedValue();
+      final PersonalIdentityNumber p2 = PersonalIdentityNumber.fromPackedValue(packed);
+      Assert.assertEquals(p, p2);
+      Assert.assertEquals(p.hashCode(), p2.hashCode());
+      Assert.assertEquals(number, p2.toString());
+      Assert.assertEquals(p.isSamordningsnummer(), p2.isSamordningsnummer());
+
+      for (Format format : Format.values()) {
+        final char[] chars = new char[20];
+        final int length = PersonalIdentityNumber.format(packed, format, chars, 5);
+        Assert.assertEquals(p.getNumber(format), new String(chars, 5, length));
+        Assert.assertEquals(p.getNumber(format), p.formatTo(format, new StringBuilder()).toString());
+      }
+    }
+    Assert.assertEquals(196904146856L << 1, new PersonalIdentityNumber("196904146856").toPackedValue());
+    Assert.assertTrue(new PersonalIdentityNumber("19021224+0469").toPackedValue() != 190212240469L);
+
+    try {
+      PersonalIdentityNumber.fromPackedValue(-1L);
+      Assert.fail("Expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void testPackedOrderedByBirthDate() throws Exception {
+    // Numbers with a '+' delimiter (100 years or older) must not sort after the others ...
+    final String[] numbers = { "19021224+0469", "19690414-6856", "19701063-2391" };
+    for (int i = 1; i < numbers.length; i++) {
+      Assert.assertTrue(String.format("%s < %s", numbers[i - 1], numbers[i]),
+        new PersonalIdentityNumber(numbers[i - 1]).toPackedValue() < new PersonalIdentityNumber(numbers[i]).toPackedValue());
+    }
+  }
+
+  private static void assertError(final String number, final String message) {
+    try {
+      new PersonalIdentityNumber(number);
+      Assert.fail(String.format("Expected '%s' to fail", number));
+    }
+    catch (PersonalIdentityNumberException e) {
+      Assert.assertEquals(message, e.getMessage());
+    }
+  }
+
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support.collections;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test cases for {@code ConcurrentLongHashSet}, {@code ConcurrentLongObjectHashMap} and
+ * {@code ConcurrentLongIntHashMap}.
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class ConcurrentLongHashCollectionsTest {
+
+  private static final int THREADS = 4;
+
+  private static final int KEYS = 20000;
+
+  @Test
+  public void testSet() throws Exception {
+    final ConcurrentLongHashSet set = new ConcurrentLongHashSet(0, 8);
+    final AtomicInteger added = new AtomicInteger();
+    this.runConcurrently(t -> {
+      for (long key = 0; key < KEYS; key++) {
+        if (set.add(key)) {
+          added.incrementAndGet();
+        }
+      }
+    });
+    Assert.assertEquals(KEYS, added.get());
+    Assert.assertEquals(KEYS, set.size());
+
+    final AtomicInteger sum = new AtomicInteger();
+    set.forEach(v -> sum.addAndGet((int) v));
+    Assert.assertEquals(KEYS * (KEYS - 1) / 2, sum.get());
+
+    this.runConcurrently(t -> {
+      for (long key = t; key < KEYS; key += THREADS) {
+        Assert.assertTrue(set.remove(key));
+      }
+    });
+    Assert.assertTrue(set.isEmpty());
+  }
+
+  @Test
+  public void testObjectMap() throws Exception {
+    final ConcurrentLongObjectHashMap<Object> map = new ConcurrentLongObjectHashMap<>();
+    final AtomicInteger created = new AtomicInteger();
+    final Object[][] seen = new Object[THREADS][KEYS];
+    this.runConcurrently(t -> {
+      for (int key = 0; key < KEYS; key++) {
+        seen[t][key] = map.computeIfAbsent(key, k -> {
+          created.incrementAndGet();
+          return new Object();
+        });
+      }
+    });
+    Assert.assertEquals(KEYS, created.get());
+    Assert.assertEquals(KEYS, map.size());
+    for (int key = 0; key < KEYS; key++) {
+      for (int t = 1; t < THREADS; t++) {
+        Assert.assertSame(seen[0][key], seen[t][key]);
+      }
+    }
+    Assert.assertFalse(map.remove(1L, new Object()));
+    Assert.assertTrue(map.remove(1L, seen[0][1]));
+    Assert.assertNull(map.get(1L));
+
+    map.clear();
+    Assert.assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void testIntMap() throws Exception {
+    final ConcurrentLongIntHashMap map = new ConcurrentLongIntHashMap(KEYS, 0);
+    this.runConcurrently(t -> {
+      for (int i = 0; i < 5; i++) {
+        for (long key = 0; key < KEYS; key++) {
+          map.addTo(key * 1000003L, 1);
+        }
+      }
+    });
+    Assert.assertEquals(KEYS, map.size());
+    map.forEach((k, v) -> Assert.assertEquals(5 * THREADS, v));
+    Assert.assertEquals(5 * THREADS, map.remove(0L));
+    Assert.assertEquals(0, map.get(0L));
+  }
+
+  private void runConcurrently(final Task task) throws Exception {
+    final List<Thread> threads = new ArrayList<>();
+    final List<Throwable> errors = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      final int t = i;
+      final Thread thread = new Thread(() -> task.run(t));
+      thread.setUncaughtExceptionHandler((th, e) -> {
+        synchronized (errors) {
+          errors.add(e);
+        }
+      });
+      threads.add(thread);
+    }
+    threads.forEach(Thread::start);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (!errors.isEmpty()) {
+      throw new AssertionError("Task failed", errors.get(0));
+    }
+  }
+
+  @FunctionalInterface
+  private interface Task {
+    void run(int thread);
+  }
+
+}
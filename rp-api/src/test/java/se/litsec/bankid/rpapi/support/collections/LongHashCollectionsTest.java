@@ -0,0 +1,166 @@
+/*
+ * Copyright 2018-2020 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support.collections;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test cases for {@code LongHashSet}, {@code LongObjectHashMap} and {@code LongIntHashMap}.
+ *
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class LongHashCollectionsTest {
+
+  @Test
+  public void testSet() throws Exception {
+    final Random random = new Random(1);
+    final LongHashSet set = new LongHashSet(0);
+    final Set<Long> expected = new HashSet<>();
+
+    for (int i = 0; i < 200000; i++) {
+      final long value = this.nextKey(random);
+      final int op = random.nextInt(3);
+      if (op == 0) {
+        Assert.assertEquals(expected.remove(value), set.remove(value));
+      }
+      else {
+        Assert.assertEquals(expected.add(value), set.add(value));
+      }
+      Assert.assertEquals(expected.contains(value), set.contains(value));
+    }
+    Assert.assertEquals(expected.size(), set.size());
+    for (long value : expected) {
+      Assert.assertTrue(set.contains(value));
+    }
+
+    final long[] values = set.toArray();
+    Arrays.sort(values);
+    Assert.assertArrayEquals(expected.stream().mapToLong(Long::longValue).sorted().toArray(), values);
+
+    final Set<Long> iterated = new HashSet<>();
+    set.forEach(v -> Assert.assertTrue(iterated.add(v)));
+    Assert.assertEquals(expected, iterated);
+
+    set.clear();
+    Assert.assertTrue(set.isEmpty());
+    Assert.assertFalse(set.contains(0L));
+  }
+
+  @Test
+  public void testObjectMap() throws Exception {
+    final Random random = new Random(2);
+    final LongObjectHashMap<String> map = new LongObjectHashMap<>();
+    final Map<Long, String> expected = new HashMap<>();
+
+    for (int i = 0; i < 200000; i++) {
+      final long key = this.nextKey(random);
+      final String value = Integer.toString(i);
+      switch (random.nextInt(4)) {
+      case 0:
+        Assert.assertEquals(expected.remove(key), map.remove(key));
+        break;
+      case 1:
+        Assert.assertEquals(expected.putIfAbsent(key, value), map.putIfAbsent(key, value));
+        break;
+      case 2:
+        Assert.assertEquals(expected.computeIfAbsent(key, k -> value), map.computeIfAbsent(key, k -> value));
+        break;
+      default:
+        Assert.assertEquals(expected.put(key, value), map.put(key, value));
+      }
+      Assert.assertEquals(expected.get(key), map.get(key));
+      Assert.assertEquals(expected.containsKey(key), map.containsKey(key));
+    }
+    Assert.assertEquals(expected.size(), map.size());
+    Assert.assertEquals(expected.size(), map.keys().length);
+
+    final Map<Long, String> iterated = new HashMap<>();
+    map.forEach((k, v) -> Assert.assertNull(iterated.put(k, v)));
+    Assert.assertEquals(expected, iterated);
+
+    map.clear();
+    Assert.assertTrue(map.isEmpty());
+    Assert.assertNull(map.get(0L));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testObjectMapNullValue() throws Exception {
+    new LongObjectHashMap<String>().put(1L, null);
+  }
+
+  @Test
+  public void testIntMap() throws Exception {
+    final Random random = new Random(3);
+    final LongIntHashMap map = new LongIntHashMap(10);
+    final Map<Long, Integer> expected = new HashMap<>();
+
+    for (int i = 0; i < 200000; i++) {
+      final long key = this.nextKey(random);
+      switch (random.nextInt(3)) {
+      case 0:
+        Assert.assertEquals(this.orZero(expected.remove(key)), map.remove(key));
+        break;
+      case 1:
+        Assert.assertEquals(expected.merge(key, 1, Integer::sum).intValue(), map.addTo(key, 1));
+        break;
+      default:
+        Assert.assertEquals(this.orZero(expected.put(key, i)), map.put(key, i));
+      }
+      Assert.assertEquals(this.orZero(expected.get(key)), map.get(key));
+      Assert.assertEquals(expected.containsKey(key), map.containsKey(key));
+    }
+    Assert.assertEquals(expected.size(), map.size());
+
+    final Map<Long, Integer> iterated = new HashMap<>();
+    map.forEach((k, v) -> Assert.assertNull(iterated.put(k, v)));
+    Assert.assertEquals(expected, iterated);
+  }
+
+  @Test
+  public void testPackedPersonalIdentityNumbers() throws Exception {
+    // Packed numbers are dense and differ only in a few low digits - make sure they spread well ...
+    final LongHashSet set = new LongHashSet();
+    for (long date = 19000101L; date < 19000131L; date++) {
+      for (int serial = 0; serial < 10000; serial++) {
+        Assert.assertTrue(set.add(date * 10000L + serial));
+      }
+    }
+    Assert.assertEquals(300000, set.size());
+    Assert.assertTrue(set.contains(190001150042L));
+    Assert.assertFalse(set.contains(190001310042L));
+  }
+
+  /**
+   * Returns a key from a small range (so that keys are re-used), with the special zero key included.
+   */
+  private long nextKey(final Random random) {
+    final int n = random.nextInt(20000);
+    return n == 0 ? 0L : random.nextBoolean() ? n : -n * 0x100000001L;
+  }
+
+  private int orZero(final Integer value) {
+    return value != null ? value.intValue() : 0;
+  }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support.useragent;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mobile.device.Device;
+import org.springframework.mobile.device.LiteDeviceResolver;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * Test cases for {@code UserAgentClassifier} and {@code DefaultUserAgent}.
+ * 
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class UserAgentClassifierTest {
+
+  private static final String[] USER_AGENTS = {
+      "Mozilla/5.0 (iPhone; CPU iPhone OS 13_3 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/13.0.5 Mobile/15E148 Safari/604.1",
+      "Mozilla/5.0 (iPhone; CPU iPhone OS 13_3 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) CriOS/80.0.3987.95 Mobile/15E148 Safari/604.1",
+      "Mozilla/5.0 (iPhone; CPU iPhone OS 13_3 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Mobile/15E148 [FBAN/FBIOS;FBDV/iPhone11,8]",
+      "Mozilla/5.0 (iPad; CPU OS 12_2 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/12.1 Mobile/15E148 Safari/604.1",
+      "mozilla/5.0 (ipod touch; cpu iphone os 12_4 like mac os x) applewebkit/605.1.15",
+      "Mozilla/5.0 (Linux; Android 10; SM-G973F) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/80.0.3987.99 Mobile Safari/537.36",
+      "Mozilla/5.0 (Linux; Android 9; SM-T820) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/80.0.3987.99 Safari/537.36",
+      "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/80.0.3987.122 Safari/537.36",
+      "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_3) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/13.0.5 Safari/605.1.15",
+      "Mozilla/5.0 (iPhone; CPU iPhone OS 13_3 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) GSA/100.0.304 Mobile/15E148 Safari/604.1",
+      "Nokia6300/2.0 (05.00) Profile/MIDP-2.0 Configuration/CLDC-1.1",
+      "",
+      null };
+
+  @Test
+  public void testSameAsResolver() throws Exception {
+    final UserAgentClassifier classifier = new UserAgentClassifier();
+    final LiteDeviceResolver resolver = new LiteDeviceResolver();
+
+    for (int run = 0; run < 2; run++) {
+      for (String userAgent : USER_AGENTS) {
+        for (int headers = 0; headers < 5; headers++) {
+          final MockHttpServletRequest request = new MockHttpServletRequest();
+          if (userAgent != null) {
+            request.addHeader("User-Agent", userAgent);
+          }
+          if (headers == 1) {
+            request.addHeader("x-wap-profile", "http://example.com/profile.xml");
+          }
+          else if (headers == 2) {
+            request.addHeader("Accept", "text/vnd.wap.wml");
+          }
+          else if (headers == 3) {
+            request.addHeader("X-OperaMini-Phone-UA", "x");
+          }
+          else if (headers == 4) {
+            request.addHeader("Accept", "text/html");
+          }
+
+          final UserAgent ua = new DefaultUserAgent(request, classifier);
+          final String header = userAgent != null ? userAgent : "";
+          final String msg = userAgent + " / " + headers;
+
+          Assert.assertEquals(msg, toUserDeviceType(resolver.resolveDevice(request)), ua.getUserDeviceType());
+          Assert.assertEquals(msg, header.contains("iphone") || header.contains("ipod") || header.contains("ipad"), ua.is_iOS());
+          final boolean embedded = header.contains("GSA") || header.contains("FBAN") || header.contains("Twitter");
+          Assert.assertEquals(msg, embedded, ua.isEmbeddedBrowser());
+          Assert.assertEquals(msg, header.contains("AppleWebKit") && !header.contains("CriOS") && !header.contains("Chrome")
+              && !header.contains("FxiOS") && !embedded, ua.isNonEmbeddedMobileSafari());
+        }
+      }
+    }
+    Assert.assertEquals(USER_AGENTS.length - 1, classifier.getCacheSize());
+  }
+
+  @Test
+  public void testBounded() throws Exception {
+    final UserAgentClassifier classifier = new UserAgentClassifier();
+    classifier.setMaxSize(10);
+    classifier.setMaxHeaderLength(20);
+
+    for (int i = 0; i < 100; i++) {
+      final MockHttpServletRequest request = new MockHttpServletRequest();
+      request.addHeader("User-Agent", "Agent " + i);
+      Assert.assertEquals(UserDeviceType.DESKTOP, classifier.classify(request).getUserDeviceType());
+      Assert.assertTrue(classifier.getCacheSize() <= 10);
+    }
+
+    classifier.clear();
+    final MockHttpServletRequest request = new MockHttpServletRequest();
+    request.addHeader("User-Agent", "A very long User-Agent header");
+    classifier.classify(request);
+    Assert.assertEquals(0, classifier.getCacheSize());
+  }
+
+  @Test
+  public void testEmbeddedBrowserSignatures() throws Exception {
+    final UserAgentClassifier classifier = new UserAgentClassifier();
+    final MockHttpServletRequest request = new MockHttpServletRequest();
+    request.addHeader("User-Agent",
+      "Mozilla/5.0 (iPhone; CPU iPhone OS 13_3 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Mobile/15E148 Instagram 123.0");
+
+    Assert.assertFalse(classifier.classify(request).isEmbeddedBrowser());
+    Assert.assertTrue(classifier.classify(request).isNonEmbeddedMobileSafari());
+
+    classifier.setEmbeddedBrowserSignatures(Arrays.asList("FBAN", "Instagram"));
+    Assert.assertTrue(classifier.classify(request).isEmbeddedBrowser());
+    Assert.assertFalse(classifier.classify(request).isNonEmbeddedMobileSafari());
+  }
+
+  private static UserDeviceType toUserDeviceType(final Device device) {
+    return device.isMobile() ? UserDeviceType.MOBILE : device.isTablet() ? UserDeviceType.TABLET : UserDeviceType.DESKTOP;
+  }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.bankid.rpapi.support.useragent;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test cases for {@code UserAgentPatternMatcher}.
+ * 
+ * @author Martin Lindström (martin@litsec.se)
+ */
+public class UserAgentPatternMatcherTest {
+
+  @Test
+  public void testMatch() throws Exception {
+    final List<String> patterns = Arrays.asList("iphone", "ipod", "ipad", "AppleWebKit", "CriOS", "Chrome", "FxiOS", "GSA",
+      "FBAN", "Twitter", "he", "she", "his", "hers", "aaa", "a");
+    final UserAgentPatternMatcher matcher = new UserAgentPatternMatcher(patterns);
+
+    Assert.assertEquals(0L, matcher.match(""));
+    Assert.assertEquals(1L << 10 | 1L << 11 | 1L << 13, matcher.match("ushers"));
+    Assert.assertEquals(1L << 3 | 1L << 15, matcher.match("Mozilla/5.0 AppleWebKit/605.1.15"));
+    Assert.assertEquals(1L << 0 | 1L << 2 | 1L << 8 | 1L << 15, matcher.match("iphoneipadFBAN"));
+
+    // Compare with String.contains for random strings over a small alphabet ...
+    final Random random = new Random(1);
+    final char[] alphabet = "aehirsnopdApleWbKitCOSFxGABNTw/ .Åä".toCharArray();
+    for (int n = 0; n < 20000; n++) {
+      final char[] chars = new char[random.nextInt(40)];
+      for (int i = 0; i < chars.length; i++) {
+        chars[i] = alphabet[random.nextInt(alphabet.length)];
+      }
+      final String text = new String(chars);
+      long expected = 0;
+      for (int i = 0; i < patterns.size(); i++) {
+        if (text.contains(patterns.get(i))) {
+          expected |= 1L << i;
+        }
+      }
+      Assert.assertEquals(text, expected, matcher.match(text));
+    }
+  }
+
+  @Test
+  public void testNoPatterns() throws Exception {
+    Assert.assertEquals(0L, new UserAgentPatternMatcher(Collections.emptyList()).match("text"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEmptyPattern() throws Exception {
+    new UserAgentPatternMatcher(Arrays.asList("a", ""));
+  }
+
+}